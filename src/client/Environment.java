@@ -7,6 +7,10 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Random;
 
+import metainfo.AllocationPolicy;
+import tools.Util;
+import torrent.DurabilityPolicy;
+
 public class Environment 
 {
 	private static Environment instance = null;
@@ -15,7 +19,35 @@ public class Environment
 	private static ByteBuffer peerId;
 	private String rootDownloadDirectory = "BitTorrent Downloads";
 	private int MAX_CONNECTIONS = 20;
+	private int maxCandidatePeers = 100000;	//Known peers kept per torrent, the lowest scored are evicted beyond that
+	private boolean peerCache = true;	//Remember the peers that worked, to connect to them right away next time
+	private String peerCacheDirectory = "Peer Cache";
+	private int maxCachedPeers = 200;	//Per torrent
 	private int MAX_TORRENTS = 5;
+	private AllocationPolicy allocationPolicy = AllocationPolicy.SPARSE;
+	private DurabilityPolicy durabilityPolicy = DurabilityPolicy.GROUP_COMMIT;
+	private long groupCommitInterval = 5000;	//Milliseconds between group commits
+	private long groupCommitSize = 64*Util.SIZE_MB;	//Dirty bytes that trigger a group commit early
+	private long readCacheSize = 128*Util.SIZE_MB;	//Memory shared by all torrents for caching pieces
+	private boolean zeroCopyUpload = true;	//Send uncached blocks with FileChannel.transferTo
+	private int diskThreads = 4;
+	private int uploadSlots = 4;	//Initial number of upload slots shared by all torrents, tuned at runtime
+	private long uploadLimit = 0;	//Global upload limit in bytes per second, 0 means unlimited
+	private long downloadLimit = 0;	//Global download limit in bytes per second, 0 means unlimited
+	private boolean fastExtension = true;	//Advertise and speak the BEP 6 fast extension
+	private boolean extensionProtocol = true;	//Advertise and speak the BEP 10 extension protocol
+	private boolean peerExchange = true;	//Exchange peers over ut_pex, never for private torrents
+	private boolean DHT = true;	//Find peers on the mainline DHT, never for private torrents
+	private int dhtPort = 6881;	//UDP port of the DHT node
+	private String dhtStateFile = "dht.state";	//Node ID and routing table, kept across sessions
+	private long dhtUploadLimit = 32*Util.SIZE_KB;	//Bytes per second the DHT node may send, 0 means unlimited
+	private int maxDhtLookups = 16;	//Lookups running at a time, the rest wait their turn
+	private boolean localServiceDiscovery = true;	//Announce torrents on the LAN and pick up LAN peers, BEP 14
+	private boolean localPeersUnlimited = true;	//LAN peers skip the global bandwidth limits
+	private boolean utp = false;	//Connect to IPv4 peers over uTP, falling back to TCP after a 3 second SYN timeout - off till uTP accepts incoming connections and keeps up with TCP
+	private int utpPort = 0;	//UDP port of uTP connections, 0 for any
+	private boolean announceToAllTiers = true;	//Announce to every tier of the announce-list at once, rather than only till one tier works as BEP 12 has it
+	private boolean lazyBitfield = false;	//Hold a few pieces back from our bitfield and announce them as HAVEs right after
 	
 	private Environment()
 	{
@@ -70,6 +102,38 @@ public class Environment
 		MAX_CONNECTIONS = mAX_CONNECTIONS;
 	}
 
+	public int getMaxCandidatePeers() {
+		return maxCandidatePeers;
+	}
+
+	public void setMaxCandidatePeers(int maxCandidatePeers) {
+		this.maxCandidatePeers = maxCandidatePeers;
+	}
+
+	public boolean isPeerCache() {
+		return peerCache;
+	}
+
+	public void setPeerCache(boolean peerCache) {
+		this.peerCache = peerCache;
+	}
+
+	public String getPeerCacheDirectory() {
+		return peerCacheDirectory;
+	}
+
+	public void setPeerCacheDirectory(String peerCacheDirectory) {
+		this.peerCacheDirectory = peerCacheDirectory;
+	}
+
+	public int getMaxCachedPeers() {
+		return maxCachedPeers;
+	}
+
+	public void setMaxCachedPeers(int maxCachedPeers) {
+		this.maxCachedPeers = maxCachedPeers;
+	}
+
 	public int getMAX_TORRENTS() {
 		return MAX_TORRENTS;
 	}
@@ -77,4 +141,196 @@ public class Environment
 	public void setMAX_TORRENTS(int mAX_TORRENTS) {
 		MAX_TORRENTS = mAX_TORRENTS;
 	}	
+
+	public AllocationPolicy getAllocationPolicy() {
+		return allocationPolicy;
+	}
+
+	public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+		this.allocationPolicy = allocationPolicy;
+	}
+
+	public DurabilityPolicy getDurabilityPolicy() {
+		return durabilityPolicy;
+	}
+
+	public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+		this.durabilityPolicy = durabilityPolicy;
+	}
+
+	public long getGroupCommitInterval() {
+		return groupCommitInterval;
+	}
+
+	public void setGroupCommitInterval(long groupCommitInterval) {
+		this.groupCommitInterval = groupCommitInterval;
+	}
+
+	public long getGroupCommitSize() {
+		return groupCommitSize;
+	}
+
+	public void setGroupCommitSize(long groupCommitSize) {
+		this.groupCommitSize = groupCommitSize;
+	}
+
+	public long getReadCacheSize() {
+		return readCacheSize;
+	}
+
+	public void setReadCacheSize(long readCacheSize) {
+		this.readCacheSize = readCacheSize;
+	}
+
+	public boolean isZeroCopyUpload() {
+		return zeroCopyUpload;
+	}
+
+	public void setZeroCopyUpload(boolean zeroCopyUpload) {
+		this.zeroCopyUpload = zeroCopyUpload;
+	}
+
+	public int getDiskThreads() {
+		return diskThreads;
+	}
+
+	public void setDiskThreads(int diskThreads) {
+		this.diskThreads = diskThreads;
+	}
+
+	public int getUploadSlots() {
+		return uploadSlots;
+	}
+
+	public void setUploadSlots(int uploadSlots) {
+		this.uploadSlots = uploadSlots;
+	}
+
+	public long getUploadLimit() {
+		return uploadLimit;
+	}
+
+	public void setUploadLimit(long uploadLimit) {
+		this.uploadLimit = uploadLimit;
+	}
+
+	public long getDownloadLimit() {
+		return downloadLimit;
+	}
+
+	public void setDownloadLimit(long downloadLimit) {
+		this.downloadLimit = downloadLimit;
+	}
+
+	public boolean isFastExtension() {
+		return fastExtension;
+	}
+
+	public void setFastExtension(boolean fastExtension) {
+		this.fastExtension = fastExtension;
+	}
+
+	public boolean isExtensionProtocol() {
+		return extensionProtocol;
+	}
+
+	public void setExtensionProtocol(boolean extensionProtocol) {
+		this.extensionProtocol = extensionProtocol;
+	}
+
+	public boolean isPeerExchange() {
+		return peerExchange;
+	}
+
+	public void setPeerExchange(boolean peerExchange) {
+		this.peerExchange = peerExchange;
+	}
+
+	public boolean isDHT() {
+		return DHT;
+	}
+
+	public void setDHT(boolean DHT) {
+		this.DHT = DHT;
+	}
+
+	public int getDhtPort() {
+		return dhtPort;
+	}
+
+	public void setDhtPort(int dhtPort) {
+		this.dhtPort = dhtPort;
+	}
+
+	public String getDhtStateFile() {
+		return dhtStateFile;
+	}
+
+	public void setDhtStateFile(String dhtStateFile) {
+		this.dhtStateFile = dhtStateFile;
+	}
+
+	public long getDhtUploadLimit() {
+		return dhtUploadLimit;
+	}
+
+	public void setDhtUploadLimit(long dhtUploadLimit) {
+		this.dhtUploadLimit = dhtUploadLimit;
+	}
+
+	public int getMaxDhtLookups() {
+		return maxDhtLookups;
+	}
+
+	public void setMaxDhtLookups(int maxDhtLookups) {
+		this.maxDhtLookups = maxDhtLookups;
+	}
+
+	public boolean isLocalServiceDiscovery() {
+		return localServiceDiscovery;
+	}
+
+	public void setLocalServiceDiscovery(boolean localServiceDiscovery) {
+		this.localServiceDiscovery = localServiceDiscovery;
+	}
+
+	public boolean isLocalPeersUnlimited() {
+		return localPeersUnlimited;
+	}
+
+	public void setLocalPeersUnlimited(boolean localPeersUnlimited) {
+		this.localPeersUnlimited = localPeersUnlimited;
+	}
+
+	public boolean isUtp() {
+		return utp;
+	}
+
+	public void setUtp(boolean utp) {
+		this.utp = utp;
+	}
+
+	public int getUtpPort() {
+		return utpPort;
+	}
+
+	public void setUtpPort(int utpPort) {
+		this.utpPort = utpPort;
+	}
+
+	public boolean isAnnounceToAllTiers() {
+		return announceToAllTiers;
+	}
+
+	public void setAnnounceToAllTiers(boolean announceToAllTiers) {
+		this.announceToAllTiers = announceToAllTiers;
+	}
+
+	public boolean isLazyBitfield() {
+		return lazyBitfield;
+	}
+
+	public void setLazyBitfield(boolean lazyBitfield) {
+		this.lazyBitfield = lazyBitfield;
+	}
 }
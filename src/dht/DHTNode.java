@@ -0,0 +1,743 @@
+/*
+ * A node of the mainline DHT (BEP 5), which lets torrents find peers without a tracker
+ * One UDP DatagramChannel serves every torrent: a receiver thread answers the queries of other nodes and matches the
+ * responses to ours by transaction ID, while the shared timer wheel times out queries, steps the lookups along,
+ * refreshes stale buckets and rotates the announce token secret.
+ * Memory is bounded - the routing table, the pending queries, the running lookups and the peers announced to us are all capped -
+ * and outgoing traffic goes through a token bucket, so the node can serve hundreds of torrents without swamping the link.
+ * Lookups beyond the maximum running at a time wait in a queue.
+ * The node ID and the routing table are saved to disk, so a restarted node doesn't need the bootstrap routers.
+ * Nodes can be created and started on their own, e.g. several on loopback in one process, and the client shares the one from getInstance().
+ */
+package dht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+import peer.EndpointIndex;
+import tools.TimerWheel;
+import tools.TokenBucket;
+import tools.Util;
+import torrent.DiskIOService;
+
+public class DHTNode
+{
+	private static DHTNode instance = null;
+	private final static String[] BOOTSTRAP_NODES = {"router.bittorrent.com", "dht.transmissionbt.com", "router.utorrent.com"};
+	private final static int BOOTSTRAP_PORT = 6881;
+	private final static int MAX_PACKET_SIZE = 1500;	//Anything bigger is dropped, KRPC messages fit in one unfragmented datagram
+	private final static long QUERY_TIMEOUT = 5000;	//Milliseconds
+	private final static int MAX_PENDING_QUERIES = 1024;
+	private final static int MAX_STORED_TORRENTS = 1000;	//Torrents we keep announced peers for
+	private final static long MAINTENANCE_INTERVAL = 1;	//Seconds
+	private final static long REFRESH_CHECK_INTERVAL = 60;	//Seconds
+	private final static long TOKEN_ROTATION_INTERVAL = 5*60;	//Seconds
+	private final static long SAVE_INTERVAL = 15*60;	//Seconds
+	private final static int STATE_MAGIC = 0x44485453;	//"DHTS"
+	private final static byte STATE_VERSION = 1;
+	private final int port;
+	private final Path statePath;	//null to not persist the node
+	private final List<InetSocketAddress> bootstrapNodes;
+	private volatile List<InetSocketAddress> resolvedBootstrapNodes = new ArrayList<InetSocketAddress>();
+	private final byte[] localId;
+	private final List<NodeContact> savedContacts = new ArrayList<NodeContact>();
+	private final RoutingTable routingTable;
+	private final TokenManager tokens = new TokenManager();
+	private final PeerStore peerStore = new PeerStore(MAX_STORED_TORRENTS);
+	private final TokenBucket outgoingLimiter;
+	private final ConcurrentMap<Integer, Transaction> transactions = new ConcurrentHashMap<Integer, Transaction>();
+	private final AtomicInteger nextTransactionId = new AtomicInteger(new SecureRandom().nextInt());
+	private final int maxLookups;
+	private final List<Lookup> lookups = new ArrayList<Lookup>();	//Running, guarded by itself along with queuedLookups
+	private final Deque<Lookup> queuedLookups = new ArrayDeque<Lookup>();
+	private final List<TimerWheel.Timeout> timers = new ArrayList<TimerWheel.Timeout>();
+	private volatile DatagramChannel channel;
+	private volatile boolean running = false;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	/*
+	 * Create a node listening on port (0 for any), restoring its ID and routing table from statePath if there's a saved state
+	 * Bootstrap nodes may be unresolved, they're resolved on the receiver thread once the node starts
+	 * uploadLimit is in bytes per second, 0 means unlimited
+	 */
+	public DHTNode(int port, Path statePath, List<InetSocketAddress> bootstrapNodes, long uploadLimit, int maxLookups)
+	{
+		this.port = port;
+		this.statePath = statePath;
+		this.bootstrapNodes = bootstrapNodes;
+		this.outgoingLimiter = new TokenBucket(uploadLimit);
+		this.maxLookups = maxLookups;
+		byte[] savedId = loadState();
+		if (savedId == null)
+		{
+			savedId = new byte[NodeContact.ID_LENGTH];
+			new SecureRandom().nextBytes(savedId);
+		}
+		this.localId = savedId;
+		this.routingTable = new RoutingTable(localId);
+	}
+
+	/*
+	 * Return the client's node, started on the configured port
+	 * If it couldn't start, it stays stopped and every request to it is ignored
+	 */
+	public static synchronized DHTNode getInstance()
+	{
+		if (instance == null)
+		{
+			Environment environment = Environment.getInstance();
+			List<InetSocketAddress> bootstrapNodes = new ArrayList<InetSocketAddress>();
+			for (String host : BOOTSTRAP_NODES)
+				bootstrapNodes.add(InetSocketAddress.createUnresolved(host, BOOTSTRAP_PORT));
+			instance = new DHTNode(environment.getDhtPort(), Paths.get(environment.getDhtStateFile()), bootstrapNodes,
+					environment.getDhtUploadLimit(), environment.getMaxDhtLookups());
+			try
+			{
+				instance.start();
+			} catch (IOException e)
+			{
+				instance.logger.log(Level.SEVERE, "Couldn't start DHT node on port " + environment.getDhtPort(), e);
+			}
+		}
+		return instance;
+	}
+
+	/*
+	 * Stop the client's node, if it was ever started
+	 */
+	public static synchronized void stopInstance()
+	{
+		if (instance != null)
+			instance.stop();
+	}
+
+	/*
+	 * Bind the channel, start the receiver thread - which bootstraps the node first - and schedule the maintenance timers
+	 */
+	public void start() throws IOException
+	{
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.bind(new InetSocketAddress(port));
+		running = true;
+		Thread receiver = new Thread(new Receiver(), "DHT");
+		receiver.setDaemon(true);	//Don't keep the client alive after the main thread exits
+		receiver.start();
+		scheduleTimers();
+		logger.log(Level.INFO, "DHT node " + Util.hexEncode(localId) + " started on port " + getPort());
+	}
+
+	/*
+	 * Stop answering and querying, and save the routing table
+	 */
+	public void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		for (TimerWheel.Timeout timer : timers)
+			timer.cancel();
+		timers.clear();
+		try
+		{
+			channel.close();	//Wakes the receiver thread up, which then exits
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't close DHT channel", e);
+		}
+		save();
+		logger.log(Level.INFO, "DHT node stopped");
+	}
+
+	private void scheduleTimers()
+	{
+		TimerWheel wheel = TimerWheel.getInstance();
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				expireQueries();
+				stepLookups();
+			}
+		}, MAINTENANCE_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				refreshBuckets();
+			}
+		}, REFRESH_CHECK_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				tokens.rotate();
+				peerStore.expire(System.currentTimeMillis());
+			}
+		}, TOKEN_ROTATION_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				DiskIOService.getInstance().submit(new Runnable()
+				{
+					public void run()
+					{
+						save();
+					}
+				});
+			}
+		}, SAVE_INTERVAL, TimeUnit.SECONDS));
+	}
+
+	/*
+	 * Find the peers of a torrent, telling listener about them as they're found,
+	 * and announce that we're a peer too on announcePort once the closest nodes are found, unless it's 0
+	 * Returns false if the node isn't running or a lookup for the torrent is running already
+	 */
+	public boolean getPeers(ByteBuffer infoHash, int announcePort, PeerListener listener)
+	{
+		if (!running)
+			return false;
+		byte[] target = new byte[NodeContact.ID_LENGTH];
+		infoHash.duplicate().get(target);
+		synchronized (lookups)
+		{
+			for (Lookup lookup : lookups)
+			{
+				if (lookup.getListener() != null && Arrays.equals(lookup.getTarget(), target))
+					return false;
+			}
+			for (Lookup lookup : queuedLookups)
+			{
+				if (lookup.getListener() != null && Arrays.equals(lookup.getTarget(), target))
+					return false;
+			}
+		}
+		startLookup(new Lookup(localId, target, KRPC.GET_PEERS, announcePort, listener));
+		return true;
+	}
+
+	/*
+	 * Ping a node, which gets into the routing table if it answers and there is room for it
+	 * Used for the nodes peers tell us about in PORT messages
+	 */
+	public void ping(InetSocketAddress address)
+	{
+		if (running)
+			sendQuery(KRPC.PING, new HashMap<Object, Object>(), address, null, null);
+	}
+
+	/*
+	 * Start a lookup, or queue it if the maximum number of lookups is running already
+	 */
+	private void startLookup(Lookup lookup)
+	{
+		synchronized (lookups)
+		{
+			if (lookups.size() >= maxLookups)
+			{
+				queuedLookups.add(lookup);
+				logger.log(Level.FINER, "Queued DHT lookup of " + Util.hexEncode(lookup.getTarget()) + ", " + queuedLookups.size() + " waiting");
+				return;
+			}
+			lookups.add(lookup);
+		}
+		lookup.addNodes(routingTable.getClosest(lookup.getTarget(), RoutingTable.K));
+		if (routingTable.size() < RoutingTable.K)	//Too few nodes of our own to find anything, let the bootstrap nodes help
+		{
+			for (InetSocketAddress address : resolvedBootstrapNodes)
+				lookup.addBootstrapNode(address);
+		}
+		step(lookup);
+	}
+
+	/*
+	 * Send the lookup's next queries, and finish it if it's done
+	 * Queries that can't be sent now, due to the rate limit or too many pending queries, are retried on the next maintenance tick
+	 */
+	private void step(Lookup lookup)
+	{
+		long now = System.currentTimeMillis();
+		for (Lookup.Node node : lookup.nextQueries(now))
+		{
+			HashMap<Object, Object> arguments = new HashMap<Object, Object>();
+			arguments.put(KRPC.key(KRPC.GET_PEERS.equals(lookup.getMethod()) ? "info_hash" : "target"), ByteBuffer.wrap(lookup.getTarget()));
+			if (!sendQuery(lookup.getMethod(), arguments, node.getAddress(), node.getId(), lookup))
+				lookup.onUnsent(node);
+		}
+		if (lookup.isDone(now))
+			finishLookup(lookup);
+	}
+
+	/*
+	 * Announce to the closest nodes if the lookup asked for it, and start the next queued lookup
+	 */
+	private void finishLookup(Lookup lookup)
+	{
+		if (!lookup.finish())
+			return;
+		if (lookup.getAnnouncePort() > 0)
+		{
+			for (Lookup.Node node : lookup.getAnnounceTargets())
+			{
+				HashMap<Object, Object> arguments = new HashMap<Object, Object>();
+				arguments.put(KRPC.key("info_hash"), ByteBuffer.wrap(lookup.getTarget()));
+				arguments.put(KRPC.key("port"), (long) lookup.getAnnouncePort());
+				arguments.put(KRPC.key("token"), node.getToken());
+				arguments.put(KRPC.key("implied_port"), 0L);
+				sendQuery(KRPC.ANNOUNCE_PEER, arguments, node.getAddress(), node.getId(), null);
+			}
+		}
+		logger.log(Level.FINE, "DHT " + lookup.getMethod() + " lookup of " + Util.hexEncode(lookup.getTarget()) + " done, found "
+				+ lookup.getFoundPeerCount() + " peers");
+		Lookup next;
+		synchronized (lookups)
+		{
+			lookups.remove(lookup);
+			next = queuedLookups.poll();
+		}
+		if (next != null)
+			startLookup(next);
+	}
+
+	private void stepLookups()
+	{
+		List<Lookup> running;
+		synchronized (lookups)
+		{
+			running = new ArrayList<Lookup>(lookups);
+		}
+		for (Lookup lookup : running)
+			step(lookup);
+	}
+
+	/*
+	 * Time out the queries that weren't answered in time
+	 */
+	private void expireQueries()
+	{
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, Transaction> entry : transactions.entrySet())
+		{
+			Transaction transaction = entry.getValue();
+			if (now - transaction.sentTime > QUERY_TIMEOUT && transactions.remove(entry.getKey(), transaction))
+			{
+				if (transaction.id != null)
+					routingTable.onTimeout(transaction.id);
+				onQueryFailed(transaction);
+			}
+		}
+	}
+
+	/*
+	 * Look up a random ID in the range of every bucket nobody changed for a while,
+	 * and bootstrap again if the table ran empty
+	 */
+	private void refreshBuckets()
+	{
+		for (byte[] target : routingTable.getRefreshTargets(System.currentTimeMillis()))
+			startLookup(new Lookup(localId, target, KRPC.FIND_NODE, 0, null));
+		if (routingTable.size() == 0)
+			startLookup(new Lookup(localId, localId, KRPC.FIND_NODE, 0, null));
+	}
+
+	/*
+	 * Send a query, remembering it under a fresh transaction ID till it's answered or times out
+	 * Returns false if it wasn't sent
+	 */
+	private boolean sendQuery(String method, HashMap<Object, Object> arguments, InetSocketAddress address, byte[] id, Lookup lookup)
+	{
+		if (transactions.size() >= MAX_PENDING_QUERIES)
+			return false;
+		int transactionId = nextTransactionId.getAndIncrement() & 0xffff;
+		Transaction transaction = new Transaction(address, id, lookup);
+		if (transactions.putIfAbsent(transactionId, transaction) != null)
+			return false;	//The IDs wrapped around onto a query still pending
+		ByteBuffer packet = KRPC.encode(KRPC.query(transactionId, method, localId, arguments));
+		if (!outgoingLimiter.tryConsume(packet.remaining()) || !send(packet, address))
+		{
+			transactions.remove(transactionId);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Send a response or error, unless we're over the rate limit - the querying node then just times out
+	 */
+	private void sendReply(HashMap<Object, Object> message, InetSocketAddress address)
+	{
+		ByteBuffer packet = KRPC.encode(message);
+		if (!outgoingLimiter.tryConsume(packet.remaining()))
+		{
+			logger.log(Level.FINEST, "Over the DHT upload limit, not answering " + address);
+			return;
+		}
+		send(packet, address);
+	}
+
+	private boolean send(ByteBuffer packet, InetSocketAddress address)
+	{
+		try
+		{
+			channel.send(packet, address);
+			return true;
+		} catch (IOException e)
+		{
+			logger.log(Level.FINE, "Couldn't send DHT packet to " + address, e);
+			return false;
+		}
+	}
+
+	/*
+	 * Handler for 'packet received' event
+	 */
+	private void onPacketReceived(ByteBuffer packet, InetSocketAddress source) throws IOException
+	{
+		HashMap<ByteBuffer, Object> message = KRPC.decode(packet);
+		ByteBuffer transactionId = KRPC.getString(message, "t");
+		ByteBuffer type = KRPC.getString(message, "y");
+		if (transactionId == null || type == null)
+			return;
+		switch (Util.byteBufferToString(type))
+		{
+			case KRPC.QUERY:
+				onQueryReceived(message, transactionId, source);
+				break;
+			case KRPC.RESPONSE:
+				onResponseReceived(message, transactionId, source);
+				break;
+			case KRPC.ERROR:
+				onErrorReceived(transactionId, source);
+				break;
+			default:
+				logger.log(Level.FINEST, "Unknown KRPC message type from " + source);
+		}
+	}
+
+	/*
+	 * Handler for 'query received' event
+	 * Answer it, and ping the querying node if it would get into our routing table
+	 */
+	private void onQueryReceived(HashMap<ByteBuffer, Object> message, ByteBuffer transactionId, InetSocketAddress source)
+	{
+		ByteBuffer method = KRPC.getString(message, "q");
+		HashMap<ByteBuffer, Object> arguments = KRPC.getDictionary(message, "a");
+		byte[] id = arguments == null ? null : KRPC.getId(arguments, "id");
+		if (method == null || id == null)
+		{
+			sendReply(KRPC.error(transactionId, KRPC.ERROR_PROTOCOL, "Invalid query"), source);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		HashMap<Object, Object> values = new HashMap<Object, Object>();
+		switch (Util.byteBufferToString(method))
+		{
+			case KRPC.PING:
+				break;
+			case KRPC.FIND_NODE:
+				byte[] target = KRPC.getId(arguments, "target");
+				if (target == null)
+				{
+					sendReply(KRPC.error(transactionId, KRPC.ERROR_PROTOCOL, "Invalid target"), source);
+					return;
+				}
+				values.put(KRPC.key("nodes"), KRPC.packNodes(routingTable.getClosest(target, RoutingTable.K)));
+				break;
+			case KRPC.GET_PEERS:
+				byte[] infoHash = KRPC.getId(arguments, "info_hash");
+				if (infoHash == null)
+				{
+					sendReply(KRPC.error(transactionId, KRPC.ERROR_PROTOCOL, "Invalid info_hash"), source);
+					return;
+				}
+				values.put(KRPC.key("token"), tokens.create(source.getAddress()));
+				List<ByteBuffer> peers = peerStore.get(ByteBuffer.wrap(infoHash), KRPC.MAX_VALUES, now);
+				if (!peers.isEmpty())
+					values.put(KRPC.key("values"), new ArrayList<Object>(peers));
+				values.put(KRPC.key("nodes"), KRPC.packNodes(routingTable.getClosest(infoHash, RoutingTable.K)));
+				break;
+			case KRPC.ANNOUNCE_PEER:
+				byte[] announcedHash = KRPC.getId(arguments, "info_hash");
+				Long announcedPort = KRPC.getInteger(arguments, "port");
+				Long impliedPort = KRPC.getInteger(arguments, "implied_port");
+				int peerPort = impliedPort != null && impliedPort != 0 ? source.getPort() : announcedPort == null ? 0 : announcedPort.intValue();
+				if (announcedHash == null || peerPort <= 0 || peerPort > 0xffff)
+				{
+					sendReply(KRPC.error(transactionId, KRPC.ERROR_PROTOCOL, "Invalid announce"), source);
+					return;
+				}
+				if (!tokens.isValid(KRPC.getString(arguments, "token"), source.getAddress()))
+				{
+					sendReply(KRPC.error(transactionId, KRPC.ERROR_PROTOCOL, "Invalid token"), source);
+					return;
+				}
+				peerStore.add(ByteBuffer.wrap(announcedHash), EndpointIndex.pack(source.getAddress(), peerPort), now);
+				break;
+			default:
+				sendReply(KRPC.error(transactionId, KRPC.ERROR_METHOD_UNKNOWN, "Method Unknown"), source);
+				return;
+		}
+		sendReply(KRPC.response(transactionId, localId, values), source);
+		if (routingTable.wants(id))
+			ping(source);
+	}
+
+	/*
+	 * Handler for 'response received' event
+	 * Only responses from the address the query went to count, anything else is dropped
+	 */
+	private void onResponseReceived(HashMap<ByteBuffer, Object> message, ByteBuffer transactionId, InetSocketAddress source)
+	{
+		int key = KRPC.parseTransactionId(transactionId);
+		Transaction transaction = transactions.get(key);
+		if (transaction == null || !transaction.address.equals(source) || !transactions.remove(key, transaction))
+			return;
+		HashMap<ByteBuffer, Object> values = KRPC.getDictionary(message, "r");
+		byte[] id = values == null ? null : KRPC.getId(values, "id");
+		if (id == null)
+		{
+			onQueryFailed(transaction);
+			return;
+		}
+		routingTable.onResponse(id, source, System.currentTimeMillis());
+		Lookup lookup = transaction.lookup;
+		if (lookup == null)
+			return;
+		List<ByteBuffer> peers = lookup.onResponse(source, id, KRPC.unpackNodes(KRPC.getString(values, "nodes")),
+				KRPC.unpackValues(KRPC.getList(values, "values")), KRPC.getString(values, "token"));
+		if (!peers.isEmpty() && lookup.getListener() != null)
+			lookup.getListener().onPeersFound(ByteBuffer.wrap(lookup.getTarget()), peers);
+		step(lookup);
+	}
+
+	/*
+	 * Handler for 'error received' event
+	 * The node is alive, but the query failed
+	 */
+	private void onErrorReceived(ByteBuffer transactionId, InetSocketAddress source)
+	{
+		int key = KRPC.parseTransactionId(transactionId);
+		Transaction transaction = transactions.get(key);
+		if (transaction == null || !transaction.address.equals(source) || !transactions.remove(key, transaction))
+			return;
+		logger.log(Level.FINER, "DHT node " + source + " answered with an error");
+		onQueryFailed(transaction);
+	}
+
+	private void onQueryFailed(Transaction transaction)
+	{
+		if (transaction.lookup == null)
+			return;
+		transaction.lookup.onFailure(transaction.address);
+		step(transaction.lookup);
+	}
+
+	/*
+	 * Resolve the bootstrap nodes and look up our own ID, from the saved nodes and the bootstrap nodes
+	 * Runs on the receiver thread, as resolving blocks
+	 */
+	private void bootstrap()
+	{
+		List<InetSocketAddress> resolved = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress address : bootstrapNodes)
+		{
+			InetSocketAddress node = address.isUnresolved() ? new InetSocketAddress(address.getHostString(), address.getPort()) : address;
+			if (node.isUnresolved())
+				logger.log(Level.WARNING, "Couldn't resolve DHT bootstrap node " + address.getHostString());
+			else
+				resolved.add(node);
+		}
+		resolvedBootstrapNodes = resolved;
+		Lookup lookup = new Lookup(localId, localId, KRPC.FIND_NODE, 0, null);
+		lookup.addNodes(savedContacts);
+		savedContacts.clear();
+		synchronized (lookups)
+		{
+			lookups.add(lookup);
+		}
+		for (InetSocketAddress address : resolved)
+			lookup.addBootstrapNode(address);
+		step(lookup);
+	}
+
+	/*
+	 * Read the saved node ID and routing table
+	 * Returns the saved ID, null if there's no usable saved state
+	 */
+	private byte[] loadState()
+	{
+		if (statePath == null || !Files.isRegularFile(statePath))
+			return null;
+		try
+		{
+			ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(statePath));
+			if (state.getInt() != STATE_MAGIC || state.get() != STATE_VERSION)
+			{
+				logger.log(Level.WARNING, "Ignoring DHT state " + statePath + " of unknown format");
+				return null;
+			}
+			byte[] id = new byte[NodeContact.ID_LENGTH];
+			state.get(id);
+			int count = state.getInt();
+			for (int node = 0; node < count; node++)
+				savedContacts.add(NodeContact.unpackCompact(state));
+			logger.log(Level.INFO, "Restored DHT node ID and " + count + " nodes from " + statePath);
+			return id;
+		} catch (IOException | BufferUnderflowException e)
+		{
+			logger.log(Level.WARNING, "Couldn't read DHT state " + statePath, e);
+			savedContacts.clear();
+			return null;
+		}
+	}
+
+	/*
+	 * Write the node ID and routing table, replacing the old state
+	 * Blocks on the disk
+	 */
+	public void save()
+	{
+		if (statePath == null)
+			return;
+		List<NodeContact> contacts = routingTable.getContacts();
+		if (contacts.isEmpty())
+			return;	//Keep the old table rather than wipe it after a session that never got going
+		ByteBuffer nodes = KRPC.packNodes(contacts);
+		ByteBuffer state = ByteBuffer.allocate(4 + 1 + NodeContact.ID_LENGTH + 4 + nodes.remaining());
+		state.putInt(STATE_MAGIC).put(STATE_VERSION).put(localId).putInt(nodes.remaining() / NodeContact.COMPACT_LENGTH).put(nodes);
+		try
+		{
+			Path absolute = statePath.toAbsolutePath();
+			Files.createDirectories(absolute.getParent());
+			Path temporary = Paths.get(absolute + ".tmp");
+			Files.write(temporary, state.array());
+			Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.log(Level.FINE, "Saved " + contacts.size() + " DHT nodes to " + statePath);
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't write DHT state " + statePath, e);
+		}
+	}
+
+	/*
+	 * Receiver thread
+	 * Bootstraps the node, then handles every packet that arrives till the channel is closed
+	 */
+	private class Receiver implements Runnable
+	{
+		public void run()
+		{
+			bootstrap();
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE + 1);	//One spare byte to tell oversized packets apart
+			while (running)
+			{
+				InetSocketAddress source;
+				try
+				{
+					buffer.clear();
+					source = (InetSocketAddress) channel.receive(buffer);
+				} catch (ClosedChannelException e)
+				{
+					break;
+				} catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Couldn't receive DHT packet", e);
+					continue;
+				}
+				buffer.flip();
+				if (source == null || buffer.remaining() > MAX_PACKET_SIZE)
+					continue;
+				try
+				{
+					onPacketReceived(buffer, source);
+				} catch (IOException | RuntimeException e)
+				{
+					logger.log(Level.FINER, "Invalid DHT packet from " + source, e);
+				}
+			}
+			logger.log(Level.FINE, "DHT receiver thread exiting");
+		}
+	}
+
+	/*
+	 * A query waiting for its answer
+	 */
+	private static class Transaction
+	{
+		private final InetSocketAddress address;
+		private final byte[] id;	//null when we don't know the node's ID yet
+		private final Lookup lookup;	//null for queries outside of lookups
+		private final long sentTime = System.currentTimeMillis();
+
+		private Transaction(InetSocketAddress address, byte[] id, Lookup lookup)
+		{
+			this.address = address;
+			this.id = id;
+			this.lookup = lookup;
+		}
+	}
+
+	/*
+	 * Port the node is bound to, 0 if it isn't running
+	 */
+	public int getPort()
+	{
+		try
+		{
+			return running ? ((InetSocketAddress) channel.getLocalAddress()).getPort() : 0;
+		} catch (IOException e)
+		{
+			return 0;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public byte[] getLocalId() {
+		return localId;
+	}
+
+	public RoutingTable getRoutingTable() {
+		return routingTable;
+	}
+
+	public PeerStore getPeerStore() {
+		return peerStore;
+	}
+
+	public int getLookupCount()
+	{
+		synchronized (lookups)
+		{
+			return lookups.size() + queuedLookups.size();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Encoding and decoding of KRPC messages, the bencoded dictionaries DHT nodes exchange over UDP (BEP 5)
+ * Every message carries a transaction ID "t" and a type "y" - "q" for queries, "r" for responses and "e" for errors.
+ * Queries name their method in "q" and carry their arguments in "a", responses carry their values in "r".
+ */
+package dht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import tools.BencodeReader;
+import tools.BencodeWriter;
+import tools.Util;
+
+public class KRPC
+{
+	public final static String PING = "ping";
+	public final static String FIND_NODE = "find_node";
+	public final static String GET_PEERS = "get_peers";
+	public final static String ANNOUNCE_PEER = "announce_peer";
+	public final static String QUERY = "q";
+	public final static String RESPONSE = "r";
+	public final static String ERROR = "e";
+	public final static int ERROR_GENERIC = 201;
+	public final static int ERROR_PROTOCOL = 203;
+	public final static int ERROR_METHOD_UNKNOWN = 204;
+	public final static int TRANSACTION_ID_LENGTH = 2;
+	public final static int PEER_LENGTH = 6;	//Compact IPv4 peer info
+	public final static int MAX_VALUES = 50;	//Peers per get_peers response, keeps it well within one datagram
+
+	private KRPC()
+	{
+	}
+
+	/*
+	 * Build a query with our ID added to its arguments
+	 */
+	public static HashMap<Object, Object> query(int transactionId, String method, byte[] localId, HashMap<Object, Object> arguments)
+	{
+		arguments.put(key("id"), ByteBuffer.wrap(localId));
+		HashMap<Object, Object> message = new HashMap<Object, Object>();
+		message.put(key("t"), transactionId(transactionId));
+		message.put(key("y"), key(QUERY));
+		message.put(key("q"), key(method));
+		message.put(key("a"), arguments);
+		return message;
+	}
+
+	/*
+	 * Build a response with our ID added to its values
+	 */
+	public static HashMap<Object, Object> response(ByteBuffer transactionId, byte[] localId, HashMap<Object, Object> values)
+	{
+		values.put(key("id"), ByteBuffer.wrap(localId));
+		HashMap<Object, Object> message = new HashMap<Object, Object>();
+		message.put(key("t"), transactionId);
+		message.put(key("y"), key(RESPONSE));
+		message.put(key("r"), values);
+		return message;
+	}
+
+	public static HashMap<Object, Object> error(ByteBuffer transactionId, int code, String description)
+	{
+		List<Object> error = new ArrayList<Object>();
+		error.add((long) code);
+		error.add(key(description));
+		HashMap<Object, Object> message = new HashMap<Object, Object>();
+		message.put(key("t"), transactionId);
+		message.put(key("y"), key(ERROR));
+		message.put(key("e"), error);
+		return message;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ByteBuffer encode(HashMap<Object, Object> message)
+	{
+		ByteArrayOutputStream bencoded = new ByteArrayOutputStream();
+		try
+		{
+			BencodeWriter writer = new BencodeWriter(bencoded);
+			writer.writeDictionary((HashMap<String, Object>) (HashMap<?, ?>) message);
+			writer.flush();
+		} catch (IOException e)
+		{
+			throw new IllegalArgumentException("Couldn't bencode KRPC message", e);	//Only for values of the wrong type
+		}
+		return ByteBuffer.wrap(bencoded.toByteArray());
+	}
+
+	public static HashMap<ByteBuffer, Object> decode(ByteBuffer packet) throws IOException
+	{
+		byte[] bencoded = new byte[packet.remaining()];
+		packet.get(bencoded);
+		return new BencodeReader(new ByteArrayInputStream(bencoded), bencoded.length).readDictionary();
+	}
+
+	public static ByteBuffer transactionId(int transactionId)
+	{
+		return (ByteBuffer) ByteBuffer.allocate(TRANSACTION_ID_LENGTH).putShort((short) transactionId).rewind();
+	}
+
+	/*
+	 * Return the transaction ID we gave a query back, -1 if it isn't one of ours
+	 */
+	public static int parseTransactionId(ByteBuffer transactionId)
+	{
+		if (transactionId == null || transactionId.remaining() != TRANSACTION_ID_LENGTH)
+			return -1;
+		return transactionId.getShort(transactionId.position()) & 0xffff;
+	}
+
+	/*
+	 * Concatenate the compact node infos of the IPv4 nodes
+	 */
+	public static ByteBuffer packNodes(List<NodeContact> contacts)
+	{
+		int count = 0;
+		for (NodeContact contact : contacts)
+		{
+			if (contact.isIPv4())
+				count++;
+		}
+		ByteBuffer nodes = ByteBuffer.allocate(count * NodeContact.COMPACT_LENGTH);
+		for (NodeContact contact : contacts)
+		{
+			if (contact.isIPv4())
+				contact.packCompact(nodes);
+		}
+		return (ByteBuffer) nodes.rewind();
+	}
+
+	public static List<NodeContact> unpackNodes(ByteBuffer nodes)
+	{
+		List<NodeContact> contacts = new ArrayList<NodeContact>();
+		if (nodes == null)
+			return contacts;
+		ByteBuffer compact = nodes.duplicate();
+		while (compact.remaining() >= NodeContact.COMPACT_LENGTH)
+			contacts.add(NodeContact.unpackCompact(compact));
+		return contacts;
+	}
+
+	/*
+	 * Return the compact peers of a get_peers response, skipping any that aren't 6 bytes
+	 */
+	public static List<ByteBuffer> unpackValues(List<Object> values)
+	{
+		List<ByteBuffer> peers = new ArrayList<ByteBuffer>();
+		if (values == null)
+			return peers;
+		for (Object value : values)
+		{
+			if (value instanceof ByteBuffer && ((ByteBuffer) value).remaining() == PEER_LENGTH)
+				peers.add((ByteBuffer) value);
+			if (peers.size() == MAX_VALUES)
+				break;
+		}
+		return peers;
+	}
+
+	public static ByteBuffer getString(HashMap<ByteBuffer, Object> dictionary, String name)
+	{
+		Object value = dictionary.get(key(name));
+		return value instanceof ByteBuffer ? (ByteBuffer) value : null;
+	}
+
+	public static Long getInteger(HashMap<ByteBuffer, Object> dictionary, String name)
+	{
+		Object value = dictionary.get(key(name));
+		return value instanceof Long ? (Long) value : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static HashMap<ByteBuffer, Object> getDictionary(HashMap<ByteBuffer, Object> dictionary, String name)
+	{
+		Object value = dictionary.get(key(name));
+		return value instanceof HashMap<?, ?> ? (HashMap<ByteBuffer, Object>) value : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static List<Object> getList(HashMap<ByteBuffer, Object> dictionary, String name)
+	{
+		Object value = dictionary.get(key(name));
+		return value instanceof List<?> ? (List<Object>) value : null;
+	}
+
+	/*
+	 * Return the 20 byte ID under name, null if it's missing or of the wrong length
+	 */
+	public static byte[] getId(HashMap<ByteBuffer, Object> dictionary, String name)
+	{
+		ByteBuffer id = getString(dictionary, name);
+		if (id == null || id.remaining() != NodeContact.ID_LENGTH)
+			return null;
+		byte[] bytes = new byte[NodeContact.ID_LENGTH];
+		id.duplicate().get(bytes);
+		return bytes;
+	}
+
+	public static ByteBuffer key(String name)
+	{
+		return Util.stringToByteBuffer(name);
+	}
+}
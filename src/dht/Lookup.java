@@ -0,0 +1,275 @@
+/*
+ * An iterative Kademlia lookup of the nodes closest to a target ID, and of the peers of a torrent for get_peers
+ * Keeps the nodes it has heard of sorted by distance to the target and queries the closest ones it hasn't queried yet,
+ * at most ALPHA at a time, until the K closest nodes that didn't fail have all answered.
+ * Bootstrap nodes come without an ID, so they sort last and are only queried while nothing closer is known.
+ * The number of nodes it keeps is bounded, the farthest ones are dropped first.
+ */
+package dht;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class Lookup
+{
+	public final static int ALPHA = 3;	//Queries in flight at a time
+	private final static int MAX_NODES = 8 * RoutingTable.K;
+	private final static int MAX_PEERS = 1000;	//Peers a lookup reports, the rest are duplicates at best
+	private final static long MAX_DURATION = 60*1000L;	//Milliseconds after which a lookup gives up, however far it got
+	private final byte[] localId;
+	private final byte[] target;
+	private final String method;	//find_node or get_peers
+	private final int announcePort;	//Port to announce once the closest nodes are found, 0 not to announce
+	private final PeerListener listener;
+	private final long startTime = System.currentTimeMillis();
+	private final TreeSet<Node> nodes;
+	private final Map<InetSocketAddress, Node> nodesByAddress = new HashMap<InetSocketAddress, Node>();
+	private final Set<ByteBuffer> foundPeers = new HashSet<ByteBuffer>();
+	private int inFlight = 0;
+	private boolean finished = false;
+
+	private enum State
+	{
+		FRESH,
+		QUERIED,
+		RESPONDED,
+		FAILED
+	}
+
+	public Lookup(byte[] localId, final byte[] target, String method, int announcePort, PeerListener listener)
+	{
+		this.localId = localId;
+		this.target = target;
+		this.method = method;
+		this.announcePort = announcePort;
+		this.listener = listener;
+		this.nodes = new TreeSet<Node>(new Comparator<Node>()
+		{
+			public int compare(Node a, Node b)
+			{
+				if (a.id != null && b.id != null)
+				{
+					int distance = RoutingTable.compareDistance(target, a.id, b.id);
+					if (distance != 0)
+						return distance;
+				}
+				else if (a.id != null || b.id != null)
+					return a.id == null ? 1 : -1;	//Nodes without an ID go last
+				return a.address.toString().compareTo(b.address.toString());
+			}
+		});
+	}
+
+	/*
+	 * Add nodes heard of from the routing table or a response, skipping ourselves and the ones known already
+	 */
+	public synchronized void addNodes(List<NodeContact> contacts)
+	{
+		for (NodeContact contact : contacts)
+		{
+			if (!contact.hasId(localId))
+				add(new Node(contact.getId(), contact.getAddress()));
+		}
+	}
+
+	/*
+	 * Add a bootstrap node, whose ID we don't know
+	 */
+	public synchronized void addBootstrapNode(InetSocketAddress address)
+	{
+		add(new Node(null, address));
+	}
+
+	private void add(Node node)
+	{
+		if (nodesByAddress.containsKey(node.address))
+			return;
+		nodes.add(node);
+		nodesByAddress.put(node.address, node);
+		if (nodes.size() > MAX_NODES && nodes.last().state != State.QUERIED)	//Keep the ones in flight, their answers are due
+			nodesByAddress.remove(nodes.pollLast().address);
+	}
+
+	/*
+	 * Pick the nodes to query next, and count them as in flight
+	 */
+	public synchronized List<Node> nextQueries(long now)
+	{
+		List<Node> next = new ArrayList<Node>();
+		if (isDone(now))
+			return next;
+		int considered = 0;
+		for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext() && considered < RoutingTable.K && inFlight < ALPHA;)
+		{
+			Node node = iterator.next();
+			if (node.state == State.FAILED)
+				continue;
+			considered++;
+			if (node.state == State.FRESH)
+			{
+				node.state = State.QUERIED;
+				inFlight++;
+				next.add(node);
+			}
+		}
+		return next;
+	}
+
+	/*
+	 * The query to node couldn't be sent, it can be picked again later
+	 */
+	public synchronized void onUnsent(Node node)
+	{
+		node.state = State.FRESH;
+		inFlight--;
+	}
+
+	/*
+	 * Handler for 'node responded' event
+	 * Returns the peers the node knew of that weren't reported yet
+	 */
+	public synchronized List<ByteBuffer> onResponse(InetSocketAddress address, byte[] id, List<NodeContact> closerNodes, List<ByteBuffer> peers, ByteBuffer token)
+	{
+		inFlight--;
+		Node node = nodesByAddress.get(address);
+		if (node != null)
+		{
+			if (node.id == null)	//A bootstrap node, which now has its place among the others
+			{
+				nodes.remove(node);
+				node.id = id;
+				nodes.add(node);
+			}
+			node.state = State.RESPONDED;
+			node.token = token;
+		}
+		addNodes(closerNodes);
+		List<ByteBuffer> newPeers = new ArrayList<ByteBuffer>();
+		for (ByteBuffer peer : peers)
+		{
+			if (foundPeers.size() < MAX_PEERS && foundPeers.add(peer))
+				newPeers.add(peer);
+		}
+		return newPeers;
+	}
+
+	/*
+	 * Handler for 'query failed' event, a timeout or an error
+	 */
+	public synchronized void onFailure(InetSocketAddress address)
+	{
+		inFlight--;
+		Node node = nodesByAddress.get(address);
+		if (node != null)
+			node.state = State.FAILED;
+	}
+
+	/*
+	 * Whether the lookup has converged - no query in flight and no fresh node among the K closest ones left - or run out of time
+	 */
+	public synchronized boolean isDone(long now)
+	{
+		if (finished || now - startTime > MAX_DURATION)
+			return true;
+		if (inFlight > 0)
+			return false;
+		int considered = 0;
+		for (Node node : nodes)
+		{
+			if (node.state == State.FAILED)
+				continue;
+			if (node.state == State.FRESH)
+				return false;
+			if (++considered == RoutingTable.K)
+				break;
+		}
+		return true;
+	}
+
+	/*
+	 * Mark the lookup finished
+	 * Returns true for the one caller that gets to finish it
+	 */
+	public synchronized boolean finish()
+	{
+		if (finished)
+			return false;
+		finished = true;
+		return true;
+	}
+
+	/*
+	 * Return the K closest nodes that answered with a token, to announce to
+	 */
+	public synchronized List<Node> getAnnounceTargets()
+	{
+		List<Node> targets = new ArrayList<Node>();
+		for (Node node : nodes)
+		{
+			if (node.state == State.RESPONDED && node.id != null && node.token != null)
+				targets.add(node);
+			if (targets.size() == RoutingTable.K)
+				break;
+		}
+		return targets;
+	}
+
+	public synchronized int getFoundPeerCount()
+	{
+		return foundPeers.size();
+	}
+
+	public byte[] getTarget() {
+		return target;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public int getAnnouncePort() {
+		return announcePort;
+	}
+
+	public PeerListener getListener() {
+		return listener;
+	}
+
+	/*
+	 * A node the lookup knows of
+	 */
+	public static class Node
+	{
+		private byte[] id;	//null for bootstrap nodes until they answer
+		private final InetSocketAddress address;
+		private State state = State.FRESH;
+		private ByteBuffer token;
+
+		private Node(byte[] id, InetSocketAddress address)
+		{
+			this.id = id;
+			this.address = address;
+		}
+
+		public byte[] getId() {
+			return id;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public ByteBuffer getToken() {
+			return token;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * A DHT node as the routing table knows it - its ID, its address and how well it has been answering us
+ * A node is good if it answered within the last 15 minutes and hasn't failed since,
+ * and bad once it failed to answer a few queries in a row, at which point it's replaced as soon as there is a replacement.
+ */
+package dht;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class NodeContact
+{
+	public final static int ID_LENGTH = 20;
+	public final static int COMPACT_LENGTH = ID_LENGTH + 4 + 2;	//ID, IPv4 address and port, BEP 5 compact node info
+	private final static long GOOD_INTERVAL = 15*60*1000L;	//Milliseconds a response keeps a node good
+	private final static int MAX_FAILURES = 3;	//Failed queries in a row after which a node is bad
+	private final byte[] id;
+	private final InetSocketAddress address;
+	private long lastResponseTime = 0;	//0 if it never answered us
+	private int failures = 0;
+
+	public NodeContact(byte[] id, InetSocketAddress address)
+	{
+		this.id = id;
+		this.address = address;
+	}
+
+	/*
+	 * Take the next compact node info off the buffer
+	 */
+	public static NodeContact unpackCompact(ByteBuffer nodes)
+	{
+		byte[] id = new byte[ID_LENGTH];
+		byte[] address = new byte[4];
+		nodes.get(id).get(address);
+		int port = nodes.getShort() & 0xffff;
+		try
+		{
+			return new NodeContact(id, new InetSocketAddress(InetAddress.getByAddress(address), port));
+		} catch (UnknownHostException e)
+		{
+			throw new IllegalArgumentException("Invalid address length " + address.length, e);	//Only thrown for bad lengths
+		}
+	}
+
+	/*
+	 * Put the compact node info of this node on the buffer
+	 * Only IPv4 nodes have one, so the caller leaves IPv6 nodes out
+	 */
+	public void packCompact(ByteBuffer nodes)
+	{
+		nodes.put(id).put(address.getAddress().getAddress()).putShort((short) address.getPort());
+	}
+
+	public boolean isIPv4()
+	{
+		return address.getAddress() != null && address.getAddress().getAddress().length == 4;
+	}
+
+	public boolean isGood(long now)
+	{
+		return failures == 0 && lastResponseTime != 0 && now - lastResponseTime < GOOD_INTERVAL;
+	}
+
+	public boolean isBad()
+	{
+		return failures >= MAX_FAILURES;
+	}
+
+	public void onResponse(long now)
+	{
+		lastResponseTime = now;
+		failures = 0;
+	}
+
+	public void onFailure()
+	{
+		failures++;
+	}
+
+	public boolean hasId(byte[] id)
+	{
+		return Arrays.equals(this.id, id);
+	}
+
+	public byte[] getId() {
+		return id;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public long getLastResponseTime() {
+		return lastResponseTime;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public String toString()
+	{
+		return address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+}
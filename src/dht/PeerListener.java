@@ -0,0 +1,16 @@
+/**
+ * Gets told about the peers a DHT lookup finds, as it finds them
+ */
+package dht;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public interface PeerListener
+{
+	/*
+	 * Endpoints are compact 6 byte IPv4 address and port, as packed by peer.EndpointIndex
+	 * Called on the DHT receiver thread, so it mustn't block
+	 */
+	public void onPeersFound(ByteBuffer infoHash, List<ByteBuffer> endpoints);
+}
@@ -0,0 +1,98 @@
+/*
+ * The peers other DHT nodes announced to us, by info hash, for answering get_peers queries
+ * Memory is bounded however many nodes announce to us: past the maximum number of torrents the least recently
+ * used torrent is dropped, past the maximum number of peers per torrent the longest announced peer is,
+ * and peers that haven't announced again within 30 minutes expire.
+ */
+package dht;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PeerStore
+{
+	private final static long PEER_TTL = 30*60*1000L;	//Milliseconds a peer is kept without announcing again
+	private final static int MAX_PEERS_PER_TORRENT = 100;
+	private final LinkedHashMap<ByteBuffer, LinkedHashMap<ByteBuffer, Long>> torrents;	//Info hash to endpoints and their announce times
+
+	public PeerStore(final int maxTorrents)
+	{
+		this.torrents = new LinkedHashMap<ByteBuffer, LinkedHashMap<ByteBuffer, Long>>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, LinkedHashMap<ByteBuffer, Long>> eldest)
+			{
+				return size() > maxTorrents;
+			}
+		};
+	}
+
+	/*
+	 * Remember a peer announced for the torrent, moving it to the back if it announced before
+	 */
+	public synchronized void add(ByteBuffer infoHash, ByteBuffer endpoint, long now)
+	{
+		LinkedHashMap<ByteBuffer, Long> peers = torrents.get(infoHash);
+		if (peers == null)
+		{
+			peers = new LinkedHashMap<ByteBuffer, Long>();
+			torrents.put(infoHash, peers);
+		}
+		peers.remove(endpoint);
+		peers.put(endpoint, now);
+		if (peers.size() > MAX_PEERS_PER_TORRENT)
+		{
+			Iterator<ByteBuffer> eldest = peers.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/*
+	 * Return up to max of the most recently announced peers of the torrent
+	 */
+	public synchronized List<ByteBuffer> get(ByteBuffer infoHash, int max, long now)
+	{
+		List<ByteBuffer> endpoints = new ArrayList<ByteBuffer>();
+		LinkedHashMap<ByteBuffer, Long> peers = torrents.get(infoHash);
+		if (peers == null)
+			return endpoints;
+		List<ByteBuffer> announced = new ArrayList<ByteBuffer>(peers.keySet());
+		for (int i = announced.size() - 1; i >= 0 && endpoints.size() < max; i--)
+		{
+			if (now - peers.get(announced.get(i)) < PEER_TTL)
+				endpoints.add(announced.get(i));
+		}
+		return endpoints;
+	}
+
+	/*
+	 * Drop the peers that haven't announced again in time, and the torrents left without peers
+	 */
+	public synchronized void expire(long now)
+	{
+		for (Iterator<LinkedHashMap<ByteBuffer, Long>> torrent = torrents.values().iterator(); torrent.hasNext();)
+		{
+			LinkedHashMap<ByteBuffer, Long> peers = torrent.next();
+			for (Iterator<Long> announceTime = peers.values().iterator(); announceTime.hasNext();)
+			{
+				if (now - announceTime.next() >= PEER_TTL)
+					announceTime.remove();
+				else
+					break;	//Announce order, the rest are newer
+			}
+			if (peers.isEmpty())
+				torrent.remove();
+		}
+	}
+
+	public synchronized int size()
+	{
+		return torrents.size();
+	}
+}
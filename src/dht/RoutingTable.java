@@ -0,0 +1,326 @@
+/*
+ * The Kademlia routing table of a DHT node, BEP 5 style
+ * Bucket i holds the nodes whose ID shares exactly i leading bits with ours, except the last bucket,
+ * which holds everything closer too - it's the only one that splits when it fills up, so the table
+ * knows many nodes near our ID and a few far from it. With at most 160 buckets of K nodes, plus K replacements each,
+ * the table never holds more than a few thousand contacts however many nodes talk to us.
+ * Shared by the DHT receiver thread, the timer wheel and the torrents looking up peers, hence synchronized.
+ */
+package dht;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class RoutingTable
+{
+	public final static int K = 8;	//Nodes per bucket
+	private final static int MAX_BUCKETS = NodeContact.ID_LENGTH * 8;
+	private final static long REFRESH_INTERVAL = 15*60*1000L;	//Milliseconds after which a bucket nobody changed is refreshed
+	private final byte[] localId;
+	private final List<Bucket> buckets = new ArrayList<Bucket>();
+	private final Random random = new Random();
+
+	public RoutingTable(byte[] localId)
+	{
+		this.localId = localId;
+		buckets.add(new Bucket(System.currentTimeMillis()));
+	}
+
+	/*
+	 * Handler for 'node responded' event
+	 * Mark the node good, adding it if there is room - splitting the last bucket if that's where it goes,
+	 * replacing a bad node, or else keeping it as a replacement for when one goes bad
+	 */
+	public synchronized void onResponse(byte[] id, InetSocketAddress address, long now)
+	{
+		if (id.length != NodeContact.ID_LENGTH || hasLocalId(id))
+			return;
+		while (true)
+		{
+			Bucket bucket = buckets.get(getBucketIndex(id));
+			NodeContact contact = bucket.find(id);
+			if (contact != null)
+			{
+				if (contact.getAddress().equals(address))	//Never let anybody else take over a known ID
+				{
+					contact.onResponse(now);
+					bucket.lastChanged = now;
+				}
+				return;
+			}
+			contact = new NodeContact(id, address);
+			contact.onResponse(now);
+			if (bucket.nodes.size() < K)
+			{
+				bucket.nodes.add(contact);
+				bucket.lastChanged = now;
+				return;
+			}
+			if (canSplit(bucket))
+			{
+				split();
+				continue;
+			}
+			for (int i = 0; i < bucket.nodes.size(); i++)
+			{
+				if (bucket.nodes.get(i).isBad())
+				{
+					bucket.nodes.set(i, contact);
+					bucket.lastChanged = now;
+					return;
+				}
+			}
+			bucket.addReplacement(contact);
+			return;
+		}
+	}
+
+	/*
+	 * Handler for 'query timed out' event
+	 * Once a node has failed too often, a replacement takes its place if the bucket has one
+	 */
+	public synchronized void onTimeout(byte[] id)
+	{
+		Bucket bucket = buckets.get(getBucketIndex(id));
+		NodeContact contact = bucket.find(id);
+		if (contact == null)
+			return;
+		contact.onFailure();
+		if (contact.isBad() && !bucket.replacements.isEmpty())
+		{
+			bucket.nodes.remove(contact);
+			bucket.nodes.add(bucket.replacements.pollLast());	//The most recently seen replacement is the most likely to be alive
+		}
+	}
+
+	/*
+	 * Whether a node we haven't heard from yet would get into the table if it answered, so is worth pinging
+	 */
+	public synchronized boolean wants(byte[] id)
+	{
+		if (id.length != NodeContact.ID_LENGTH || hasLocalId(id))
+			return false;
+		Bucket bucket = buckets.get(getBucketIndex(id));
+		if (bucket.find(id) != null)
+			return false;
+		if (bucket.nodes.size() < K || canSplit(bucket))
+			return true;
+		for (NodeContact contact : bucket.nodes)
+		{
+			if (contact.isBad())
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Return the count nodes closest to target, closest first, leaving out bad ones
+	 */
+	public synchronized List<NodeContact> getClosest(final byte[] target, int count)
+	{
+		List<NodeContact> closest = new ArrayList<NodeContact>();
+		for (Bucket bucket : buckets)
+		{
+			for (NodeContact contact : bucket.nodes)
+			{
+				if (!contact.isBad())
+					closest.add(contact);
+			}
+		}
+		Collections.sort(closest, new Comparator<NodeContact>()
+		{
+			public int compare(NodeContact a, NodeContact b)
+			{
+				return compareDistance(target, a.getId(), b.getId());
+			}
+		});
+		return closest.size() > count ? new ArrayList<NodeContact>(closest.subList(0, count)) : closest;
+	}
+
+	/*
+	 * Return a random ID in the range of every bucket that hasn't changed for a while, for looking up to refresh it
+	 * The refreshed buckets count as changed, so each is only returned once per refresh interval
+	 */
+	public synchronized List<byte[]> getRefreshTargets(long now)
+	{
+		List<byte[]> targets = new ArrayList<byte[]>();
+		for (int index = 0; index < buckets.size(); index++)
+		{
+			Bucket bucket = buckets.get(index);
+			if (now - bucket.lastChanged < REFRESH_INTERVAL)
+				continue;
+			byte[] target = new byte[NodeContact.ID_LENGTH];
+			random.nextBytes(target);
+			for (int bit = 0; bit < index; bit++)	//Share the bucket's prefix with our ID...
+				setBit(target, bit, getBit(localId, bit));
+			if (index < buckets.size() - 1)	//...and differ in the next bit, unless it's the last bucket
+				setBit(target, index, !getBit(localId, index));
+			targets.add(target);
+			bucket.lastChanged = now;
+		}
+		return targets;
+	}
+
+	/*
+	 * Return every node that isn't bad, for saving the table
+	 */
+	public synchronized List<NodeContact> getContacts()
+	{
+		List<NodeContact> contacts = new ArrayList<NodeContact>();
+		for (Bucket bucket : buckets)
+		{
+			for (NodeContact contact : bucket.nodes)
+			{
+				if (!contact.isBad())
+					contacts.add(contact);
+			}
+		}
+		return contacts;
+	}
+
+	public synchronized int size()
+	{
+		int size = 0;
+		for (Bucket bucket : buckets)
+			size += bucket.nodes.size();
+		return size;
+	}
+
+	public synchronized int getBucketCount()
+	{
+		return buckets.size();
+	}
+
+	/*
+	 * Split the last bucket, moving the nodes that share one more bit with our ID into a new last bucket
+	 */
+	private void split()
+	{
+		int index = buckets.size() - 1;
+		Bucket bucket = buckets.get(index);
+		Bucket closer = new Bucket(bucket.lastChanged);
+		buckets.add(closer);
+		for (Iterator<NodeContact> iterator = bucket.nodes.iterator(); iterator.hasNext();)
+		{
+			NodeContact contact = iterator.next();
+			if (commonPrefixLength(localId, contact.getId()) > index)
+			{
+				iterator.remove();
+				closer.nodes.add(contact);
+			}
+		}
+		for (Iterator<NodeContact> iterator = bucket.replacements.iterator(); iterator.hasNext();)
+		{
+			NodeContact contact = iterator.next();
+			if (commonPrefixLength(localId, contact.getId()) > index)
+			{
+				iterator.remove();
+				closer.addReplacement(contact);
+			}
+		}
+	}
+
+	private boolean canSplit(Bucket bucket)
+	{
+		return bucket == buckets.get(buckets.size() - 1) && buckets.size() < MAX_BUCKETS;
+	}
+
+	private int getBucketIndex(byte[] id)
+	{
+		return Math.min(commonPrefixLength(localId, id), buckets.size() - 1);
+	}
+
+	private boolean hasLocalId(byte[] id)
+	{
+		return commonPrefixLength(localId, id) == MAX_BUCKETS;
+	}
+
+	/*
+	 * Number of leading bits two IDs share, 160 if they're equal
+	 */
+	public static int commonPrefixLength(byte[] a, byte[] b)
+	{
+		for (int i = 0; i < NodeContact.ID_LENGTH; i++)
+		{
+			int difference = (a[i] ^ b[i]) & 0xff;
+			if (difference != 0)
+				return i * 8 + Integer.numberOfLeadingZeros(difference) - 24;
+		}
+		return MAX_BUCKETS;
+	}
+
+	/*
+	 * Compare the XOR distances of a and b to target, negative if a is closer
+	 */
+	public static int compareDistance(byte[] target, byte[] a, byte[] b)
+	{
+		for (int i = 0; i < NodeContact.ID_LENGTH; i++)
+		{
+			int distanceA = (a[i] ^ target[i]) & 0xff;
+			int distanceB = (b[i] ^ target[i]) & 0xff;
+			if (distanceA != distanceB)
+				return distanceA - distanceB;
+		}
+		return 0;
+	}
+
+	private static boolean getBit(byte[] id, int bit)
+	{
+		return (id[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+	}
+
+	private static void setBit(byte[] id, int bit, boolean value)
+	{
+		if (value)
+			id[bit >>> 3] |= 0x80 >>> (bit & 7);
+		else
+			id[bit >>> 3] &= ~(0x80 >>> (bit & 7));
+	}
+
+	public byte[] getLocalId() {
+		return localId;
+	}
+
+	/*
+	 * A k-bucket - up to K nodes, and up to K replacements to take over from the ones that go bad
+	 */
+	private static class Bucket
+	{
+		private final List<NodeContact> nodes = new ArrayList<NodeContact>(K);
+		private final ArrayDeque<NodeContact> replacements = new ArrayDeque<NodeContact>(K);
+		private long lastChanged;
+
+		private Bucket(long lastChanged)
+		{
+			this.lastChanged = lastChanged;
+		}
+
+		private NodeContact find(byte[] id)
+		{
+			for (NodeContact contact : nodes)
+			{
+				if (contact.hasId(id))
+					return contact;
+			}
+			return null;
+		}
+
+		private void addReplacement(NodeContact contact)
+		{
+			for (Iterator<NodeContact> iterator = replacements.iterator(); iterator.hasNext();)
+			{
+				if (iterator.next().hasId(contact.getId()))
+					iterator.remove();
+			}
+			if (replacements.size() == K)
+				replacements.pollFirst();	//Drop the one we heard from longest ago
+			replacements.addLast(contact);
+		}
+	}
+}
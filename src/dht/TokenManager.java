@@ -0,0 +1,74 @@
+/*
+ * Hands out and checks the tokens a DHT node has to show us to announce itself, so that nobody can announce
+ * on behalf of an address it can't receive packets at (BEP 5).
+ * A token is a hash of the querying address and a secret that changes every 5 minutes,
+ * and the previous secret is still honoured, so a token is good for 5 to 10 minutes and nothing has to be stored per node.
+ */
+package dht;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import tools.Util;
+
+public class TokenManager
+{
+	private final static int SECRET_LENGTH = 20;
+	private final static int TOKEN_LENGTH = 8;
+	private final SecureRandom random = new SecureRandom();
+	private volatile byte[] secret;
+	private volatile byte[] previousSecret;
+
+	public TokenManager()
+	{
+		this.secret = newSecret();
+		this.previousSecret = secret;
+	}
+
+	/*
+	 * Replace the secret, tokens made with the one before the current one stop being valid
+	 */
+	public void rotate()
+	{
+		previousSecret = secret;
+		secret = newSecret();
+	}
+
+	public ByteBuffer create(InetAddress address)
+	{
+		return ByteBuffer.wrap(hash(secret, address));
+	}
+
+	public boolean isValid(ByteBuffer token, InetAddress address)
+	{
+		if (token == null || token.remaining() != TOKEN_LENGTH)
+			return false;
+		byte[] bytes = new byte[TOKEN_LENGTH];
+		token.duplicate().get(bytes);
+		return Arrays.equals(bytes, hash(secret, address)) || Arrays.equals(bytes, hash(previousSecret, address));
+	}
+
+	private byte[] hash(byte[] secret, InetAddress address)
+	{
+		byte[] addressBytes = address.getAddress();
+		byte[] data = Arrays.copyOf(secret, secret.length + addressBytes.length);
+		System.arraycopy(addressBytes, 0, data, secret.length, addressBytes.length);
+		try
+		{
+			return Arrays.copyOf(Util.buildHash(data, "SHA-1"), TOKEN_LENGTH);
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-1 not available", e);	//Every JRE has to provide it
+		}
+	}
+
+	private byte[] newSecret()
+	{
+		byte[] newSecret = new byte[SECRET_LENGTH];
+		random.nextBytes(newSecret);
+		return newSecret;
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * How the data files of a torrent are laid out on disk before any piece is written.
+ * SPARSE extends each file to its final length without allocating blocks (the file system fills holes as pieces arrive).
+ * FULL writes every file out to its final length up front, so that random-offset piece writes don't fragment it.
+ * PART_FILE keeps the whole torrent in a single preallocated part-file while downloading,
+ * and only splits it into the real files once all pieces are verified.
+ */
+
+package metainfo;
+
+public enum AllocationPolicy
+{
+	SPARSE,
+	FULL,
+	PART_FILE
+}
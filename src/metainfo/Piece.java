@@ -2,6 +2,7 @@ package metainfo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -53,26 +54,64 @@ public class Piece
 			throw e;
 		}
 		
-		ByteBuffer block = ByteBuffer.allocate(lengthReq.intValue());
-		Long read = getTorrentFileSystem().read(block, getOffset() + offsetReq);	//Read from disk
-		if (read < lengthReq)
+		ByteBuffer data = PieceCache.getInstance().get(this);
+		if (data == null)
+			data = readAhead();	//Cache miss, read the whole piece so that the next blocks are served from memory
+		
+		data.limit((int) (offsetReq + lengthReq)).position(offsetReq.intValue());
+		return data.slice();
+	}
+	
+	/*
+	 * Transfer data of this piece from offsetReq upto offsetReq+lengthReq straight from disk to target
+	 * Returns number of bytes actually transferred, which falls short of lengthReq when a non-blocking target is full
+	 */
+	public Long transferTo(WritableByteChannel target, Long offsetReq, Long lengthReq) throws IOException
+	{
+		if (!isAvailable())
 		{
-			IOException e = new IOException("Failed to read " + lengthReq + " byte(s) from " + this);
+			IOException e = new IOException(this + " is not available yet!");
+			logger.log(Level.WARNING, "Tried to transfer unavailable piece", e);
+			throw e;
+		}
+		
+		if (offsetReq + lengthReq > getLength())
+		{
+			IllegalArgumentException e = new IllegalArgumentException("Requested offset+length overflows the length of " + this);
+			logger.log(Level.WARNING, "Was about to buffer-overread", e);
+			throw e;
+		}
+		
+		return getTorrentFileSystem().transferTo(target, getOffset() + offsetReq, lengthReq);
+	}
+	
+	/*
+	 * Read this whole piece from disk and put it in the piece cache
+	 */
+	private ByteBuffer readAhead() throws IOException
+	{
+		ByteBuffer data = ByteBuffer.allocate(getLength().intValue());
+		Long read = getTorrentFileSystem().read(data, getOffset());	//Read from disk
+		if (read < getLength())
+		{
+			IOException e = new IOException("Failed to read " + getLength() + " byte(s) from " + this);
 			logger.log(Level.WARNING, "Couldn't read number of requested bytes", e);
 			throw e;
 		}
-			
-		block.rewind();
-		//block.limit(read.intValue()); //TODO no need for this
 		
-		return block;
+		data.rewind();
+		PieceCache.getInstance().put(this, data);
+		logger.log(Level.FINER, "Read ahead " + this + " into piece cache");
+		return data.asReadOnlyBuffer();
 	}
 	
 	/*
 	 * Buffered-write the block into this piece from offsetReq
 	 * Data is flushed to disk when all the blocks are available and hash is verified
+	 * Returns true if the block completed the piece - it is then available if it passed its hash check,
+	 * and starts over from scratch if it failed it or couldn't be flushed
 	 */
-	public synchronized void write(ByteBuffer block, Long offsetReq) throws IOException
+	public synchronized boolean write(ByteBuffer block, Long offsetReq) throws IOException
 	{
 		if (getData() == null)
 		{
@@ -98,21 +137,29 @@ public class Piece
 		{
 			logger.log(Level.FINE, this + " download completed!");
 			getData().rewind();
-			if (verifyHash())
+			try
 			{
-				logger.log(Level.FINE, this + " hash verified!");
-				Long written = getTorrentFileSystem().write(getData(), getOffset());	//Flush data to disk
-				if (written < getLength())
+				if (verifyHash())
 				{
-					IOException e = new IOException("Failed to write " + getLength() + " byte(s) to " + this);
-					logger.log(Level.WARNING, "Couldn't write number of requested bytes", e);
-					throw e;
+					logger.log(Level.FINE, this + " hash verified!");
+					Long written = getTorrentFileSystem().write(getData(), getOffset());	//Flush data to disk
+					if (written < getLength())
+					{
+						IOException e = new IOException("Failed to write " + getLength() + " byte(s) to " + this);
+						logger.log(Level.WARNING, "Couldn't write number of requested bytes", e);
+						throw e;
+					}
+					setAvailable(true);	//Set piece availability to true
+					PieceCache.getInstance().put(this, getData());	//Freshly verified pieces are the ones most likely to be requested next
 				}
-				setAvailable(true);	//Set piece availability to true
+			} finally
+			{
+				setData(null);	//Drop our reference, the piece cache holds on to the buffer if it wants to
+				setBytesAvailable(null);
 			}
-			setData(null);	//Discard buffer for garbage-collection
-			setBytesAvailable(null);
+			return true;
 		}
+		return false;
 	}
 	
 	public boolean verifyHash() throws IOException
@@ -0,0 +1,160 @@
+/**
+ * A singleton, memory-bounded LRU cache of whole pieces, shared across all torrents.
+ * Pieces get in here either when a block of theirs is read for upload (the rest of the piece is read ahead),
+ * or right after they are downloaded and verified, so that seeding a popular piece doesn't hit the disk over and over again.
+ */
+
+package metainfo;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+import torrent.TorrentFileSystem;
+
+public class PieceCache
+{
+	private static PieceCache instance = null;
+	private final LinkedHashMap<Piece, ByteBuffer> pieces = new LinkedHashMap<Piece, ByteBuffer>(16, 0.75f, true);	//Access-ordered, eldest is least recently used
+	private long size = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	Logger logger = LoggingClient.getInstance().logger;
+
+	private PieceCache()
+	{
+	}
+
+	public static synchronized PieceCache getInstance()
+	{
+		if (instance == null)
+			instance = new PieceCache();
+		return instance;
+	}
+
+	/*
+	 * Return a read-only view of the cached data of piece, or null if it isn't cached
+	 * Every lookup is counted as a hit or a miss
+	 */
+	public synchronized ByteBuffer get(Piece piece)
+	{
+		ByteBuffer data = pieces.get(piece);
+		if (data == null)
+		{
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return data.asReadOnlyBuffer();
+	}
+
+	/*
+	 * Cache the data of piece, evicting least recently used pieces till everything fits in the cache
+	 * Pieces larger than the whole cache are not cached at all
+	 */
+	public synchronized void put(Piece piece, ByteBuffer data)
+	{
+		long capacity = Environment.getInstance().getReadCacheSize();
+		if (data.capacity() > capacity)
+			return;
+
+		ByteBuffer previous = pieces.put(piece, (ByteBuffer) data.duplicate().rewind());
+		if (previous != null)
+			size -= previous.capacity();
+		size += data.capacity();
+
+		Iterator<Entry<Piece, ByteBuffer>> iterator = pieces.entrySet().iterator();
+		while (size > capacity && iterator.hasNext())
+		{
+			Entry<Piece, ByteBuffer> eldest = iterator.next();
+			if (eldest.getKey() == piece)
+				continue;
+			size -= eldest.getValue().capacity();
+			iterator.remove();
+			evictions.increment();
+			logger.log(Level.FINEST, "Evicted " + eldest.getKey() + " from piece cache");
+		}
+	}
+
+	/*
+	 * Drop all cached pieces of the given torrent file system
+	 * Typically called when the file system is shut down
+	 */
+	public synchronized void invalidate(TorrentFileSystem torrentFileSystem)
+	{
+		Iterator<Entry<Piece, ByteBuffer>> iterator = pieces.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Entry<Piece, ByteBuffer> entry = iterator.next();
+			if (entry.getKey().getTorrentFileSystem() == torrentFileSystem)
+			{
+				size -= entry.getValue().capacity();
+				iterator.remove();
+			}
+		}
+		logger.log(Level.FINER, "Invalidated cached pieces of a torrent file system. " + this);
+	}
+
+	/*
+	 * Return up to max cached pieces of the given torrent file system, most recently used first
+	 */
+	public synchronized List<Piece> getCachedPieces(TorrentFileSystem torrentFileSystem, int max)
+	{
+		LinkedList<Piece> cached = new LinkedList<Piece>();
+		for (Piece piece : pieces.keySet())	//Least recently used first
+		{
+			if (piece.getTorrentFileSystem() != torrentFileSystem)
+				continue;
+			cached.addFirst(piece);
+			if (cached.size() > max)
+				cached.removeLast();
+		}
+		return cached;
+	}
+
+	public synchronized boolean contains(Piece piece)
+	{
+		return pieces.containsKey(piece);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/*
+	 * Fraction of lookups served from memory
+	 */
+	public double getHitRatio()
+	{
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0.0 : (double) hits / (double) lookups;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("{PieceCache->Size: %d, Pieces: %d, Hits: %d, Misses: %d, Evictions: %d, Hit ratio: %.2f%%}",
+				getSize(), pieces.size(), getHits(), getMisses(), getEvictions(), getHitRatio()*100.0);
+	}
+}
@@ -10,10 +10,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import client.LoggingClient;
+import tools.Util;
 
 public class TorrentDataFile
 {
@@ -23,6 +25,7 @@ public class TorrentDataFile
 	private Long offset;
 	private RandomAccessFile backingFile;
 	private FileChannel fileChannel;
+	private static final int ALLOCATION_CHUNK_SIZE = 1*Util.SIZE_MB;
 	Logger logger = LoggingClient.getInstance().logger;
 	
 	/**
@@ -51,6 +54,109 @@ public class TorrentDataFile
 		logger.log(Level.FINE, "Opened " + this);
 	}
 	
+	/*
+	 * Open this data file in baseDirectory and allocate it according to policy
+	 * PART_FILE is handled by the TorrentFileSystem, so a single data file treats it just like FULL
+	 */
+	public void open(String baseDirectory, AllocationPolicy policy) throws IOException 
+	{
+		open(baseDirectory);
+		if (policy == AllocationPolicy.SPARSE)
+			allocateSparse();
+		else
+			allocateFull();
+	}
+	
+	/*
+	 * Extend the file to its final length without touching the blocks in between
+	 * The file system leaves a hole which gets filled as pieces are written
+	 */
+	private void allocateSparse() throws IOException
+	{
+		if (getBackingFile().length() < getLength())
+		{
+			getBackingFile().setLength(getLength());
+			logger.log(Level.FINER, "Sparse-allocated " + this);
+		}
+	}
+	
+	/*
+	 * Write zeroes from the current end of the file up to its final length
+	 * This is the portable equivalent of fallocate - the blocks are reserved sequentially up front,
+	 * so random-offset piece writes later on don't fragment the file
+	 */
+	private void allocateFull() throws IOException
+	{
+		Long allocated = getBackingFile().length();
+		if (allocated >= getLength())
+			return;
+		
+		ByteBuffer zeroes = ByteBuffer.allocateDirect(ALLOCATION_CHUNK_SIZE);
+		while (allocated < getLength())
+		{
+			zeroes.clear();
+			if (getLength() - allocated < zeroes.capacity())
+				zeroes.limit((int) (getLength() - allocated));
+			while (zeroes.hasRemaining())
+				allocated += getFileChannel().write(zeroes, allocated);
+		}
+		logger.log(Level.FINER, "Fully allocated " + this);
+	}
+	
+	/*
+	 * Transfer lengthReq bytes from offsetReq in disk straight to target, without copying them through user-space
+	 * FileChannel.transferTo uses sendfile on Linux when target is a socket
+	 * Returns number of bytes actually transferred, which falls short of lengthReq when a non-blocking target is full
+	 */
+	public Long transferTo(WritableByteChannel target, Long offsetReq, Long lengthReq) throws IOException
+	{
+		if (offsetReq + lengthReq > getLength())
+		{
+			TorrentDataFileException e = new TorrentDataFileException("Requested offset+length overflows the file while transferring " + this);
+			logger.log(Level.WARNING, "Was about to buffer-overread", e);
+			throw e;
+		}
+		
+		Long transferred = 0l;
+		while (transferred < lengthReq)	//A non-blocking socket may take only part of the region at a time
+		{
+			long sent = getFileChannel().transferTo(offsetReq + transferred, lengthReq - transferred, target);
+			if (sent == 0)
+				break;	//Either the target is full for now, or we're at the end of the file
+			transferred += sent;
+		}
+		if (transferred < lengthReq && offsetReq + transferred >= getFileChannel().size())
+		{
+			TorrentDataFileException e = new TorrentDataFileException("Failed to transfer " + lengthReq + " byte(s) from file " + this);
+			logger.log(Level.WARNING, "Couldn't transfer number of requested bytes", e);
+			throw e;
+		}
+		
+		return transferred;
+	}
+	
+	/*
+	 * Copy length bytes starting at offsetReq of source into this file, starting at this file's beginning
+	 * Used to split a part-file into the real data files once the download completes
+	 */
+	public Long copyFrom(FileChannel source, Long offsetReq, Long lengthReq) throws IOException
+	{
+		Long copied = 0l;
+		while (copied < lengthReq)
+		{
+			long transferred = source.transferTo(offsetReq + copied, lengthReq - copied, 
+					getFileChannel().position(copied));
+			if (transferred <= 0)
+			{
+				TorrentDataFileException e = new TorrentDataFileException("Failed to copy " + lengthReq + " byte(s) into file " + this);
+				logger.log(Level.WARNING, "Couldn't copy number of requested bytes", e);
+				throw e;
+			}
+			copied += transferred;
+		}
+		return copied;
+	}
+	
 	/*
 	 * Close this file's resources
 	 */
@@ -0,0 +1,53 @@
+/*
+ * A singleton that owns the global upload and download token buckets
+ * They sit at the root of the limiter hierarchy - every transfer to or from any peer of any torrent
+ * is charged to its peer's bucket, its torrent's bucket and the global bucket of its direction.
+ */
+package peer;
+
+import client.Environment;
+import tools.TokenBucket;
+
+public class BandwidthLimiter
+{
+	private static BandwidthLimiter instance = null;
+	private final TokenBucket upload;
+	private final TokenBucket download;
+
+	private BandwidthLimiter()
+	{
+		this.upload = new TokenBucket(Environment.getInstance().getUploadLimit());
+		this.download = new TokenBucket(Environment.getInstance().getDownloadLimit());
+	}
+
+	public static synchronized BandwidthLimiter getInstance()
+	{
+		if (instance == null)
+			instance = new BandwidthLimiter();
+		return instance;
+	}
+
+	public TokenBucket getUpload() {
+		return upload;
+	}
+
+	public TokenBucket getDownload() {
+		return download;
+	}
+
+	/*
+	 * Change the global upload limit in bytes per second, 0 turns it off
+	 */
+	public void setUploadLimit(long uploadLimit) {
+		Environment.getInstance().setUploadLimit(uploadLimit);
+		upload.setRate(uploadLimit);
+	}
+
+	/*
+	 * Change the global download limit in bytes per second, 0 turns it off
+	 */
+	public void setDownloadLimit(long downloadLimit) {
+		Environment.getInstance().setDownloadLimit(downloadLimit);
+		download.setRate(downloadLimit);
+	}
+}
@@ -0,0 +1,499 @@
+/*
+ * The peers a torrent knows of but isn't connected to, kept as primitive arrays rather than objects
+ * Every candidate is a slot across the arrays: its address as two longs (IPv4 as an IPv4-mapped IPv6 address),
+ * its port, where we learnt of it and when, and its connection history - attempts, successes, consecutive failures,
+ * connect latency and the throughput of its past connections.
+ * Slots are found by endpoint through an open-addressing hash table of slot numbers, so a candidate costs
+ * a few dozen bytes instead of a Peer object, and Peer objects are only created for candidates we connect to.
+ * Candidates are ranked by a score computed from their history, source and how recently they were reported,
+ * and failed candidates back off exponentially before they are tried again.
+ * When the store is full, the lowest scored candidates are evicted to make room.
+ */
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class CandidateStore
+{
+	public final static byte SOURCE_TRACKER = 0;
+	public final static byte SOURCE_INCOMING = 1;
+	public final static byte SOURCE_PEX = 2;
+	public final static byte SOURCE_DHT = 3;
+	public final static byte SOURCE_CACHE = 4;
+	public final static byte SOURCE_LSD = 5;
+	public final static double MIN_USEFUL_THROUGHPUT = 1024;	//Bytes per second a connection has to average to count as a success
+	private final static float[] SOURCE_SCORES = {1.0f, 1.5f, 0.75f, 0.5f, 1.0f, 4.0f};	//Incoming peers are reachable and active, DHT peers are often stale, LAN peers beat any WAN peer
+	private final static float UNTRIED_SCORE = 1.0f;	//What an untried candidate's history is worth, a 50% success rate
+	private final static float SUCCESS_WEIGHT = 2.0f;	//What a perfect success rate is worth
+	private final static double THROUGHPUT_UNIT = 16*1024;	//Bytes per second - every doubling of past throughput above this is worth a point
+	private final static float SLOW_CONNECT = 2000;	//Milliseconds of connect latency that cost a full point
+	private final static float AGE_UNIT = 30*60*1000;	//Milliseconds since last reported that cost a point
+	private final static float MAX_AGE_PENALTY = 2.0f;
+	private final static int INITIAL_SLOTS = 64;
+	private final static int EVICTION_DIVISOR = 16;	//Evict a sixteenth of the store at a time, so eviction isn't paid per candidate
+	private final static long RETRY_INTERVAL = 60*1000;	//Milliseconds before a candidate we were connected to is tried again
+	private final static long BASE_BACKOFF = 30*1000;	//Milliseconds after the first failure, doubling with every further one
+	private final static int MAX_BACKOFF_SHIFT = 7;	//About an hour
+	private final static long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+	private final int capacity;
+	private long[] addressHigh = new long[INITIAL_SLOTS];
+	private long[] addressLow = new long[INITIAL_SLOTS];
+	private char[] ports = new char[INITIAL_SLOTS];
+	private byte[] sources = new byte[INITIAL_SLOTS];
+	private long[] lastSeenTimes = new long[INITIAL_SLOTS];	//When a source last reported the candidate
+	private long[] lastAttemptTimes = new long[INITIAL_SLOTS];
+	private long[] lastUsefulTimes = new long[INITIAL_SLOTS];	//When a connection to the candidate last ended having been useful, 0 if never
+	private short[] attempts = new short[INITIAL_SLOTS];
+	private short[] successes = new short[INITIAL_SLOTS];
+	private short[] failures = new short[INITIAL_SLOTS];	//Consecutive, wiped out by a success
+	private int[] connectLatencies = new int[INITIAL_SLOTS];	//Milliseconds, averaged
+	private float[] throughputs = new float[INITIAL_SLOTS];	//Bytes per second over past connections, averaged
+	private int[] table = new int[2*INITIAL_SLOTS];	//Slot + 1 per entry, 0 for an empty entry
+	private int count = 0;
+
+	public CandidateStore(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/*
+	 * Add an endpoint learnt from source
+	 * A known endpoint is only marked as seen now, and takes the better of its sources
+	 * Returns false if it's known already, or the store is full of better candidates
+	 */
+	public synchronized boolean add(ByteBuffer endpoint, byte source, long now)
+	{
+		long high = getAddressHigh(endpoint);
+		long low = getAddressLow(endpoint);
+		char port = (char) EndpointIndex.getPort(endpoint);
+		int entry = findEntry(high, low, port);
+		if (table[entry] != 0)
+		{
+			int slot = table[entry] - 1;
+			lastSeenTimes[slot] = now;
+			if (SOURCE_SCORES[source] > SOURCE_SCORES[sources[slot]])
+				sources[slot] = source;
+			return false;
+		}
+		if (count >= capacity)
+		{
+			evict(now);
+			if (count >= capacity)
+				return false;
+			entry = findEntry(high, low, port);	//Eviction moves entries around
+		}
+		if (count == addressHigh.length)
+		{
+			grow();
+			entry = findEntry(high, low, port);
+		}
+		int slot = count++;
+		addressHigh[slot] = high;
+		addressLow[slot] = low;
+		ports[slot] = port;
+		sources[slot] = source;
+		lastSeenTimes[slot] = now;
+		lastAttemptTimes[slot] = 0;
+		lastUsefulTimes[slot] = 0;
+		attempts[slot] = 0;
+		successes[slot] = 0;
+		failures[slot] = 0;
+		connectLatencies[slot] = 0;
+		throughputs[slot] = 0;
+		table[entry] = slot + 1;
+		return true;
+	}
+
+	/*
+	 * Add an endpoint from the peer cache, with the history it had when it was cached - a connection that worked
+	 * until lastUsefulTime, averaging the given throughput
+	 * Returns false if it's known already
+	 */
+	public synchronized boolean restore(ByteBuffer endpoint, long lastUsefulTime, float throughput)
+	{
+		if (!add(endpoint, SOURCE_CACHE, lastUsefulTime))
+			return false;
+		int slot = findSlot(endpoint);
+		if (slot < 0)
+			return false;	//No room
+		attempts[slot] = 1;
+		successes[slot] = 1;
+		lastUsefulTimes[slot] = lastUsefulTime;
+		throughputs[slot] = throughput;
+		return true;
+	}
+
+	/*
+	 * Return up to max of the best scored candidates that have been useful to connect to, best first, for the peer cache
+	 * Candidates whose last attempt failed are left out, and each keeps the time it was last useful rather than last tried,
+	 * so a peer that has gone away ages out of the cache instead of being carried over from session to session
+	 */
+	public synchronized List<Record> getUseful(int max, long now)
+	{
+		final float[] scores = new float[count];
+		List<Integer> useful = new ArrayList<Integer>();
+		for (int slot = 0; slot < count; slot++)
+		{
+			if (successes[slot] == 0 || failures[slot] > 0 || lastUsefulTimes[slot] == 0)
+				continue;
+			scores[slot] = getScore(slot, now);
+			useful.add(slot);
+		}
+		Collections.sort(useful, new Comparator<Integer>()
+		{
+			public int compare(Integer slot1, Integer slot2)
+			{
+				return Float.compare(scores[slot2], scores[slot1]);
+			}
+		});
+		List<Record> records = new ArrayList<Record>();
+		for (Integer slot : useful.subList(0, Math.min(max, useful.size())))
+			records.add(new Record(getEndpoint(slot), lastUsefulTimes[slot], throughputs[slot]));
+		return records;
+	}
+
+	/*
+	 * Pick up to wanted of the best scored candidates that aren't connecting, connected or banned,
+	 * and whose backoff is over, and mark them as tried now
+	 * The best come first
+	 */
+	public synchronized List<ByteBuffer> select(int wanted, long now, EndpointIndex endpoints)
+	{
+		List<ByteBuffer> selected = new ArrayList<ByteBuffer>();
+		if (wanted <= 0)
+			return selected;
+		final float[] scores = new float[count];
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(wanted, new Comparator<Integer>()	//Worst of the best on top
+		{
+			public int compare(Integer slot1, Integer slot2)
+			{
+				return Float.compare(scores[slot1], scores[slot2]);
+			}
+		});
+		for (int slot = 0; slot < count; slot++)
+		{
+			if (now < getNextAttemptTime(slot))
+				continue;
+			scores[slot] = getScore(slot, now);
+			if (best.size() == wanted && scores[slot] <= scores[best.peek()])
+				continue;
+			if (endpoints.getState(getEndpoint(slot)) != null)
+				continue;
+			best.add(slot);
+			if (best.size() > wanted)
+				best.poll();
+		}
+		while (!best.isEmpty())
+		{
+			int slot = best.poll();
+			lastAttemptTimes[slot] = now;
+			selected.add(0, getEndpoint(slot));
+		}
+		return selected;
+	}
+
+	/*
+	 * Whether a candidate that's ready to be tried scores better than the given score
+	 */
+	public synchronized boolean hasBetterThan(float score, long now, EndpointIndex endpoints)
+	{
+		for (int slot = 0; slot < count; slot++)
+		{
+			if (now >= getNextAttemptTime(slot) && getScore(slot, now) > score && endpoints.getState(getEndpoint(slot)) == null)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Record a failed connection attempt, which doubles the candidate's backoff
+	 */
+	public synchronized void onFailure(ByteBuffer endpoint)
+	{
+		int slot = findSlot(endpoint);
+		if (slot < 0)
+			return;
+		attempts[slot] = increment(attempts[slot]);
+		failures[slot] = increment(failures[slot]);
+	}
+
+	/*
+	 * Record a successful connection, which wipes out earlier failures
+	 */
+	public synchronized void onConnected(ByteBuffer endpoint, long latency)
+	{
+		int slot = findSlot(endpoint);
+		if (slot < 0)
+			return;
+		attempts[slot] = increment(attempts[slot]);
+		successes[slot] = increment(successes[slot]);
+		failures[slot] = 0;
+		int latencyMillis = (int) Math.max(1, Math.min(latency, Integer.MAX_VALUE));
+		connectLatencies[slot] = connectLatencies[slot] == 0 ? latencyMillis : (3*connectLatencies[slot] + latencyMillis) / 4;
+	}
+
+	/*
+	 * Record the end of a connection and the throughput it averaged
+	 * A connection that never got up to MIN_USEFUL_THROUGHPUT is taken back as a success
+	 * The candidate is tried again after RETRY_INTERVAL at the earliest
+	 */
+	public synchronized void onDisconnected(ByteBuffer endpoint, double throughput, long now)
+	{
+		int slot = findSlot(endpoint);
+		if (slot < 0)
+			return;
+		throughputs[slot] = averageThroughput(throughputs[slot], throughput);
+		if (throughput < MIN_USEFUL_THROUGHPUT && successes[slot] > 0)
+			successes[slot]--;
+		else if (throughput >= MIN_USEFUL_THROUGHPUT)
+			lastUsefulTimes[slot] = now;
+		lastAttemptTimes[slot] = now;
+	}
+
+	/*
+	 * Return the score the endpoint would have if its connection ended now, with the given throughput
+	 * Used to judge a connected peer against the candidates that could replace it
+	 */
+	public synchronized float getScoreIfDisconnected(ByteBuffer endpoint, double throughput, long now)
+	{
+		int slot = findSlot(endpoint);
+		if (slot < 0)
+			return getScore(SOURCE_TRACKER, 1, throughput < MIN_USEFUL_THROUGHPUT ? 0 : 1, (float) throughput, 0, now, now);
+		int useful = throughput < MIN_USEFUL_THROUGHPUT && successes[slot] > 0 ? successes[slot] - 1 : successes[slot];
+		return getScore(sources[slot], attempts[slot], useful, averageThroughput(throughputs[slot], throughput),
+				connectLatencies[slot], lastSeenTimes[slot], now);
+	}
+
+	public synchronized boolean remove(ByteBuffer endpoint)
+	{
+		int entry = findEntry(getAddressHigh(endpoint), getAddressLow(endpoint), (char) EndpointIndex.getPort(endpoint));
+		if (table[entry] == 0)
+			return false;
+		removeEntry(entry);
+		return true;
+	}
+
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	/*
+	 * Score a candidate - higher is better
+	 * Its source, success rate, past throughput (logarithmically), connect latency and how long ago it was last reported all count
+	 */
+	private float getScore(int slot, long now)
+	{
+		return getScore(sources[slot], attempts[slot], successes[slot], throughputs[slot], connectLatencies[slot], lastSeenTimes[slot], now);
+	}
+
+	private static float getScore(byte source, int attempts, int successes, float throughput, int connectLatency, long lastSeenTime, long now)
+	{
+		float score = SOURCE_SCORES[source];
+		score += attempts == 0 ? UNTRIED_SCORE : SUCCESS_WEIGHT * successes / attempts;
+		if (throughput > 0)
+			score += (float) (Math.log1p(throughput / THROUGHPUT_UNIT) / Math.log(2));
+		score -= Math.min(1.0f, connectLatency / SLOW_CONNECT);
+		score -= Math.min(MAX_AGE_PENALTY, (now - lastSeenTime) / AGE_UNIT);
+		return score;
+	}
+
+	private static float averageThroughput(float average, double throughput)
+	{
+		return average == 0 ? (float) throughput : (float) (average + throughput) / 2;
+	}
+
+	/*
+	 * When the candidate may be tried again
+	 * Untried candidates right away, ones we were connected to after RETRY_INTERVAL,
+	 * failed ones after a backoff that doubles with every consecutive failure
+	 */
+	private long getNextAttemptTime(int slot)
+	{
+		if (lastAttemptTimes[slot] == 0)
+			return 0;
+		if (failures[slot] == 0)
+			return lastAttemptTimes[slot] + RETRY_INTERVAL;
+		return lastAttemptTimes[slot] + (BASE_BACKOFF << Math.min(failures[slot] - 1, MAX_BACKOFF_SHIFT));
+	}
+
+	private static short increment(short value)
+	{
+		return value < Short.MAX_VALUE ? (short) (value + 1) : value;
+	}
+
+	/*
+	 * Return the slot of the endpoint, -1 if it isn't a candidate
+	 */
+	private int findSlot(ByteBuffer endpoint)
+	{
+		int entry = findEntry(getAddressHigh(endpoint), getAddressLow(endpoint), (char) EndpointIndex.getPort(endpoint));
+		return table[entry] - 1;
+	}
+
+	/*
+	 * Return the table entry holding the endpoint, or the empty entry it would go into
+	 */
+	private int findEntry(long high, long low, char port)
+	{
+		int mask = table.length - 1;
+		int entry = hash(high, low, port) & mask;
+		while (table[entry] != 0)
+		{
+			int slot = table[entry] - 1;
+			if (addressLow[slot] == low && addressHigh[slot] == high && ports[slot] == port)
+				return entry;
+			entry = (entry + 1) & mask;
+		}
+		return entry;
+	}
+
+	/*
+	 * Remove the candidate of a table entry
+	 * The entries after it in its probe run are shifted back, so no tombstones are needed,
+	 * and the last slot is moved into the freed slot, so the slots stay packed
+	 */
+	private void removeEntry(int entry)
+	{
+		int slot = table[entry] - 1;
+		int mask = table.length - 1;
+		table[entry] = 0;
+		for (int next = (entry + 1) & mask; table[next] != 0; next = (next + 1) & mask)
+		{
+			int nextSlot = table[next] - 1;
+			int home = hash(addressHigh[nextSlot], addressLow[nextSlot], ports[nextSlot]) & mask;
+			boolean between = entry <= next ? (entry < home && home <= next) : (entry < home || home <= next);	//Cyclically in (entry, next]
+			if (!between)
+			{
+				table[entry] = table[next];
+				table[next] = 0;
+				entry = next;
+			}
+		}
+
+		int last = --count;
+		if (slot != last)
+		{
+			table[findEntry(addressHigh[last], addressLow[last], ports[last])] = slot + 1;
+			addressHigh[slot] = addressHigh[last];
+			addressLow[slot] = addressLow[last];
+			ports[slot] = ports[last];
+			sources[slot] = sources[last];
+			lastSeenTimes[slot] = lastSeenTimes[last];
+			lastAttemptTimes[slot] = lastAttemptTimes[last];
+			lastUsefulTimes[slot] = lastUsefulTimes[last];
+			attempts[slot] = attempts[last];
+			successes[slot] = successes[last];
+			failures[slot] = failures[last];
+			connectLatencies[slot] = connectLatencies[last];
+			throughputs[slot] = throughputs[last];
+		}
+	}
+
+	/*
+	 * Evict the lowest scored sixteenth of the store
+	 */
+	private void evict(long now)
+	{
+		float[] scores = new float[count];
+		for (int slot = 0; slot < count; slot++)
+			scores[slot] = getScore(slot, now);
+		float[] sorted = Arrays.copyOf(scores, count);
+		Arrays.sort(sorted);
+		float threshold = sorted[Math.max(0, count / EVICTION_DIVISOR - 1)];
+		int toEvict = Math.max(1, count / EVICTION_DIVISOR);
+		for (int slot = count - 1; slot >= 0 && toEvict > 0; slot--)
+		{
+			if (scores[slot] > threshold)
+				continue;
+			removeEntry(findEntry(addressHigh[slot], addressLow[slot], ports[slot]));	//Moves the last slot here, which was already looked at, so its score isn't needed
+			toEvict--;
+		}
+	}
+
+	/*
+	 * Double the slots, up to the capacity, and rebuild the table at twice their number
+	 */
+	private void grow()
+	{
+		int slots = Math.min(Math.max(addressHigh.length * 2, INITIAL_SLOTS), capacity);
+		addressHigh = Arrays.copyOf(addressHigh, slots);
+		addressLow = Arrays.copyOf(addressLow, slots);
+		ports = Arrays.copyOf(ports, slots);
+		sources = Arrays.copyOf(sources, slots);
+		lastSeenTimes = Arrays.copyOf(lastSeenTimes, slots);
+		lastAttemptTimes = Arrays.copyOf(lastAttemptTimes, slots);
+		lastUsefulTimes = Arrays.copyOf(lastUsefulTimes, slots);
+		attempts = Arrays.copyOf(attempts, slots);
+		successes = Arrays.copyOf(successes, slots);
+		failures = Arrays.copyOf(failures, slots);
+		connectLatencies = Arrays.copyOf(connectLatencies, slots);
+		throughputs = Arrays.copyOf(throughputs, slots);
+		table = new int[Integer.highestOneBit(slots - 1) << 2];	//At least twice the slots, a power of two
+		for (int slot = 0; slot < count; slot++)
+			table[findEntry(addressHigh[slot], addressLow[slot], ports[slot])] = slot + 1;
+	}
+
+	private ByteBuffer getEndpoint(int slot)
+	{
+		if (addressHigh[slot] == 0 && (addressLow[slot] & 0xffffffff00000000L) == IPV4_MAPPED_PREFIX)
+			return (ByteBuffer) ByteBuffer.allocate(EndpointIndex.IPV4_ENDPOINT_LENGTH)
+					.putInt((int) addressLow[slot]).putChar(ports[slot]).rewind();
+		return (ByteBuffer) ByteBuffer.allocate(EndpointIndex.IPV6_ENDPOINT_LENGTH)
+				.putLong(addressHigh[slot]).putLong(addressLow[slot]).putChar(ports[slot]).rewind();
+	}
+
+	private static long getAddressHigh(ByteBuffer endpoint)
+	{
+		return endpoint.remaining() == EndpointIndex.IPV4_ENDPOINT_LENGTH ? 0 : endpoint.getLong(endpoint.position());
+	}
+
+	private static long getAddressLow(ByteBuffer endpoint)
+	{
+		if (endpoint.remaining() == EndpointIndex.IPV4_ENDPOINT_LENGTH)
+			return IPV4_MAPPED_PREFIX | (endpoint.getInt(endpoint.position()) & 0xffffffffL);
+		return endpoint.getLong(endpoint.position() + 8);
+	}
+
+	private static int hash(long high, long low, char port)
+	{
+		long hash = (high * 0x9e3779b97f4a7c15L) ^ (low * 0xc2b2ae3d27d4eb4fL) ^ port;
+		hash ^= hash >>> 29;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/*
+	 * A candidate worth remembering, as handed to the peer cache
+	 */
+	public static class Record
+	{
+		private final ByteBuffer endpoint;
+		private final long lastUsefulTime;
+		private final float throughput;
+
+		public Record(ByteBuffer endpoint, long lastUsefulTime, float throughput)
+		{
+			this.endpoint = endpoint;
+			this.lastUsefulTime = lastUsefulTime;
+			this.throughput = throughput;
+		}
+
+		public ByteBuffer getEndpoint() {
+			return endpoint;
+		}
+
+		public long getLastUsefulTime() {
+			return lastUsefulTime;
+		}
+
+		public float getThroughput() {
+			return throughput;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Tit-for-tat choker
+ * Every round, the interested peers that give us the most get our regular upload slots.
+ * While downloading they are ranked by the rate we download from them, once seeding by the rate we upload to them.
+ * One more slot is an optimistic unchoke that rotates every few rounds, so that new peers get a chance to prove themselves.
+ * Peers that have stopped sending us data although we want it (snubbed peers) only ever get the optimistic slot.
+ * Between rounds, changes in interest and disconnects trigger an immediate re-evaluation that doesn't rotate the optimistic unchoke.
+ */
+package peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+import tools.RateEstimator;
+
+public class Choker
+{
+	public final static int ROUND_TIME = 10;	//Seconds between choke rounds
+	private final static int OPTIMISTIC_UNCHOKE_ROUNDS = 3;	//Rotate the optimistic unchoke every 30 seconds
+	private final static long SNUB_TIME = 60*1000;	//A peer that sent us nothing for this many milliseconds has snubbed us
+	private PeerManager manager;
+	private Peer optimisticUnchoke;
+	private int round = 0;
+	private volatile int unchokedCount = 0;
+	private final Random random = new Random();
+	Logger logger = LoggingClient.getInstance().logger;
+
+	public Choker(PeerManager manager)
+	{
+		this.manager = manager;
+	}
+
+	/*
+	 * Run a choke round
+	 * Unchoke the best of the interested peers by their measured transfer rates,
+	 * rotate the optimistic unchoke if it's time to, and choke everybody else
+	 */
+	public synchronized void runRound()
+	{
+		evaluate(round++ % OPTIMISTIC_UNCHOKE_ROUNDS == 0);
+	}
+	
+	/*
+	 * Re-evaluate the unchoked peers right away, keeping the optimistic unchoke and the round schedule
+	 */
+	public synchronized void rechoke()
+	{
+		evaluate(false);
+	}
+	
+	private void evaluate(boolean rotate)
+	{
+		List<Peer> peers = new ArrayList<Peer>();
+		for (Peer peer : getManager().getConnectedPeers().values())
+		{
+			if (peer.isConnected())
+				peers.add(peer);
+		}
+
+		boolean seeding = getManager().getTorrent().isCompleted();
+		List<Peer> candidates = new ArrayList<Peer>();
+		for (Peer peer : peers)
+		{
+			if (peer.getPeer_interested() && !isSnubbed(peer))
+				candidates.add(peer);
+		}
+		Collections.sort(candidates, new Comparator<Peer>()
+		{
+			public int compare(Peer a, Peer b)
+			{
+				return Double.compare(getRate(b, seeding), getRate(a, seeding));	//Fastest first
+			}
+		});
+
+		int slots = UploadSlotManager.getInstance().getSlots(getManager());
+		List<Peer> unchoked = new ArrayList<Peer>();
+		for (Peer peer : candidates)
+		{
+			if (unchoked.size() >= slots - 1)	//Leave a slot for the optimistic unchoke
+				break;
+			unchoked.add(peer);
+		}
+
+		if (rotate || !peers.contains(getOptimisticUnchoke()))
+			rotateOptimisticUnchoke(peers, unchoked);
+		if (getOptimisticUnchoke() != null && !unchoked.contains(getOptimisticUnchoke()))
+			unchoked.add(getOptimisticUnchoke());
+
+		for (Peer peer : peers)
+		{
+			if (unchoked.contains(peer))
+				peer.unchoke();
+			else
+				peer.choke();
+		}
+		setUnchokedCount(unchoked.size());
+		logger.log(Level.FINE, "Choke round " + round + " done, " + (seeding ? "seeding" : "leeching") + ". Unchoked: " + unchoked);
+	}
+
+	/*
+	 * Pick a new optimistic unchoke at random among the interested peers that didn't make it into the regular slots
+	 */
+	private void rotateOptimisticUnchoke(List<Peer> peers, List<Peer> unchoked)
+	{
+		List<Peer> choked = new ArrayList<Peer>();
+		for (Peer peer : peers)
+		{
+			if (peer.getPeer_interested() && !unchoked.contains(peer))
+				choked.add(peer);
+		}
+		setOptimisticUnchoke(choked.isEmpty() ? null : choked.get(random.nextInt(choked.size())));
+		logger.log(Level.FINER, "Optimistic unchoke rotated to " + getOptimisticUnchoke());
+	}
+
+	/*
+	 * Return the rate a peer is ranked by - the rate we download from it while leeching, the rate we upload to it while seeding
+	 * The medium window smooths out the bursts of a single round
+	 */
+	private double getRate(Peer peer, boolean seeding)
+	{
+		if (seeding)
+			return peer.getPayloadUpload().getRate(RateEstimator.MEDIUM);
+		return peer.getPayloadDownload().getRate(RateEstimator.MEDIUM);
+	}
+
+	/*
+	 * A peer has snubbed us if its block requests timed out,
+	 * or if we want its pieces but it hasn't sent us a block for a while
+	 */
+	public boolean isSnubbed(Peer peer)
+	{
+		return peer.isSnubbed() || (peer.getAm_interested()
+				&& System.currentTimeMillis() - peer.getLastBlockReceivedTime() > SNUB_TIME);
+	}
+
+	public int getUnchokedCount() {
+		return unchokedCount;
+	}
+
+	public void setUnchokedCount(int unchokedCount) {
+		this.unchokedCount = unchokedCount;
+	}
+
+	public PeerManager getManager() {
+		return manager;
+	}
+
+	public void setManager(PeerManager manager) {
+		this.manager = manager;
+	}
+
+	public Peer getOptimisticUnchoke() {
+		return optimisticUnchoke;
+	}
+
+	public void setOptimisticUnchoke(Peer optimisticUnchoke) {
+		this.optimisticUnchoke = optimisticUnchoke;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Index of the peer endpoints a torrent is connecting to, connected to or has banned, keyed on the packed address and port
+ * An IPv4 endpoint packs into the 6 bytes of the compact tracker format, an IPv6 endpoint into 18 bytes,
+ * so tracker responses can be checked straight from their bytes without parsing them into strings first.
+ * Every endpoint is in exactly one state, and moves between states by compare-and-set,
+ * so that two threads can never both start connecting to the same endpoint.
+ * Endpoints we merely know of are kept in the CandidateStore instead.
+ */
+package peer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class EndpointIndex
+{
+	public enum State
+	{
+		CONNECTING,
+		CONNECTED,
+		BANNED	//Never connected to again, nor forgotten
+	}
+
+	public final static int IPV4_ENDPOINT_LENGTH = 6;
+	public final static int IPV6_ENDPOINT_LENGTH = 18;
+	private final ConcurrentMap<ByteBuffer, State> endpoints = new ConcurrentHashMap<ByteBuffer, State>();
+
+	/*
+	 * Pack an address and port into an endpoint key
+	 */
+	public static ByteBuffer pack(InetAddress address, int port)
+	{
+		byte[] addressBytes = address.getAddress();
+		return (ByteBuffer) ByteBuffer.allocate(addressBytes.length + 2)
+				.put(addressBytes).putShort((short) port).rewind();
+	}
+
+	/*
+	 * Pack an IP (or host name, which gets resolved) and port into an endpoint key
+	 */
+	public static ByteBuffer pack(String IP, int port) throws UnknownHostException
+	{
+		return pack(InetAddress.getByName(IP), port);
+	}
+
+	/*
+	 * Take the next endpoint off a compact peers buffer, 6 bytes for IPv4 or 18 bytes for IPv6
+	 * The key is a copy, so it doesn't keep the whole tracker response alive
+	 */
+	public static ByteBuffer unpackCompact(ByteBuffer peers, int endpointLength)
+	{
+		byte[] endpoint = new byte[endpointLength];
+		peers.get(endpoint);
+		return ByteBuffer.wrap(endpoint);
+	}
+
+	/*
+	 * Return the IP of an endpoint key in its textual form
+	 */
+	public static String getIP(ByteBuffer endpoint)
+	{
+		byte[] address = new byte[endpoint.remaining() - 2];
+		endpoint.duplicate().get(address);
+		try
+		{
+			return InetAddress.getByAddress(address).getHostAddress();
+		} catch (UnknownHostException e)
+		{
+			throw new IllegalArgumentException("Invalid endpoint of length " + endpoint.remaining(), e);	//Only thrown for bad lengths
+		}
+	}
+
+	public static int getPort(ByteBuffer endpoint)
+	{
+		return endpoint.getShort(endpoint.limit() - 2) & 0xffff;
+	}
+
+	/*
+	 * Claim an endpoint for connecting to it
+	 * Returns false if it's being connected to already, connected or banned
+	 */
+	public boolean claim(ByteBuffer endpoint)
+	{
+		return endpoints.putIfAbsent(endpoint, State.CONNECTING) == null;
+	}
+
+	/*
+	 * Move an endpoint from one state to another
+	 * Returns false if it wasn't in the expected state, in which case nothing changes
+	 */
+	public boolean transition(ByteBuffer endpoint, State from, State to)
+	{
+		return endpoints.replace(endpoint, from, to);
+	}
+
+	/*
+	 * Ban an endpoint for good, whatever its state
+	 */
+	public void ban(ByteBuffer endpoint)
+	{
+		endpoints.put(endpoint, State.BANNED);
+	}
+
+	/*
+	 * Forget an endpoint, so that it can be connected to again - unless it's banned
+	 * Returns true if it was forgotten
+	 */
+	public boolean forget(ByteBuffer endpoint)
+	{
+		while (true)
+		{
+			State state = endpoints.get(endpoint);
+			if (state == null || state == State.BANNED)
+				return false;
+			if (endpoints.remove(endpoint, state))
+				return true;
+		}
+	}
+
+	/*
+	 * Return the state of the endpoint, null if it isn't known
+	 */
+	public State getState(ByteBuffer endpoint)
+	{
+		return endpoint == null ? null : endpoints.get(endpoint);
+	}
+
+	public boolean isBanned(ByteBuffer endpoint)
+	{
+		return getState(endpoint) == State.BANNED;
+	}
+
+	public int size()
+	{
+		return endpoints.size();
+	}
+}
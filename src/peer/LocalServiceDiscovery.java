@@ -0,0 +1,353 @@
+/*
+ * A singleton that finds peers on the local network by Local Service Discovery (BEP 14)
+ * Every torrent that registers is announced to the multicast group 239.192.152.143:6771 every 5 minutes
+ * (and right away when it registers, but never more than once a minute), as HTTP-like BT-SEARCH messages
+ * carrying our port and the info hashes. Announces from other clients on the LAN are handed to the PeerManager
+ * of the torrent they name, which connects to them before anybody else.
+ * Announces are rate limited per source address, so one host on the LAN can't flood us with peers.
+ * A random cookie goes out with our announces, so we can tell our own ones apart when the group loops them back.
+ */
+package peer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+import tools.TimerWheel;
+import tools.Util;
+
+public class LocalServiceDiscovery
+{
+	private static LocalServiceDiscovery instance = null;
+	private final static String MULTICAST_GROUP = "239.192.152.143";
+	private final static int MULTICAST_PORT = 6771;
+	private final static long ANNOUNCE_INTERVAL = 5*60;	//Seconds
+	private final static long MIN_ANNOUNCE_INTERVAL = 60*1000L;	//Milliseconds between announces of the same torrent, as BEP 14 asks
+	private final static int MAX_INFOHASHES_PER_ANNOUNCE = 16;	//Keeps an announce well within one datagram
+	private final static int MAX_PACKET_SIZE = 1400;
+	private final static long SOURCE_WINDOW = 60*1000L;	//Milliseconds over which the announces from an address are counted
+	private final static int MAX_ANNOUNCES_PER_SOURCE = 10;	//Per window, enough for a client announcing 160 torrents
+	private final static int MAX_TRACKED_SOURCES = 256;
+	private final static Charset CHARSET = Charset.forName("ISO-8859-1");
+	private final String cookie;
+	private final ConcurrentMap<ByteBuffer, PeerManager> managers = new ConcurrentHashMap<ByteBuffer, PeerManager>();	//By info hash
+	private final ConcurrentMap<ByteBuffer, Long> lastAnnounceTimes = new ConcurrentHashMap<ByteBuffer, Long>();
+	private final Map<InetAddress, long[]> sourceWindows = new HashMap<InetAddress, long[]>();	//Window start and announce count by address, receiver thread only
+	private InetSocketAddress group;
+	private DatagramChannel channel;
+	private TimerWheel.Timeout timer;
+	private volatile boolean running = false;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	private LocalServiceDiscovery()
+	{
+		byte[] cookieBytes = new byte[8];
+		new SecureRandom().nextBytes(cookieBytes);
+		this.cookie = Util.hexEncode(cookieBytes);
+	}
+
+	public static synchronized LocalServiceDiscovery getInstance()
+	{
+		if (instance == null)
+			instance = new LocalServiceDiscovery();
+		return instance;
+	}
+
+	/*
+	 * Start announcing the manager's torrent and handing it the peers announced for it
+	 * Joins the multicast group the first time round
+	 */
+	public synchronized void register(PeerManager manager)
+	{
+		if (!running && !start())
+			return;
+		managers.put(manager.getTorrent().getInfoHash(), manager);
+		announce(Collections.singletonList(manager));
+	}
+
+	public void unregister(PeerManager manager)
+	{
+		managers.remove(manager.getTorrent().getInfoHash(), manager);
+		lastAnnounceTimes.remove(manager.getTorrent().getInfoHash());
+	}
+
+	/*
+	 * Open the channel on the LSD port, shared with any other client on this machine,
+	 * join the group on every interface that can do multicast, and start listening and announcing
+	 * Returns false if the channel couldn't be opened
+	 */
+	private boolean start()
+	{
+		try
+		{
+			group = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), MULTICAST_PORT);
+			channel = DatagramChannel.open(StandardProtocolFamily.INET);
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(MULTICAST_PORT));
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't open Local Service Discovery channel", e);
+			return false;
+		}
+		int joined = 0;
+		try
+		{
+			for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces()))
+			{
+				try
+				{
+					if (networkInterface.isUp() && networkInterface.supportsMulticast())
+					{
+						channel.join(group.getAddress(), networkInterface);
+						joined++;
+					}
+				} catch (IOException e)
+				{
+					logger.log(Level.FINE, "Couldn't join LSD group on " + networkInterface.getName(), e);
+				}
+			}
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't list network interfaces for Local Service Discovery", e);
+		}
+		running = true;
+		Thread receiver = new Thread(new Receiver(), "Local Service Discovery");
+		receiver.setDaemon(true);	//Don't keep the client alive after the main thread exits
+		receiver.start();
+		timer = TimerWheel.getInstance().schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				announce(new ArrayList<PeerManager>(managers.values()));
+			}
+		}, ANNOUNCE_INTERVAL, TimeUnit.SECONDS);
+		logger.log(Level.INFO, "Local Service Discovery started on " + joined + " interface(s)");
+		return true;
+	}
+
+	/*
+	 * Stop listening and announcing
+	 */
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		timer.cancel();
+		try
+		{
+			channel.close();	//Wakes the receiver thread up, which then exits
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't close Local Service Discovery channel", e);
+		}
+	}
+
+	/*
+	 * Announce the torrents that weren't announced within the last minute, a few info hashes per message
+	 * Torrents on different ports go in different messages, as a message only has one port
+	 */
+	private void announce(List<PeerManager> toAnnounce)
+	{
+		long now = System.currentTimeMillis();
+		Map<Integer, List<String>> infoHashesByPort = new HashMap<Integer, List<String>>();
+		for (PeerManager manager : toAnnounce)
+		{
+			ByteBuffer infoHash = manager.getTorrent().getInfoHash();
+			Long lastAnnounceTime = lastAnnounceTimes.get(infoHash);
+			if (lastAnnounceTime != null && now - lastAnnounceTime < MIN_ANNOUNCE_INTERVAL)
+				continue;
+			lastAnnounceTimes.put(infoHash, now);
+			int port = manager.getTorrent().getPort() == null ? 0 : manager.getTorrent().getPort() & 0xffff;
+			List<String> infoHashes = infoHashesByPort.get(port);
+			if (infoHashes == null)
+			{
+				infoHashes = new ArrayList<String>();
+				infoHashesByPort.put(port, infoHashes);
+			}
+			infoHashes.add(Util.hexEncode(infoHash.array()));
+		}
+		for (Map.Entry<Integer, List<String>> entry : infoHashesByPort.entrySet())
+		{
+			List<String> infoHashes = entry.getValue();
+			for (int from = 0; from < infoHashes.size(); from += MAX_INFOHASHES_PER_ANNOUNCE)
+				send(entry.getKey(), infoHashes.subList(from, Math.min(from + MAX_INFOHASHES_PER_ANNOUNCE, infoHashes.size())));
+		}
+	}
+
+	private void send(int port, List<String> infoHashes)
+	{
+		StringBuilder message = new StringBuilder("BT-SEARCH * HTTP/1.1\r\n")
+				.append("Host: ").append(MULTICAST_GROUP).append(':').append(MULTICAST_PORT).append("\r\n")
+				.append("Port: ").append(port).append("\r\n");
+		for (String infoHash : infoHashes)
+			message.append("Infohash: ").append(infoHash).append("\r\n");
+		message.append("cookie: ").append(cookie).append("\r\n\r\n\r\n");
+		try
+		{
+			channel.send(ByteBuffer.wrap(message.toString().getBytes(CHARSET)), group);
+			logger.log(Level.FINE, "LSD announced " + infoHashes.size() + " torrent(s) on port " + port);
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't send LSD announce", e);
+		}
+	}
+
+	/*
+	 * Handler for 'announce received' event
+	 * Hands the announcing peer to every registered torrent it names, unless the announce is our own
+	 */
+	private void onAnnounceReceived(String message, InetSocketAddress source)
+	{
+		String[] lines = message.split("\r\n");
+		if (lines.length == 0 || !lines[0].startsWith("BT-SEARCH * HTTP/1.1"))
+			return;
+		int port = 0;
+		List<ByteBuffer> infoHashes = new ArrayList<ByteBuffer>();
+		for (int i = 1; i < lines.length; i++)
+		{
+			int colon = lines[i].indexOf(':');
+			if (colon < 0)
+				continue;
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("cookie") && value.equals(cookie))
+				return;
+			else if (name.equalsIgnoreCase("Port"))
+			{
+				try
+				{
+					port = Integer.parseInt(value);
+				} catch (NumberFormatException e)
+				{
+					return;
+				}
+			}
+			else if (name.equalsIgnoreCase("Infohash") && value.length() == 40)
+			{
+				ByteBuffer infoHash = hexDecode(value);
+				if (infoHash != null)
+					infoHashes.add(infoHash);
+			}
+		}
+		if (port <= 0 || port > 0xffff)
+			return;
+		ByteBuffer endpoint = EndpointIndex.pack(source.getAddress(), port);
+		for (ByteBuffer infoHash : infoHashes)
+		{
+			PeerManager manager = managers.get(infoHash);
+			if (manager != null)
+				manager.onLocalPeerDiscovered(endpoint);
+		}
+	}
+
+	/*
+	 * Count an announce from address against its allowance for the current window
+	 * Returns false if the address has used it up
+	 */
+	private boolean allowAnnounce(InetAddress address, long now)
+	{
+		long[] window = sourceWindows.get(address);
+		if (window == null || now - window[0] >= SOURCE_WINDOW)
+		{
+			if (window == null && sourceWindows.size() >= MAX_TRACKED_SOURCES)
+				sourceWindows.clear();	//Start over rather than track a whole LAN's worth of addresses
+			window = new long[] {now, 0};
+			sourceWindows.put(address, window);
+		}
+		return ++window[1] <= MAX_ANNOUNCES_PER_SOURCE;
+	}
+
+	private static ByteBuffer hexDecode(String hex)
+	{
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				return null;
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/*
+	 * Whether an address is on the local network - private, link-local, loopback or IPv6 unique local
+	 * Peers there get bigger pipelines and, if the environment says so, skip the global bandwidth limits
+	 */
+	public static boolean isLocalAddress(InetAddress address)
+	{
+		if (address.isSiteLocalAddress() || address.isLinkLocalAddress() || address.isLoopbackAddress())
+			return true;
+		byte[] bytes = address.getAddress();
+		return bytes.length == 16 && (bytes[0] & 0xfe) == 0xfc;	//fc00::/7
+	}
+
+	/*
+	 * Receiver thread
+	 * Handles every announce that arrives till the channel is closed
+	 */
+	private class Receiver implements Runnable
+	{
+		public void run()
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+			while (running)
+			{
+				InetSocketAddress source;
+				try
+				{
+					buffer.clear();
+					source = (InetSocketAddress) channel.receive(buffer);
+				} catch (ClosedChannelException e)
+				{
+					break;
+				} catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Couldn't receive LSD announce", e);
+					continue;
+				}
+				buffer.flip();
+				if (source == null)
+					continue;
+				if (!allowAnnounce(source.getAddress(), System.currentTimeMillis()))
+				{
+					logger.log(Level.FINEST, "Dropping LSD announce from " + source + ", which announces too often");
+					continue;
+				}
+				try
+				{
+					onAnnounceReceived(CHARSET.decode(buffer).toString(), source);
+				} catch (RuntimeException e)
+				{
+					logger.log(Level.FINER, "Invalid LSD announce from " + source, e);
+				}
+			}
+			logger.log(Level.FINE, "Local Service Discovery receiver thread exiting");
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+}
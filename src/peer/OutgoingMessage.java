@@ -0,0 +1,111 @@
+/*
+ * A message queued for delivery to a peer
+ * Most messages are just an encoded buffer. A PIECE message is kept as its header followed by its block,
+ * so that the block is written out with the header in one gathering write instead of being copied behind it.
+ * A zero-copy PIECE message carries no block at all - it is transferred straight from the torrent's files
+ * to the socket once the header has been written.
+ */
+package peer;
+
+import java.nio.ByteBuffer;
+
+import metainfo.Piece;
+
+public class OutgoingMessage
+{
+	private final ByteBuffer[] buffers;
+	private final Piece piece;
+	private final long begin;
+	private final long length;
+	private final long payloadLength;
+
+	public OutgoingMessage(ByteBuffer... buffers)
+	{
+		this(buffers, null, 0, 0, 0);
+	}
+
+	/*
+	 * A PIECE message whose block follows its header in memory
+	 */
+	public OutgoingMessage(ByteBuffer header, ByteBuffer block)
+	{
+		this(new ByteBuffer[] {header, block}, null, 0, 0, block.remaining());
+	}
+
+	/*
+	 * A zero-copy PIECE message whose block is transferred from disk
+	 */
+	public OutgoingMessage(ByteBuffer header, Piece piece, long begin, long length)
+	{
+		this(new ByteBuffer[] {header}, piece, begin, length, length);
+	}
+
+	private OutgoingMessage(ByteBuffer[] buffers, Piece piece, long begin, long length, long payloadLength)
+	{
+		this.buffers = buffers;
+		this.piece = piece;
+		this.begin = begin;
+		this.length = length;
+		this.payloadLength = payloadLength;
+	}
+
+	/*
+	 * Total number of bytes this message puts on the wire
+	 */
+	public long getWireLength()
+	{
+		long wireLength = isZeroCopy() ? length : 0;
+		for (ByteBuffer buffer : buffers)
+			wireLength += buffer.remaining();
+		return wireLength;
+	}
+
+	/*
+	 * Whether a block of a piece is to be transferred from disk after the buffers
+	 */
+	public boolean isZeroCopy()
+	{
+		return piece != null;
+	}
+
+	/*
+	 * Whether this is a PIECE message, carrying a block
+	 */
+	public boolean isBlock()
+	{
+		return payloadLength > 0;
+	}
+
+	/*
+	 * Whether any of the buffers still has bytes left to write
+	 */
+	public boolean hasRemaining()
+	{
+		for (ByteBuffer buffer : buffers)
+		{
+			if (buffer.hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+	public ByteBuffer[] getBuffers() {
+		return buffers;
+	}
+
+	public Piece getPiece() {
+		return piece;
+	}
+
+	public long getBegin() {
+		return begin;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+}
@@ -1,18 +1,50 @@
 package peer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import client.Environment;
 import client.LoggingClient;
+import dht.DHTNode;
 import metainfo.Piece;
+import metainfo.PieceCache;
+import tools.AtomicBitSet;
+import tools.BencodeReader;
+import tools.RateEstimator;
+import tools.TimerWheel;
+import tools.TokenBucket;
 import tools.Util;
+import torrent.DiskIOService;
+import utp.UtpMultiplexer;
+import utp.UtpSocket;
 import torrent.Torrent;
 
 public class Peer
@@ -20,27 +52,67 @@ public class Peer
 	private ByteBuffer peerId;
 	private String IP;
 	private Integer port;
-	private SocketChannel socketChannel;
+	private ByteBuffer endpoint;	//Packed address and port, the peer's key in its manager's endpoint index
+	private Transport transport;
 	private Torrent torrent;
 	
 	private PeerManager manager;	
-	private boolean am_choking = true;
-	private boolean am_interested = false;
-	private boolean peer_choking = true;
-	private boolean peer_interested = false;
-	private boolean connecting = false;
-	private boolean connected = false;	
-	
-	private BitSet availablePieces;
-	private BitSet downloadedPieces;
-	private BitSet uploadedPieces;
-	
-	private PeerMessenger messenger;
-	private Piece downloadingPiece;
+	private volatile boolean am_choking = true;
+	private volatile boolean am_interested = false;
+	private volatile boolean peer_choking = true;
+	private volatile boolean peer_interested = false;
+	private volatile boolean connecting = false;
+	private volatile boolean connected = false;	
+	
+	private volatile AtomicBitSet availablePieces;	//Shared sentinel while the peer has nothing or everything
+	private int availableCount = 0;	//Pieces the peer has, only touched by the receiver thread
+	
+	private volatile PeerMessenger messenger;
+	private volatile Piece downloadingPiece;
+	private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();	//Tasks to run on the receiver thread
+	private final Queue<Integer> pendingHaves = new ConcurrentLinkedQueue<Integer>();
+	private final AtomicBoolean haveFlushScheduled = new AtomicBoolean(false);
+	private volatile boolean fastExtension = false;	//Both sides speak BEP 6
+	private volatile boolean DHT = false;	//The peer runs a DHT node (BEP 5)
+	private volatile boolean local = false;	//The peer is on our local network
+	private final Set<Integer> allowedFastPieces = new HashSet<Integer>();	//Pieces the peer lets us request while choked
+	private final Deque<Integer> suggestedPieces = new ArrayDeque<Integer>();	//Pieces the peer would rather we requested
+	private volatile Set<Integer> grantedAllowedFast = Collections.emptySet();	//Pieces we let the peer request while choked
+	private volatile boolean extensionProtocol = false;	//Both sides speak BEP 10
+	private volatile byte remotePexId = 0;	//Extended message ID the peer wants ut_pex sent with, 0 if it doesn't do PEX
+	private final Set<ByteBuffer> advertisedPeers = new HashSet<ByteBuffer>();	//Endpoints we last told the peer about, only touched by the PEX timer
 	private LinkedBlockingQueue<ByteBuffer> requestedBlocks;
 	private int requestedBlockOffset;
+	private final TreeSet<UploadRequest> uploadQueue = new TreeSet<UploadRequest>();
+	private final AtomicBoolean uploading = new AtomicBoolean(false);
+	private final AtomicInteger queuedBlocks = new AtomicInteger(0);	//PIECE messages with the sender, not yet on the wire
+	private int hashFailures = 0;	//Pieces from the peer that failed their hash check, only touched by the receiver thread
+	private final RateEstimator payloadDownload = new RateEstimator();
+	private final RateEstimator payloadUpload = new RateEstimator();
+	private final RateEstimator protocolDownload = new RateEstimator();
+	private final RateEstimator protocolUpload = new RateEstimator();
+	private volatile long lastBlockReceivedTime;
+	private volatile long connectedTime = 0;	//When the handshake completed, 0 if it never did
+	private volatile long requestDeadline = 0;	//When the next requested block is due, 0 if nothing is outstanding
+	private volatile boolean snubbed = false;
+	private final TokenBucket uploadLimiter = new TokenBucket(0);	//Unlimited until a limit is set
+	private final TokenBucket downloadLimiter = new TokenBucket(0);
 	
 	private static final int REQUEST_PIPELINE_SIZE = 10;
+	private static final int SNUBBED_PIPELINE_SIZE = 1;	//Snubbed peers get one request at a time till they deliver again
+	private static final int LOCAL_PIPELINE_SIZE = 64;	//LAN peers have next to no latency but a lot of bandwidth to fill
+	private static final long MIN_REQUEST_TIMEOUT = 10*1000;	//Milliseconds
+	private static final long MAX_REQUEST_TIMEOUT = 60*1000;	//Also used while we have no measured rate for the peer
+	private static final int REQUEST_TIMEOUT_FACTOR = 4;	//How many times longer than expected a request may take
+	private static final long HAVE_COALESCE_TIME = 250;	//Milliseconds to collect HAVEs for before sending them together
+	private static final int ALLOWED_FAST_SET_SIZE = 10;
+	private static final int MAX_SUGGESTED_PIECES = 16;	//Suggestions kept from the peer, oldest are forgotten first
+	private static final int SUGGESTIONS_ON_UNCHOKE = 4;	//Cached pieces we suggest to a peer we unchoke
+	private static final int LAZY_BITFIELD_PIECES = 4;	//Pieces held back from a lazy bitfield
+	private static final Random random = new Random();
+	private static final int MAX_UPLOAD_QUEUE_SIZE = 256;
+	private static final int MAX_HASH_FAILURES = 3;	//Pieces failing their hash check before the peer that sent them is banned
+	private static final int MAX_QUEUED_BLOCKS = 4;	//PIECE messages handed to the sender at a time, the rest wait in the upload queue
 	private static final int MIN_REQUEST_SIZE = 16*Util.SIZE_KB;
 	private static final int MAX_REQUEST_SIZE = 128*Util.SIZE_KB;
 	Logger logger = LoggingClient.getInstance().logger;
@@ -70,11 +142,35 @@ public class Peer
 			return true;
 		}
 		
-		setSocketChannel(SocketChannel.open());
-		getSocketChannel().configureBlocking(true);	//Connect in blocking-mode
-		getSocketChannel().connect(new InetSocketAddress(IP, port));
+		InetSocketAddress address = new InetSocketAddress(IP, port);
+		/*
+		 * A peer that doesn't do uTP costs the SYN timeout (3 seconds) before we fall back to TCP
+		 * The multiplexer's channel is IPv4 only, so IPv6 peers go straight to TCP
+		 */
+		if (Environment.getInstance().isUtp() && address.getAddress() instanceof Inet4Address)
+		{
+			UtpSocket utpSocket = null;
+			try
+			{
+				utpSocket = UtpMultiplexer.getInstance().open();
+				setTransport(utpSocket);	//Before connecting, so a disconnect meanwhile closes it
+				utpSocket.connect(address);
+			} catch (IOException e)
+			{
+				logger.log(Level.FINE, "Couldn't connect to " + this + " over uTP, falling back to TCP", e);
+				if (utpSocket != null)
+					utpSocket.close();
+				setTransport(null);
+			}
+		}
+		if (getTransport() == null)
+		{
+			setTransport(new TcpTransport());
+			getTransport().connect(address);	//Blocking
+		}
+		setLocal(address.getAddress() != null && LocalServiceDiscovery.isLocalAddress(address.getAddress()));
 		
-		logger.log(Level.FINER, "Successfully connected to socketchannel for " + this + "! Attempting to do handshake now");
+		logger.log(Level.FINER, "Successfully connected over " + getTransport().getProtocol() + " to " + this + "! Attempting to do handshake now");
 		Handshake.send(this, getTorrent().getInfoHash(),
 				Environment.getInstance().getPeerId());
 		ByteBuffer peerIdReceived = Handshake.receive(this, getTorrent().getInfoHash());
@@ -91,29 +187,49 @@ public class Peer
 		setPeerId(peerIdReceived);		
 		logger.log(Level.INFO, "Successfully exchanged handshake with " + this);
 		
-		getSocketChannel().configureBlocking(false);
 		setMessenger(new PeerMessenger(this));	//Create a PeerMessenger to exchange messages with this peer
-		setAvailablePieces(new BitSet(getTorrent().getPieces().length));
-		setDownloadedPieces(new BitSet(getTorrent().getPieces().length));
-		setUploadedPieces(new BitSet(getTorrent().getPieces().length));
+		setAvailablePieces(getTorrent().getNoPieces());	//Allocated once the peer turns out to have some pieces
+		
+		//Queued before the messenger starts, so nothing we send in reply to the peer can overtake them
+		sendPieceAvailability();	//Has to be the first message after the handshake
+		if (isExtensionProtocol())
+			sendExtendedHandshake();
+		if (isDHT() && getManager().isDHTEnabled() && DHTNode.getInstance().isRunning())
+			send(PeerMessage.encodePort(DHTNode.getInstance().getPort()));	//Tell the peer where our DHT node is
 		
+		setLastBlockReceivedTime(System.currentTimeMillis());	//Give the peer a full snub period to start sending
+		setConnectedTime(System.currentTimeMillis());
+		setConnected(true);	//Before the receiver starts, so the first messages it handles find the peer connected
 		startPeerMessenger();
-		setConnected(true);
 		logger.log(Level.INFO, "Connection fully established with " + this);
 		return true;
 	}
 	
 	/*
 	 * Disconnect gracefully from this peer
+	 * The requests are canceled and interest dropped on the receiver thread, which owns the download state, and the connection is closed there
+	 * A peer that isn't connected (yet, or anymore) is just closed
 	 */
 	public void disconnect()
 	{
-		cancelQueuedRequests();
-		stopBeingInterested();
-		if (getMessenger() != null && getMessenger().isRunning())
-			getMessenger().stop();
+		clearUploadQueue();
 		logger.log(Level.FINE, "Disconnecting from " + this);
-		abruptDisconnect();
+		boolean posted = post(new Runnable()
+		{
+			public void run()
+			{
+				if (!isConnected())
+					return;	//Disconnected meanwhile
+				cancelQueuedRequests();
+				stopBeingInterested();
+				PeerMessenger messenger = getMessenger();
+				if (messenger != null && messenger.isRunning())
+					messenger.stop();
+				abruptDisconnect();
+			}
+		});
+		if (!posted)
+			abruptDisconnect();
 	}
 	
 	/*
@@ -124,8 +240,6 @@ public class Peer
 		logger.log(Level.WARNING, "Peer disconnected event fired for " + this);
 		getManager().onPeerDisconnected(this);
 		setAvailablePieces(null);
-		setDownloadedPieces(null);
-		setUploadedPieces(null);
 		setMessenger(null);
 		setRequestedBlocks(null);
 		setDownloadingPiece(null);
@@ -133,12 +247,13 @@ public class Peer
 		
 		try
 		{
-			getSocketChannel().close();
+			if (getTransport() != null)
+				getTransport().close();
 		} catch (IOException e)
 		{
-			logger.log(Level.WARNING, "Couldn't close socket channel while disconnecting from " + this, e);
+			logger.log(Level.WARNING, "Couldn't close transport while disconnecting from " + this, e);
 		}
-		logger.log(Level.FINE, "Socketchannel closed for and disconnected from " + this);
+		logger.log(Level.FINE, "Transport closed for and disconnected from " + this);
 	}
 	
 	public void startPeerMessenger()
@@ -159,6 +274,7 @@ public class Peer
 		{
 			send(PeerMessage.encodeChoke());
 			setAm_choking(true);
+			rejectQueuedUploads();	//Choking discards all pending requests of the peer, except for allowed fast pieces
 			logger.log(Level.INFO, "Choked " + this);
 		}
 	}
@@ -173,6 +289,242 @@ public class Peer
 			send(PeerMessage.encodeUnchoke());
 			setAm_choking(false);
 			logger.log(Level.INFO, "Unchoked " + this);
+			if (isFastExtension())
+				suggestCachedPieces();
+		}
+	}
+	
+	/*
+	 * Record a piece the peer has announced
+	 * The shared empty sentinel is swapped for a set of the peer's own on its first piece,
+	 * and that set for the shared complete sentinel once the peer has become a seed
+	 * Only to be used on the receiver thread
+	 */
+	private void addAvailablePiece(int index)
+	{
+		AtomicBitSet available = getAvailablePieces();
+		if (available.get(index))
+			return;
+		if (available.isReadOnly())
+		{
+			available = new AtomicBitSet(available.size());
+			setAvailablePieces(available);
+		}
+		available.set(index);
+		if (++availableCount == available.size())
+			setAvailablePieces(getTorrent().getAllPieces());
+	}
+	
+	/*
+	 * Record the pieces of a decoded bitfield, given as its words
+	 * Only to be used on the receiver thread
+	 */
+	private void addAvailablePieces(long[] words)
+	{
+		int count = 0;
+		for (long word : words)
+			count += Long.bitCount(word);
+		if (count == 0)
+			return;
+		AtomicBitSet available = getAvailablePieces();
+		if (available == getTorrent().getAllPieces())
+			return;
+		if (count == available.size())
+			setAvailablePieces(getTorrent().getAllPieces());	//A seed, no need for a set of its own
+		else
+		{
+			if (available.isReadOnly())
+			{
+				available = new AtomicBitSet(available.size());
+				setAvailablePieces(available);
+			}
+			available.or(words);
+			count = available.cardinality();
+		}
+		availableCount = count;
+	}
+	
+	/*
+	 * Tell the peer which pieces we have, right after the handshake
+	 * Fast extension peers get HAVE_ALL or HAVE_NONE when that says it all, everybody else a bitfield (or nothing if we have nothing)
+	 * In lazy bitfield mode a few pieces are held back from the bitfield and follow shortly as HAVEs
+	 */
+	private void sendPieceAvailability()
+	{
+		AtomicBitSet completed = getTorrent().getCompletedPieces();
+		int pieceCount = getTorrent().getPieces().length;
+		boolean lazy = Environment.getInstance().isLazyBitfield();
+		int completedCount = completed.cardinality();
+		
+		if (isFastExtension() && completedCount == 0)
+			send(PeerMessage.encodeHaveNone());
+		else if (isFastExtension() && completedCount == pieceCount && !lazy)
+			send(PeerMessage.encodeHaveAll());
+		else if (completedCount > 0)
+		{
+			BitSet bitfield = lazy ? completed.toBitSet() : null;
+			List<Integer> heldBack = new ArrayList<Integer>();
+			while (lazy && heldBack.size() < LAZY_BITFIELD_PIECES && !bitfield.isEmpty())
+			{
+				int index = bitfield.nextSetBit(random.nextInt(pieceCount));
+				if (index < 0)
+					index = bitfield.nextSetBit(0);
+				bitfield.clear(index);
+				heldBack.add(index);
+			}
+			send(PeerMessage.encodeBitfield(lazy ? bitfield.toLongArray() : completed.toLongArray(), pieceCount));
+			for (Integer index : heldBack)
+				notifyNewAcquiredPiece(getTorrent().getPiece(index));	//Coalesced, so they follow the bitfield together
+			logger.log(Level.FINE, "Sent bitfield to " + this + (heldBack.isEmpty() ? "" : ", holding back " + heldBack));
+		}
+		
+		if (isFastExtension())
+			sendAllowedFast();
+	}
+	
+	/*
+	 * Tell the peer which extensions we support, ut_pex unless the torrent is private
+	 */
+	private void sendExtendedHandshake()
+	{
+		int listenPort = getTorrent().getPort() == null ? 0 : getTorrent().getPort() & 0xffff;
+		send(PeerMessage.encodeExtendedHandshake(getManager().isPeerExchangeEnabled(), listenPort, MAX_UPLOAD_QUEUE_SIZE));
+	}
+	
+	/*
+	 * Handle the peer's extended handshake - note the ID it wants ut_pex sent with, if it does PEX at all
+	 */
+	@SuppressWarnings("unchecked")
+	private void onExtendedHandshake(HashMap<ByteBuffer, Object> handshake)
+	{
+		Object extensions = handshake.get(Util.stringToByteBuffer("m"));
+		if (!(extensions instanceof HashMap<?, ?>))
+			return;
+		Object pexId = ((HashMap<ByteBuffer, Object>) extensions).get(Util.stringToByteBuffer("ut_pex"));
+		if (pexId instanceof Long && (Long) pexId > 0 && (Long) pexId <= 0xff && getManager().isPeerExchangeEnabled())
+			setRemotePexId((byte) ((Long) pexId).intValue());
+		else
+			setRemotePexId((byte) 0);	//An ID of 0 turns the extension off again
+		logger.log(Level.FINE, "Extended handshake received from " + this + ", ut_pex ID " + getRemotePexId());
+	}
+	
+	/*
+	 * Handle a ut_pex message - hand the peers it added over to the manager as candidates
+	 * Dropped peers are ignored, they may still be worth a try from us
+	 */
+	private void onPeerExchange(HashMap<ByteBuffer, Object> pex)
+	{
+		if (!getManager().isPeerExchangeEnabled())
+			return;
+		List<ByteBuffer> added = new ArrayList<ByteBuffer>();
+		unpackPexPeers(pex.get(Util.stringToByteBuffer("added")), EndpointIndex.IPV4_ENDPOINT_LENGTH, added);
+		unpackPexPeers(pex.get(Util.stringToByteBuffer("added6")), EndpointIndex.IPV6_ENDPOINT_LENGTH, added);
+		logger.log(Level.FINE, "ut_pex message received from " + this + " with " + added.size() + " peers");
+		if (!added.isEmpty())
+			getManager().onPeerExchangeReceived(this, added);
+	}
+	
+	private void unpackPexPeers(Object compact, int endpointLength, List<ByteBuffer> endpoints)
+	{
+		if (!(compact instanceof ByteBuffer))
+			return;
+		ByteBuffer peers = ((ByteBuffer) compact).duplicate();
+		for (int count = 0; count < PeerMessage.MAX_PEX_PEERS && peers.remaining() >= endpointLength; count++)
+			endpoints.add(EndpointIndex.unpackCompact(peers, endpointLength));
+	}
+	
+	/*
+	 * Tell the peer which of our peers it hasn't heard about from us yet, and which of them we've lost since the last time
+	 * Called by the PEX timer only, which owns advertisedPeers
+	 */
+	public void sendPeerExchange(Set<ByteBuffer> connectedEndpoints)
+	{
+		byte pexId = getRemotePexId();
+		if (pexId == 0)
+			return;
+		List<ByteBuffer> added = new ArrayList<ByteBuffer>();
+		List<ByteBuffer> dropped = new ArrayList<ByteBuffer>();
+		for (ByteBuffer endpoint : connectedEndpoints)
+		{
+			if (added.size() < PeerMessage.MAX_PEX_PEERS && !endpoint.equals(getEndpoint()) && !advertisedPeers.contains(endpoint))
+				added.add(endpoint);
+		}
+		for (ByteBuffer endpoint : advertisedPeers)
+		{
+			if (dropped.size() < PeerMessage.MAX_PEX_PEERS && !connectedEndpoints.contains(endpoint))
+				dropped.add(endpoint);
+		}
+		if (added.isEmpty() && dropped.isEmpty())
+			return;
+		advertisedPeers.addAll(added);
+		advertisedPeers.removeAll(dropped);
+		send(PeerMessage.encodePex(pexId, added, dropped));
+		logger.log(Level.FINE, "Sent ut_pex to " + this + " with " + added.size() + " added and " + dropped.size() + " dropped peers");
+	}
+	
+	/*
+	 * Grant the peer the pieces of its allowed fast set that we have - pieces it may request from us even while choked
+	 * Ones we're missing aren't advertised, as their requests would only be rejected
+	 */
+	private void sendAllowedFast()
+	{
+		Set<Integer> allowedFast = computeAllowedFastSet(ALLOWED_FAST_SET_SIZE);
+		AtomicBitSet completed = getTorrent().getCompletedPieces();
+		for (Iterator<Integer> iterator = allowedFast.iterator(); iterator.hasNext();)
+		{
+			if (!completed.get(iterator.next()))
+				iterator.remove();
+		}
+		setGrantedAllowedFast(allowedFast);
+		for (Integer index : allowedFast)
+			send(PeerMessage.encodeAllowedFast(index));
+		logger.log(Level.FINE, "Granted allowed fast set " + allowedFast + " to " + this);
+	}
+	
+	/*
+	 * The canonical allowed fast set of BEP 6, derived from the peer's /24 network and the infohash,
+	 * so that a peer can't collect more free pieces by reconnecting from another address on the same network
+	 * Only defined for IPv4 peers - everybody else gets an empty set
+	 */
+	private Set<Integer> computeAllowedFastSet(int size)
+	{
+		Set<Integer> allowedFast = new LinkedHashSet<Integer>();
+		int pieceCount = getTorrent().getPieces().length;
+		size = Math.min(size, pieceCount);
+		try
+		{
+			byte[] address = InetAddress.getByName(getIP()).getAddress();
+			if (address.length != 4)
+				return allowedFast;
+			byte[] hash = ByteBuffer.allocate(4 + getTorrent().getInfoHash().capacity())
+					.put(address, 0, 3).put((byte) 0).put(getTorrent().getInfoHash().array()).array();
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			while (allowedFast.size() < size)
+			{
+				hash = sha1.digest(hash);
+				ByteBuffer words = ByteBuffer.wrap(hash);
+				for (int word = 0; word < hash.length / 4 && allowedFast.size() < size; word++)
+					allowedFast.add((int) ((words.getInt() & 0xffffffffl) % pieceCount));
+			}
+		} catch (UnknownHostException | NoSuchAlgorithmException e)
+		{
+			logger.log(Level.WARNING, "Couldn't compute allowed fast set for " + this, e);
+		}
+		return allowedFast;
+	}
+	
+	/*
+	 * Suggest a few of our cached pieces that the peer doesn't have, so its requests are likely served from memory
+	 */
+	private void suggestCachedPieces()
+	{
+		AtomicBitSet available = getAvailablePieces();
+		if (available == null)
+			return;
+		for (Piece piece : PieceCache.getInstance().getCachedPieces(getTorrent().getTorrentFileSystem(), SUGGESTIONS_ON_UNCHOKE))
+		{
+			if (!available.get(piece.getIndex().intValue()))
+				send(PeerMessage.encodeSuggestPiece(piece.getIndex().intValue()));
 		}
 	}
 	
@@ -204,19 +556,182 @@ public class Peer
 	
 	/*
 	 * Send the block to the peer via the messenger
-	 * Ignore if not connected
+	 * Ignore if not connected - connect() queues the messages that must come first before the messenger starts
 	 */
 	public void send(ByteBuffer block)
 	{
-		if (!isConnected())
+		PeerMessenger messenger = getMessenger();	//Read once, a disconnect nulls it
+		if (messenger == null)
 		{
 			logger.log(Level.WARNING, "Attempted to send message to unconnected " + this);
 			return;
 		}		
-		getMessenger().send(block);
+		messenger.send(block);
 		logger.log(Level.FINER, "Message queued for delivery to " + this);
 	}
 	
+	/*
+	 * Send a keep-alive if nothing has been sent to the peer for a while
+	 */
+	public void keepAlive(long now)
+	{
+		PeerMessenger messenger = getMessenger();
+		if (isConnected() && messenger != null)
+			messenger.keepAlive(now);
+	}
+	
+	/*
+	 * Count bytes received from the peer, for both this peer and its torrent
+	 * Payload is block data of PIECE messages, protocol is everything else on the wire
+	 */
+	public void recordDownload(long protocolBytes, long payloadBytes)
+	{
+		protocolDownload.add(protocolBytes);
+		payloadDownload.add(payloadBytes);
+		getTorrent().recordDownload(protocolBytes, payloadBytes);
+	}
+	
+	/*
+	 * Count bytes sent to the peer, for both this peer and its torrent
+	 */
+	public void recordUpload(long protocolBytes, long payloadBytes)
+	{
+		protocolUpload.add(protocolBytes);
+		payloadUpload.add(payloadBytes);
+		getTorrent().recordUpload(protocolBytes, payloadBytes);
+	}
+	
+	/*
+	 * Send the requested block of piece to the peer as a PIECE message
+	 * Blocks of cached pieces are sent straight out of the piece cache behind the header
+	 * Other blocks are transferred from disk to the socket if zero-copy upload is enabled, and read through the cache otherwise
+	 */
+	public void sendBlock(Piece piece, int begin, int length) throws IOException
+	{
+		if (!isConnected())
+		{
+			logger.log(Level.WARNING, "Attempted to send block to unconnected " + this);
+			return;
+		}
+		
+		int index = piece.getIndex().intValue();
+		OutgoingMessage message;
+		if (Environment.getInstance().isZeroCopyUpload() && !PieceCache.getInstance().contains(piece))
+			message = new OutgoingMessage(PeerMessage.encodePieceHeader(index, begin, length), piece, begin, length);
+		else
+			message = new OutgoingMessage(PeerMessage.encodePieceHeader(index, begin, length), 
+					piece.read(new Long(begin), new Long(length)));
+		queuedBlocks.incrementAndGet();
+		getMessenger().send(message);
+		logger.log(Level.FINER, "Block of " + piece + " queued for delivery to " + this);
+	}
+	
+	/*
+	 * Handler for 'block sent' event, fired by the sender thread once a PIECE message is on the wire
+	 * Frees its place among the queued blocks, so the upload queue is served on
+	 */
+	public void onBlockSent(long length)
+	{
+		queuedBlocks.decrementAndGet();
+		logger.log(Level.FINER, "Block uploaded event fired for " + this);
+		getManager().onBlockUploadedToPeer((int) length);
+		synchronized (uploadQueue)
+		{
+			if (uploadQueue.isEmpty())
+				return;
+		}
+		scheduleUploads();
+	}
+	
+	/*
+	 * Queue up a block requested by the peer, and make sure the disk service is serving this peer's queue
+	 * Requests beyond the maximum queue size are dropped, so a flooding peer can't make us buffer unbounded work
+	 * Requests only leave the queue as the sender frees up, so a CANCEL or a CHOKE can still take most of them back
+	 */
+	private void queueUploadRequest(UploadRequest request)
+	{
+		synchronized (uploadQueue)
+		{
+			if (uploadQueue.size() < MAX_UPLOAD_QUEUE_SIZE)
+			{
+				uploadQueue.add(request);
+				request = null;
+			}
+		}
+		if (request != null)
+		{
+			logger.log(Level.WARNING, "Upload queue full, dropping " + request + " from " + this);
+			rejectUploadRequest(request.getIndex(), request.getBegin(), request.getLength());
+			return;
+		}
+		scheduleUploads();
+	}
+	
+	/*
+	 * Tell a fast extension peer that we won't serve its request, so it doesn't wait for the block
+	 * Other peers just never get the block
+	 */
+	private void rejectUploadRequest(int index, int begin, int length)
+	{
+		if (isFastExtension())
+			send(PeerMessage.encodeRejectRequest(index, begin, length));
+	}
+	
+	/*
+	 * Drop the queued requests of a peer we just choked, except for requests for its allowed fast pieces
+	 */
+	private void rejectQueuedUploads()
+	{
+		List<UploadRequest> rejected = new ArrayList<UploadRequest>();
+		synchronized (uploadQueue)
+		{
+			Iterator<UploadRequest> iterator = uploadQueue.iterator();
+			while (iterator.hasNext())
+			{
+				UploadRequest request = iterator.next();
+				if (!getGrantedAllowedFast().contains(request.getIndex()))
+				{
+					iterator.remove();
+					rejected.add(request);
+				}
+			}
+		}
+		for (UploadRequest request : rejected)
+			rejectUploadRequest(request.getIndex(), request.getBegin(), request.getLength());
+	}
+	
+	/*
+	 * Hand this peer's upload queue over to the disk service, unless it is already being served
+	 */
+	private void scheduleUploads()
+	{
+		if (uploading.compareAndSet(false, true))
+			DiskIOService.getInstance().submit(new UploadTask());
+	}
+	
+	/*
+	 * Remove a queued request that the peer cancelled
+	 * Returns false if the request has already been served (or never was queued)
+	 */
+	private boolean cancelUploadRequest(UploadRequest request)
+	{
+		synchronized (uploadQueue)
+		{
+			return uploadQueue.remove(request);
+		}
+	}
+	
+	/*
+	 * Drop all queued requests of the peer
+	 */
+	private void clearUploadQueue()
+	{
+		synchronized (uploadQueue)
+		{
+			uploadQueue.clear();
+		}
+	}
+	
 	/*
 	 * Download the given piece from this peer
 	 */
@@ -235,7 +750,7 @@ public class Peer
 		}
 		
 		setDownloadingPiece(piece);
-		setRequestedBlocks(new LinkedBlockingQueue<ByteBuffer>(REQUEST_PIPELINE_SIZE));	//Initialize block request pipeline for this piece
+		setRequestedBlocks(new LinkedBlockingQueue<ByteBuffer>(getPipelineSize()));	//Initialize block request pipeline for this piece
 		setRequestedBlockOffset(0);	//We want to start requesting from offset 0
 		logger.log(Level.INFO, "Setting up requests for download of " + piece + " from " + this);
 		requestRemainingBlocks();	//Start requesting blocks		
@@ -251,6 +766,11 @@ public class Peer
 			logger.log(Level.WARNING, "Invalid block request - no piece was being downloaded from " + this);
 			return;
 		}
+		if (getPeer_choking() && !getAllowedFastPieces().contains(getDownloadingPiece().getIndex().intValue()))
+		{
+			logger.log(Level.FINE, "Choked by " + this + ", not requesting more blocks of " + getDownloadingPiece());
+			return;
+		}
 		
 		while (getRequestedBlocks().remainingCapacity() != 0 
 			&& getRequestedBlockOffset() != getDownloadingPiece().getLength())
@@ -269,6 +789,8 @@ public class Peer
 			{
 				getRequestedBlocks().put(requestMessage);
 				send(requestMessage.duplicate());
+				if (getRequestDeadline() == 0)
+					setRequestDeadline(System.currentTimeMillis() + getRequestTimeout());
 				logger.log(Level.FINEST, "Requested block offset: " + getRequestedBlockOffset() + 
 						", block length: " + blockLength + " of " + getDownloadingPiece() + "from " + this);
 				setRequestedBlockOffset(getRequestedBlockOffset() + blockLength);
@@ -346,20 +868,130 @@ public class Peer
 			//TODO check this carefully
 			getRequestedBlocks().remove(blockRequest); //TODO not sure if this is required
 		}
+		setRequestDeadline(0);
 		logger.log(Level.INFO, "Canceled queued requests for " + getDownloadingPiece() + " from " + this);
 	}
 	
-	//Send HAVE message to peer
+	/*
+	 * How long the outstanding requests may take before the peer is considered to have snubbed us
+	 * Scaled to the rate we have been downloading from the peer, so slow but steady peers aren't punished
+	 */
+	private long getRequestTimeout()
+	{
+		double rate = getPayloadDownload().getRate(RateEstimator.MEDIUM);
+		if (rate <= 0)
+			return MAX_REQUEST_TIMEOUT;
+		long outstandingBytes = (long) Math.max(1, getRequestedBlocks().size()) * MIN_REQUEST_SIZE;
+		long expected = (long) (outstandingBytes * 1000 / rate);
+		return Math.max(MIN_REQUEST_TIMEOUT, Math.min(MAX_REQUEST_TIMEOUT, REQUEST_TIMEOUT_FACTOR * expected));
+	}
+	
+	/*
+	 * Check whether the next requested block is overdue
+	 * If it is, the peer has snubbed us - cancel its requests and give its piece back to the picker
+	 * Runs on the receiver thread, posted by the peer manager
+	 */
+	public void checkRequestTimeout(long now)
+	{
+		long deadline = getRequestDeadline();
+		if (deadline == 0 || now < deadline || getDownloadingPiece() == null)
+			return;
+		
+		Piece releasedPiece = getDownloadingPiece();
+		logger.log(Level.INFO, this + " timed out on requests for " + releasedPiece + ". Marking it snubbed and releasing the piece");
+		setSnubbed(true);
+		cancelQueuedRequests();
+		setDownloadingPiece(null);
+		getManager().onRequestTimedOut(this, releasedPiece);
+	}
+	
+	/*
+	 * Tell the peer about a piece we just completed
+	 * HAVEs are collected for HAVE_COALESCE_TIME and then sent together, so fast completion doesn't flood the peer with tiny messages
+	 * Seeds and peers that already have the piece don't need to hear about it at all
+	 */
 	public void notifyNewAcquiredPiece(Piece piece)
 	{
-		send(PeerMessage.encodeHave(piece.getIndex().intValue()));
-		logger.log(Level.FINER, "Sent have message for " + piece + " to " + this);
+		int index = piece.getIndex().intValue();
+		AtomicBitSet available = getAvailablePieces();
+		if (available == null || available.get(index) || available.isComplete())
+		{
+			logger.log(Level.FINEST, "Not telling " + this + " about " + piece + ", it has it already");
+			return;
+		}
+		pendingHaves.add(index);
+		if (haveFlushScheduled.compareAndSet(false, true))
+		{
+			TimerWheel.getInstance().schedule(new Runnable()
+			{
+				public void run()
+				{
+					flushHaves();
+				}
+			}, HAVE_COALESCE_TIME, TimeUnit.MILLISECONDS);
+		}
+		logger.log(Level.FINER, "HAVE for " + piece + " queued for " + this);
+	}
+	
+	/*
+	 * Send all collected HAVEs as one message list, written out in a single gathering write
+	 */
+	private void flushHaves()
+	{
+		haveFlushScheduled.set(false);
+		AtomicBitSet available = getAvailablePieces();
+		List<ByteBuffer> haves = new ArrayList<ByteBuffer>();
+		for (Integer index = pendingHaves.poll(); index != null; index = pendingHaves.poll())
+		{
+			if (available != null && !available.get(index))	//The peer may have got it in the meantime
+				haves.add(PeerMessage.encodeHave(index));
+		}
+		PeerMessenger messenger = getMessenger();	//Read once, a disconnect nulls it
+		if (haves.isEmpty() || !isConnected() || messenger == null)
+			return;
+		messenger.send(new OutgoingMessage(haves.toArray(new ByteBuffer[haves.size()])));
+		logger.log(Level.FINER, "Sent " + haves.size() + " HAVE message(s) to " + this);
+	}
+	
+	/*
+	 * Run task on this peer's receiver thread, between two messages
+	 * The peer's download state (the piece being downloaded, the request pipeline, interest) is only ever
+	 * touched from the receiver thread, so other threads that need to change it post the change here instead of locking
+	 * Returns false if the peer is no longer connected and the task was dropped
+	 */
+	public boolean post(Runnable task)
+	{
+		PeerMessenger messenger = getMessenger();
+		if (!isConnected() || messenger == null)
+			return false;
+		mailbox.add(task);
+		messenger.wakeup();
+		return true;
+	}
+	
+	/*
+	 * Run the tasks posted so far
+	 * Called by the receiver thread only
+	 */
+	public void runPostedTasks()
+	{
+		for (Runnable task = mailbox.poll(); task != null; task = mailbox.poll())
+		{
+			try
+			{
+				task.run();
+			} catch (RuntimeException e)
+			{
+				logger.log(Level.WARNING, "Task posted to " + this + " failed", e);
+			}
+		}
 	}
 	
 	/*
 	 * The main message handler that processes peer's messages and fires appropriate events
+	 * Runs on the receiver thread, so it needs no locking against the peer's posted tasks
 	 */
-	public synchronized void onMessageReceived(ByteBuffer message)
+	public void onMessageReceived(ByteBuffer message)
 	{
 		if (!message.hasRemaining())
 		{
@@ -375,6 +1007,12 @@ public class Peer
 				if (!getPeer_choking())
 				{
 					setPeer_choking(true);
+					if (isFastExtension())
+					{
+						//The peer rejects whatever it won't serve, so pipelined requests are kept till then
+						logger.log(Level.FINER, "Keeping requests pipelined to fast extension " + this);
+						break;
+					}
 					logger.log(Level.FINER, "Peer choke event fired for " + this);
 					getManager().onPeerChoked(this);
 					cancelQueuedRequests();					
@@ -418,46 +1056,30 @@ public class Peer
 			case PeerMessage.HAVE_ID:				
 				int haveIndex = message.getInt();
 				logger.log(Level.FINE, "HAVE message received from " + this + " for piece index: " + haveIndex);
-				if (haveIndex < 0 || haveIndex > getTorrent().getPieces().length)
+				if (haveIndex < 0 || haveIndex >= getTorrent().getPieces().length)
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid piece index " + haveIndex + " in HAVE message from " + this);
 					logger.log(Level.WARNING, "Invalid HAVE message" , e);
 					throw e;
 				}
-				synchronized (getAvailablePieces())
-				{
-					getAvailablePieces().set(haveIndex);
-				}
+				addAvailablePiece(haveIndex);
 				logger.log(Level.FINER, "Peer has new piece event fired for " + this);
 				getManager().onPeerHasNewPiece(this, haveIndex);				
 				break;
 			case PeerMessage.BITFIELD_ID:
 				logger.log(Level.FINE, "BITFIELD message received from " + this);
-				ByteBuffer bitfieldBuf = ByteBuffer.allocate(message.remaining()).put(message);
-				bitfieldBuf.rewind();
-				BitSet bitfieldBitSet = new BitSet(bitfieldBuf.remaining()*8);
-				
-				if (bitfieldBitSet.size() != getAvailablePieces().size())
+				int pieceCount = getTorrent().getPieces().length;
+				if (message.remaining() != (pieceCount + 7) / 8)
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid bitfield size " + 
-													bitfieldBitSet.size() + " in BITFIELD message from peer " + this);
+													message.remaining() + " in BITFIELD message from peer " + this);
 					logger.log(Level.WARNING, "Invalid BITFIELD message" , e);
 					throw e;
 				}
-				//TODO check this carefully
-				for (int bitIndex = 0; bitIndex < bitfieldBuf.remaining()*8; bitIndex++)	//TODO move this to Util
-				{
-					if ((bitfieldBuf.get(bitIndex/8) & (1 << (7 - (bitIndex%8)))) > 0)
-						bitfieldBitSet.set(bitIndex);	//Big-endian bits to little-endian bits
-				}
-					
-				logger.log(Level.FINE, "Bitfield received: " + bitfieldBitSet);
-				synchronized (getAvailablePieces()) 
-				{
-					getAvailablePieces().or(bitfieldBitSet);
-				}
+				addAvailablePieces(Util.decodeBitfield(message, pieceCount));
+				logger.log(Level.FINE, "Bitfield received from " + this + ", has " + availableCount + " of " + pieceCount + " pieces");
 				logger.log(Level.FINER, "Bitfield received event fired for " + this);
-				getManager().onPeerBitfieldReceived(this, getAvailablePiecesCopy());
+				getManager().onPeerBitfieldReceived(this, getAvailablePieces());
 				break;
 			case PeerMessage.REQUEST_ID:	//TODO do proper handling of invalid request, don't throw stupid exceptions				
 				int requestIndex = message.getInt();
@@ -466,26 +1088,40 @@ public class Peer
 				logger.log(Level.FINE, "REQUEST message received for index: " + requestIndex + 
 						", offset: " + requestBegin + ", length: " + requestLength + " from " + this);
 				
-				if (getAm_choking())
+				if (getAm_choking() && isFastExtension())
 				{
-					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Choked " + this + " is requesting a piece. Halay eto behaya ken?");
-					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
-					throw e;
+					if (!getGrantedAllowedFast().contains(requestIndex))
+					{
+						logger.log(Level.FINE, "Rejecting request from choked " + this);
+						rejectUploadRequest(requestIndex, requestBegin, requestLength);
+						break;
+					}
+				}
+				else if (getAm_choking())
+				{
+					logger.log(Level.FINE, "Dropping request from choked " + this + ", which may have sent it before our CHOKE arrived");
+					break;	//Without the fast extension, a choke discards the peer's requests silently
 				}
-				if (requestIndex < 0 || requestIndex > getTorrent().getPieces().length)
+				if (requestIndex < 0 || requestIndex >= getTorrent().getPieces().length)
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid piece index " + requestIndex + " in REQUEST message from " + this + ". Like are we even on the same page?");
 					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
 					throw e;
 				}
 				Piece requestPiece = getTorrent().getPiece(requestIndex);				
+				if (!requestPiece.isAvailable() && isFastExtension())
+				{
+					logger.log(Level.FINE, "Rejecting request for missing " + requestPiece + " from " + this);
+					rejectUploadRequest(requestIndex, requestBegin, requestLength);
+					break;
+				}
 				if (!requestPiece.isAvailable())
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Piece index " + requestIndex + " in REQUEST message from " + this + " is not available yet! WTF peer?");
 					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
 					throw e;
 				}
-				if (requestBegin < 0 || requestBegin > requestPiece.getLength())
+				if (requestBegin < 0 || requestBegin >= requestPiece.getLength())
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid starting offset " + requestBegin + " in REQUEST message from " + this + ". Matha kharap naki?");
 					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
@@ -497,16 +1133,13 @@ public class Peer
 					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
 					throw e;
 				}
-				try
-				{
-					ByteBuffer block = requestPiece.read(new Long(requestBegin), new Long(requestLength));
-					this.send(block);	//Send the requested block to peer
-					logger.log(Level.FINER, "Block uploaded event fired for request from " + this + " for " + requestPiece);
-					getManager().onBlockUploadedToPeer(requestLength);					
-				} catch (IOException e)
+				if (requestLength <= 0 || requestLength > requestPiece.getLength() - requestBegin)
 				{
-					logger.log(Level.WARNING, "Error while reading " + requestPiece + " for " + this);
+					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid block length " + requestLength + " at offset " + requestBegin + " of " + requestPiece + " in REQUEST message from " + this);
+					logger.log(Level.WARNING, "Invalid REQUEST message" , e);
+					throw e;
 				}
+				queueUploadRequest(new UploadRequest(requestIndex, requestBegin, requestLength));	//Served by the disk service, in offset order
 				break;
 			case PeerMessage.PIECE_ID:
 				int pieceIndex = message.getInt();
@@ -516,7 +1149,7 @@ public class Peer
 				logger.log(Level.FINE, "PIECE message received for index: " + pieceIndex + ", offset: " 
 									+ pieceBegin + ", length: " + pieceBlock.remaining() + " from " + this);
 								
-				if (pieceIndex < 0 || pieceIndex > getTorrent().getPieces().length)
+				if (pieceIndex < 0 || pieceIndex >= getTorrent().getPieces().length)
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid piece index " + pieceIndex + " in PIECE message from " + this + ". Like are we even on the same page?");
 					logger.log(Level.WARNING, "Invalid PIECE message" , e);
@@ -528,6 +1161,11 @@ public class Peer
 					logger.log(Level.WARNING, this + " sent block for " + pieceReceived + " that we already have. Eto bhalo shajte chay keno?");
 					break; //We already have the piece, ignore
 				}
+				if (pieceReceived != getDownloadingPiece())
+				{
+					logger.log(Level.FINE, this + " sent a late block for " + pieceReceived + ", which was released after its requests timed out");
+					break; //Another peer may be downloading it by now, ignore
+				}
 				if (pieceBegin < 0 || pieceBegin > pieceReceived.getLength())
 				{
 					PeerMessage.PeerMessageException e = new PeerMessage.PeerMessageException("Invalid starting offset " + pieceBegin + " in PIECE message for " + pieceReceived + " from " + this + ". Maney ki egular?");
@@ -535,20 +1173,32 @@ public class Peer
 					throw e;
 				}
 				
+				setLastBlockReceivedTime(System.currentTimeMillis());
+				setSnubbed(false);	//Delivering again
 				removeBlockRequest(PeerMessage.encodeRequest(pieceIndex, pieceBegin, pieceBlock.remaining()));
+				setRequestDeadline(getRequestedBlocks().isEmpty() ? 0 : System.currentTimeMillis() + getRequestTimeout());
 				try
 				{
 					logger.log(Level.FINER, "Writing block received for " + pieceReceived + " from " + this);
-					pieceReceived.write(pieceBlock, new Long(pieceBegin));					
+					boolean completed = pieceReceived.write(pieceBlock, new Long(pieceBegin));					
 					if (pieceReceived.isAvailable())	//Check if piece is complete now (successfully hash-verified) after writing the block
 					{
 						cancelQueuedRequests();
 						setDownloadingPiece(null);
-						getDownloadedPieces().set(pieceReceived.getIndex().intValue());
 						logger.log(Level.INFO, pieceReceived + " from " + this + " downloaded and validated!");
 						logger.log(Level.FINER, "Piece downloaded event fired for piece from " + this + " for " + pieceReceived);
 						getManager().onPieceDownloadedFromPeer(this, pieceReceived);						
 					}
+					else if (completed)
+					{
+						setHashFailures(getHashFailures() + 1);
+						if (getHashFailures() >= MAX_HASH_FAILURES)	//The piece is released when we disconnect
+							throw new PeerMessage.PeerMessageException(this + " sent " + getHashFailures() + " pieces that failed their hash check");
+						logger.log(Level.WARNING, pieceReceived + " from " + this + " failed its hash check");
+						cancelQueuedRequests();
+						setDownloadingPiece(null);
+						getManager().onPieceDownloadFailed(this, pieceReceived);
+					}
 					else
 					{
 						logger.log(Level.FINER, "Requesting remaining blocks from " + this);
@@ -559,16 +1209,100 @@ public class Peer
 				} catch (IOException e)
 				{
 					logger.log(Level.WARNING, "Error while writing block received for " + pieceReceived + " from " + this, e);
+					cancelQueuedRequests();
+					setDownloadingPiece(null);
+					getManager().onPieceDownloadFailed(this, pieceReceived);
 				}
 				break;
 			case PeerMessage.CANCEL_ID:
-				//TODO cancel outgoing message
-				logger.log(Level.FINE, "Ignoring CANCEL message received from " + this);			
+				UploadRequest cancelled = new UploadRequest(message.getInt(), message.getInt(), message.getInt());
+				logger.log(Level.FINE, "CANCEL message received for " + cancelled + " from " + this);
+				if (cancelUploadRequest(cancelled))
+					logger.log(Level.FINER, cancelled + " removed from upload queue of " + this);
+				else
+					logger.log(Level.FINER, cancelled + " was not queued for " + this + ". Already sent or never requested.");
+				break;
+			case PeerMessage.HAVE_ALL_ID:
+				logger.log(Level.FINE, "HAVE_ALL message received from " + this);
+				if (!isFastExtension())
+				{
+					logger.log(Level.WARNING, "Ignoring HAVE_ALL from " + this + ", which didn't negotiate the fast extension");
+					break;
+				}
+				availableCount = getTorrent().getPieces().length;
+				setAvailablePieces(getTorrent().getAllPieces());
+				getManager().onPeerBitfieldReceived(this, getAvailablePieces());
+				break;
+			case PeerMessage.HAVE_NONE_ID:
+				logger.log(Level.FINE, "HAVE_NONE message received from " + this);	//Nothing to record, we assume nothing to begin with
+				break;
+			case PeerMessage.SUGGEST_PIECE_ID:
+				int suggestIndex = message.getInt();
+				logger.log(Level.FINE, "SUGGEST_PIECE message received from " + this + " for piece index: " + suggestIndex);
+				if (!isFastExtension() || suggestIndex < 0 || suggestIndex >= getTorrent().getPieces().length)
+					break;
+				if (getSuggestedPieces().size() >= MAX_SUGGESTED_PIECES)
+					getSuggestedPieces().pollFirst();
+				getSuggestedPieces().addLast(suggestIndex);
+				break;
+			case PeerMessage.REJECT_REQUEST_ID:
+				int rejectIndex = message.getInt();
+				int rejectBegin = message.getInt();
+				int rejectLength = message.getInt();
+				logger.log(Level.FINE, "REJECT_REQUEST message received for index: " + rejectIndex + 
+						", offset: " + rejectBegin + ", length: " + rejectLength + " from " + this);
+				if (!isFastExtension() || getDownloadingPiece() == null || getDownloadingPiece().getIndex().intValue() != rejectIndex)
+					break;
+				//The rejected block won't come, so give the whole piece back rather than leave a hole in it
+				Piece rejectedPiece = getDownloadingPiece();
+				removeBlockRequest(PeerMessage.encodeRequest(rejectIndex, rejectBegin, rejectLength));
+				cancelQueuedRequests();
+				setDownloadingPiece(null);
+				getManager().onRequestRejected(this, rejectedPiece);
+				break;
+			case PeerMessage.ALLOWED_FAST_ID:
+				int allowedFastIndex = message.getInt();
+				logger.log(Level.FINE, "ALLOWED_FAST message received from " + this + " for piece index: " + allowedFastIndex);
+				if (!isFastExtension() || allowedFastIndex < 0 || allowedFastIndex >= getTorrent().getPieces().length)
+					break;
+				getAllowedFastPieces().add(allowedFastIndex);
+				getManager().onPeerAllowedFast(this, allowedFastIndex);
+				break;
+			case PeerMessage.EXTENDED_ID:
+				if (!isExtensionProtocol())
+				{
+					logger.log(Level.WARNING, "Ignoring extended message from " + this + ", which didn't negotiate the extension protocol");
+					break;
+				}
+				if (!message.hasRemaining())
+					throw new PeerMessage.PeerMessageException("Empty extended message from " + this);
+				byte extendedId = message.get();
+				byte[] bencoded = new byte[message.remaining()];
+				message.get(bencoded);
+				HashMap<ByteBuffer, Object> payload;
+				try
+				{
+					payload = new BencodeReader(new ByteArrayInputStream(bencoded), bencoded.length).readDictionary();
+				} catch (IOException | RuntimeException e)
+				{
+					PeerMessage.PeerMessageException pe = new PeerMessage.PeerMessageException("Invalid extended message " + extendedId + " from " + this);
+					logger.log(Level.WARNING, "Invalid extended message", e);
+					throw pe;
+				}
+				if (extendedId == PeerMessage.EXTENDED_HANDSHAKE_ID)
+					onExtendedHandshake(payload);
+				else if (extendedId == PeerMessage.UT_PEX_ID)
+					onPeerExchange(payload);
+				else
+					logger.log(Level.FINE, "Extended message ID " + extendedId + " received from " + this + " not recognized/supported");
 				break;
 			case PeerMessage.PORT_ID:
-				//Required for DHT protocol
-				//Ignore for now
-				logger.log(Level.FINE, "Ignoring PORT message received from " + this);
+				if (message.remaining() < PeerMessage.SHORT_SIZE)
+					throw new PeerMessage.PeerMessageException("Truncated PORT message from " + this);
+				int DHTPort = message.getShort() & 0xffff;
+				logger.log(Level.FINE, "PORT message received from " + this + " with DHT port " + DHTPort);
+				if (DHTPort != 0 && getManager().isDHTEnabled())
+					DHTNode.getInstance().ping(new InetSocketAddress(getIP(), DHTPort));	//Gets into our routing table if it answers
 				break;
 			default:
 				logger.log(Level.FINE, "Message ID received from " + this + " not recognized/supported");
@@ -576,30 +1310,6 @@ public class Peer
 		}
 	}
 	
-	public BitSet getAvailablePiecesCopy() 
-	{
-		synchronized(availablePieces)
-		{
-			return (BitSet) getAvailablePieces().clone();
-		}
-	}
-	
-	public BitSet getUploadedPiecesCopy() 
-	{
-		synchronized(uploadedPieces)
-		{
-			return (BitSet) uploadedPieces.clone();
-		}
-	}
-	
-	public BitSet getDownloadedPiecesCopy() 
-	{
-		synchronized(downloadedPieces)
-		{
-			return (BitSet) downloadedPieces.clone();
-		}
-	}
-	
 	public ByteBuffer getPeerId() {
 		return peerId;
 	}
@@ -624,12 +1334,20 @@ public class Peer
 		this.port = port;
 	}
 
-	public SocketChannel getSocketChannel() {
-		return socketChannel;
+	public ByteBuffer getEndpoint() {
+		return endpoint;
+	}
+
+	public void setEndpoint(ByteBuffer endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public Transport getTransport() {
+		return transport;
 	}
 
-	public void setSocketChannel(SocketChannel socketChannel) {
-		this.socketChannel = socketChannel;
+	public void setTransport(Transport transport) {
+		this.transport = transport;
 	}
 
 	public Torrent getTorrent() {
@@ -696,30 +1414,14 @@ public class Peer
 		this.connected = connected;
 	}
 
-	public BitSet getAvailablePieces() {
+	public AtomicBitSet getAvailablePieces() {
 		return availablePieces;
 	}
 
-	public void setAvailablePieces(BitSet availablePieces) {
+	public void setAvailablePieces(AtomicBitSet availablePieces) {
 		this.availablePieces = availablePieces;
 	}
 	
-	public BitSet getDownloadedPieces() {
-		return downloadedPieces;
-	}
-
-	public void setDownloadedPieces(BitSet downloadedPieces) {
-		this.downloadedPieces = downloadedPieces;
-	}
-
-	public BitSet getUploadedPieces() {
-		return uploadedPieces;
-	}
-
-	public void setUploadedPieces(BitSet uploadedPieces) {
-		this.uploadedPieces = uploadedPieces;
-	}
-
 	public PeerMessenger getMessenger() {
 		return messenger;
 	}
@@ -744,6 +1446,169 @@ public class Peer
 		this.requestedBlocks = requestedBlocks;
 	}
 
+	public RateEstimator getPayloadDownload() {
+		return payloadDownload;
+	}
+
+	public RateEstimator getPayloadUpload() {
+		return payloadUpload;
+	}
+
+	public RateEstimator getProtocolDownload() {
+		return protocolDownload;
+	}
+
+	public RateEstimator getProtocolUpload() {
+		return protocolUpload;
+	}
+
+	public TokenBucket getUploadLimiter() {
+		return uploadLimiter;
+	}
+
+	public TokenBucket getDownloadLimiter() {
+		return downloadLimiter;
+	}
+
+	/*
+	 * The buckets every byte sent to the peer is charged to - this peer's, its torrent's and the global one
+	 * LAN peers can be exempt from the global one, which is there to protect the WAN link
+	 */
+	public TokenBucket[] getUploadLimiters() {
+		if (isLocal() && Environment.getInstance().isLocalPeersUnlimited())
+			return new TokenBucket[] {uploadLimiter, getTorrent().getUploadLimiter()};
+		return new TokenBucket[] {uploadLimiter, getTorrent().getUploadLimiter(), BandwidthLimiter.getInstance().getUpload()};
+	}
+
+	/*
+	 * The buckets every byte received from the peer is charged to
+	 */
+	public TokenBucket[] getDownloadLimiters() {
+		if (isLocal() && Environment.getInstance().isLocalPeersUnlimited())
+			return new TokenBucket[] {downloadLimiter, getTorrent().getDownloadLimiter()};
+		return new TokenBucket[] {downloadLimiter, getTorrent().getDownloadLimiter(), BandwidthLimiter.getInstance().getDownload()};
+	}
+
+	/*
+	 * Number of block requests kept in flight to the peer
+	 */
+	public int getPipelineSize() {
+		if (isSnubbed())
+			return SNUBBED_PIPELINE_SIZE;
+		return isLocal() ? LOCAL_PIPELINE_SIZE : REQUEST_PIPELINE_SIZE;
+	}
+
+	public boolean isLocal() {
+		return local;
+	}
+
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
+
+	public long getLastBlockReceivedTime() {
+		return lastBlockReceivedTime;
+	}
+
+	public long getConnectedTime() {
+		return connectedTime;
+	}
+
+	public void setConnectedTime(long connectedTime) {
+		this.connectedTime = connectedTime;
+	}
+
+	/*
+	 * Payload bytes per second both ways, averaged over the whole connection
+	 */
+	public double getAverageThroughput(long now) {
+		if (connectedTime == 0)
+			return 0;
+		return (getPayloadDownload().getTotal() + getPayloadUpload().getTotal()) * 1000.0 / Math.max(1, now - connectedTime);
+	}
+
+	public void setLastBlockReceivedTime(long lastBlockReceivedTime) {
+		this.lastBlockReceivedTime = lastBlockReceivedTime;
+	}
+
+	public long getRequestDeadline() {
+		return requestDeadline;
+	}
+
+	public void setRequestDeadline(long requestDeadline) {
+		this.requestDeadline = requestDeadline;
+	}
+
+	public boolean isExtensionProtocol() {
+		return extensionProtocol;
+	}
+
+	public void setExtensionProtocol(boolean extensionProtocol) {
+		this.extensionProtocol = extensionProtocol;
+	}
+
+	public byte getRemotePexId() {
+		return remotePexId;
+	}
+
+	public void setRemotePexId(byte remotePexId) {
+		this.remotePexId = remotePexId;
+	}
+
+	public boolean isDHT() {
+		return DHT;
+	}
+
+	public void setDHT(boolean DHT) {
+		this.DHT = DHT;
+	}
+
+	public boolean isFastExtension() {
+		return fastExtension;
+	}
+
+	public void setFastExtension(boolean fastExtension) {
+		this.fastExtension = fastExtension;
+	}
+
+	/*
+	 * Only to be used on the receiver thread
+	 */
+	public Set<Integer> getAllowedFastPieces() {
+		return allowedFastPieces;
+	}
+
+	/*
+	 * Only to be used on the receiver thread
+	 */
+	public Deque<Integer> getSuggestedPieces() {
+		return suggestedPieces;
+	}
+
+	public Set<Integer> getGrantedAllowedFast() {
+		return grantedAllowedFast;
+	}
+
+	public void setGrantedAllowedFast(Set<Integer> grantedAllowedFast) {
+		this.grantedAllowedFast = Collections.unmodifiableSet(grantedAllowedFast);
+	}
+
+	public boolean isSnubbed() {
+		return snubbed;
+	}
+
+	public int getHashFailures() {
+		return hashFailures;
+	}
+
+	public void setHashFailures(int hashFailures) {
+		this.hashFailures = hashFailures;
+	}
+
+	public void setSnubbed(boolean snubbed) {
+		this.snubbed = snubbed;
+	}
+
 	public int getRequestedBlockOffset() {
 		return requestedBlockOffset;
 	}
@@ -756,9 +1621,7 @@ public class Peer
 	public String toString()
 	{
 		ByteBuffer peerId = getPeerId();
-		BitSet available = null;
-		if (getAvailablePieces() != null)
-			available = getAvailablePiecesCopy();
+		AtomicBitSet available = getAvailablePieces();
 		Piece downloading = getDownloadingPiece();
 		boolean connected = isConnected();
 		StringBuilder builder = new StringBuilder();
@@ -788,6 +1651,62 @@ public class Peer
 		return builder.append("}").toString();
 	}
 	
+	/*
+	 * UploadTask that serves the peer's upload queue on a disk thread, lowest offset first
+	 * A request is taken off the queue only right before it is read, so a CANCEL that arrives before that
+	 * saves both the disk I/O and the send
+	 */
+	private class UploadTask implements Runnable
+	{
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					UploadRequest request;
+					synchronized (uploadQueue)
+					{
+						if (!isConnected())
+						{
+							uploadQueue.clear();
+							break;
+						}
+						if (queuedBlocks.get() >= MAX_QUEUED_BLOCKS)
+							break;	//The sender has enough to do, it serves the queue on as it sends them
+						request = uploadQueue.pollFirst();
+						if (request == null)
+							break;
+					}
+					if (getAm_choking() && !getGrantedAllowedFast().contains(request.getIndex()))
+						continue;	//Choked after the request was queued
+					
+					Piece requestPiece = getTorrent().getPiece(request.getIndex());
+					try
+					{
+						sendBlock(requestPiece, request.getBegin(), request.getLength());	//Send the requested block to peer
+					} catch (IOException e)
+					{
+						logger.log(Level.WARNING, "Error while reading " + requestPiece + " for " + Peer.this, e);
+					} catch (RuntimeException e)	//Disconnected meanwhile, or a block we should never have queued
+					{
+						logger.log(Level.WARNING, "Couldn't upload block of " + requestPiece + " to " + Peer.this, e);
+					}
+				}
+			} finally
+			{
+				uploading.set(false);	//Whatever happened, so the next request starts a new task
+			}
+			
+			synchronized (uploadQueue)
+			{
+				if (uploadQueue.isEmpty() || queuedBlocks.get() >= MAX_QUEUED_BLOCKS)
+					return;
+			}
+			scheduleUploads();	//A request slipped in, or the sender freed up, after we gave up the queue
+		}
+	}
+	
 	/*
 	 * Handshake protocol implementation
 	 */
@@ -799,7 +1718,13 @@ public class Peer
 		private final static int RESERVED_LENGTH = 8;
 		private final static int INFOHASH_LENGTH = 20;
 		private final static int PEERID_LENGTH = 20;
+		private final static int FAST_EXTENSION_BYTE = 7;	//Reserved bit 0x04 of the last byte, BEP 6
+		private final static byte FAST_EXTENSION_BIT = 0x04;
+		private final static byte DHT_BIT = 0x01;	//Reserved bit 0x01 of the last byte, BEP 5
+		private final static int EXTENSION_PROTOCOL_BYTE = 5;	//Reserved bit 0x10 of the sixth byte, BEP 10
+		private final static byte EXTENSION_PROTOCOL_BIT = 0x10;
 		private final static int HANDSHAKE_LENGTH = PSTRLEN_LENGTH+PSTRLEN+RESERVED_LENGTH+INFOHASH_LENGTH+PEERID_LENGTH;
+		private final static long HANDSHAKE_TIMEOUT = 30*1000;	//Milliseconds to wait for the peer's handshake over a transport whose reads don't block
 		static Logger logger = LoggingClient.getInstance().logger;
 		
 		/*
@@ -807,15 +1732,18 @@ public class Peer
 		 */
 		public static void send(Peer peer, ByteBuffer infoHash, ByteBuffer peerId) throws IOException
 		{
-			boolean blocking = peer.getSocketChannel().isBlocking();			
-			peer.getSocketChannel().configureBlocking(true);	//Do the handshake in blocking mode
-			
+			byte[] reserved = new byte[RESERVED_LENGTH];
+			if (Environment.getInstance().isFastExtension())
+				reserved[FAST_EXTENSION_BYTE] |= FAST_EXTENSION_BIT;
+			if (Environment.getInstance().isDHT())
+				reserved[FAST_EXTENSION_BYTE] |= DHT_BIT;
+			if (Environment.getInstance().isExtensionProtocol())
+				reserved[EXTENSION_PROTOCOL_BYTE] |= EXTENSION_PROTOCOL_BIT;
 			ByteBuffer message = ByteBuffer.allocate(HANDSHAKE_LENGTH);
-			message.put(PSTRLEN).put(PSTR).put(new byte[RESERVED_LENGTH])
+			message.put(PSTRLEN).put(PSTR).put(reserved)
 					.put(infoHash.array()).put(peerId.array()).rewind();
-			peer.getSocketChannel().write(message);
-			
-			peer.getSocketChannel().configureBlocking(blocking);	//Reset the channel to whatever blocking-mode it was on before
+			while (message.hasRemaining())
+				peer.getTransport().write(message);
 			logger.log(Level.FINER, "Handshake successfully sent to " + peer);
 		}
 		
@@ -825,24 +1753,25 @@ public class Peer
 		 */
 		public static ByteBuffer receive(Peer peer, ByteBuffer infoHash) throws IOException
 		{
-			boolean blocking = peer.getSocketChannel().isBlocking();
-			peer.getSocketChannel().configureBlocking(true);	//Do the handshake in blocking mode
 			ByteBuffer message = ByteBuffer.allocate(HANDSHAKE_LENGTH);
 			
-			int read = peer.getSocketChannel().read(message);
-			message.rewind();
-			if (read == -1)
+			while (message.hasRemaining())	//TCP reads block till something arrives, uTP reads have to wait for it
 			{
-				PeerConnectionException e = new PeerConnectionException("Failed to receive handshake from " + peer);
-				logger.log(Level.WARNING, "Invalid HANDSHAKE" , e);
-				throw e;
-			}
-			if (read != HANDSHAKE_LENGTH)
-			{
-				PeerConnectionException e = new PeerConnectionException("Invalid handshake length from " + peer);
-				logger.log(Level.WARNING, "Invalid HANDSHAKE" , e);
-				throw e;
+				int read = peer.getTransport().read(message);
+				if (read == -1)
+				{
+					PeerConnectionException e = new PeerConnectionException("Failed to receive handshake from " + peer);
+					logger.log(Level.WARNING, "Invalid HANDSHAKE" , e);
+					throw e;
+				}
+				if (read == 0 && !peer.getTransport().awaitReadable(HANDSHAKE_TIMEOUT))
+				{
+					PeerConnectionException e = new PeerConnectionException("Timed out waiting for handshake from " + peer);
+					logger.log(Level.WARNING, "Invalid HANDSHAKE" , e);
+					throw e;
+				}
 			}
+			message.rewind();
 			if (message.get() != PSTRLEN)
 			{
 				PeerConnectionException e = new PeerConnectionException("Invalid pstrlen from " + peer);
@@ -856,6 +1785,11 @@ public class Peer
 				logger.log(Level.WARNING, "Invalid HANDSHAKE" , e);
 				throw e;
 			}
+			byte reservedFastByte = message.get(PSTRLEN_LENGTH+PSTRLEN+FAST_EXTENSION_BYTE);
+			peer.setFastExtension(Environment.getInstance().isFastExtension() && (reservedFastByte & FAST_EXTENSION_BIT) != 0);
+			peer.setDHT(Environment.getInstance().isDHT() && (reservedFastByte & DHT_BIT) != 0);
+			byte reservedExtensionByte = message.get(PSTRLEN_LENGTH+PSTRLEN+EXTENSION_PROTOCOL_BYTE);
+			peer.setExtensionProtocol(Environment.getInstance().isExtensionProtocol() && (reservedExtensionByte & EXTENSION_PROTOCOL_BIT) != 0);
 			message.limit(PSTRLEN_LENGTH+PSTRLEN+RESERVED_LENGTH+INFOHASH_LENGTH).position(PSTRLEN_LENGTH+PSTRLEN+RESERVED_LENGTH);
 			if (message.compareTo(infoHash) != 0)
 			{
@@ -867,7 +1801,6 @@ public class Peer
 			ByteBuffer peerId = ByteBuffer.allocate(PEERID_LENGTH);
 			peerId.put(message).rewind();
 			
-			peer.getSocketChannel().configureBlocking(blocking);	//Reset the channel to whatever blocking-mode it was on before
 			logger.log(Level.FINER, "Handshake successfully received from " + peer);
 			return peerId;
 		}
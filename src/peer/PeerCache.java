@@ -0,0 +1,129 @@
+/*
+ * A singleton that keeps the peers that worked for a torrent on disk, one small binary file per infohash
+ * so that after a restart a torrent can connect to its old peers while its first announce is still under way.
+ * File format, big-endian: magic, version, record count, then per record the address length (4 or 16),
+ * the address, the port, when a connection to the peer last ended having been useful (Unix epoch milliseconds)
+ * and its throughput in bytes per second.
+ * Files are replaced atomically, so a crash mid-write leaves the previous cache intact.
+ */
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+import tools.Util;
+
+public class PeerCache
+{
+	private static PeerCache instance = null;
+	private final static int MAGIC = 0x50434348;	//"PCCH"
+	private final static byte VERSION = 1;
+	private final static int HEADER_SIZE = 4 + 1 + 4;
+	private final static int MAX_RECORD_SIZE = 1 + 16 + 2 + 8 + 4;
+	private final static long MAX_AGE = 7*24*60*60*1000L;	//Milliseconds after which a cached peer isn't worth trying
+	Logger logger = LoggingClient.getInstance().logger;
+
+	private PeerCache()
+	{
+	}
+
+	public static synchronized PeerCache getInstance()
+	{
+		if (instance == null)
+			instance = new PeerCache();
+		return instance;
+	}
+
+	/*
+	 * Restore the cached peers of the torrent as candidates
+	 * Returns the number of peers restored, 0 if there is no cache or it's unreadable
+	 */
+	public int load(ByteBuffer infoHash, CandidateStore candidates)
+	{
+		Path path = getPath(infoHash);
+		if (!Environment.getInstance().isPeerCache() || !Files.isRegularFile(path))
+			return 0;
+		int restored = 0;
+		try
+		{
+			ByteBuffer cache = ByteBuffer.wrap(Files.readAllBytes(path));
+			if (cache.getInt() != MAGIC || cache.get() != VERSION)
+			{
+				logger.log(Level.WARNING, "Ignoring peer cache " + path + " of unknown format");
+				return 0;
+			}
+			int count = cache.getInt();
+			long now = System.currentTimeMillis();
+			for (int record = 0; record < count; record++)
+			{
+				int addressLength = cache.get();
+				if (addressLength != 4 && addressLength != 16)
+					throw new IOException("Invalid address length " + addressLength);
+				byte[] endpoint = new byte[addressLength + 2];
+				cache.get(endpoint);
+				long lastUsefulTime = cache.getLong();
+				float throughput = cache.getFloat();
+				if (now - lastUsefulTime > MAX_AGE)
+					continue;
+				if (candidates.restore(ByteBuffer.wrap(endpoint), Math.min(lastUsefulTime, now), throughput))
+					restored++;
+			}
+		} catch (IOException | BufferUnderflowException e)
+		{
+			logger.log(Level.WARNING, "Couldn't read peer cache " + path + ", restored " + restored + " peers from it", e);
+		}
+		logger.log(Level.INFO, "Restored " + restored + " cached peers from " + path);
+		return restored;
+	}
+
+	/*
+	 * Write the torrent's most useful candidates to its cache, replacing the old one
+	 * Blocks on the disk, so it belongs on a disk thread or a shutdown path
+	 */
+	public void save(ByteBuffer infoHash, CandidateStore candidates)
+	{
+		if (!Environment.getInstance().isPeerCache())
+			return;
+		List<CandidateStore.Record> records = candidates.getUseful(Environment.getInstance().getMaxCachedPeers(), System.currentTimeMillis());
+		if (records.isEmpty())
+			return;	//Keep the old cache rather than wipe it after a session that found nobody
+		ByteBuffer cache = ByteBuffer.allocate(HEADER_SIZE + records.size()*MAX_RECORD_SIZE);
+		cache.putInt(MAGIC).put(VERSION).putInt(records.size());
+		for (CandidateStore.Record record : records)
+		{
+			ByteBuffer endpoint = record.getEndpoint().duplicate();
+			cache.put((byte) (endpoint.remaining() - 2)).put(endpoint)
+					.putLong(record.getLastUsefulTime()).putFloat(record.getThroughput());
+		}
+
+		Path path = getPath(infoHash);
+		try
+		{
+			Files.createDirectories(path.getParent());
+			Path temporary = Paths.get(path + ".tmp");
+			Files.write(temporary, Arrays.copyOf(cache.array(), cache.position()));
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.log(Level.FINE, "Saved " + records.size() + " peers to peer cache " + path);
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't write peer cache " + path, e);
+		}
+	}
+
+	private Path getPath(ByteBuffer infoHash)
+	{
+		return Paths.get(Environment.getInstance().getPeerCacheDirectory() + File.separator + Util.hexEncode(infoHash.array()) + ".peers");
+	}
+}
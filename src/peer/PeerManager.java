@@ -1,147 +1,418 @@
 package peer;
 
 import java.io.IOException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import client.Environment;
 import client.LoggingClient;
+import dht.DHTNode;
+import dht.PeerListener;
 import metainfo.Piece;
+import tools.AtomicBitSet;
+import tools.RateEstimator;
+import tools.TimerWheel;
 import tools.Util;
 import torrent.Torrent;
 
 public class PeerManager 
 {
-	private final static int MAX_DOWNLOADERS = 4;
 	private Torrent torrent;	
-	private Queue<Peer> peerList = new ConcurrentLinkedQueue<Peer>();
+	private final CandidateStore candidates = new CandidateStore(Environment.getInstance().getMaxCandidatePeers());
+	private final Map<ByteBuffer, Peer> connectingPeers = new ConcurrentHashMap<ByteBuffer, Peer>();	//Keyed by endpoint
 	private Map<ByteBuffer, Peer> connectedPeers = new ConcurrentHashMap<ByteBuffer, Peer>();
-	private Map<ByteBuffer, Peer> unchokedPeers = new ConcurrentHashMap<ByteBuffer, Peer>();	
+	private final EndpointIndex endpoints = new EndpointIndex();	//Every endpoint we know of, whatever its state
+	private Choker choker;
+	private final AtomicBoolean rechokePending = new AtomicBoolean(false);
+	private static final long PEER_TRIAL_TIME = 2*60*1000;	//Milliseconds a peer gets to prove itself before it may be replaced
+	private static final int MAX_EXTRA_LOCAL_CONNECTIONS = 4;	//LAN peers that may be connected to past the connection limit
+	private static final long DISCONNECT_TIMEOUT = 5*1000;	//Milliseconds to wait on shutdown for the receiver threads to disconnect their peers
 	private ExecutorService executorService;	
 	Logger logger = LoggingClient.getInstance().logger;
 	
 	public PeerManager(Torrent torrent)
 	{
 		this.torrent = torrent;
+		this.choker = new Choker(this);
 		this.executorService = Executors.newFixedThreadPool(
 				Environment.getInstance().getMAX_CONNECTIONS());
 	}
 	
 	/*
-	 * Instantiate peers from compact peers buffer received from tracker
+	 * Add candidates from compact peers buffer received from tracker
 	 */
-	public void createPeers(ByteBuffer peers)	//TODO verify that peers.remaining() % 6 == 0
+	public void createPeers(ByteBuffer peers)
 	{
-		for (int index = 0; index < peers.array().length; index += 6)
+		if (peers.remaining() % EndpointIndex.IPV4_ENDPOINT_LENGTH != 0)
+			logger.log(Level.WARNING, "Compact peers of odd length " + peers.remaining() + ", ignoring the trailing bytes");
+		while (peers.remaining() >= EndpointIndex.IPV4_ENDPOINT_LENGTH)
 		{
-			Peer peer = new Peer(Util.intToIPString(peers.getInt()), 
-					(Integer) (peers.getShort() & 0xffff), getTorrent(), this);
-			if (!isConnectedAlready(peer))
-			{
-				getPeerList().add(peer);
-				logger.log(Level.FINE, "Discovered new " + peer);
-			}
+			addCandidate(EndpointIndex.unpackCompact(peers, EndpointIndex.IPV4_ENDPOINT_LENGTH), CandidateStore.SOURCE_TRACKER);
 		}
 	}
 	
 	/*
-	 * Instantiate peers from peers list received from tracker
+	 * Add candidates from peers list received from tracker
+	 * The peer IDs are only used to skip peers we're connected to, candidates don't keep them
 	 */
 	public void createPeers(List<HashMap<ByteBuffer, Object>> peers)
 	{
 		for (HashMap<ByteBuffer, Object> rawPeer : peers)
 		{
-			Peer peer = new Peer((ByteBuffer) (rawPeer.get(Util.stringToByteBuffer("peer id"))),
-					Util.byteBufferToString(rawPeer.get(Util.stringToByteBuffer("ip"))),
-					((Long) rawPeer.get(Util.stringToByteBuffer("port"))).intValue(), getTorrent(), this);
-			if (!isConnectedAlready(peer))
+			ByteBuffer peerId = (ByteBuffer) rawPeer.get(Util.stringToByteBuffer("peer id"));
+			String IP = Util.byteBufferToString(rawPeer.get(Util.stringToByteBuffer("ip")));
+			int port = ((Long) rawPeer.get(Util.stringToByteBuffer("port"))).intValue();
+			if (peerId != null && connectedPeers.containsKey(peerId))
+				continue;
+			ByteBuffer endpoint;
+			try
 			{
-				getPeerList().add(peer);
-				logger.log(Level.FINE, "Discovered new " + peer);
+				endpoint = EndpointIndex.pack(IP, port);
+			} catch (UnknownHostException e)
+			{
+				logger.log(Level.WARNING, "Couldn't resolve peer " + IP + ":" + port, e);
+				continue;
 			}
+			addCandidate(endpoint, CandidateStore.SOURCE_TRACKER);
 		}
 	}
 	
 	/*
-	 * Try to connect to instantiated peers
+	 * Restore the peers cached from the last session as candidates and start connecting to them
+	 * Meant to run before the first announce, which then only adds to them
+	 */
+	public void connectToCachedPeers()
+	{
+		if (PeerCache.getInstance().load(getTorrent().getInfoHash(), getCandidates()) > 0)
+			connectToPeers();
+	}
+	
+	/*
+	 * Write the most useful candidates to the peer cache
+	 * Blocks on the disk
+	 */
+	public void savePeerCache()
+	{
+		PeerCache.getInstance().save(getTorrent().getInfoHash(), getCandidates());
+	}
+	
+	/*
+	 * Add an endpoint to the candidates, unless we're connecting or connected to it, or have banned it
+	 */
+	private boolean addCandidate(ByteBuffer endpoint, byte source)
+	{
+		if (getEndpoints().getState(endpoint) != null)
+			return false;
+		if (!getCandidates().add(endpoint, source, System.currentTimeMillis()))
+			return false;
+		logger.log(Level.FINEST, "Discovered new peer " + EndpointIndex.getIP(endpoint) + ":" + EndpointIndex.getPort(endpoint));
+		return true;
+	}
+	
+	/*
+	 * Whether peers may be exchanged over ut_pex - not for private torrents, whose peers must only come from their tracker
+	 */
+	public boolean isPeerExchangeEnabled()
+	{
+		return Environment.getInstance().isPeerExchange() && !getTorrent().isPrivate();
+	}
+	
+	/*
+	 * Handler for 'peer exchange received' event
+	 * Add the peers as candidates, and connect to them right away if we have connections to spare
 	 */
-	public void connectToPeers()	//TODO can be done better
+	public void onPeerExchangeReceived(Peer peer, List<ByteBuffer> endpoints)
 	{
-		for (Peer peer : getPeerList())
+		int added = addCandidates(endpoints, CandidateStore.SOURCE_PEX);
+		logger.log(Level.FINE, added + " new candidate peers from " + peer);
+		if (added > 0 && connectedPeers.size() + connectingPeers.size() < Environment.getInstance().getMAX_CONNECTIONS())
+			connectToPeers();
+	}
+	
+	/*
+	 * Whether peers may be looked up on the DHT - not for private torrents, whose peers must only come from their tracker
+	 */
+	public boolean isDHTEnabled()
+	{
+		return Environment.getInstance().isDHT() && !getTorrent().isPrivate();
+	}
+	
+	/*
+	 * Look the torrent's peers up on the DHT and announce ourselves there
+	 * The peers found are handed over as they come in
+	 */
+	public void announceToDHT()
+	{
+		if (!isDHTEnabled())
+			return;
+		int announcePort = getTorrent().getPort() == null ? 0 : getTorrent().getPort() & 0xffff;
+		boolean started = DHTNode.getInstance().getPeers(getTorrent().getInfoHash(), announcePort, new PeerListener()
 		{
-			if (peer.isConnected())
+			public void onPeersFound(ByteBuffer infoHash, List<ByteBuffer> endpoints)
 			{
-				logger.log(Level.FINER, "Tried to connect to already connected " + peer);
-				continue;
+				onDHTPeersReceived(endpoints);
 			}
-			getExecutorService().execute
-			(new Runnable()	
+		});
+		logger.log(Level.FINE, (started ? "Started" : "Couldn't start") + " DHT lookup for " + getTorrent());
+	}
+	
+	/*
+	 * Handler for 'DHT peers received' event
+	 * Runs on the DHT receiver thread - connecting only hands the candidates over to the executor
+	 */
+	public void onDHTPeersReceived(List<ByteBuffer> endpoints)
+	{
+		int added = addCandidates(endpoints, CandidateStore.SOURCE_DHT);
+		logger.log(Level.FINE, added + " new candidate peers from the DHT");
+		if (added > 0 && getTorrent().isDownloading() && connectedPeers.size() + connectingPeers.size() < Environment.getInstance().getMAX_CONNECTIONS())
+			connectToPeers();
+	}
+	
+	/*
+	 * Whether the torrent may be announced on the LAN - not for private torrents, whose peers must only come from their tracker
+	 */
+	public boolean isLocalServiceDiscoveryEnabled()
+	{
+		return Environment.getInstance().isLocalServiceDiscovery() && !getTorrent().isPrivate();
+	}
+	
+	/*
+	 * Start announcing the torrent on the LAN, and listening for LAN peers announcing it
+	 */
+	public void startLocalServiceDiscovery()
+	{
+		if (isLocalServiceDiscoveryEnabled())
+			LocalServiceDiscovery.getInstance().register(this);
+	}
+	
+	/*
+	 * Handler for 'local peer discovered' event
+	 * LAN peers are connected to right away, even up to MAX_EXTRA_LOCAL_CONNECTIONS past the connection limit - they're worth
+	 * more than any WAN peer. Only new ones are, so a peer announcing over and over doesn't get retried past its backoff.
+	 * Past that they wait as candidates, which they're the best of
+	 */
+	public void onLocalPeerDiscovered(ByteBuffer endpoint)
+	{
+		if (!addCandidate(endpoint, CandidateStore.SOURCE_LSD))
+			return;
+		logger.log(Level.FINE, "Discovered LAN peer " + EndpointIndex.getIP(endpoint) + ":" + EndpointIndex.getPort(endpoint) + " for " + getTorrent());
+		if (getTorrent().isDownloading() && 
+				connectedPeers.size() + connectingPeers.size() < Environment.getInstance().getMAX_CONNECTIONS() + MAX_EXTRA_LOCAL_CONNECTIONS)
+			connectToCandidate(endpoint);
+	}
+	
+	private int addCandidates(List<ByteBuffer> endpoints, byte source)
+	{
+		int added = 0;
+		for (ByteBuffer endpoint : endpoints)
+		{
+			if (addCandidate(endpoint, source))
+				added++;
+		}
+		return added;
+	}
+	
+	/*
+	 * Send every connected peer that does PEX the changes to our connected peers since it last heard from us
+	 */
+	public void sendPeerExchange()
+	{
+		if (!isPeerExchangeEnabled())
+			return;
+		Set<ByteBuffer> connectedEndpoints = new HashSet<ByteBuffer>();
+		for (Peer peer : connectedPeers.values())
+		{
+			if (peer.getEndpoint() != null)
+				connectedEndpoints.add(peer.getEndpoint());
+		}
+		for (Peer peer : connectedPeers.values())
+		{
+			if (peer.isConnected())
+				peer.sendPeerExchange(connectedEndpoints);
+		}
+	}
+	
+	/*
+	 * Connect to the best candidates, as many as there are free connections
+	 * Candidates are tried best first, and failed ones only once their backoff is over
+	 */
+	public void connectToPeers()
+	{
+		int wanted = Environment.getInstance().getMAX_CONNECTIONS() - connectedPeers.size() - connectingPeers.size();
+		List<ByteBuffer> selected = getCandidates().select(wanted, System.currentTimeMillis(), getEndpoints());
+		logger.log(Level.FINE, "Connecting to " + selected.size() + " of " + getCandidates().size() + " candidate peers");
+		for (ByteBuffer endpoint : selected)
+			connectToCandidate(endpoint);
+	}
+	
+	/*
+	 * Create a peer for the candidate endpoint and connect to it on the executor
+	 */
+	private void connectToCandidate(ByteBuffer endpoint)
+	{
+		if (!getEndpoints().claim(endpoint))
+		{
+			logger.log(Level.FINER, "Tried to connect to already connecting, connected or banned " + EndpointIndex.getIP(endpoint));
+			return;
+		}
+		final Peer peer = new Peer(EndpointIndex.getIP(endpoint), EndpointIndex.getPort(endpoint), getTorrent(), this);
+		peer.setEndpoint(endpoint);
+		connectingPeers.put(endpoint, peer);
+		getExecutorService().execute
+		(new Runnable()	
+			{
+				public void run()
 				{
-					public void run()
+					try
 					{
-						try
-						{
-							peer.setConnecting(true);
-							if (peer.connect())
-							{
-								connectedPeers.put(peer.getPeerId(), peer);
-								logger.log(Level.FINE, "Added newly connected " + peer + " to connectedPeers list");
-							}
-							else
-								logger.log(Level.WARNING, "Failed to connect to " + peer);
-						} catch(IOException e)	
+						peer.setConnecting(true);
+						long connectStartTime = System.currentTimeMillis();
+						if (peer.connect())
 						{
-							logger.log(Level.WARNING, "Interrupted while connecting to " + peer, e);
-							Thread.currentThread().interrupt();
+							getEndpoints().transition(peer.getEndpoint(), EndpointIndex.State.CONNECTING, EndpointIndex.State.CONNECTED);
+							getCandidates().onConnected(peer.getEndpoint(), System.currentTimeMillis() - connectStartTime);
+							connectedPeers.put(peer.getPeerId(), peer);
+							logger.log(Level.FINE, "Added newly connected " + peer + " to connectedPeers list");
 						}
-						finally
+						else
+							logger.log(Level.WARNING, "Failed to connect to " + peer);
+					} catch(IOException e)	
+					{
+						logger.log(Level.WARNING, "Interrupted while connecting to " + peer, e);
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						peer.setConnecting(false);
+						connectingPeers.remove(peer.getEndpoint());
+						if (!peer.isConnected())
 						{
-							peer.setConnecting(false);
-							getPeerList().remove(peer);
+							getCandidates().onFailure(peer.getEndpoint());
+							getEndpoints().forget(peer.getEndpoint());	//Back to being a candidate
 						}
 					}
 				}
-			);
-		}
+			}
+		);
 	}
 	
 	/*
 	 * Download the next available piece from peer
+	 * Must run on the peer's receiver thread, like every other handler that touches the peer's download state
 	 */
-	private synchronized void downloadNextAvailablePieceFromPeer(Peer peer)	//TODO try to give a better name to this method
+	private void downloadNextAvailablePieceFromPeer(Peer peer)	//TODO try to give a better name to this method
 	{
-		BitSet availablePieces = peer.getAvailablePiecesCopy();
-		logger.log(Level.FINE, "Pieces downloaded so far: " + getTorrent().getCompletedPiecesCopy());
 		logger.log(Level.FINE, "Selecting next piece to download from " + peer);
-		Piece nextPiece = getTorrent().selectNextPiece(availablePieces);
+		Piece nextPiece;
+		if (peer.getPeer_choking())
+			nextPiece = claimFirstPiece(peer, peer.getAllowedFastPieces());	//Choked, only allowed fast pieces can be requested
+		else
+		{
+			nextPiece = claimFirstPiece(peer, peer.getSuggestedPieces());
+			if (nextPiece == null)
+				nextPiece = getTorrent().claimNextPiece(peer.getAvailablePieces());
+		}
 		if (nextPiece == null)
 		{
 			logger.log(Level.FINE, peer + " is boring. Nothing downloadable atm.");
 			return;
 		}		
-		getTorrent().getRequestedPieces().set(nextPiece.getIndex().intValue());
-		logger.log(Level.FINER, "Pieces currently requested " + getTorrent().getRequestedPiecesCopy());
 		logger.log(Level.FINER, "Attempting to download " + nextPiece + " from " + peer);
 		peer.downloadPiece(nextPiece);
 	}
 	
+	/*
+	 * Claim the first of the given pieces that the peer has and that is still wanted, null if none is
+	 */
+	private Piece claimFirstPiece(Peer peer, Iterable<Integer> pieceIndices)
+	{
+		for (Integer index : pieceIndices)
+		{
+			if (!peer.getAvailablePieces().get(index))
+				continue;
+			Piece piece = getTorrent().claimPiece(index);
+			if (piece != null)
+				return piece;
+		}
+		return null;
+	}
+	
+	/*
+	 * Whether blocks can be requested from the peer - it has us unchoked, or has granted us allowed fast pieces
+	 * Must run on the peer's receiver thread
+	 */
+	private boolean canRequestFrom(Peer peer)
+	{
+		return !peer.getPeer_choking() || !peer.getAllowedFastPieces().isEmpty();
+	}
+	
+	/*
+	 * Have another peer start downloading its next available piece, if it's still idle by the time it gets to it
+	 * The work is posted to the peer's receiver thread, as its download state belongs to that thread
+	 */
+	private void downloadFromIdlePeer(final Peer peer)
+	{
+		peer.post(new Runnable()
+		{
+			public void run()
+			{
+				if (peer.isConnected() && peer.getDownloadingPiece() == null 
+						&& canRequestFrom(peer) && peer.getAm_interested())
+					downloadNextAvailablePieceFromPeer(peer);
+			}
+		});
+	}
+	
+	/*
+	 * Offer a released piece to the connected peers that have it, skipping snubbed ones
+	 * Peers that aren't interested yet become interested, and the first idle unchoked one starts downloading
+	 */
+	private void offerReleasedPiece(Piece piece, Peer releasingPeer)
+	{
+		for (final Peer connectedPeer : connectedPeers.values())
+		{
+			AtomicBitSet available = connectedPeer.getAvailablePieces();	//Read once, a disconnect nulls it
+			if (connectedPeer == releasingPeer || available == null || !connectedPeer.isConnected() || connectedPeer.isSnubbed()
+					|| connectedPeer.getDownloadingPiece() != null
+					|| !available.get(piece.getIndex().intValue()))
+				continue;
+			if (!connectedPeer.getAm_interested())
+			{
+				connectedPeer.post(new Runnable()
+				{
+					public void run()
+					{
+						connectedPeer.startBeingInterested();
+					}
+				});
+			}
+			else if (!connectedPeer.getPeer_choking())
+			{
+				logger.log(Level.FINE, "Handing released " + piece + " over to idle " + connectedPeer);
+				downloadFromIdlePeer(connectedPeer);
+				return;
+			}
+		}
+	}
+	
 	/*
 	 * Handler for 'peer choke' event
 	 * If a piece was requested from the peer, clear it from the requested pieces bitset
 	 */
-	public synchronized void onPeerChoked(Peer peer)
+	public void onPeerChoked(Peer peer)
 	{
 		if (!peer.isConnected())
 		{
@@ -155,15 +426,15 @@ public class PeerManager
 			logger.log(Level.FINE, "No piece was requested from " + peer + ". No piece request to be cleared.");
 			return;
 		}
-		getTorrent().getRequestedPieces().clear(requestedPiece.getIndex().intValue());
-		logger.log(Level.FINER, requestedPiece + " cleared from requested pieces: " + getTorrent().getRequestedPiecesCopy());
+		getTorrent().releasePiece(requestedPiece.getIndex().intValue());
+		logger.log(Level.FINER, requestedPiece + " cleared from requested pieces");
 	}
 	
 	/*
 	 * Handler for 'peer unchoke' event
 	 * If the peer is interesting, try to download next available piece from peer
 	 */
-	public synchronized void onPeerUnchoked(Peer peer)
+	public void onPeerUnchoked(Peer peer)
 	{
 		if (!peer.isConnected())
 		{
@@ -182,28 +453,30 @@ public class PeerManager
 	
 	/*
 	 * Handler for 'peer interested' event
-	 * Currently does nothing
+	 * Re-evaluate the unchoked peers, so that the peer doesn't have to wait for the next choke round
 	 */
-	public synchronized void onPeerInterested(Peer peer)
+	public void onPeerInterested(Peer peer)
 	{
 		if (!peer.isConnected())
 		{
 			logger.log(Level.WARNING, "Interested by unconnected " + peer + "... wtf?");
 			return;
 		}
+		requestRechoke();
 	}
 	
 	/*
 	 * Handler for 'peer not interested' event
-	 * Currently does nothing
+	 * Re-evaluate the unchoked peers, so that the peer's slot goes to somebody else right away
 	 */
-	public synchronized void onPeerNotInterested(Peer peer)
+	public void onPeerNotInterested(Peer peer)
 	{
 		if (!peer.isConnected())
 		{
 			logger.log(Level.WARNING, "Not interested by unconnected " + peer + "... wtf?");
 			return;
 		}
+		requestRechoke();
 	}
 	
 	/*
@@ -211,13 +484,12 @@ public class PeerManager
 	 * Send an interested message if peer has any pieces that we don't already have,
 	 * or haven't already requested from another peer
 	 */
-	public synchronized void onPeerBitfieldReceived(Peer peer, BitSet availablePieces)
+	public void onPeerBitfieldReceived(Peer peer, AtomicBitSet availablePieces)
 	{
-		availablePieces.andNot(getTorrent().getCompletedPiecesCopy());
-		availablePieces.andNot(getTorrent().getRequestedPiecesCopy());
-		logger.log(Level.FINE, "Interesting pieces: " + availablePieces + ", from " + peer);
+		int wantedPiece = getTorrent().nextWantedPiece(availablePieces, 0);
+		logger.log(Level.FINE, "First interesting piece: " + wantedPiece + ", from " + peer);
 		
-		if (availablePieces.cardinality() > 0)
+		if (wantedPiece >= 0)
 			peer.startBeingInterested();
 		else
 			logger.log(Level.FINE, peer + " does not seem interesting. Continuing...");
@@ -235,17 +507,15 @@ public class PeerManager
 	 * Try to start downloading the next available piece from peer if we are interested,
 	 * and the peer hasn't choked us
 	 */
-	public synchronized void onPeerHasNewPiece(Peer peer, int pieceIndex)
+	public void onPeerHasNewPiece(Peer peer, int pieceIndex)
 	{
-		if (!getTorrent().getCompletedPiecesCopy().get(pieceIndex)
-				&& !getTorrent().getRequestedPiecesCopy().get(pieceIndex)
-				&& !peer.getAm_interested())
+		if (!peer.getAm_interested() && getTorrent().isPieceWanted(pieceIndex))
 		{
 			logger.log(Level.FINE, peer + " seems interesting now! " + getTorrent().getPiece(pieceIndex) + " is neither complete nor requested.");
 			peer.startBeingInterested();
 		}	
 		
-		if (!peer.getPeer_choking() && peer.getAm_interested() 
+		if (canRequestFrom(peer) && peer.getAm_interested() 
 				&& peer.getDownloadingPiece() == null)
 		{
 			logger.log(Level.FINE, peer + " already has us unchoked. Attempting to download next available piece.");
@@ -262,51 +532,135 @@ public class PeerManager
 	
 	/*
 	 * Handler for 'piece downloaded from peer' event
-	 * Clear the piece from requested pieces and make it available on completed pieces
-	 * Notify peers (who doesn't already have this piece) about our new acquisition
 	 * Try to start downloading the next available piece from peer if we are interested,
 	 * and the peer hasn't choked us
+	 * Hand the piece over to the file system, which fires 'piece completed' once its data is durable
+	 * The piece stays in requested pieces till then, so that nobody downloads it again in the meantime
 	 */
-	public synchronized void onPieceDownloadedFromPeer(Peer peer, Piece piece)
+	public void onPieceDownloadedFromPeer(Peer peer, Piece piece)
 	{
-		getTorrent().setDownloaded(getTorrent().getDownloaded() + piece.getLength());
-		getTorrent().getRequestedPieces().clear(piece.getIndex().intValue());
-		getTorrent().getCompletedPieces().set(piece.getIndex().intValue());
-		logger.log(Level.INFO, "Total bytes downloaded so far: " + getTorrent().getDownloaded());
-		logger.log(Level.FINE, "Requested pieces atm: " + getTorrent().getRequestedPiecesCopy());
-		logger.log(Level.FINE, "Completed pieces atm: " + getTorrent().getCompletedPiecesCopy());
-		double percentage = ((double) getTorrent().getDownloaded() / (double) getTorrent().getSize())*100.0;
+		if (canRequestFrom(peer) && peer.getAm_interested())
+		{
+			logger.log(Level.FINE, peer + " already has us unchoked. Already got a piece from this peer... time to get a new one!");
+			downloadNextAvailablePieceFromPeer(peer);
+		}
+		
+		try
+		{
+			getTorrent().getTorrentFileSystem().onPieceWritten(piece);
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Failed to commit " + piece + " to disk", e);
+		}
+	}
+	
+	/*
+	 * Handler for 'piece completed' event
+	 * Clear the piece from requested pieces and make it available on completed pieces
+	 * Notify peers (who doesn't already have this piece) about our new acquisition
+	 * Fired from the file system's commit, so it only touches other peers through their thread-safe send queues
+	 */
+	public void onPieceCompleted(Piece piece)
+	{
+		if (!getTorrent().completePiece(piece.getIndex().intValue()))
+		{
+			logger.log(Level.WARNING, piece + " was completed already");
+			return;
+		}
+		long completedBytes = getTorrent().addCompletedBytes(piece.getLength());
+		logger.log(Level.INFO, "Total bytes completed so far: " + completedBytes + ", download: " + getTorrent().getPayloadDownload());
+		double percentage = ((double) completedBytes / (double) getTorrent().getSize())*100.0;
 		//System.out.printf("Downloaded: %.2f%%\n", percentage);
 		getTorrent().onPieceDownloaded(percentage);
 		
 		for (Peer connectedPeer : connectedPeers.values())
 		{
 			if (connectedPeer.isConnected())
-			{
-				if (!connectedPeer.getAvailablePiecesCopy().get(piece.getIndex().intValue()))	//Reduces bittorrent traffic heavily
-				{
-					logger.log(Level.FINE, connectedPeer + " doesn't have newly acquired " + piece + ", should notify.");
-					connectedPeer.notifyNewAcquiredPiece(piece);
-				}
-				else
-					logger.log(Level.FINE, connectedPeer + " already has our newly acquired " + piece);
-			}
+				connectedPeer.notifyNewAcquiredPiece(piece);	//Suppressed for peers that have it, coalesced for the rest
 			else
 				logger.log(Level.WARNING, connectedPeer + " not connected? WTF!");					
 		}
-		if (getTorrent().getCompletedPiecesCopy().cardinality() == getTorrent().getPieces().length)
+		if (completedBytes == getTorrent().getSize())	//Only the thread that completes the last piece gets here
 		{
 			logger.log(Level.INFO, "Woohoo! All pieces downloaded!");
 			logger.log(Level.FINER, "On download completed event fired for " + getTorrent());
 			System.out.println("Finalizing download...");
-			getTorrent().onDownloadCompleted();				
-			return;
+			getTorrent().onDownloadCompleted();
 		}
-				
-		if (!peer.getPeer_choking() && peer.getAm_interested())
-		{
-			logger.log(Level.FINE, peer + " already has us unchoked. Already got a piece from this peer... time to get a new one!");
+	}
+	
+	/*
+	 * Handler for 'request timed out' event
+	 * The peer has already dropped the piece, so clear it from requested pieces and hand it to an idle peer that isn't snubbed
+	 * The snubbed peer itself only gets new pieces as they come up, one request at a time
+	 */
+	public void onRequestTimedOut(Peer peer, Piece piece)
+	{
+		getTorrent().releasePiece(piece.getIndex().intValue());
+		logger.log(Level.FINER, piece + " released by snubbed " + peer);
+		offerReleasedPiece(piece, peer);
+	}
+	
+	/*
+	 * Handler for 'request rejected' event
+	 * The peer won't send the rest of the piece, so release it for somebody else,
+	 * and have the peer move on to another piece if it can still serve us
+	 */
+	public void onRequestRejected(Peer peer, Piece piece)
+	{
+		getTorrent().releasePiece(piece.getIndex().intValue());
+		logger.log(Level.FINER, piece + " released after a request was rejected by " + peer);
+		offerReleasedPiece(piece, peer);
+		if (canRequestFrom(peer) && peer.getAm_interested())
 			downloadNextAvailablePieceFromPeer(peer);
+	}
+	
+	/*
+	 * Handler for 'piece download failed' event
+	 * The peer has already dropped the piece, which failed its hash check or couldn't be written, so it starts over
+	 * Release it for somebody else, and have the peer move on to another piece if it can still serve us
+	 */
+	public void onPieceDownloadFailed(Peer peer, Piece piece)
+	{
+		getTorrent().releasePiece(piece.getIndex().intValue());
+		logger.log(Level.FINER, piece + " released after its download from " + peer + " failed");
+		offerReleasedPiece(piece, peer);
+		if (canRequestFrom(peer) && peer.getAm_interested())
+			downloadNextAvailablePieceFromPeer(peer);
+	}
+	
+	/*
+	 * Handler for 'allowed fast' event
+	 * The peer lets us request the piece even while choked, so become interested if we want it and start on it if idle
+	 */
+	public void onPeerAllowedFast(Peer peer, int pieceIndex)
+	{
+		if (!peer.getAvailablePieces().get(pieceIndex) || !getTorrent().isPieceWanted(pieceIndex))
+			return;
+		if (!peer.getAm_interested())
+			peer.startBeingInterested();
+		if (peer.getDownloadingPiece() == null)
+			downloadNextAvailablePieceFromPeer(peer);
+	}
+	
+	/*
+	 * Have every connected peer check its block requests for overdue ones, on its own thread
+	 */
+	public void checkRequestTimeouts()
+	{
+		final long now = System.currentTimeMillis();
+		for (final Peer peer : connectedPeers.values())
+		{
+			if (peer.isConnected())
+			{
+				peer.post(new Runnable()
+				{
+					public void run()
+					{
+						peer.checkRequestTimeout(now);
+					}
+				});
+			}
 		}
 	}
 	
@@ -319,28 +673,37 @@ public class PeerManager
 	public synchronized void onTorrentDownloadCompleted()
 	{
 		logger.log(Level.FINE, "Torrent Download Completed event");
+		UploadSlotManager.getInstance().unregister(this);
+		LocalServiceDiscovery.getInstance().unregister(this);
 		getExecutorService().shutdown();
 		logger.log(Level.FINER, "Executor service stopped taking new requests");
+		List<Thread> receivers = new ArrayList<Thread>();
 		for (Peer peer : connectedPeers.values())
+		{
+			PeerMessenger messenger = peer.getMessenger();
+			if (messenger != null && messenger.getReceiver() != Thread.currentThread())
+				receivers.add(messenger.getReceiver());	//The disconnect runs there
 			peer.disconnect();
-		for (Peer peer : getPeerList())
+		}
+		for (Peer peer : connectingPeers.values())
 		{
-			if (peer.isConnecting() || peer.isConnected()) //peer is connected in peer list..? WTF!!
+			if (peer.isConnecting() || peer.isConnected())
 				peer.disconnect();
 		}
 		
+		awaitDisconnects(receivers);
+		savePeerCache();	//After the disconnects, which have recorded the peers' throughput
 		logger.log(Level.FINER, "All connected peers for " + getTorrent() + " disconnected! Shutting down peer manager now...");
 		shutdownPeerManager();
 	}
 	
 	/*
-	 * Handler for 'block uploaded' event
-	 * Record the amount uploaded
+	 * Handler for 'block uploaded' event, fired once the block is on the wire
+	 * The bytes themselves are counted by the peer's messenger as they hit the wire
 	 */
-	public synchronized void onBlockUploadedToPeer(int size) //TODO maybe we should record when we have uploaded a piece, and not a block?
+	public void onBlockUploadedToPeer(int size)
 	{
-		getTorrent().setUploaded(getTorrent().getUploaded() + size);
-		logger.log(Level.FINE, "Block of size " + size + " uploaded. Total number of bytes uploaded so far: " + getTorrent().getUploaded());
+		logger.log(Level.FINE, "Block of size " + size + " uploaded. Upload so far: " + getTorrent().getPayloadUpload());
 	}
 	
 	/*
@@ -348,7 +711,7 @@ public class PeerManager
 	 * Clear piece requested (if any) from this peer
 	 * Remove peer from connected peers list
 	 */
-	public synchronized void onPeerDisconnected(Peer peer)
+	public void onPeerDisconnected(Peer peer)
 	{
 		Piece requestedPiece = peer.getDownloadingPiece();
 		if (requestedPiece == null)
@@ -356,92 +719,126 @@ public class PeerManager
 		else
 		{
 			logger.log(Level.FINE, "Piece request to be cleared: " + requestedPiece);
-			synchronized (getTorrent().getRequestedPieces())
-			{
-				getTorrent().getRequestedPieces().clear(requestedPiece.getIndex().intValue());
-				logger.log(Level.FINER, requestedPiece + " cleared from requested pieces: " + getTorrent().getRequestedPiecesCopy());
-			}
+			getTorrent().releasePiece(requestedPiece.getIndex().intValue());
+			logger.log(Level.FINER, requestedPiece + " cleared from requested pieces");
 		}
 		
 		if (peer != null && peer.getPeerId() != null)
 			getConnectedPeers().remove(peer.getPeerId());
+		if (peer.getConnectedTime() != 0)
+		{
+			long now = System.currentTimeMillis();
+			getCandidates().onDisconnected(peer.getEndpoint(), peer.getAverageThroughput(now), now);
+		}
+		getEndpoints().forget(peer.getEndpoint());
 		logger.log(Level.FINEST, peer + " removed from connected peers list.");
+		if (!peer.getAm_choking())
+			requestRechoke();	//Its upload slot is free now
 		
 		if (requestedPiece != null)
 		{
 			logger.log(Level.FINE, "Checking if any other peer has the cleared piece...");
-			for (Peer connectedPeer : connectedPeers.values())
-			{
-				if (connectedPeer.getDownloadingPiece() == null)
-				{
-					BitSet availablePieces = connectedPeer.getAvailablePiecesCopy();
-					availablePieces.andNot(getTorrent().getCompletedPiecesCopy());
-					availablePieces.andNot(getTorrent().getRequestedPiecesCopy());
-					logger.log(Level.FINE, "Interesting pieces: " + availablePieces + ", from " + connectedPeer);
-					if (availablePieces.cardinality() > 0)
-					{
-						if (!connectedPeer.getAm_interested())
-							connectedPeer.startBeingInterested();
-						else
-						{
-							if (!peer.getPeer_choking() & peer.getDownloadingPiece() == null)
-								downloadNextAvailablePieceFromPeer(connectedPeer);
-							break;
-						}
-					}
-				}
-			}
+			offerReleasedPiece(requestedPiece, peer);
 		}
 	}
 	
 	/*
-	 * Check if peer is connected already
+	 * Keep the connections busy - replace the worst under-performing peer if a better candidate is waiting,
+	 * and fill free connections from the candidates
 	 */
-	public synchronized boolean isConnectedAlready(Peer peerToConnectTo)	//TODO what a pile of redundant bullshit! -_-
+	public void maintainConnections()
 	{
-		if (peerToConnectTo == null)
-			return false;		
-		
-		for (Peer connectedPeer : connectedPeers.values())
+		replaceUnderperformingPeer();
+		connectToPeers();	//The replaced peer's connection is only freed once it has disconnected, so it's filled next time
+	}
+	
+	/*
+	 * Disconnect the connected peer that has done least for us, if it's had its trial time, still does next to nothing,
+	 * and a candidate that scores better than it would after this connection is ready to take its place
+	 * Peers we upload to are left alone, the choker has already judged them worth it,
+	 * and so are peers that are interested while we seed, they're waiting for an upload slot
+	 * Only done while all connections are in use - free connections are filled without disconnecting anybody
+	 */
+	private void replaceUnderperformingPeer()
+	{
+		if (connectedPeers.size() + connectingPeers.size() < Environment.getInstance().getMAX_CONNECTIONS())
+			return;
+		long now = System.currentTimeMillis();
+		Peer worstPeer = null;
+		double worstRate = CandidateStore.MIN_USEFUL_THROUGHPUT;
+		for (Peer peer : connectedPeers.values())
 		{
-			if (peerToConnectTo.getPeerId() != null)	//If the tracker sent a peerID, we can directly check if the peerIDs are equal
-			{
-				if (connectedPeer.getPeerId().compareTo(peerToConnectTo.getPeerId()) == 0)
-					return true;
+			if (now - peer.getConnectedTime() < PEER_TRIAL_TIME || !peer.getAm_choking()
+					|| (getTorrent().isCompleted() && peer.getPeer_interested()))
 				continue;
+			double rate = peer.getPayloadDownload().getRate(RateEstimator.LONG) + peer.getPayloadUpload().getRate(RateEstimator.LONG);
+			if (rate < worstRate)
+			{
+				worstPeer = peer;
+				worstRate = rate;
 			}
-			
-			if (connectedPeer.getIP().compareTo(peerToConnectTo.getIP()) == 0
-					&& connectedPeer.getPort().compareTo(peerToConnectTo.getPort()) == 0)	//else check for equality of IP and port
-				return true;
 		}
-		
-		for (Peer peer : getPeerList())
+		if (worstPeer == null)
+			return;
+		float worstScore = getCandidates().getScoreIfDisconnected(worstPeer.getEndpoint(), worstPeer.getAverageThroughput(now), now);
+		if (!getCandidates().hasBetterThan(worstScore, now, getEndpoints()))
+			return;
+		logger.log(Level.INFO, "Replacing under-performing " + worstPeer + " (" + (int) worstRate + " B/s) with a better candidate");
+		worstPeer.disconnect();	//Posted to its receiver thread, which owns its download state
+	}
+	
+	/*
+	 * Check if peer is connected already, or being connected to
+	 */
+	public boolean isConnectedAlready(Peer peerToConnectTo)
+	{
+		if (peerToConnectTo == null)
+			return false;
+		if (peerToConnectTo.getPeerId() != null && connectedPeers.containsKey(peerToConnectTo.getPeerId()))
+			return true;
+		EndpointIndex.State state = getEndpoints().getState(peerToConnectTo.getEndpoint());
+		return state == EndpointIndex.State.CONNECTING || state == EndpointIndex.State.CONNECTED;
+	}
+	
+	/*
+	 * Ban the peer's endpoint for misbehaving, so that it's never connected to again
+	 */
+	public void banPeer(Peer peer)
+	{
+		logger.log(Level.WARNING, "Banning " + peer);
+		getEndpoints().ban(peer.getEndpoint());
+		getCandidates().remove(peer.getEndpoint());
+	}
+	
+	/*
+	 * Shutdown executor service so that it doesn't keep running after main thread exits
+	 */
+	/*
+	 * Wait for the receiver threads to finish the disconnects posted to them, for at most DISCONNECT_TIMEOUT in all,
+	 * so that the peers' throughput has been recorded by the time the peer cache is saved
+	 */
+	private void awaitDisconnects(List<Thread> receivers)
+	{
+		long deadline = System.currentTimeMillis() + DISCONNECT_TIMEOUT;
+		try
 		{
-			if (peerToConnectTo.getPeerId() != null)	//If the tracker sent a peerID, we can directly check if the peerIDs are equal
+			for (Thread receiver : receivers)
 			{
-				if (peer.getPeerId().compareTo(peerToConnectTo.getPeerId()) == 0)
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
 				{
-					if (peer.isConnecting())
-						return true;
+					logger.log(Level.WARNING, "Timed out waiting for peers of " + getTorrent() + " to disconnect");
+					return;
 				}
-				continue;
-			}
-			
-			if (peer.getIP().compareTo(peerToConnectTo.getIP()) == 0
-					&& peer.getPort().compareTo(peerToConnectTo.getPort()) == 0)	//else check for equality of IP and port
-			{
-				if (peer.isConnecting())
-					return true;
+				receiver.join(left);
 			}
+		} catch (InterruptedException e)
+		{
+			logger.log(Level.WARNING, "Interrupted while waiting for peers to disconnect", e);
+			Thread.currentThread().interrupt();
 		}
-		
-		return false;
 	}
 	
-	/*
-	 * Shutdown executor service so that it doesn't keep running after main thread exits
-	 */
 	public void shutdownPeerManager()
 	{
 		getExecutorService().shutdown();	//TODO Redundant
@@ -465,45 +862,57 @@ public class PeerManager
 	}
 	
 	/*
-	 * Lame unchoking algorithm
-	 * Needs to be far more intelligent
-	 * But that would require a proper 'download/upload speed' implementation
+	 * Count connected peers that are interested in us
 	 */
-	public void unchokePeers()
+	public int getInterestedPeerCount()
 	{
-		for (Entry<ByteBuffer, Peer> peer : unchokedPeers.entrySet())
+		int interested = 0;
+		for (Peer peer : connectedPeers.values())
 		{
-			if (!peer.getValue().isConnected())
-			{
-				logger.log(Level.FINER, "Disconnected " + peer.getValue() + " removed from unchoked peers");
-				unchokedPeers.remove(peer.getKey());
-			}				
-			else if (peer.getValue().getPeer_choking())
-			{
-				logger.log(Level.FINER, peer.getValue() + ", amare choke korsos..? Toreo choke korlam!");
-				peer.getValue().choke();
-				unchokedPeers.remove(peer.getKey());
-			}
+			if (peer.isConnected() && peer.getPeer_interested())
+				interested++;
 		}
-		
-		if (unchokedPeers.size() < MAX_DOWNLOADERS)
+		return interested;
+	}
+	
+	/*
+	 * Run a tit-for-tat choke round
+	 */
+	public void unchokePeers()
+	{
+		getChoker().runRound();
+	}
+	
+	/*
+	 * Have the choker re-evaluate on the timer wheel as soon as possible
+	 * Requests made while one is already pending are folded into it
+	 */
+	public void requestRechoke()
+	{
+		if (!rechokePending.compareAndSet(false, true))
+			return;
+		TimerWheel.getInstance().schedule(new Runnable()
 		{
-			for (Entry<ByteBuffer, Peer> peer : connectedPeers.entrySet())
+			public void run()
 			{
-				if (!unchokedPeers.containsKey(peer.getKey()))
-				{
-					if (peer.getValue().getPeer_interested() && peer.getValue().getAm_choking())
-					{
-						if (peer.getValue().getDownloadedPiecesCopy().cardinality() > 0)
-						{
-							logger.log(Level.FINER, peer.getValue() + ", amakeo dise... tai amio take dilam!");
-							unchokedPeers.put(peer.getKey(), peer.getValue());
-							peer.getValue().unchoke();
-						}						
-					}								
-				}
+				rechokePending.set(false);
+				if (getTorrent().isDownloading())
+					getChoker().rechoke();
 			}
-		}		
+		}, 0, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Send a keep-alive to every connected peer we haven't sent anything for a while
+	 */
+	public void sendKeepAlives()
+	{
+		long now = System.currentTimeMillis();
+		for (Peer peer : connectedPeers.values())
+		{
+			if (peer.isConnected())
+				peer.keepAlive(now);
+		}
 	}
 	
 	public Torrent getTorrent() {
@@ -514,12 +923,12 @@ public class PeerManager
 		this.torrent = torrent;
 	}
 	
-	public Queue<Peer> getPeerList() {
-		return peerList;
+	public CandidateStore getCandidates() {
+		return candidates;
 	}
 
-	public void setPeerList(Queue<Peer> peerList) {
-		this.peerList = peerList;
+	public Map<ByteBuffer, Peer> getConnectingPeers() {
+		return connectingPeers;
 	}
 
 	public Map<ByteBuffer, Peer> getConnectedPeers() {
@@ -530,6 +939,18 @@ public class PeerManager
 		this.connectedPeers = connectedPeers;
 	}
 
+	public EndpointIndex getEndpoints() {
+		return endpoints;
+	}
+
+	public Choker getChoker() {
+		return choker;
+	}
+
+	public void setChoker(Choker choker) {
+		this.choker = choker;
+	}
+
 	public ExecutorService getExecutorService() {
 		return executorService;
 	}
@@ -3,8 +3,14 @@
  */
 package peer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import tools.BencodeWriter;
+import tools.Util;
 
 public class PeerMessage
 {
@@ -18,6 +24,15 @@ public class PeerMessage
 	public final static byte PIECE_ID = 7;
 	public final static byte CANCEL_ID = 8;
 	public final static byte PORT_ID = 9;
+	public final static byte SUGGEST_PIECE_ID = 0x0D;	//Fast extension (BEP 6) messages
+	public final static byte HAVE_ALL_ID = 0x0E;
+	public final static byte HAVE_NONE_ID = 0x0F;
+	public final static byte REJECT_REQUEST_ID = 0x10;
+	public final static byte ALLOWED_FAST_ID = 0x11;
+	public final static byte EXTENDED_ID = 20;	//Extension protocol (BEP 10) messages, the extended message ID follows
+	public final static byte EXTENDED_HANDSHAKE_ID = 0;
+	public final static byte UT_PEX_ID = 1;	//The extended message ID we ask peers to send ut_pex with
+	public final static int MAX_PEX_PEERS = 50;	//Added or dropped peers per ut_pex message
 	public final static int BYTE_SIZE = 1;
 	public final static int SHORT_SIZE = 2;
 	public final static int INT_SIZE = 4;
@@ -35,6 +50,12 @@ public class PeerMessage
 	public final static int PIECE_BASE_SIZE = BASE_SIZE + 2*INT_SIZE;
 	public final static int CANCEL_BASE_SIZE = BASE_SIZE + 3*INT_SIZE;
 	public final static int PORT_BASE_SIZE = BASE_SIZE + SHORT_SIZE;
+	public final static int SUGGEST_PIECE_BASE_SIZE = BASE_SIZE + INT_SIZE;
+	public final static int HAVE_ALL_BASE_SIZE = BASE_SIZE;
+	public final static int HAVE_NONE_BASE_SIZE = BASE_SIZE;
+	public final static int REJECT_REQUEST_BASE_SIZE = BASE_SIZE + 3*INT_SIZE;
+	public final static int ALLOWED_FAST_BASE_SIZE = BASE_SIZE + INT_SIZE;
+	public final static int EXTENDED_BASE_SIZE = BASE_SIZE + BYTE_SIZE;
 	
 	
 	public static ByteBuffer encodeKeepAlive()
@@ -73,15 +94,12 @@ public class PeerMessage
 				.putInt(BYTE_SIZE+INT_SIZE).put(HAVE_ID).putInt(index).rewind();
 	}
 	
-	public static ByteBuffer encodeBitfield(BitSet bitfield)
+	/*
+	 * Encode the first size bits of a bitset, given as its words in BitSet.toLongArray() order
+	 */
+	public static ByteBuffer encodeBitfield(long[] words, int size)
 	{
-		byte[] bitfieldArray = new byte[(bitfield.size()+7)/8];
-		
-		for (int bitIndex = bitfield.nextSetBit(0); 
-				bitIndex >=0; bitIndex = bitfield.nextSetBit(bitIndex+1))	//TODO move to Util
-		{
-			bitfieldArray[bitIndex/8] |= (1 << (7 - (bitIndex%8)));	//Little-endian bits to big-endian bits
-		}
+		byte[] bitfieldArray = Util.encodeBitfield(words, size);
 		
 		return (ByteBuffer) ByteBuffer.allocate(BITFIELD_BASE_SIZE + bitfieldArray.length)
 				.putInt(BYTE_SIZE+bitfieldArray.length).put(BITFIELD_ID)
@@ -97,11 +115,22 @@ public class PeerMessage
 	
 	public static ByteBuffer encodePiece(int index, int begin, ByteBuffer block)
 	{
-		return (ByteBuffer) ByteBuffer.allocate(PIECE_BASE_SIZE + block.array().length)
-				.putInt(BYTE_SIZE+INT_SIZE*2+block.array().length).put(PIECE_ID)
+		return (ByteBuffer) ByteBuffer.allocate(PIECE_BASE_SIZE + block.remaining())
+				.putInt(BYTE_SIZE+INT_SIZE*2+block.remaining()).put(PIECE_ID)
 				.putInt(index).putInt(begin).put(block).rewind();
 	}
 	
+	/*
+	 * Encode just the header of a PIECE message carrying a block of the given length
+	 * The block itself is expected to follow on the wire
+	 */
+	public static ByteBuffer encodePieceHeader(int index, int begin, int length)
+	{
+		return (ByteBuffer) ByteBuffer.allocate(PIECE_BASE_SIZE)
+				.putInt(BYTE_SIZE+INT_SIZE*2+length).put(PIECE_ID)
+				.putInt(index).putInt(begin).rewind();
+	}
+	
 	public static ByteBuffer encodeCancel(int index, int begin, int length)
 	{
 		return (ByteBuffer) ByteBuffer.allocate(CANCEL_BASE_SIZE)
@@ -112,7 +141,119 @@ public class PeerMessage
 	public static ByteBuffer encodePort(int port)
 	{
 		return (ByteBuffer) ByteBuffer.allocate(PORT_BASE_SIZE)
-				.putInt(BYTE_SIZE+SHORT_SIZE).put(PORT_ID).putInt(port).rewind();
+				.putInt(BYTE_SIZE+SHORT_SIZE).put(PORT_ID).putShort((short) port).rewind();
+	}
+	
+	public static ByteBuffer encodeSuggestPiece(int index)
+	{
+		return (ByteBuffer) ByteBuffer.allocate(SUGGEST_PIECE_BASE_SIZE)
+				.putInt(BYTE_SIZE+INT_SIZE).put(SUGGEST_PIECE_ID).putInt(index).rewind();
+	}
+	
+	public static ByteBuffer encodeHaveAll()
+	{
+		return (ByteBuffer) ByteBuffer.allocate(HAVE_ALL_BASE_SIZE)
+				.putInt(BYTE_SIZE).put(HAVE_ALL_ID).rewind();
+	}
+	
+	public static ByteBuffer encodeHaveNone()
+	{
+		return (ByteBuffer) ByteBuffer.allocate(HAVE_NONE_BASE_SIZE)
+				.putInt(BYTE_SIZE).put(HAVE_NONE_ID).rewind();
+	}
+	
+	public static ByteBuffer encodeRejectRequest(int index, int begin, int length)
+	{
+		return (ByteBuffer) ByteBuffer.allocate(REJECT_REQUEST_BASE_SIZE)
+				.putInt(BYTE_SIZE+INT_SIZE*3).put(REJECT_REQUEST_ID).putInt(index)
+				.putInt(begin).putInt(length).rewind();
+	}
+	
+	public static ByteBuffer encodeAllowedFast(int index)
+	{
+		return (ByteBuffer) ByteBuffer.allocate(ALLOWED_FAST_BASE_SIZE)
+				.putInt(BYTE_SIZE+INT_SIZE).put(ALLOWED_FAST_ID).putInt(index).rewind();
+	}
+	
+	/*
+	 * Encode an extended message with the given bencoded dictionary as its payload
+	 */
+	public static ByteBuffer encodeExtended(byte extendedId, HashMap<String, Object> payload)
+	{
+		ByteArrayOutputStream bencoded = new ByteArrayOutputStream();
+		try
+		{
+			BencodeWriter writer = new BencodeWriter(bencoded);
+			writer.writeDictionary(payload);
+			writer.flush();
+		} catch (IOException e)
+		{
+			throw new PeerMessageException("Couldn't bencode extended message " + extendedId);	//Can't happen writing to memory
+		}
+		return (ByteBuffer) ByteBuffer.allocate(EXTENDED_BASE_SIZE + bencoded.size())
+				.putInt(BYTE_SIZE+BYTE_SIZE+bencoded.size()).put(EXTENDED_ID).put(extendedId)
+				.put(bencoded.toByteArray()).rewind();
+	}
+	
+	/*
+	 * Encode the extended handshake, listing the extensions we support and the IDs we want them sent with
+	 * listenPort is left out if 0
+	 */
+	@SuppressWarnings("unchecked")
+	public static ByteBuffer encodeExtendedHandshake(boolean peerExchange, int listenPort, int maxQueuedRequests)
+	{
+		HashMap<Object, Object> extensions = new HashMap<Object, Object>();
+		if (peerExchange)
+			extensions.put(Util.stringToByteBuffer("ut_pex"), (long) UT_PEX_ID);
+		HashMap<Object, Object> handshake = new HashMap<Object, Object>();
+		handshake.put(Util.stringToByteBuffer("m"), extensions);
+		handshake.put(Util.stringToByteBuffer("v"), Util.stringToByteBuffer("CSE 3.1.0"));
+		handshake.put(Util.stringToByteBuffer("reqq"), (long) maxQueuedRequests);
+		if (listenPort > 0)
+			handshake.put(Util.stringToByteBuffer("p"), (long) listenPort);
+		return encodeExtended(EXTENDED_HANDSHAKE_ID, (HashMap<String, Object>) (HashMap<?, ?>) handshake);
+	}
+	
+	/*
+	 * Encode a ut_pex message from packed endpoints, IPv4 and IPv6 ones go to their own compact lists
+	 * remotePexId is the ID the peer asked for in its extended handshake
+	 */
+	@SuppressWarnings("unchecked")
+	public static ByteBuffer encodePex(byte remotePexId, List<ByteBuffer> added, List<ByteBuffer> dropped)
+	{
+		HashMap<Object, Object> pex = new HashMap<Object, Object>();
+		pex.put(Util.stringToByteBuffer("added"), compactEndpoints(added, EndpointIndex.IPV4_ENDPOINT_LENGTH));
+		pex.put(Util.stringToByteBuffer("added.f"), ByteBuffer.wrap(new byte[countEndpoints(added, EndpointIndex.IPV4_ENDPOINT_LENGTH)]));
+		pex.put(Util.stringToByteBuffer("dropped"), compactEndpoints(dropped, EndpointIndex.IPV4_ENDPOINT_LENGTH));
+		pex.put(Util.stringToByteBuffer("added6"), compactEndpoints(added, EndpointIndex.IPV6_ENDPOINT_LENGTH));
+		pex.put(Util.stringToByteBuffer("added6.f"), ByteBuffer.wrap(new byte[countEndpoints(added, EndpointIndex.IPV6_ENDPOINT_LENGTH)]));
+		pex.put(Util.stringToByteBuffer("dropped6"), compactEndpoints(dropped, EndpointIndex.IPV6_ENDPOINT_LENGTH));
+		return encodeExtended(remotePexId, (HashMap<String, Object>) (HashMap<?, ?>) pex);
+	}
+	
+	/*
+	 * Concatenate the endpoints of the given length into one compact string
+	 */
+	private static ByteBuffer compactEndpoints(List<ByteBuffer> endpoints, int endpointLength)
+	{
+		ByteBuffer compact = ByteBuffer.allocate(countEndpoints(endpoints, endpointLength) * endpointLength);
+		for (ByteBuffer endpoint : endpoints)
+		{
+			if (endpoint.remaining() == endpointLength)
+				compact.put(endpoint.duplicate());
+		}
+		return compact;
+	}
+	
+	private static int countEndpoints(List<ByteBuffer> endpoints, int endpointLength)
+	{
+		int count = 0;
+		for (ByteBuffer endpoint : endpoints)
+		{
+			if (endpoint.remaining() == endpointLength)
+				count++;
+		}
+		return count;
 	}
 	
 	public static class PeerMessageException extends IllegalArgumentException
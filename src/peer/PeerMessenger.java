@@ -1,15 +1,15 @@
 /*
  * Peer messenger is a message carrier and receiver
  * It wraps around Java NIO for ease of use
+ * Both directions are rate limited by the peer's, the torrent's and the global token buckets.
+ * The sender pays for a message before writing it and the receiver pays for what it read after reading it,
+ * each waiting out any debt on its own thread, so limiting costs no extra threads or locks.
  */
 package peer;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -17,24 +17,28 @@ import java.util.logging.Logger;
 
 import client.LoggingClient;
 
-import java.nio.channels.SocketChannel;
-
+import tools.TokenBucket;
 import tools.Util;
 
 public class PeerMessenger
 {
 	private Peer peer;
-	private LinkedBlockingQueue<ByteBuffer> messageQueue;
+	private LinkedBlockingQueue<OutgoingMessage> messageQueue;
 	private Thread sender;
 	private Thread receiver;
 	private volatile boolean running = false;	//http://tutorials.jenkov.com/java-concurrency/volatile.html	
+	private TokenBucket[] uploadLimiters;
+	private TokenBucket[] downloadLimiters;
+	private volatile long lastSendTime = System.currentTimeMillis();
 	private final static long POLL_TIMEOUT = 120l;
+	private final static long KEEP_ALIVE_TIME = 90*1000;	//Milliseconds of silence before a keep-alive is due, peers drop us after two minutes
+	private final static int READ_QUANTUM = 256*Util.SIZE_KB;	//Most bytes read at once, so a limited peer can't grab a large burst
 	Logger logger = LoggingClient.getInstance().logger;
 	
 	public PeerMessenger(Peer peer)
 	{
 		this.peer = peer;
-		this.messageQueue = new LinkedBlockingQueue<ByteBuffer>();
+		this.messageQueue = new LinkedBlockingQueue<OutgoingMessage>();
 		this.sender = new Thread(new MessageSender());
 		this.sender.setDaemon(true);
 		this.receiver = new Thread(new MessageReceiver());
@@ -49,6 +53,8 @@ public class PeerMessenger
 		if (!isRunning())
 		{
 			setRunning(true);
+			uploadLimiters = getPeer().getUploadLimiters();
+			downloadLimiters = getPeer().getDownloadLimiters();
 			sender.start();
 			receiver.start();
 			logger.log(Level.INFO, "Sender and receiver threads started for " + getPeer());
@@ -71,6 +77,14 @@ public class PeerMessenger
 	 * Put message in message queue
 	 */
 	public void send(ByteBuffer message)
+	{
+		send(new OutgoingMessage(message));
+	}
+	
+	/*
+	 * Put message in message queue
+	 */
+	public void send(OutgoingMessage message)
 	{
 		try
 		{
@@ -81,6 +95,27 @@ public class PeerMessenger
 		}
 	}
 	
+	/*
+	 * Wake the receiver thread up, so that it runs the tasks posted to the peer
+	 */
+	public void wakeup()
+	{
+		getPeer().getTransport().wakeup();
+	}
+	
+	/*
+	 * Queue a keep-alive message if nothing has been sent for KEEP_ALIVE_TIME
+	 * Called periodically from the timer wheel
+	 */
+	public void keepAlive(long now)
+	{
+		if (isRunning() && now - lastSendTime >= KEEP_ALIVE_TIME && getMessageQueue().isEmpty())
+		{
+			logger.log(Level.INFO, "Sending keep-alive message. Nothing sent to " + getPeer() + " for a while");
+			send(PeerMessage.encodeKeepAlive());
+		}
+	}
+	
 	/*
 	 * Message receiver thread
 	 * It only reads raw messages from peer and fires a message received event for rest of the processing
@@ -95,16 +130,12 @@ public class PeerMessenger
 			ByteBuffer buf = ByteBuffer.allocateDirect(1*Util.SIZE_MB);	
 			try 
 			{
-				Selector selector = Selector.open();
-				getPeer().getSocketChannel().configureBlocking(false)
-						.register(selector, SelectionKey.OP_READ);
-				
 				while(isRunning())
 				{
 					buf.rewind().mark().limit(PeerMessage.LENGTH_SIZE);
 					
 					while (isRunning() && buf.hasRemaining())
-						this.read(selector, buf);
+						this.read(buf);
 					buf.reset();
 					if (!isRunning())
 						return;
@@ -112,11 +143,16 @@ public class PeerMessenger
 					buf.limit(PeerMessage.LENGTH_SIZE + messageLength).mark();
 					
 					while (isRunning() && buf.hasRemaining())
-						this.read(selector, buf);
+						this.read(buf);
 					buf.reset();
 					if (!isRunning())
 						return;
 					
+					if (messageLength > 0 && buf.get(buf.position()) == PeerMessage.PIECE_ID)
+						getPeer().recordDownload(PeerMessage.PIECE_BASE_SIZE, messageLength - (PeerMessage.PIECE_BASE_SIZE - PeerMessage.LENGTH_SIZE));
+					else
+						getPeer().recordDownload(PeerMessage.LENGTH_SIZE + messageLength, 0);
+					
 					//Forward the message starting after the length field
 					//The buffer has already been 'limited' up to length
 					//The handler can therefore use buf.remaining() to find the length of the buffer
@@ -128,35 +164,60 @@ public class PeerMessenger
 				setRunning(false);
 				logger.log(Level.FINER, "Stopping peer messenger for " + getPeer() + " and abruptly disconnecting");
 				getPeer().abruptDisconnect();
+			} catch (PeerMessage.PeerMessageException e)
+			{
+				logger.log(Level.WARNING, "Protocol violation by " + getPeer(), e);
+				setRunning(false);
+				getPeer().getManager().banPeer(getPeer());	//Before disconnecting, so the endpoint isn't forgotten
+				getPeer().abruptDisconnect();
+			} catch (RuntimeException e)	//Our bug rather than the peer's, but the peer can't be served without a receiver
+			{
+				logger.log(Level.SEVERE, "Unexpected error while handling message from " + getPeer(), e);
+				setRunning(false);
+				getPeer().abruptDisconnect();
 			}
 		}
 		
-		public void read(Selector selector, ByteBuffer buf) throws IOException
+		/*
+		 * Wait till the transport is readable, running the tasks posted to the peer before and after waiting
+		 * Posting a task wakes the transport up, so tasks don't wait for the peer's next message
+		 */
+		public void read(ByteBuffer buf) throws IOException
 		{
-			if (selector.select() == 0)
-				return;
-			
-			Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-			while (isRunning() && keyIterator.hasNext())
-			{
-				SelectionKey key = keyIterator.next();
-				if (key.isReadable())
-					_read((SocketChannel) key.channel(), buf);
-				keyIterator.remove();
-			}
+			getPeer().runPostedTasks();
+			if (!isRunning())
+				return;	//A posted task disconnected the peer, its transport is closed now
+			boolean readable = getPeer().getTransport().awaitReadable(0);
+			getPeer().runPostedTasks();
+			if (readable && isRunning())
+				_read(getPeer().getTransport(), buf);
 		}
 		
-		public void _read(SocketChannel channel, ByteBuffer buf) throws IOException
+		/*
+		 * Read at most READ_QUANTUM bytes, then pay for them
+		 * While the limiters are in debt, the receiver stops reading and the transport's flow control slows the peer down
+		 */
+		public void _read(Transport transport, ByteBuffer buf) throws IOException
 		{
 			int read = 0;
-			if (isRunning())
-				read = channel.read(buf);
+			int limit = buf.limit();
+			buf.limit(Math.min(limit, buf.position() + READ_QUANTUM));
+			try
+			{
+				if (isRunning())
+					read = transport.read(buf);
+			} finally
+			{
+				buf.limit(limit);
+			}
 			if (read == -1)
 			{
 				EOFException e = new EOFException("Reached EOF while reading from peer " + getPeer());
 				logger.log(Level.WARNING, "EOF ERROR", e);
 				throw e;
-			}				
+			}
+			if (read > 0)
+				TokenBucket.throttle(read, downloadLimiters);
 		}
 	}
 	
@@ -164,7 +225,7 @@ public class PeerMessenger
 	 * Message sender thread
 	 * It polls the message queue, waiting for upto POLL_TIMEOUT seconds
 	 * If a message is available, it sends the message to peer
-	 * Otherwise it sends a keep-alive message
+	 * Otherwise it just checks whether it should still be running - keep-alives are queued by the timer wheel
 	 */
 	private class MessageSender implements Runnable
 	{
@@ -174,14 +235,12 @@ public class PeerMessenger
 			{
 				try 
 				{
-					ByteBuffer message = messageQueue.poll(POLL_TIMEOUT, TimeUnit.SECONDS);
+					OutgoingMessage message = messageQueue.poll(POLL_TIMEOUT, TimeUnit.SECONDS);
 					if (message == null)
-					{
-						message = PeerMessage.encodeKeepAlive();
-						if (isRunning())
-							logger.log(Level.INFO, "Sending keep-alive message. No messages queued for " + getPeer());
-					}
+						continue;
 					this.write(message);
+					if (message.isBlock())
+						getPeer().onBlockSent(message.getPayloadLength());
 				} catch (InterruptedException e) 
 				{
 					logger.log(Level.WARNING, "Sender thread for " + getPeer() + " interrupted while trying to write a message", e);
@@ -191,14 +250,35 @@ public class PeerMessenger
 					setRunning(false);
 					logger.log(Level.FINER, "Stopping peer messenger for " + getPeer() + " and abruptly disconnecting");
 					getPeer().abruptDisconnect();
+				} catch (RuntimeException e)	//A block past the end of its piece, say - the peer can't be served without a sender
+				{
+					logger.log(Level.SEVERE, "Unexpected error while sending message to " + getPeer(), e);
+					setRunning(false);
+					getPeer().abruptDisconnect();
 				}
 			}
 		}
 		
-		public void write(ByteBuffer message) throws IOException
+		/*
+		 * Write the message's buffers in one gathering write, followed by the block of a zero-copy PIECE message straight from disk
+		 * The message is paid for up front, and written once the limiters are out of debt
+		 * Whenever the transport is full, we wait for room rather than retry right away
+		 */
+		public void write(OutgoingMessage message) throws IOException
 		{
+			long wireLength = message.getWireLength();
+			TokenBucket.throttle(wireLength, uploadLimiters);
+			Transport transport = getPeer().getTransport();
 			while (isRunning() && message.hasRemaining())
-				getPeer().getSocketChannel().write(message);
+				transport.write(message.getBuffers());
+			for (long transferred = 0; isRunning() && message.isZeroCopy() && transferred < message.getLength();)
+			{
+				transferred += message.getPiece().transferTo(transport.getTransferTarget(), message.getBegin() + transferred, message.getLength() - transferred);
+				if (transferred < message.getLength())
+					transport.awaitWritable();
+			}
+			getPeer().recordUpload(wireLength - message.getPayloadLength(), message.getPayloadLength());
+			lastSendTime = System.currentTimeMillis();
 		}
 	}
 
@@ -210,11 +290,11 @@ public class PeerMessenger
 		this.peer = peer;
 	}
 
-	public LinkedBlockingQueue<ByteBuffer> getMessageQueue() {
+	public LinkedBlockingQueue<OutgoingMessage> getMessageQueue() {
 		return messageQueue;
 	}
 
-	public void setMessageQueue(LinkedBlockingQueue<ByteBuffer> messageQueue) {
+	public void setMessageQueue(LinkedBlockingQueue<OutgoingMessage> messageQueue) {
 		this.messageQueue = messageQueue;
 	}
 
@@ -0,0 +1,146 @@
+/*
+ * The TCP transport, a SocketChannel
+ * The channel stays blocking through connecting and the handshake, and turns non-blocking once the receiver thread
+ * first waits for data, registering with a selector of its own so wakeup() can interrupt the wait.
+ * From then on, writes that find the send buffer full wait for room on a second selector, owned by the sender thread.
+ */
+package peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class TcpTransport implements Transport
+{
+	private final static long WRITE_WAIT = 1000;	//Milliseconds at most to wait for room in the send buffer, before the caller checks on things
+	private final SocketChannel channel;
+	private volatile Selector selector;
+	private volatile Selector writeSelector;
+	private InetSocketAddress remoteAddress;
+
+	public TcpTransport() throws IOException
+	{
+		this.channel = SocketChannel.open();
+	}
+
+	public void connect(InetSocketAddress address) throws IOException
+	{
+		remoteAddress = address;
+		channel.connect(address);
+	}
+
+	public int read(ByteBuffer buffer) throws IOException
+	{
+		return channel.read(buffer);
+	}
+
+	public int write(ByteBuffer buffer) throws IOException
+	{
+		int written = channel.write(buffer);
+		if (written == 0 && buffer.hasRemaining())
+			awaitWritable();
+		return written;
+	}
+
+	public long write(ByteBuffer[] buffers) throws IOException
+	{
+		long written = channel.write(buffers);
+		if (written == 0 && buffers.length > 0 && buffers[buffers.length - 1].hasRemaining())
+			awaitWritable();
+		return written;
+	}
+
+	/*
+	 * Only ever called from the sender thread
+	 * Returns right away while the channel is still blocking, as a write would have waited itself
+	 */
+	public void awaitWritable() throws IOException
+	{
+		if (channel.isBlocking())
+			return;
+		try
+		{
+			if (writeSelector == null)
+			{
+				Selector writeSelector = Selector.open();
+				this.writeSelector = writeSelector;	//Before registering, so either close() sees it or registering fails
+				try
+				{
+					channel.register(writeSelector, SelectionKey.OP_WRITE);
+				} catch (ClosedChannelException e)
+				{
+					writeSelector.close();
+					throw e;
+				}
+			}
+			writeSelector.select(WRITE_WAIT);
+			writeSelector.selectedKeys().clear();
+		} catch (ClosedSelectorException e)
+		{
+			throw new ClosedChannelException();
+		}
+		if (!channel.isOpen())
+			throw new ClosedChannelException();
+	}
+
+	/*
+	 * Only ever called from the receiver thread, which also closes the selector once the channel is closed
+	 */
+	public boolean awaitReadable(long timeout) throws IOException
+	{
+		if (selector == null)
+		{
+			Selector selector = Selector.open();
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			this.selector = selector;
+		}
+		if (!channel.isOpen())
+		{
+			selector.close();
+			throw new ClosedChannelException();
+		}
+		int selected = selector.select(timeout);
+		selector.selectedKeys().clear();
+		return selected > 0;
+	}
+
+	public void wakeup()
+	{
+		Selector selector = this.selector;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+		wakeup();
+		Selector writeSelector = this.writeSelector;
+		if (writeSelector != null)
+			writeSelector.close();	//Wakes the sender up if it's waiting for room
+	}
+
+	public WritableByteChannel getTransferTarget() {
+		return channel;
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	public String getProtocol() {
+		return "TCP";
+	}
+}
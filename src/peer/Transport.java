@@ -0,0 +1,49 @@
+/*
+ * A reliable, ordered byte stream to a peer - a TCP connection or a uTP one
+ * connect() blocks, reads never do: the receiver thread waits for data with awaitReadable(),
+ * which wakeup() interrupts so the tasks posted to the peer run promptly.
+ * Writes may take only part of the data. One that takes nothing because the transport is full first waits for room,
+ * so callers can simply write in a loop without spinning.
+ * Zero-copy transfers from the torrent's files go to getTransferTarget(), which is the socket itself where there is one.
+ * That may take only part of a transfer too, and awaitWritable() waits for room for the rest.
+ */
+package peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public interface Transport extends ByteChannel
+{
+	public void connect(InetSocketAddress address) throws IOException;
+
+	/*
+	 * Write as much of the buffers as possible, in order, returning the number of bytes written
+	 */
+	public long write(ByteBuffer[] buffers) throws IOException;
+
+	/*
+	 * Wait until there is something to read, the end of the stream included, or wakeup() is called
+	 * timeout is in milliseconds, 0 to wait for ever. Returns false if it returned without anything to read.
+	 */
+	public boolean awaitReadable(long timeout) throws IOException;
+
+	/*
+	 * Wait until the transport can take more data, or a short while at most
+	 * Only ever called from the sender thread
+	 */
+	public void awaitWritable() throws IOException;
+
+	public void wakeup();
+
+	public WritableByteChannel getTransferTarget();
+
+	public InetSocketAddress getRemoteAddress();
+
+	/*
+	 * "TCP" or "uTP", for the logs
+	 */
+	public String getProtocol();
+}
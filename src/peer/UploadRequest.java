@@ -0,0 +1,57 @@
+/*
+ * A block requested by a peer, waiting in that peer's upload queue
+ * Requests order by their offset in the torrent, so that a peer's queue is served with sequential disk reads
+ */
+package peer;
+
+public class UploadRequest implements Comparable<UploadRequest>
+{
+	private final int index;
+	private final int begin;
+	private final int length;
+
+	public UploadRequest(int index, int begin, int length)
+	{
+		this.index = index;
+		this.begin = begin;
+		this.length = length;
+	}
+
+	public int compareTo(UploadRequest other)
+	{
+		if (index != other.index)
+			return Integer.compare(index, other.index);
+		if (begin != other.begin)
+			return Integer.compare(begin, other.begin);
+		return Integer.compare(length, other.length);
+	}
+
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof UploadRequest))
+			return false;
+		return compareTo((UploadRequest) other) == 0;
+	}
+
+	public int hashCode()
+	{
+		return 31*(31*index + begin) + length;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getBegin() {
+		return begin;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public String toString()
+	{
+		return "{UploadRequest->index:"+index+",begin:"+begin+",length:"+length+"}";
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * A singleton that owns the upload slots of all active torrents
+ * The number of slots is tuned at runtime by hill-climbing on the measured total upload rate:
+ * a slot is added while every slot still uploads at a healthy rate and the last slot added paid off,
+ * and taken away again when adding it didn't raise the total (the link is saturated) or the slots have become too thin.
+ * The slots are shared out among the torrents in proportion to how many interested peers each of them has.
+ */
+package peer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+import tools.RateEstimator;
+import tools.Util;
+
+public class UploadSlotManager
+{
+	private static UploadSlotManager instance = null;
+	private final static int MIN_SLOTS = 2;
+	private final static int MAX_SLOTS = 100;
+	private final static double MIN_SLOT_RATE = 4*Util.SIZE_KB;	//Bytes per second below which a slot isn't worth having
+	private final static double MIN_GAIN = 0.5;	//Fraction of a slot's average rate the last added slot must have gained
+	private final static long ADJUST_INTERVAL = 3*Choker.ROUND_TIME*1000;	//Let the rates settle before judging a change
+	private final static int SATURATED_HOLD = 10;	//Adjustments to wait before probing for more capacity after backing off
+	private final List<PeerManager> managers = new CopyOnWriteArrayList<PeerManager>();
+	private int slots;
+	private int lastSlots;
+	private double lastRate = 0;
+	private int hold = 0;
+	private long lastAdjustTime = System.currentTimeMillis();
+	Logger logger = LoggingClient.getInstance().logger;
+
+	private UploadSlotManager()
+	{
+		this.slots = Environment.getInstance().getUploadSlots();
+		this.lastSlots = slots;
+	}
+
+	public static synchronized UploadSlotManager getInstance()
+	{
+		if (instance == null)
+			instance = new UploadSlotManager();
+		return instance;
+	}
+
+	/*
+	 * Start sharing slots with the torrent of the given peer manager
+	 */
+	public void register(PeerManager manager)
+	{
+		if (!managers.contains(manager))
+			managers.add(manager);
+	}
+
+	public void unregister(PeerManager manager)
+	{
+		managers.remove(manager);
+	}
+
+	/*
+	 * Return the number of slots the given torrent may fill in its next choke round
+	 * Every active torrent gets at least one slot
+	 */
+	public synchronized int getSlots(PeerManager manager)
+	{
+		adjust();
+		int interested = 0;
+		int totalInterested = 0;
+		for (PeerManager activeManager : managers)
+		{
+			int count = activeManager.getInterestedPeerCount();
+			totalInterested += count;
+			if (activeManager == manager)
+				interested = count;
+		}
+		if (totalInterested == 0)
+			return Math.max(1, slots / Math.max(1, managers.size()));
+		return Math.max(1, (int) Math.round((double) slots * interested / totalInterested));
+	}
+
+	/*
+	 * Tune the number of slots from the measured upload rate, at most once every ADJUST_INTERVAL
+	 */
+	private void adjust()
+	{
+		long now = System.currentTimeMillis();
+		if (now - lastAdjustTime < ADJUST_INTERVAL)
+			return;
+		lastAdjustTime = now;
+
+		double rate = 0;
+		int slotsInUse = 0;
+		for (PeerManager manager : managers)
+		{
+			rate += manager.getTorrent().getPayloadUpload().getRate(RateEstimator.MEDIUM);
+			slotsInUse += manager.getChoker().getUnchokedCount();
+		}
+		if (slotsInUse < slots)
+		{
+			logger.log(Level.FINER, "Only " + slotsInUse + " of " + slots + " upload slot(s) in use, not tuning");
+			lastRate = rate;
+			lastSlots = slots;
+			return;
+		}
+
+		double slotRate = rate / slots;
+		int previousSlots = slots;
+		if (slotRate < MIN_SLOT_RATE)
+			slots--;	//Slots have become too thin to be worth it
+		else if (slots > lastSlots && rate - lastRate < MIN_GAIN * lastRate / lastSlots)
+		{
+			slots--;	//The slot we added last time didn't raise the total, the link is saturated
+			hold = SATURATED_HOLD;
+		}
+		else if (hold > 0)
+			hold--;	//Stay put for a while after finding the link saturated
+		else
+			slots++;	//Every slot is healthy, probe for more capacity
+		slots = Math.max(MIN_SLOTS, Math.min(MAX_SLOTS, slots));
+
+		lastRate = rate;
+		lastSlots = previousSlots;
+		logger.log(Level.FINE, String.format("Upload slots tuned from %d to %d, total upload rate %.1f KB/s, per slot %.1f KB/s",
+				previousSlots, slots, rate / Util.SIZE_KB, slotRate / Util.SIZE_KB));
+	}
+
+	public synchronized int getTotalSlots() {
+		return slots;
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * A fixed-size bitset that any number of threads can read and update without locking.
+ * The bits live in the words of an AtomicLongArray and are changed by compare-and-set, one word at a time.
+ * Readers never need a copy - iterating just reads each word once, seeing every bit as it was at that moment.
+ * Read-only sets (all clear or all set) can be shared by any number of owners as sentinels, e.g. for peers that are seeds.
+ */
+
+package tools;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AtomicBitSet
+{
+	private final static int ADDRESS_BITS = 6;	//64 bits per word
+	private final AtomicLongArray words;
+	private final int size;
+	private final boolean readOnly;
+
+	public AtomicBitSet(int size)
+	{
+		this(size, false);
+	}
+
+	private AtomicBitSet(int size, boolean readOnly)
+	{
+		this.size = size;
+		this.readOnly = readOnly;
+		this.words = new AtomicLongArray((size + Long.SIZE - 1) >>> ADDRESS_BITS);
+	}
+
+	/*
+	 * Return a set of the given size that can't be changed, with every bit set if complete, or none
+	 * Changing it throws UnsupportedOperationException - owners swap in a set of their own instead
+	 */
+	public static AtomicBitSet readOnly(int size, boolean complete)
+	{
+		AtomicBitSet sentinel = new AtomicBitSet(size, true);
+		for (int wordIndex = 0; complete && wordIndex < sentinel.words.length(); wordIndex++)
+			sentinel.words.set(wordIndex, wordIndex == sentinel.words.length() - 1 ? sentinel.lastWordMask() : -1L);
+		return sentinel;
+	}
+
+	/*
+	 * Return the bit at index, false for anything beyond the size
+	 */
+	public boolean get(int index)
+	{
+		if (index < 0 || index >= size)
+			return false;
+		return (words.get(index >>> ADDRESS_BITS) & (1L << index)) != 0;
+	}
+
+	/*
+	 * Set the bit at index
+	 * Returns true if this call changed it, false if it was set already
+	 */
+	public boolean set(int index)
+	{
+		checkWritable();
+		checkIndex(index);
+		int wordIndex = index >>> ADDRESS_BITS;
+		long mask = 1L << index;
+		while (true)
+		{
+			long word = words.get(wordIndex);
+			if ((word & mask) != 0)
+				return false;
+			if (words.compareAndSet(wordIndex, word, word | mask))
+				return true;
+		}
+	}
+
+	/*
+	 * Clear the bit at index
+	 * Returns true if this call changed it, false if it was clear already
+	 */
+	public boolean clear(int index)
+	{
+		checkWritable();
+		checkIndex(index);
+		int wordIndex = index >>> ADDRESS_BITS;
+		long mask = 1L << index;
+		while (true)
+		{
+			long word = words.get(wordIndex);
+			if ((word & mask) == 0)
+				return false;
+			if (words.compareAndSet(wordIndex, word, word & ~mask))
+				return true;
+		}
+	}
+
+	/*
+	 * Claim the bit at index for the caller
+	 * Of any number of threads claiming the same bit, exactly one gets true back - until the bit is cleared again
+	 */
+	public boolean claim(int index)
+	{
+		return set(index);
+	}
+
+	/*
+	 * Set every bit
+	 */
+	public void setAll()
+	{
+		checkWritable();
+		for (int wordIndex = 0; wordIndex < words.length(); wordIndex++)
+			words.set(wordIndex, wordIndex == words.length() - 1 ? lastWordMask() : -1L);
+	}
+
+	/*
+	 * Set every bit that is set in the given words, in BitSet.toLongArray() order
+	 * Bits beyond the size are ignored
+	 */
+	public void or(long[] other)
+	{
+		checkWritable();
+		int count = Math.min(other.length, words.length());
+		for (int wordIndex = 0; wordIndex < count; wordIndex++)
+		{
+			long bits = other[wordIndex];
+			if (wordIndex == words.length() - 1)
+				bits &= lastWordMask();
+			if (bits == 0)
+				continue;
+			while (true)
+			{
+				long word = words.get(wordIndex);
+				if ((word | bits) == word || words.compareAndSet(wordIndex, word, word | bits))
+					break;
+			}
+		}
+	}
+
+	/*
+	 * Return the index of the first set bit at or after from, -1 if there is none
+	 */
+	public int nextSetBit(int from)
+	{
+		if (from < 0)
+			from = 0;
+		if (from >= size)
+			return -1;
+		int wordIndex = from >>> ADDRESS_BITS;
+		long word = words.get(wordIndex) & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+			{
+				int index = (wordIndex << ADDRESS_BITS) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if (++wordIndex == words.length())
+				return -1;
+			word = words.get(wordIndex);
+		}
+	}
+
+	/*
+	 * Return the index of the first clear bit at or after from, -1 if there is none
+	 */
+	public int nextClearBit(int from)
+	{
+		if (from < 0)
+			from = 0;
+		if (from >= size)
+			return -1;
+		int wordIndex = from >>> ADDRESS_BITS;
+		long word = ~words.get(wordIndex) & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+			{
+				int index = (wordIndex << ADDRESS_BITS) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if (++wordIndex == words.length())
+				return -1;
+			word = ~words.get(wordIndex);
+		}
+	}
+
+	/*
+	 * Number of set bits
+	 */
+	public int cardinality()
+	{
+		int cardinality = 0;
+		for (int wordIndex = 0; wordIndex < words.length(); wordIndex++)
+			cardinality += Long.bitCount(words.get(wordIndex));
+		return cardinality;
+	}
+
+	/*
+	 * Whether every bit is set
+	 */
+	public boolean isComplete()
+	{
+		return nextClearBit(0) == -1;
+	}
+
+	/*
+	 * Copy the bits into a BitSet, for whoever really needs one (or for printing)
+	 */
+	public BitSet toBitSet()
+	{
+		return BitSet.valueOf(toLongArray());
+	}
+
+	/*
+	 * Copy the words, in BitSet.toLongArray() order but always (size + 63) / 64 of them
+	 */
+	public long[] toLongArray()
+	{
+		long[] snapshot = new long[words.length()];
+		for (int wordIndex = 0; wordIndex < snapshot.length; wordIndex++)
+			snapshot[wordIndex] = words.get(wordIndex);
+		return snapshot;
+	}
+
+	private long lastWordMask()
+	{
+		int bitsInLastWord = size & (Long.SIZE - 1);
+		return bitsInLastWord == 0 ? -1L : (1L << bitsInLastWord) - 1;
+	}
+
+	private void checkWritable()
+	{
+		if (readOnly)
+			throw new UnsupportedOperationException("Read-only bitset can't be changed");
+	}
+
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Bit index " + index + " out of range for size " + size);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	public String toString()
+	{
+		return toBitSet().toString();
+	}
+}
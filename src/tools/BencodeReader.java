@@ -20,6 +20,7 @@ import java.util.List;
 public class BencodeReader
 {
 	private final PushbackInputStream in;
+	private final int maxStringLength;
 	
 	/**
 	 * Returns a BencodeReader object that can be used to parse bencoded data types.
@@ -28,8 +29,21 @@ public class BencodeReader
 	 * @param input	The InputStream to read from
 	 */
 	public BencodeReader(InputStream input)
+	{
+		this(input, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Returns a BencodeReader object that rejects any string longer than maxStringLength before allocating for it.
+	 * Input from the network should be read with this, passing the number of bytes received,
+	 * so a sender can't make us allocate whatever length it claims.
+	 * @param input	The InputStream to read from
+	 * @param maxStringLength	The longest string to accept, in bytes
+	 */
+	public BencodeReader(InputStream input, int maxStringLength)
 	{
 		this.in = new PushbackInputStream(new BufferedInputStream(input));
+		this.maxStringLength = maxStringLength;
 	}
 	
 	/**
@@ -76,6 +90,8 @@ public class BencodeReader
 		//The length field in a bencoded string must be valid
 		if ((len = readStringLength()) == -1)
 			throw new BencodeException("Token not a string");
+		if (len > maxStringLength)
+			throw new BencodeException("String length " + len + " is longer than the " + maxStringLength + " bytes of input");
 		byte buf[] = new byte[len];
 		
 		//This could possibly be made much faster
@@ -111,6 +127,8 @@ public class BencodeReader
 			assertNotEOF(digit, "Unexpected EOF while reading string length");
 			if (!Character.isDigit(digit))
 				throw new BencodeException("Unexpected non-digit character '" + digit + "' in string length");
+			if (len > (Integer.MAX_VALUE - (digit - '0')) / 10)
+				throw new BencodeException("String length too large");
 			len = (len * 10) + (digit - '0');			
 		}
 		
@@ -11,8 +11,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class BencodeWriter
 {
@@ -91,6 +94,7 @@ public class BencodeWriter
 	/**
 	 * Writes a Map (dictionary) representing a bencoded Dictionary. Keys must be bencoded Strings. 
 	 * Valid values include bencoded Strings, Integers, Lists or Dictionaries
+	 * Keys are written in sorted order, as bencoding requires (and as peers check for extension messages)
 	 * @param dict	The dictionary (Map) to bencode and write
 	 * @throws IOException	If the bencoded Dictionary is invalid
 	 */
@@ -98,11 +102,13 @@ public class BencodeWriter
 	public void writeDictionary(HashMap<String, Object> dict) throws IOException
 	{
 		out.write('d');	//A bencoded Dictionary must start with 'd'
-		for (Object elem : dict.entrySet())
+		Map<ByteBuffer, Object> entries = (Map<ByteBuffer, Object>) (Map<?, ?>) dict;
+		List<ByteBuffer> keys = new ArrayList<ByteBuffer>(entries.keySet());
+		Collections.sort(keys);	//Raw byte order, which is what bencoding sorts by for the ASCII keys in use
+		for (ByteBuffer key : keys)
 		{
-			HashMap.Entry<ByteBuffer, Object> entry = (HashMap.Entry<ByteBuffer, Object>) elem;	//Get every entry from the Map through the entrySet() view
-			writeString((ByteBuffer) entry.getKey());
-			writeToken(entry.getValue());
+			writeString(key);
+			writeToken(entries.get(key));
 		}			
 		out.write('e');	//A bencoded Dictionary must end with 'e'
 	}
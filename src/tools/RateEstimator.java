@@ -0,0 +1,96 @@
+/**
+ * A lock-free byte counter with exponentially weighted moving averages of its rate over several windows.
+ * Writers only ever touch a LongAdder, so counting bytes from many threads doesn't contend.
+ * The rates are re-sampled lazily - whoever reads a rate that is older than the sample interval updates all windows at once,
+ * and everybody else just reads the last published rates.
+ */
+
+package tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateEstimator
+{
+	public final static int SHORT = 0;
+	public final static int MEDIUM = 1;
+	public final static int LONG = 2;
+	private final static double[] WINDOWS = {5.0, 20.0, 60.0};	//Seconds it takes each average to forget ~63% of the past
+	private final static long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+	private final LongAdder total = new LongAdder();
+	private final AtomicBoolean sampling = new AtomicBoolean(false);
+	private volatile double[] rates = new double[WINDOWS.length];
+	private volatile long lastSampleTime = System.nanoTime();
+	private long lastSampleTotal = 0;
+
+	/*
+	 * Count bytes transferred
+	 */
+	public void add(long bytes)
+	{
+		total.add(bytes);
+	}
+
+	/*
+	 * Total bytes counted so far
+	 */
+	public long getTotal()
+	{
+		return total.sum();
+	}
+
+	/*
+	 * Fold the bytes counted since the last sample into every window
+	 * Does nothing if the last sample is recent, or if another thread is sampling right now
+	 */
+	public void sample()
+	{
+		long now = System.nanoTime();
+		if (now - lastSampleTime < SAMPLE_INTERVAL || !sampling.compareAndSet(false, true))
+			return;
+		try
+		{
+			long sinceLastSample = now - lastSampleTime;	//Again, another thread may have sampled between our check and the CAS
+			if (sinceLastSample < SAMPLE_INTERVAL)
+				return;
+			double elapsed = sinceLastSample / 1e9;
+			long currentTotal = total.sum();
+			double instantRate = (currentTotal - lastSampleTotal) / elapsed;
+			double[] updated = new double[WINDOWS.length];
+			for (int window = 0; window < WINDOWS.length; window++)
+			{
+				double alpha = 1.0 - Math.exp(-elapsed / WINDOWS[window]);	//Weight of the new sample, corrected for uneven sample intervals
+				updated[window] = rates[window] + alpha * (instantRate - rates[window]);
+			}
+			lastSampleTotal = currentTotal;
+			lastSampleTime = now;
+			rates = updated;	//Publish all windows at once
+		} finally
+		{
+			sampling.set(false);
+		}
+	}
+
+	/*
+	 * Bytes per second over the short window
+	 */
+	public double getRate()
+	{
+		return getRate(SHORT);
+	}
+
+	/*
+	 * Bytes per second over the given window (SHORT, MEDIUM or LONG)
+	 */
+	public double getRate(int window)
+	{
+		sample();
+		return rates[window];
+	}
+
+	public String toString()
+	{
+		return String.format("%d B, %.1f KB/s", getTotal(), getRate() / Util.SIZE_KB);
+	}
+}
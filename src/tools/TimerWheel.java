@@ -0,0 +1,180 @@
+/**
+ * A hashed timer wheel that runs the periodic and one-shot work of all torrents on one shared thread.
+ * Time is cut into ticks, and every timeout hashes into the slot of the tick it expires on,
+ * along with the number of full revolutions still to wait - so scheduling, cancelling and expiring are all O(1).
+ * Timeouts are handed over through a lock-free queue and only ever touched by the wheel thread after that.
+ * Tasks run on the wheel thread, so they must be short - anything that blocks (disk, network) belongs elsewhere.
+ */
+
+package tools;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+
+public class TimerWheel
+{
+	private static TimerWheel instance = null;
+	private final static long TICK = 100;	//Milliseconds per tick
+	private final static int WHEEL_SIZE = 512;	//Slots, a power of two - one revolution is about 51 seconds
+	private final ArrayDeque<Timeout>[] wheel;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.currentTimeMillis();
+	private long tick = 0;	//Only touched by the wheel thread
+	private final Thread worker;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private TimerWheel()
+	{
+		this.wheel = new ArrayDeque[WHEEL_SIZE];
+		for (int slot = 0; slot < WHEEL_SIZE; slot++)
+			wheel[slot] = new ArrayDeque<Timeout>();
+		this.worker = new Thread(new Worker(), "Timer wheel");
+		this.worker.setDaemon(true);	//Don't keep the client alive after the main thread exits
+		this.worker.start();
+	}
+
+	public static synchronized TimerWheel getInstance()
+	{
+		if (instance == null)
+			instance = new TimerWheel();
+		return instance;
+	}
+
+	/*
+	 * Run task once after the given delay
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		return add(new Timeout(task, System.currentTimeMillis() + unit.toMillis(delay), 0));
+	}
+
+	/*
+	 * Run task every period, starting one period from now
+	 */
+	public Timeout schedulePeriodic(Runnable task, long period, TimeUnit unit)
+	{
+		long periodMillis = Math.max(TICK, unit.toMillis(period));
+		return add(new Timeout(task, System.currentTimeMillis() + periodMillis, periodMillis));
+	}
+
+	private Timeout add(Timeout timeout)
+	{
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/*
+	 * Hash the timeouts scheduled since the last tick into their slots
+	 * Timeouts that are already due go into the current slot and expire right away
+	 */
+	private void transferPending()
+	{
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null)
+		{
+			if (timeout.isCancelled())
+				continue;
+			long expiryTick = Math.max(tick, (timeout.deadline - startTime + TICK - 1) / TICK);
+			timeout.rounds = (expiryTick - tick) / WHEEL_SIZE;
+			wheel[(int) (expiryTick & (WHEEL_SIZE - 1))].add(timeout);
+		}
+	}
+
+	/*
+	 * Run the timeouts of the current slot that are on their last revolution, and count down the rest
+	 * Periodic timeouts are put back on the wheel for their next run
+	 */
+	private void expire()
+	{
+		Iterator<Timeout> iterator = wheel[(int) (tick & (WHEEL_SIZE - 1))].iterator();
+		while (iterator.hasNext())
+		{
+			Timeout timeout = iterator.next();
+			if (timeout.isCancelled())
+			{
+				iterator.remove();
+				continue;
+			}
+			if (timeout.rounds > 0)
+			{
+				timeout.rounds--;
+				continue;
+			}
+			iterator.remove();
+			try
+			{
+				timeout.task.run();
+			} catch (RuntimeException e)
+			{
+				logger.log(Level.WARNING, "Timer task " + timeout.task + " failed", e);
+			}
+			if (timeout.period > 0 && !timeout.isCancelled())
+			{
+				timeout.deadline += timeout.period;
+				add(timeout);
+			}
+		}
+	}
+
+	/*
+	 * Wheel thread
+	 * Wakes up every tick, picks up newly scheduled timeouts and expires the current slot
+	 */
+	private class Worker implements Runnable
+	{
+		public void run()
+		{
+			while (true)
+			{
+				long wait;
+				while ((wait = startTime + tick * TICK - System.currentTimeMillis()) > 0)
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+				transferPending();
+				expire();
+				tick++;
+			}
+		}
+	}
+
+	/*
+	 * Handle to a scheduled task, used to cancel it
+	 */
+	public static class Timeout
+	{
+		private final Runnable task;
+		private final long period;	//Milliseconds, 0 for a one-shot timeout
+		private long deadline;
+		private long rounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline, long period)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/*
+		 * Stop the task from running again
+		 * A cancelled timeout is dropped from the wheel the next time its slot comes up
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+}
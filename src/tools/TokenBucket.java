@@ -0,0 +1,140 @@
+/**
+ * A lock-free token bucket for rate limiting byte transfers.
+ * Tokens are refilled lazily from the elapsed time by whichever thread consumes next, so there is no refill thread.
+ * A transfer always takes its tokens right away and may leave the bucket in debt - the caller then waits out the debt
+ * before its next transfer. That keeps the cost to one atomic add per transfer, however large the transfer is,
+ * and everybody sharing the bucket waits out the same debt, so the bandwidth ends up spread evenly among them.
+ * Buckets are meant to be chained (peer, torrent, global) - a transfer has to wait for the slowest bucket in the chain.
+ * Callers that would rather drop than wait (datagrams, say) use tryConsume, which never goes into debt.
+ */
+
+package tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class TokenBucket
+{
+	private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	private final static long MIN_BURST = 64*Util.SIZE_KB;	//Enough for a few blocks, however low the rate
+	private volatile long rate;	//Bytes per second, 0 means unlimited
+	private final AtomicLong tokens = new AtomicLong();
+	private final AtomicLong lastRefillTime = new AtomicLong(System.nanoTime());
+
+	public TokenBucket(long rate)
+	{
+		setRate(rate);
+	}
+
+	/*
+	 * Take bytes worth of tokens, going into debt if there aren't enough
+	 * Returns the nanoseconds to wait till the debt is paid off, 0 if there was no debt
+	 */
+	public long consume(long bytes)
+	{
+		long rate = getRate();
+		if (rate <= 0)
+			return 0;
+		refill(rate);
+		long left = tokens.addAndGet(-bytes);
+		if (left >= 0)
+			return 0;
+		return -left * NANOS_PER_SECOND / rate;
+	}
+
+	/*
+	 * Take bytes worth of tokens only if there are enough of them
+	 * Returns false, taking nothing, if the bucket can't cover them - a dropped transfer mustn't leave debt behind
+	 */
+	public boolean tryConsume(long bytes)
+	{
+		long rate = getRate();
+		if (rate <= 0)
+			return true;
+		refill(rate);
+		while (true)
+		{
+			long current = tokens.get();
+			if (current < bytes)
+				return false;
+			if (tokens.compareAndSet(current, current - bytes))
+				return true;
+		}
+	}
+
+	/*
+	 * Add the tokens earned since the last refill, never holding more than the burst size
+	 * Only whole tokens are added, and the refill time is only advanced by the time they took to earn,
+	 * so slow rates don't lose their fractional tokens
+	 */
+	private void refill(long rate)
+	{
+		long now = System.nanoTime();
+		long last = lastRefillTime.get();
+		long elapsed = now - last;
+		if (elapsed >= NANOS_PER_SECOND)	//Idle for long - the bucket is full anyway, and this keeps the maths from overflowing
+		{
+			if (lastRefillTime.compareAndSet(last, now))
+				add(rate, getBurst(rate));
+			return;
+		}
+		long earned = elapsed * rate / NANOS_PER_SECOND;
+		if (earned <= 0)
+			return;
+		if (lastRefillTime.compareAndSet(last, last + earned * NANOS_PER_SECOND / rate))	//Whoever wins the race does the refill
+			add(rate, earned);
+	}
+
+	private void add(long rate, long earned)
+	{
+		long burst = getBurst(rate);
+		tokens.accumulateAndGet(earned, (current, added) -> Math.min(current + added, burst));
+	}
+
+	private long getBurst(long rate)
+	{
+		return Math.max(rate / 10, MIN_BURST);	//A tenth of a second's worth
+	}
+
+	/*
+	 * Take bytes worth of tokens from every bucket in the chain
+	 * Returns the nanoseconds to wait for the most indebted bucket
+	 */
+	public static long consume(long bytes, TokenBucket... buckets)
+	{
+		long wait = 0;
+		for (TokenBucket bucket : buckets)
+		{
+			if (bucket != null)
+				wait = Math.max(wait, bucket.consume(bytes));
+		}
+		return wait;
+	}
+
+	/*
+	 * Take bytes worth of tokens from every bucket in the chain, and park the calling thread till all of them are out of debt
+	 */
+	public static void throttle(long bytes, TokenBucket... buckets)
+	{
+		long wait = consume(bytes, buckets);
+		if (wait > 0)
+			LockSupport.parkNanos(wait);
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	/*
+	 * Change the rate, 0 turns limiting off
+	 */
+	public void setRate(long rate) {
+		this.rate = rate;
+		tokens.set(rate > 0 ? getBurst(rate) : 0);
+	}
+
+	public boolean isLimited() {
+		return rate > 0;
+	}
+}
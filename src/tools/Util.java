@@ -7,6 +7,7 @@ package tools;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -115,6 +116,25 @@ public class Util
 		return output.toString();
 	}
 	
+	/*
+	 * Encode byte-array input as a lower-case hex string
+	 */
+	public static String hexEncode(byte[] input)
+	{
+		if (input == null)
+			return null;
+		final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+		StringBuilder output = new StringBuilder(input.length*2);
+		
+		for (int i = 0; i < input.length; i++)
+		{
+			output.append(HEX_DIGITS[(input[i] & 0xFF) >>> 4]);
+			output.append(HEX_DIGITS[input[i] & 0x0F]);
+		}
+		
+		return output.toString();
+	}
+	
 	/*
 	 * Encode string input in URL-safe format
 	 */
@@ -170,6 +190,48 @@ public class Util
 				((IP >>> 8) & 0xff), (IP & 0xff));
 	}
 	
+	/*
+	 * Decode size bits of a protocol bitfield into the words of a little-endian bitset, in BitSet.toLongArray() order
+	 * The protocol puts piece 0 in the high bit of the first byte, so 8 bytes read big-endian hold pieces 0 to 63
+	 * from the high bit of the long down - reversing the long puts piece 0 in bit 0, a whole word at a time
+	 * Spare bits beyond size are dropped
+	 */
+	public static long[] decodeBitfield(ByteBuffer bitfield, int size)
+	{
+		long[] words = new long[(size + 63) >>> 6];
+		int wordIndex = 0;
+		for (; wordIndex < words.length && bitfield.remaining() >= 8; wordIndex++)
+			words[wordIndex] = Long.reverse(bitfield.getLong());
+		if (wordIndex < words.length && bitfield.hasRemaining())
+		{
+			long word = 0;
+			for (int shift = 56; shift >= 0 && bitfield.hasRemaining(); shift -= 8)
+				word |= (bitfield.get() & 0xffL) << shift;	//Pad the last few bytes out to a big-endian long
+			words[wordIndex] = Long.reverse(word);
+		}
+		if ((size & 63) != 0)
+			words[words.length - 1] &= (1L << size) - 1;
+		return words;
+	}
+	
+	/*
+	 * Encode the first size bits of a little-endian bitset, given as its words, into a protocol bitfield
+	 * The reverse of decodeBitfield, missing words are taken as zero
+	 */
+	public static byte[] encodeBitfield(long[] words, int size)
+	{
+		int wordCount = (size + 63) >>> 6;
+		ByteBuffer bitfield = ByteBuffer.allocate(wordCount * 8);
+		for (int wordIndex = 0; wordIndex < wordCount; wordIndex++)
+		{
+			long word = wordIndex < words.length ? words[wordIndex] : 0;
+			if (wordIndex == wordCount - 1 && (size & 63) != 0)
+				word &= (1L << size) - 1;
+			bitfield.putLong(Long.reverse(word));
+		}
+		return Arrays.copyOf(bitfield.array(), (size + 7) >>> 3);
+	}
+	
 	/**
 	 * Returns a boolean value, converting from an integer representing the 'private' field in an info dictionary.
 	 * It is intended to be invoked by buildInfoDictionary().
@@ -0,0 +1,53 @@
+/**
+ * A singleton pool of disk threads shared by all torrents
+ * Anything that reads from or writes to a TorrentFileSystem on behalf of a peer is handed over here,
+ * so that the peers' receiver threads never block on the disk
+ */
+
+package torrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+
+public class DiskIOService
+{
+	private static DiskIOService instance = null;
+	private final ExecutorService executorService;
+	Logger logger = LoggingClient.getInstance().logger;
+	
+	private DiskIOService()
+	{
+		this.executorService = Executors.newFixedThreadPool(Environment.getInstance().getDiskThreads(), 
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "Disk I/O");
+						thread.setDaemon(true);	//Don't keep the client alive after the main thread exits
+						return thread;
+					}
+				});
+		logger.log(Level.INFO, "Disk I/O service started with " + Environment.getInstance().getDiskThreads() + " thread(s)");
+	}
+	
+	public static synchronized DiskIOService getInstance()
+	{
+		if (instance == null)
+			instance = new DiskIOService();
+		return instance;
+	}
+	
+	/*
+	 * Run the job on one of the disk threads
+	 */
+	public void submit(Runnable job)
+	{
+		executorService.execute(job);
+	}
+}
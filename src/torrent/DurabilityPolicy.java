@@ -0,0 +1,15 @@
+/**
+ * When the data of verified pieces is forced out to disk.
+ * NONE leaves it to the operating system, and records pieces as completed as soon as they are written.
+ * GROUP_COMMIT forces all dirty files of a torrent together, every so many milliseconds or megabytes.
+ * PER_PIECE forces the files a piece was written to before the piece is recorded as completed.
+ */
+
+package torrent;
+
+public enum DurabilityPolicy
+{
+	NONE,
+	GROUP_COMMIT,
+	PER_PIECE
+}
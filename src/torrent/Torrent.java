@@ -2,11 +2,12 @@ package torrent;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,18 +17,31 @@ import metainfo.InfoDictionary;
 import metainfo.Metainfo;
 import metainfo.MultiFileInfoDict;
 import metainfo.Piece;
+import metainfo.PieceCache;
 import metainfo.SingleFileInfoDict;
 import metainfo.TorrentDataFile;
+import tools.AtomicBitSet;
+import tools.RateEstimator;
+import tools.TimerWheel;
+import tools.TokenBucket;
 import tools.Util;
+import peer.Choker;
+import peer.Peer;
 import peer.PeerManager;
+import peer.UploadSlotManager;
 
 public class Torrent
 {
 	private ByteBuffer infoHash;
 	private String peerId = Util.URLEncode(Environment.getInstance().getPeerId().array());
 	private Short port;
-	private Long uploaded = 0l;
-	private Long downloaded = 0l;
+	private final RateEstimator payloadDownload = new RateEstimator();
+	private final RateEstimator payloadUpload = new RateEstimator();
+	private final RateEstimator protocolDownload = new RateEstimator();
+	private final RateEstimator protocolUpload = new RateEstimator();
+	private final AtomicLong completedBytes = new AtomicLong();
+	private final TokenBucket uploadLimiter = new TokenBucket(0);	//Unlimited until a limit is set
+	private final TokenBucket downloadLimiter = new TokenBucket(0);
 	private Boolean compact = true;
 	private Boolean noPeerId = false;
 	private String IP;
@@ -39,8 +53,10 @@ public class Torrent
 	private Long size;
 	private Metainfo metainfo;	
 	private Piece[] pieces;
-	private BitSet completedPieces;
-	private BitSet requestedPieces;
+	private AtomicBitSet completedPieces;
+	private AtomicBitSet requestedPieces;
+	private AtomicBitSet noPieces;	//Read-only sentinels shared by the peers that have nothing, or everything
+	private AtomicBitSet allPieces;
 	private volatile boolean downloading = false;
 	private boolean completed = false;
 	
@@ -48,7 +64,14 @@ public class Torrent
 	private PeerManager peerManager;	
 	private TrackerCommunicator tracker;
 	private TorrentFileSystem torrentFileSystem;
-	private Thread mainLoop;
+	private final List<TimerWheel.Timeout> timers = new ArrayList<TimerWheel.Timeout>();
+	private static final long REQUEST_TIMEOUT_CHECK_INTERVAL = 1;	//Seconds
+	private static final long KEEP_ALIVE_CHECK_INTERVAL = 30;	//Seconds
+	private static final long STATS_INTERVAL = 1;	//Seconds
+	private static final long CONNECTION_MAINTENANCE_INTERVAL = 30;	//Seconds
+	private static final long PEER_EXCHANGE_INTERVAL = 60;	//Seconds, as often as ut_pex may be sent
+	private static final long DHT_ANNOUNCE_INTERVAL = 15*60;	//Seconds, announces to the DHT expire after 30 minutes
+	private static final long PEER_CACHE_INTERVAL = 5*60;	//Seconds between saves of the peer cache, in case we don't get to stop cleanly
 	public static final int TYPE_STATUS = 1;
 	public static final int TYPE_PROGRESS = 2;
 	Logger logger = LoggingClient.getInstance().logger;
@@ -66,40 +89,34 @@ public class Torrent
 		this.torrentFileSystem = new TorrentFileSystem(this);
 		
 		this.calculateTotalSize();
-		this.mainLoop = new Thread(new MainLoop());
-		this.mainLoop.setDaemon(true);
 	}
 	
 	/*
 	 * Start downloading this torrent
 	 * Initialize pieces, torrent filesystem
-	 * Load tracker, connect to peers received
-	 * Set tracker interval
+	 * Announce to the trackers, whose peers are connected to as they answer
 	 */
-	@SuppressWarnings("unchecked")
 	public void startDownload() throws IOException
 	{
 		notifyTorrentManager(TYPE_STATUS, "Starting...");
 		setDownloading(true);
 		initializePieces();
-		setCompletedPieces(new BitSet(getPieces().length));
+		setCompletedPieces(new AtomicBitSet(getPieces().length));
+		setNoPieces(AtomicBitSet.readOnly(getPieces().length, false));
+		setAllPieces(AtomicBitSet.readOnly(getPieces().length, true));
+		setRequestedPieces(new AtomicBitSet(getPieces().length));
 		getTorrentFileSystem().init();
-		getTracker().onTorrentDownloadStarted();
-		logger.log(Level.INFO, "Tracker response received : " + getTracker());
-		if (getTracker().getPeers() instanceof ByteBuffer)
-			getPeerManager().createPeers((ByteBuffer) getTracker().getPeers());
-		else if (getTracker().getPeers() instanceof List<?>)
-			getPeerManager().createPeers((List<HashMap<ByteBuffer, Object>>) getTracker().getPeers());		
-		Long interval = getTracker().getMinInterval();	//TODO this isn't correct, but whatever
-		if (interval == null)
-			interval = getTracker().getInterval();
-		setRequestedPieces(new BitSet(getPieces().length));
+		UploadSlotManager.getInstance().register(getPeerManager());
+		getPeerManager().connectToCachedPeers();	//Connect to last session's peers while the first announce is under way
+		getPeerManager().announceToDHT();	//Runs on the DHT node's threads, alongside the tracker announce
+		getPeerManager().startLocalServiceDiscovery();
+		getTracker().onTorrentDownloadStarted();	//Answers arrive on the announce engine's threads, through onTrackerUpdateReceived
 		
 		logger.log(Level.INFO, "Starting download of " + this + ". Attempting to connect to discovered peers");
 		System.out.println("Starting download at: " + new Date(System.currentTimeMillis()));
 		getPeerManager().connectToPeers();
 		
-		mainLoop.start();
+		scheduleTimers();
 		notifyTorrentManager(TYPE_STATUS, "Downloading");
 	}
 	
@@ -112,6 +129,7 @@ public class Torrent
 		{
 			notifyTorrentManager(TYPE_STATUS, "Stopping...");
 			setDownloading(false);
+			cancelTimers();
 			logger.log(Level.FINER, "Fired Torrent Download stopped event for " + this);
 			getTracker().onTorrentDownloadStopped();
 			getPeerManager().onTorrentDownloadStopped();
@@ -159,11 +177,37 @@ public class Torrent
 	
 	/*
 	 * Calculate number of bytes left to download
-	 * TODO fix this shit - do this with some sort of event handling when piece is downloaded
 	 */
 	public Long getLeft()
 	{
-		return getSize() - getDownloaded();
+		return getSize() - getCompletedBytes();
+	}
+	
+	/*
+	 * Count bytes received from any of our peers
+	 */
+	public void recordDownload(long protocolBytes, long payloadBytes)
+	{
+		protocolDownload.add(protocolBytes);
+		payloadDownload.add(payloadBytes);
+	}
+	
+	/*
+	 * Count bytes sent to any of our peers
+	 */
+	public void recordUpload(long protocolBytes, long payloadBytes)
+	{
+		protocolUpload.add(protocolBytes);
+		payloadUpload.add(payloadBytes);
+	}
+	
+	/*
+	 * Count the bytes of a newly completed piece
+	 * Returns the total number of bytes completed so far
+	 */
+	public long addCompletedBytes(long bytes)
+	{
+		return completedBytes.addAndGet(bytes);
 	}
 
 	/*
@@ -182,34 +226,92 @@ public class Torrent
 	/*
 	 * Sequential piece selector
 	 * Find pieces in available pieces that we don't already have or haven't already requested
-	 * Return the first such piece found
+	 * Claim the first such piece found by marking it requested, so no other peer can pick it too
+	 * Losing the claim to another peer just moves the search on to the next candidate
 	 */
-	public Piece selectNextPiece(BitSet availablePieces)	//TODO this method seems out of place here, can we move it somewhere else?
+	public Piece claimNextPiece(AtomicBitSet availablePieces)	//TODO this method seems out of place here, can we move it somewhere else?
 	{
-		logger.log(Level.FINER, "Selecting next interesting piece from " + availablePieces);
-		BitSet missingButAvailablePieces = availablePieces;
-		missingButAvailablePieces.andNot(getCompletedPiecesCopy());
-		missingButAvailablePieces.andNot(getRequestedPiecesCopy());
-		logger.log(Level.FINEST, "Actual interesting pieces: " + missingButAvailablePieces);
-		
-		if (missingButAvailablePieces.cardinality() == 0)
-			return null;
-		return getPiece(missingButAvailablePieces.nextSetBit(0));
+		for (int index = nextWantedPiece(availablePieces, 0); index >= 0; index = nextWantedPiece(availablePieces, index + 1))
+		{
+			if (getRequestedPieces().claim(index))
+				return getPiece(index);
+		}
+		return null;
+	}
+	
+	/*
+	 * Claim the given piece for the caller, if it is still wanted
+	 * Returns the piece if claimed, null if it's completed or somebody else got to it first
+	 */
+	public Piece claimPiece(int index)
+	{
+		if (isPieceWanted(index) && getRequestedPieces().claim(index))
+			return getPiece(index);
+		return null;
+	}
+	
+	/*
+	 * Return the first piece at or after from that is available and wanted, -1 if there is none
+	 */
+	public int nextWantedPiece(AtomicBitSet availablePieces, int from)
+	{
+		for (int index = availablePieces.nextSetBit(from); index >= 0; index = availablePieces.nextSetBit(index + 1))
+		{
+			if (isPieceWanted(index))
+				return index;
+		}
+		return -1;
+	}
+	
+	/*
+	 * Give a claimed piece back, so that it can be downloaded from another peer
+	 */
+	public void releasePiece(int index)
+	{
+		getRequestedPieces().clear(index);
+	}
+	
+	/*
+	 * Move a piece from requested to completed
+	 * Returns false if somebody completed it already
+	 */
+	public boolean completePiece(int index)
+	{
+		boolean completedNow = getCompletedPieces().set(index);
+		releasePiece(index);
+		return completedNow;
+	}
+	
+	/*
+	 * Whether we neither have the piece nor are downloading it from anybody
+	 */
+	public boolean isPieceWanted(int index)
+	{
+		return !getCompletedPieces().get(index) && !getRequestedPieces().get(index);
+	}
+	
+	/*
+	 * Whether the torrent is private, so its peers may only come from its tracker
+	 */
+	public boolean isPrivate()
+	{
+		return Boolean.TRUE.equals(getMetainfo().getInfo().getNoExternalPeerSource());
 	}
 	
 	/*
 	 * Handler for 'tracker update received' event
-	 * Print tracker response
 	 * Create peers through peer manager and try to connect to them
+	 * Runs on the announce engine's threads - connecting only hands the candidates over to the peer manager's executor
 	 */
 	@SuppressWarnings("unchecked")
-	public void onTrackerUpdateReceived() //TODO also update interval/mininterval
+	public void onTrackerUpdateReceived(Object peers)
 	{
-		logger.log(Level.INFO, "Tracker update received : " + getTracker());
-		if (getTracker().getPeers() instanceof ByteBuffer)
-			getPeerManager().createPeers((ByteBuffer) getTracker().getPeers());
-		else if (getTracker().getPeers() instanceof List<?>)
-			getPeerManager().createPeers((List<HashMap<ByteBuffer, Object>>) getTracker().getPeers());
+		if (peers instanceof ByteBuffer)
+			getPeerManager().createPeers((ByteBuffer) peers);
+		else if (peers instanceof List<?>)
+			getPeerManager().createPeers((List<HashMap<ByteBuffer, Object>>) peers);
+		if (!isDownloading())
+			return;
 		logger.log(Level.INFO, "Attempting to connect to newly discovered peers for " + this);
 		getPeerManager().connectToPeers();
 	}
@@ -221,6 +323,7 @@ public class Torrent
 			notifyTorrentManager(TYPE_STATUS, "Finalizing...");
 			setDownloading(false);
 			setCompleted(true);
+			cancelTimers();
 			logger.log(Level.FINER, "Fired Torrent Download completed event for " + this);
 			getTracker().onTorrentDownloadCompleted();
 			getPeerManager().onTorrentDownloadCompleted();
@@ -230,44 +333,54 @@ public class Torrent
 		}
 	}
 	
-	public void onPieceDownloaded(double percentage)
-	{
-		notifyTorrentManager(TYPE_PROGRESS, percentage);
-	}
-	
-	public BitSet getCompletedPiecesCopy() 
+	/*
+	 * Handler for 'piece committed' event
+	 * The piece's data is now as durable as the durability policy promises, so it can be recorded as completed
+	 */
+	public void onPieceCommitted(Piece piece)
 	{
-		synchronized (getCompletedPieces()) 
-		{
-			return (BitSet) getCompletedPieces().clone();
-		}
+		if (isDownloading())
+			getPeerManager().onPieceCompleted(piece);
 	}
 	
-	public BitSet getRequestedPiecesCopy() 
+	public void onPieceDownloaded(double percentage)
 	{
-		synchronized (getRequestedPieces()) 
-		{
-			return (BitSet) getRequestedPieces().clone();
-		}
+		notifyTorrentManager(TYPE_PROGRESS, percentage);
 	}
 	
-	public BitSet getCompletedPieces() {
+	public AtomicBitSet getCompletedPieces() {
 		return completedPieces;
 	}
 
-	public void setCompletedPieces(BitSet completedPieces) {
+	public void setCompletedPieces(AtomicBitSet completedPieces) {
 		this.completedPieces = completedPieces;
 	}
 	
-	public BitSet getRequestedPieces() 
+	public AtomicBitSet getRequestedPieces() 
 	{
 		return requestedPieces;
 	}
 
-	public void setRequestedPieces(BitSet requestedPieces) {
+	public void setRequestedPieces(AtomicBitSet requestedPieces) {
 		this.requestedPieces = requestedPieces;
 	}
 
+	public AtomicBitSet getNoPieces() {
+		return noPieces;
+	}
+
+	public void setNoPieces(AtomicBitSet noPieces) {
+		this.noPieces = noPieces;
+	}
+
+	public AtomicBitSet getAllPieces() {
+		return allPieces;
+	}
+
+	public void setAllPieces(AtomicBitSet allPieces) {
+		this.allPieces = allPieces;
+	}
+
 	public ByteBuffer getInfoHash() {
 		return infoHash;
 	}
@@ -292,20 +405,46 @@ public class Torrent
 		this.port = port;
 	}
 
+	/*
+	 * Payload bytes uploaded so far, as reported to the tracker
+	 */
 	public Long getUploaded() {
-		return uploaded;
+		return payloadUpload.getTotal();
 	}
 
-	public void setUploaded(Long uploaded) {
-		this.uploaded = uploaded;
+	/*
+	 * Payload bytes downloaded so far, as reported to the tracker
+	 */
+	public Long getDownloaded() {
+		return payloadDownload.getTotal();
 	}
 
-	public Long getDownloaded() {
-		return downloaded;
+	public long getCompletedBytes() {
+		return completedBytes.get();
+	}
+
+	public RateEstimator getPayloadDownload() {
+		return payloadDownload;
+	}
+
+	public RateEstimator getPayloadUpload() {
+		return payloadUpload;
+	}
+
+	public RateEstimator getProtocolDownload() {
+		return protocolDownload;
 	}
 
-	public void setDownloaded(Long downloaded) {
-		this.downloaded = downloaded;
+	public RateEstimator getProtocolUpload() {
+		return protocolUpload;
+	}
+
+	public TokenBucket getUploadLimiter() {
+		return uploadLimiter;
+	}
+
+	public TokenBucket getDownloadLimiter() {
+		return downloadLimiter;
 	}
 
 	public Boolean isCompact() {
@@ -438,12 +577,8 @@ public class Torrent
 	
 	public String toString()
 	{
-		BitSet completed = null;
-		BitSet requested = null;
-		if (getCompletedPieces() != null)
-			completed = getCompletedPiecesCopy();
-		if (getRequestedPieces() != null)
-			requested = getRequestedPiecesCopy();
+		AtomicBitSet completed = getCompletedPieces();
+		AtomicBitSet requested = getRequestedPieces();
 		return (new StringBuilder())
 				.append("{Torrent->")
 				.append("Name: ")
@@ -453,34 +588,110 @@ public class Torrent
 				.append(", Completed: ")
 				.append(isCompleted())
 				.append(", Uploaded: ")
-				.append(getUploaded())
+				.append(getPayloadUpload())
 				.append(", Downloaded: ")
-				.append(getDownloaded())
+				.append(getPayloadDownload())
 				.append(completed != null ? ", Completed pieces: " + completed : "")
 				.append(requested != null ? ", Requested pieces: " + requested : "")
 				.append("}").toString();
 	}
 	
-	private class MainLoop implements Runnable
+	/*
+	 * Put the torrent's periodic work on the shared timer wheel
+	 * Choke rounds, request timeout checks, keep-alives and rate sampling
+	 */
+	private synchronized void scheduleTimers()
 	{
-		private final static int UNCHOKE_WAIT_TIME = 30;
-		
-		public void run()
+		TimerWheel wheel = TimerWheel.getInstance();
+		timers.add(wheel.schedulePeriodic(new Runnable()
 		{
-			while (isDownloading())
+			public void run()
 			{
-				try
-				{
-					TimeUnit.SECONDS.sleep(UNCHOKE_WAIT_TIME);
-					if (!isDownloading())
-						return;
-					logger.log(Level.INFO, "Trying to unchoke peers...");
-					getPeerManager().unchokePeers();
-				} catch (InterruptedException e)
+				logger.log(Level.INFO, "Trying to unchoke peers...");
+				logger.log(Level.FINE, "Piece cache: " + PieceCache.getInstance());	//Also exposed through its hit, miss and eviction getters
+				getPeerManager().unchokePeers();
+			}
+		}, Choker.ROUND_TIME, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				getPeerManager().checkRequestTimeouts();
+			}
+		}, REQUEST_TIMEOUT_CHECK_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				getPeerManager().sendKeepAlives();
+			}
+		}, KEEP_ALIVE_CHECK_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				sampleRates();
+			}
+		}, STATS_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				getPeerManager().maintainConnections();	//Connecting happens on the peer manager's executor, not here
+			}
+		}, CONNECTION_MAINTENANCE_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				getPeerManager().sendPeerExchange();
+			}
+		}, PEER_EXCHANGE_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				getPeerManager().announceToDHT();
+			}
+		}, DHT_ANNOUNCE_INTERVAL, TimeUnit.SECONDS));
+		timers.add(wheel.schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				DiskIOService.getInstance().submit(new Runnable()	//Writes a file, so off the wheel thread
 				{
-					logger.log(Level.WARNING, "Unchoker thread was interrupted");
-				}
+					public void run()
+					{
+						getPeerManager().savePeerCache();
+					}
+				});
 			}
+		}, PEER_CACHE_INTERVAL, TimeUnit.SECONDS));
+	}
+	
+	private synchronized void cancelTimers()
+	{
+		for (TimerWheel.Timeout timer : timers)
+			timer.cancel();
+		timers.clear();
+	}
+	
+	/*
+	 * Sample the transfer rates of the torrent and its peers at a steady pace,
+	 * so that the averages don't depend on how often somebody happens to read them
+	 */
+	private void sampleRates()
+	{
+		payloadDownload.sample();
+		payloadUpload.sample();
+		protocolDownload.sample();
+		protocolUpload.sample();
+		for (Peer peer : getPeerManager().getConnectedPeers().values())
+		{
+			peer.getPayloadDownload().sample();
+			peer.getPayloadUpload().sample();
+			peer.getProtocolDownload().sample();
+			peer.getProtocolUpload().sample();
 		}
 	}
 	
@@ -5,66 +5,155 @@
 package torrent;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import client.Environment;
 import client.LoggingClient;
+import metainfo.AllocationPolicy;
 import metainfo.InfoDictionary;
 import metainfo.SingleFileInfoDict;
 import metainfo.MultiFileInfoDict;
+import metainfo.Piece;
+import metainfo.PieceCache;
 import metainfo.TorrentDataFile;
+import tools.TimerWheel;
+import tools.Util;
 
 public class TorrentFileSystem
 {
+	private final Torrent torrent;
 	private final InfoDictionary infoDict;
 	private final List<TorrentDataFile> files;
+	private final String name;
 	private Long size = 0l;
+	private AllocationPolicy allocationPolicy;
+	private TorrentDataFile partFile;
+	private DurabilityPolicy durabilityPolicy;
+	private final Set<TorrentDataFile> dirtyFiles = ConcurrentHashMap.newKeySet();
+	private final AtomicLong dirtyBytes = new AtomicLong();
+	private final Queue<Piece> uncommittedPieces = new ConcurrentLinkedQueue<Piece>();
+	private TimerWheel.Timeout commitTimer;
+	private volatile boolean running = false;
+	private static final String PART_FILE_EXTENSION = ".part";
 	Logger logger = LoggingClient.getInstance().logger;
 
 	public TorrentFileSystem(Torrent torrent)
 	{
+		this.torrent = torrent;
 		this.infoDict = torrent.getMetainfo().getInfo();
 		this.files = new ArrayList<TorrentDataFile>();
+		this.name = Util.hexEncode(torrent.getInfoHash().array());
 	}
 	
 	/*
 	 * Initialize the file system
-	 * Create all necessary files and folders in root download directory
+	 * Create all necessary files and folders in root download directory, allocated as per the allocation policy
+	 * With a part-file, the real files are only created once the download completes
 	 */
-	public void init() throws FileNotFoundException
+	public void init() throws IOException
 	{
-		if (infoDict instanceof SingleFileInfoDict)
-			openFile(((SingleFileInfoDict) infoDict).getFile(), Environment.getInstance().getRootDownloadDirectory());
+		setAllocationPolicy(Environment.getInstance().getAllocationPolicy());
+		if (getAllocationPolicy() == AllocationPolicy.PART_FILE)
+		{
+			Long size = 0l;
+			for (TorrentDataFile torrentDataFile : getDataFiles())
+				size += torrentDataFile.getLength();
+			setPartFile(new TorrentDataFile(size, this.name + PART_FILE_EXTENSION, null, 0l));
+			openFile(getPartFile(), Environment.getInstance().getRootDownloadDirectory());
+		}
 		else
 		{
-			String directoryName = ((MultiFileInfoDict) infoDict).getDirectoryName();
-			String baseDirectory = Environment.getInstance().getRootDownloadDirectory() + "/" + directoryName;
-			for (TorrentDataFile torrentDataFile : ((MultiFileInfoDict) infoDict).getFiles())
-			{				
-				String path = baseDirectory + "/" + torrentDataFile.getPath();
-				new File(new File(path).getParent()).mkdirs();	//Create all parent directories of the file
-				openFile(torrentDataFile, baseDirectory);
-			}
+			for (TorrentDataFile torrentDataFile : getDataFiles())
+				openFile(torrentDataFile, getBaseDirectory());
 		}
-		logger.log(Level.INFO, "Initialized torrent file system!");
+		
+		setDurabilityPolicy(Environment.getInstance().getDurabilityPolicy());
+		setRunning(true);
+		if (getDurabilityPolicy() == DurabilityPolicy.GROUP_COMMIT)
+		{
+			setCommitTimer(TimerWheel.getInstance().schedulePeriodic(new CommitTask(),
+					Environment.getInstance().getGroupCommitInterval(), TimeUnit.MILLISECONDS));
+		}
+		logger.log(Level.INFO, "Initialized torrent file system with " + getAllocationPolicy() + " allocation and "
+				+ getDurabilityPolicy() + " durability!");
+	}
+	
+	/*
+	 * Return the data files of the torrent, in the order they appear in the flat torrent byte storage
+	 */
+	private List<TorrentDataFile> getDataFiles()
+	{
+		List<TorrentDataFile> dataFiles = new ArrayList<TorrentDataFile>();
+		if (infoDict instanceof SingleFileInfoDict)
+			dataFiles.add(((SingleFileInfoDict) infoDict).getFile());
+		else
+			dataFiles.addAll(((MultiFileInfoDict) infoDict).getFiles());
+		return dataFiles;
 	}
 	
 	/*
-	 * Open the file and add its size to total size
+	 * Return the directory the data files' paths are relative to
 	 */
-	private void openFile(TorrentDataFile torrentDataFile, String baseDirectory) throws FileNotFoundException
+	private String getBaseDirectory()
 	{
-		torrentDataFile.open(baseDirectory);
+		if (infoDict instanceof SingleFileInfoDict)
+			return Environment.getInstance().getRootDownloadDirectory();
+		return Environment.getInstance().getRootDownloadDirectory() + "/" + ((MultiFileInfoDict) infoDict).getDirectoryName();
+	}
+	
+	/*
+	 * Create all parent directories, open and allocate the file, and add its size to total size
+	 */
+	private void openFile(TorrentDataFile torrentDataFile, String baseDirectory) throws IOException
+	{
+		String path = baseDirectory + "/" + torrentDataFile.getPath();
+		new File(path).getAbsoluteFile().getParentFile().mkdirs();	//Create all parent directories of the file
+		torrentDataFile.open(baseDirectory, getAllocationPolicy());
 		this.files.add(torrentDataFile);
 		this.size += torrentDataFile.getLength();
 	}
 	
+	/*
+	 * Split the part-file into the real data files and delete it
+	 * Each file is only extended to its length and then copied in one sequential pass, which fills every block of it -
+	 * zero-filling it first would write the whole torrent twice
+	 */
+	private void finalizePartFile() throws IOException
+	{
+		String baseDirectory = getBaseDirectory();
+		for (TorrentDataFile torrentDataFile : getDataFiles())
+		{
+			String path = baseDirectory + "/" + torrentDataFile.getPath();
+			new File(path).getAbsoluteFile().getParentFile().mkdirs();
+			torrentDataFile.open(baseDirectory, AllocationPolicy.SPARSE);
+			try
+			{
+				torrentDataFile.copyFrom(getPartFile().getFileChannel(), torrentDataFile.getOffset(), torrentDataFile.getLength());
+				torrentDataFile.getFileChannel().force(true);
+			} finally
+			{
+				torrentDataFile.close();
+			}
+			logger.log(Level.FINE, "Moved " + torrentDataFile + " out of the part-file");
+		}
+		getPartFile().close();
+		this.files.remove(getPartFile());
+		new File(Environment.getInstance().getRootDownloadDirectory() + "/" + getPartFile().getPath()).delete();
+		logger.log(Level.FINER, "Part-file finalized and deleted");
+	}
+	
 	/*
 	 * Read from the filesystem at offsetReq into block
 	 * TODO Need to give clearer comments
@@ -110,6 +199,52 @@ public class TorrentFileSystem
 		return readSoFar;
 	}	
 	
+	/*
+	 * Transfer lengthReq bytes from the filesystem at offsetReq straight to target
+	 * The region may span several files, each segment is transferred from its own file channel
+	 * Returns number of bytes actually transferred, which falls short of lengthReq when a non-blocking target is full
+	 */
+	public Long transferTo(WritableByteChannel target, Long offsetReq, Long lengthReq) throws IOException
+	{
+		Long transferredSoFar = 0l;
+		boolean targetFull = false;
+		
+		if (offsetReq + lengthReq > getSize())
+		{
+			TorrentFileSystemException e = new TorrentFileSystemException("Requested offset+length overflows the storage of the TorrentFileSystem");
+			logger.log(Level.WARNING, "Was about to buffer-overread", e);
+			throw e;
+		}
+		
+		for (TorrentDataFile torrentDataFile : this.files)
+		{
+			if (torrentDataFile.getOffset() >= offsetReq + lengthReq)	//Break if the region has already been traversed across the flat byte storage
+				break;
+			if (torrentDataFile.getOffset() + torrentDataFile.getLength() <= offsetReq)	//Continue if we haven't reached the offset yet in the flat byte storage
+				continue;
+			
+			Long segmentOffset = Math.max(offsetReq - torrentDataFile.getOffset(), 0);	//Find segment offset within file found
+			Long segmentLength = Math.min(torrentDataFile.getLength() - segmentOffset, lengthReq - transferredSoFar);	//Find segment length within file found
+			Long transferred = torrentDataFile.transferTo(target, segmentOffset, segmentLength);
+			transferredSoFar += transferred;
+			logger.log(Level.FINE, "Transferred bytes from " + torrentDataFile + ", segment-length: " + segmentLength + ", segment-offset: " + segmentOffset + ", transferred so far: " + transferredSoFar);
+			if (transferred < segmentLength)
+			{
+				targetFull = true;	//The caller transfers the rest once the target has room again
+				break;
+			}
+		}
+		
+		if (transferredSoFar < lengthReq && !targetFull)
+		{
+			TorrentFileSystemException e = new TorrentFileSystemException("Failed to transfer " + lengthReq + " byte(s) from the TorrentFileSystem");
+			logger.log(Level.WARNING, "Buffer under-read", e);
+			throw e;
+		}
+		
+		return transferredSoFar;
+	}
+	
 	/*
 	 * Write the block into the filesystem at offsetReq
 	 */
@@ -144,6 +279,7 @@ public class TorrentFileSystem
 			sumOfLengthAcrossFiles += segmentLength;
 			block.limit((int) (writtenSoFar + segmentLength));
 			writtenSoFar += torrentDataFile.write(block, segmentOffset);	//Write block at segmentOffset in file found			
+			dirtyFiles.add(torrentDataFile);
 			logger.log(Level.FINE, "Wrote bytes to " + torrentDataFile + ", segment-length: " + segmentLength + ", segment-offset: " + segmentOffset + ", written so far: " + writtenSoFar);
 		}
 		
@@ -153,23 +289,95 @@ public class TorrentFileSystem
 			logger.log(Level.WARNING, "Buffer under-write", e);
 			throw e;
 		}
-				
+		
+		dirtyBytes.addAndGet(writtenSoFar);
 		return writtenSoFar;
 	}
 	
-	public void onTorrentDownloadStopped()	//TODO wait wut?
+	/*
+	 * Handler for 'piece written' event
+	 * The piece is handed back to the torrent as completed once its data is durable, as per the durability policy
+	 */
+	public void onPieceWritten(Piece piece) throws IOException
 	{
-		onTorrentDownloadCompleted();
+		uncommittedPieces.add(piece);
+		if (getDurabilityPolicy() == DurabilityPolicy.NONE)
+			notifyCommittedPieces();
+		else if (getDurabilityPolicy() == DurabilityPolicy.PER_PIECE
+				|| dirtyBytes.get() >= Environment.getInstance().getGroupCommitSize())
+			commit();
+	}
+	
+	/*
+	 * Force all dirty files to disk in one go, then record every piece written before the force as completed
+	 * Pieces written while the force is in progress wait for the next commit
+	 * The torrent is notified outside the lock, as its handlers may well be writing the next piece
+	 */
+	public void commit() throws IOException
+	{
+		List<Piece> committing = new ArrayList<Piece>();
+		synchronized (this)
+		{
+			if (!isRunning())
+				return;
+			for (Piece piece = uncommittedPieces.poll(); piece != null; piece = uncommittedPieces.poll())
+				committing.add(piece);
+			dirtyBytes.set(0);
+			
+			for (TorrentDataFile file : dirtyFiles)
+			{
+				dirtyFiles.remove(file);
+				file.getFileChannel().force(true);
+			}
+		}
+		logger.log(Level.FINER, "Committed " + committing.size() + " piece(s) to disk");
+		
+		for (Piece piece : committing)
+			getTorrent().onPieceCommitted(piece);
+	}
+	
+	/*
+	 * Record written pieces as completed without forcing anything to disk
+	 */
+	private void notifyCommittedPieces()
+	{
+		for (Piece piece = uncommittedPieces.poll(); piece != null; piece = uncommittedPieces.poll())
+			getTorrent().onPieceCommitted(piece);
+	}
+	
+	/*
+	 * Flush and close the files, leaving a part-file (if any) in place for a later session
+	 */
+	public void onTorrentDownloadStopped()
+	{
+		logger.log(Level.FINE, "Torrent Download Stopped event");
+		setRunning(false);
+		cancelCommitTimer();
+		uncommittedPieces.clear();	//The torrent is no longer interested in completion events
+		try
+		{
+			for (TorrentDataFile file : this.files)
+				file.getFileChannel().force(true);
+			logger.log(Level.FINER, "Forced wrote unwritten bytes");
+			shutdownFileSystem();
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Failed to shutdown file system or force-writing unwritten bytes", e);
+		}
 	}
 	
 	public void onTorrentDownloadCompleted()
 	{
 		logger.log(Level.FINE, "Torrent Download Completed event");
+		setRunning(false);
+		cancelCommitTimer();
 		try
 		{
 			for (TorrentDataFile file : this.files)
 				file.getFileChannel().force(true);
 			logger.log(Level.FINER, "Forced wrote unwritten bytes");
+			if (getPartFile() != null)
+				finalizePartFile();
 			shutdownFileSystem();
 		} catch (IOException e)
 		{
@@ -182,11 +390,48 @@ public class TorrentFileSystem
 	 */
 	public void shutdownFileSystem() throws IOException
 	{
+		PieceCache.getInstance().invalidate(this);
 		for (TorrentDataFile file : this.files)
 			file.close();
 		logger.log(Level.FINER, "File system shutdown successful!");
 	}
 	
+	private void cancelCommitTimer()
+	{
+		if (getCommitTimer() != null)
+			getCommitTimer().cancel();
+	}
+	
+	/*
+	 * CommitTask that fires from the timer wheel every group commit interval
+	 * The force itself blocks, so it is handed over to the disk service rather than run on the wheel
+	 */
+	private class CommitTask implements Runnable
+	{
+		public void run()
+		{
+			if (!isRunning() || (uncommittedPieces.isEmpty() && dirtyFiles.isEmpty()))
+				return;
+			DiskIOService.getInstance().submit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						commit();
+					} catch (IOException e)
+					{
+						logger.log(Level.WARNING, "Group commit failed", e);
+					}
+				}
+			});
+		}
+	}
+	
+	public Torrent getTorrent() {
+		return torrent;
+	}
+	
 	public Long getSize() {
 		return size;
 	}
@@ -195,6 +440,46 @@ public class TorrentFileSystem
 		this.size = size;
 	}
 	
+	public AllocationPolicy getAllocationPolicy() {
+		return allocationPolicy;
+	}
+
+	public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+		this.allocationPolicy = allocationPolicy;
+	}
+
+	public DurabilityPolicy getDurabilityPolicy() {
+		return durabilityPolicy;
+	}
+
+	public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+		this.durabilityPolicy = durabilityPolicy;
+	}
+
+	public TimerWheel.Timeout getCommitTimer() {
+		return commitTimer;
+	}
+
+	public void setCommitTimer(TimerWheel.Timeout commitTimer) {
+		this.commitTimer = commitTimer;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+
+	public TorrentDataFile getPartFile() {
+		return partFile;
+	}
+
+	public void setPartFile(TorrentDataFile partFile) {
+		this.partFile = partFile;
+	}
+	
 	private class TorrentFileSystemException extends IOException
 	{
 		private static final long serialVersionUID = 1L;
@@ -13,6 +13,7 @@ import java.util.logging.Logger;
 
 import client.Environment;
 import client.LoggingClient;
+import dht.DHTNode;
 import gui.TorrentEventListener;
 import metainfo.TorrentDataFile;
 import metainfo.InfoDictionary;
@@ -20,7 +21,10 @@ import metainfo.Metainfo;
 import metainfo.MultiFileInfoDict;
 import metainfo.SingleFileInfoDict;
 import metainfo.TorrentFileReader;
+import peer.LocalServiceDiscovery;
 import tools.Util;
+import tracker.AnnounceEngine;
+import utp.UtpMultiplexer;
 
 public class TorrentManager
 {
@@ -227,5 +231,9 @@ public class TorrentManager
 			}			
 		}
 		logger.log(Level.INFO, "Stopped all torrents.");
+		DHTNode.stopInstance();
+		LocalServiceDiscovery.getInstance().stop();
+		UtpMultiplexer.stopInstance();
+		AnnounceEngine.stopInstance();
 	}
 }
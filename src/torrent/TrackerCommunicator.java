@@ -1,210 +1,298 @@
+/*
+ * Announces a torrent to its trackers, through the AnnounceEngine shared by all torrents
+ * The trackers come from the announce-list, tier by tier as BEP 12 has it, or from the announce URL if there's no list.
+ * Each tier is shuffled once. A tracker that answers moves to the front of its tier, and one that fails is failed over
+ * to the next one of its tier right away. All tiers are announced to at once, so a torrent whose first tier is down still
+ * gets peers from the others - unless the environment asks for plain BEP 12, where a tier is only used once every tier before it failed.
+ * Nothing waits on a thread of its own: answers arrive on the engine's threads, and the shared timer wheel starts
+ * the re-announces once the interval a tracker asked for has passed, or the backoff of a tier where every tracker failed.
+ */
 package torrent;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.URL;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import client.Environment;
 import client.LoggingClient;
-import tools.BencodeReader;
+import tools.TimerWheel;
 import tools.Util;
+import tracker.AnnounceCallback;
+import tracker.AnnounceEngine;
+import tracker.AnnounceRequest;
+import tracker.AnnounceResponse;
 
 public class TrackerCommunicator
 {
+	private final static long ANNOUNCE_CHECK_INTERVAL = 5;	//Seconds
+	private final static long MIN_RETRY_DELAY = 60;	//Seconds after every tracker of a tier failed, doubled each time it happens again
+	private final static long MAX_RETRY_DELAY = 60*60;	//Seconds
+	private final static long STOP_TIMEOUT = 5000;	//Milliseconds to wait for the 'stopped' announces, so they go out before the client exits
 	private Long interval;
 	private Long minInterval;
 	private String trackerId;
 	private Long complete;
 	private Long incomplete;
-	private Object peers;
-	
+
 	private Torrent torrent;
-	private Thread updateTask;
+	private final List<Tier> tiers = new ArrayList<Tier>();	//Guarded by this, along with the trackers in them
+	private TimerWheel.Timeout timer;
 	private volatile boolean running = false;
-	private boolean behindProxy = false;
 	Logger logger = LoggingClient.getInstance().logger;
 
 	public TrackerCommunicator(Torrent torrent)
 	{
 		this.torrent = torrent;
+		List<Tier> listedTiers = new ArrayList<Tier>();
+		Set<String> seen = new HashSet<String>();
+		List<Object> announceList = torrent.getMetainfo().getAnnounceList();
+		if (announceList != null)
+		{
+			for (Object rawTier : announceList)
+			{
+				if (!(rawTier instanceof List<?>))
+					continue;
+				Tier tier = new Tier();
+				for (Object rawUrl : (List<?>) rawTier)
+				{
+					String url = Util.byteBufferToString(rawUrl);
+					if (url != null && seen.add(url))
+						tier.trackers.add(new Tracker(url, listedTiers.size()));
+				}
+				Collections.shuffle(tier.trackers);	//So clients spread their load over the tier, as BEP 12 asks
+				if (!tier.trackers.isEmpty())
+					listedTiers.add(tier);
+			}
+		}
+		if (listedTiers.isEmpty() && torrent.getMetainfo().getAnnounce() != null)	//The announce URL only counts without an announce-list
+		{
+			Tier tier = new Tier();
+			tier.trackers.add(new Tracker(torrent.getMetainfo().getAnnounce(), 0));
+			listedTiers.add(tier);
+		}
+		if (Environment.getInstance().isAnnounceToAllTiers() || listedTiers.isEmpty())
+			tiers.addAll(listedTiers);
+		else
+		{
+			Tier tier = new Tier();	//One tier tried in order, so a later tier is only reached when every earlier one failed
+			for (Tier listedTier : listedTiers)
+				tier.trackers.addAll(listedTier.trackers);
+			tiers.add(tier);
+		}
 	}
-	
+
 	/*
-	 * Load the tracker by announcing 'start' event
-	 * 
+	 * Announce the 'started' event to every tier, and start re-announcing as the trackers ask
 	 */
-	public void onTorrentDownloadStarted() throws IOException
+	public synchronized void onTorrentDownloadStarted()
 	{
 		if (!isRunning())
 		{
 			setRunning(true);
-			announce("started");
-			setUpdateTask(new Thread(new UpdateTask()));
-			getUpdateTask().start();
-			logger.log(Level.INFO, "Tracker started event");
-		}		
+			for (Tier tier : tiers)
+			{
+				tier.pendingEvent = AnnounceRequest.STARTED;
+				announce(tier);
+			}
+			timer = TimerWheel.getInstance().schedulePeriodic(new Runnable()
+			{
+				public void run()
+				{
+					announceDueTiers(System.currentTimeMillis());
+				}
+			}, ANNOUNCE_CHECK_INTERVAL, TimeUnit.SECONDS);
+			logger.log(Level.INFO, "Tracker started event for " + tiers.size() + " tier(s)");
+		}
 	}
-	
-	public void onTorrentDownloadStopped() throws IOException
+
+	/*
+	 * Stop re-announcing and tell the trackers that answered us that we're gone, waiting a little for the announces to go out
+	 */
+	public void onTorrentDownloadStopped()
 	{
-		if (isRunning())
+		List<Tracker> announced = new ArrayList<Tracker>();
+		synchronized (this)
 		{
+			if (!isRunning())
+				return;
 			setRunning(false);
-			announce("stopped");
-			logger.log(Level.INFO, "Tracker stopped event");
+			timer.cancel();
+			for (Tier tier : tiers)
+			{
+				if (tier.lastWorking != null)
+					announced.add(tier.lastWorking);
+			}
 		}
+		final CountDownLatch sent = new CountDownLatch(announced.size());
+		for (final Tracker tracker : announced)
+		{
+			AnnounceEngine.getInstance().announce(tracker.url, buildRequest(AnnounceRequest.STOPPED, tracker), new AnnounceCallback()
+			{
+				public void onAnnounceSucceeded(AnnounceResponse response)
+				{
+					sent.countDown();
+				}
+
+				public void onAnnounceFailed(IOException e)
+				{
+					logger.log(Level.FINE, "Couldn't send 'stopped' event to " + tracker.url, e);
+					sent.countDown();
+				}
+			});
+		}
+		try
+		{
+			sent.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			logger.log(Level.WARNING, "Interrupted while sending 'stopped' events for " + getTorrent(), e);
+		}
+		logger.log(Level.INFO, "Tracker stopped event");
 	}
-	
-	//TODO these methods need better names
-	public void onTorrentDownloadCompleted()
+
+	/*
+	 * Announce the 'completed' event to every tier, and stop re-announcing as we stop sharing the torrent
+	 */
+	public synchronized void onTorrentDownloadCompleted()
 	{
 		if (isRunning())
 		{
-			try
-			{
-				setRunning(false);	//TODO an important decision - if we want to stop the tracker after we are done downloading
-				announce("completed");
-				logger.log(Level.INFO, "Tracker completed event");
-			} catch (IOException e)
+			setRunning(false);
+			timer.cancel();
+			for (Tier tier : tiers)
 			{
-				logger.log(Level.INFO, "Failed to send 'completed' event to tracker");
+				tier.pendingEvent = AnnounceRequest.COMPLETED;
+				announce(tier);
 			}
-			logger.log(Level.FINER, "Tracker Communicator shutdown successful!");
+			logger.log(Level.INFO, "Tracker completed event");
 		}
 	}
-	
+
 	/*
-	 * Announce to tracker the event
-	 * Parse the response
+	 * Re-announce to the tiers whose interval or backoff is over
+	 * Called periodically from the timer wheel
 	 */
-	public synchronized void announce(String event) throws IOException
+	private synchronized void announceDueTiers(long now)
 	{
-		String req = buildRequest(event);
-		URL url = new URL(req);
-		logger.log(Level.INFO, "Sending GET request to tracker at " + url);
-		HttpURLConnection conn = null;
-		
-		if (isBehindProxy())	//Use if behind proxy
-		{
-			Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("192.168.1.5", 8080));
-			logger.log(Level.FINE, "Setting up proxy for tracker");
-			conn = (HttpURLConnection) url.openConnection(proxy);
-		}
-		else
-			conn = (HttpURLConnection) url.openConnection();
-		conn.setRequestProperty("Accept", "text/plain");
-		
-		HashMap<ByteBuffer, Object> response = new BencodeReader(conn.getInputStream()).read();
-		String failureReason = Util.byteBufferToString(response.get(Util.stringToByteBuffer("failure reason")));
-		if (failureReason != null)
-		{
-			logger.log(Level.WARNING, "Request to tracker failed: " + failureReason);
-			conn.disconnect();
+		if (!isRunning())
 			return;
-		}
-		
-		String warningMessage = Util.byteBufferToString(response.get(Util.stringToByteBuffer("warning message")));
-		if (warningMessage != null)
+		for (Tier tier : tiers)
 		{
-			logger.log(Level.INFO, "Tracker sent a warning message: " + warningMessage);
+			if (now >= tier.nextAnnounceTime)
+				announce(tier);
 		}
-		
-		Long interval = (Long) response.get(Util.stringToByteBuffer("interval"));
-		if (interval == null)
-		{
-			TrackerException e = new TrackerException("No interval specified");
-			logger.log(Level.WARNING, "Malformed tracker response", e);
-			throw e;
-		}
-			
-		setInterval(interval);
-		
-		Long minInterval = (Long) response.get(Util.stringToByteBuffer("min interval"));
-		if (minInterval != null)
-			setMinInterval(minInterval);
-		
-		String trackerId = Util.byteBufferToString(response.get(Util.stringToByteBuffer("tracker id")));
-		if (trackerId != null)
-			setTrackerId(trackerId);
-		
-		Long complete = (Long) response.get(Util.stringToByteBuffer("complete"));
-		if (complete != null)
-			setComplete(complete);
-		
-		Long incomplete = (Long) response.get(Util.stringToByteBuffer("incomplete"));
-		if (incomplete != null)
-			setIncomplete(incomplete);
-		
-		Object peers = response.get(Util.stringToByteBuffer("peers"));
-		if (peers == null)
-		{
-			TrackerException e = new TrackerException("No peers specified");
-			logger.log(Level.WARNING, "Malformed tracker response", e);
-			throw e;
-		}
-		setPeers(peers);
 	}
-	
+
 	/*
-	 * Build a GET request to tracker URL
+	 * Announce the tier's pending event, if any, to the tracker it's on, unless an announce to the tier is under way
 	 */
-	public String buildRequest(String event)
+	private synchronized void announce(final Tier tier)
 	{
-		StringBuilder getReq = new StringBuilder();
-		
-		getReq.append(getTorrent().getMetainfo().getAnnounce());
-		getReq.append("?info_hash=");
-		getReq.append(Util.URLEncode(getTorrent().getMetainfo().getInfoHash().array()));
-		getReq.append("&peer_id=");
-		getReq.append(getTorrent().getPeerId());
-		getReq.append("&port=");
-		getReq.append(getTorrent().getPort());
-		getReq.append("&uploaded=");
-		getReq.append(getTorrent().getUploaded());
-		getReq.append("&downloaded=");
-		getReq.append(getTorrent().getDownloaded());
-		getReq.append("&left=");
-		getReq.append(getTorrent().getLeft());
-		if (getTorrent().isCompact() != null)
-		{
-			getReq.append("&compact=");
-			getReq.append(Util.boolToInt(getTorrent().isCompact()));
-		}			
-		if (event != null)
-		{
-			getReq.append("&event=");
-			getReq.append(event);
-		}
-		if (getTorrent().getIP() != null)
-		{
-			getReq.append("&ip=");
-			getReq.append(getTorrent().getIP());
-		}
-		if (getTorrent().getNumWant() != null)
+		if (tier.announcing)
+			return;
+		tier.announcing = true;
+		final Tracker tracker = tier.trackers.get(tier.current);
+		final String event = tier.pendingEvent;
+		AnnounceEngine.getInstance().announce(tracker.url, buildRequest(event, tracker), new AnnounceCallback()
 		{
-			getReq.append("&numwant=");
-			getReq.append(getTorrent().getNumWant());
-		}
-		if (getTorrent().getKey() != null)
+			public void onAnnounceSucceeded(AnnounceResponse response)
+			{
+				onTrackerResponded(tier, tracker, event, response);
+			}
+
+			public void onAnnounceFailed(IOException e)
+			{
+				onTrackerFailed(tier, tracker, event, e);
+			}
+		});
+	}
+
+	/*
+	 * Handler for 'tracker responded' event
+	 * The tracker moves to the front of its tier, and its peers go to the torrent
+	 */
+	private void onTrackerResponded(Tier tier, Tracker tracker, String event, AnnounceResponse response)
+	{
+		if (response.getWarningMessage() != null)
+			logger.log(Level.INFO, "Tracker " + tracker.url + " sent a warning message: " + response.getWarningMessage());
+		synchronized (this)
 		{
-			getReq.append("&key=");
-			getReq.append(getTorrent().getKey());
+			tier.announcing = false;
+			tier.failures = 0;
+			tier.lastWorking = tracker;
+			if (event != null && event.equals(tier.pendingEvent))
+				tier.pendingEvent = null;
+			if (response.getTrackerId() != null)
+				tracker.trackerId = response.getTrackerId();
+			tier.current = moveToFront(tier, tracker);
+			long wait = Math.max(response.getInterval(), response.getMinInterval() != null ? response.getMinInterval() : 0);
+			tier.nextAnnounceTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(wait);
+			setInterval(response.getInterval());
+			setMinInterval(response.getMinInterval());
+			setTrackerId(tracker.trackerId);
+			setComplete(response.getComplete());
+			setIncomplete(response.getIncomplete());
 		}
-		if (getTorrent().getTrackerId() != null)
+		logger.log(Level.INFO, "Tracker " + tracker.url + " responded: " + response);
+		getTorrent().onTrackerUpdateReceived(response.getPeers());
+	}
+
+	/*
+	 * Handler for 'tracker failed' event
+	 * Fail over to the next tracker of the tier, or once they all failed, retry the tier after a backoff
+	 */
+	private synchronized void onTrackerFailed(Tier tier, Tracker tracker, String event, IOException e)
+	{
+		logger.log(Level.WARNING, "Couldn't announce to tracker " + tracker.url, e);
+		tier.announcing = false;
+		tier.current++;
+		if (tier.current < tier.trackers.size())
 		{
-			getReq.append("&trackerId=");
-			getReq.append(getTorrent().getTrackerId());
+			announce(tier);
+			return;
 		}
-		
-		return getReq.toString();
+		tier.current = 0;
+		tier.failures++;
+		long delay = Math.min(MIN_RETRY_DELAY << Math.min(tier.failures - 1, 16), MAX_RETRY_DELAY);
+		tier.nextAnnounceTime = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay);
 	}
-	
+
+	/*
+	 * Move the tracker to the front of the trackers of its tier, returning where it ended up
+	 * Only matters with plain BEP 12, where the trackers of every tier share one Tier
+	 */
+	private int moveToFront(Tier tier, Tracker tracker)
+	{
+		int from = tier.trackers.indexOf(tracker);
+		int to = from;
+		while (to > 0 && tier.trackers.get(to - 1).tierIndex == tracker.tierIndex)
+			to--;
+		tier.trackers.remove(from);
+		tier.trackers.add(to, tracker);
+		return to;
+	}
+
+	/*
+	 * Build the announce of event to tracker from the torrent's current state
+	 */
+	private AnnounceRequest buildRequest(String event, Tracker tracker)
+	{
+		AnnounceRequest request = new AnnounceRequest(getTorrent().getInfoHash(), Environment.getInstance().getPeerId(),
+				getTorrent().getPort() & 0xffff, getTorrent().getUploaded(), getTorrent().getDownloaded(), getTorrent().getLeft(), event);
+		request.setCompact(getTorrent().isCompact());
+		request.setIP(getTorrent().getIP());
+		request.setNumWant(getTorrent().getNumWant());
+		request.setKey(getTorrent().getKey());
+		return request.withTrackerId(tracker.trackerId);
+	}
+
 	/*
 	 * Print response from tracker
 	 */
@@ -215,7 +303,7 @@ public class TrackerCommunicator
 		String trackerId = getTrackerId();
 		Long complete = getComplete();
 		Long incomplete = getIncomplete();
-		
+
 		return (new StringBuilder())
 				.append(interval != null ? ", Interval: " + interval : "")
 				.append(minInterval != null ? ", Min Interval: " + minInterval : "")
@@ -224,47 +312,38 @@ public class TrackerCommunicator
 				.append(incomplete != null ? ", Incomplete: " + incomplete : "")
 				.append("}").toString();
 	}
-	
+
 	/*
-	 * UpdateTask that sleeps for given interval and announces to the tracker
+	 * A tier of trackers, tried one after the other
 	 */
-	private class UpdateTask implements Runnable
+	private static class Tier
+	{
+		private final List<Tracker> trackers = new ArrayList<Tracker>();
+		private int current = 0;	//Index of the tracker announced to next
+		private boolean announcing = false;
+		private long nextAnnounceTime = Long.MAX_VALUE;	//Set by the first announce's outcome
+		private String pendingEvent;	//Sent with every announce till a tracker of the tier gets it
+		private int failures = 0;	//Times in a row every tracker of the tier failed
+		private Tracker lastWorking;	//The last tracker that answered, told when we stop
+	}
+
+	private static class Tracker
 	{
-		public void run()
+		private final String url;
+		private final int tierIndex;	//Of the announce-list tier it's listed in
+		private String trackerId;	//Sent back to the tracker that gave it to us
+
+		private Tracker(String url, int tierIndex)
 		{
-			while (isRunning())
-			{
-				Long currInterval = getMinInterval();
-				if (currInterval == null)
-					currInterval = interval;
-				try {
-					TimeUnit.SECONDS.sleep(currInterval); //TODO uncomment this in production
-					//TimeUnit.SECONDS.sleep(30);
-					if (!isRunning())
-						return;
-					announce(null);
-					logger.log(Level.INFO, "Tracker update received!");
-					getTorrent().onTrackerUpdateReceived();
-				} catch (IOException e) 
-				{
-					logger.log(Level.WARNING, "Couldn't communicate with tracker", e);
-				} catch (InterruptedException e)
-				{
-					logger.log(Level.WARNING, "Tracker UpdateTask interrupted", e);
-					try 
-					{
-						announce("Stopped");	//TODO fix this bullshit logic
-						setRunning(false);
-						logger.log(Level.FINER, "Stopping interrupted tracker");
-					} catch (IOException e1) 
-					{
-						logger.log(Level.FINER, "Couldn't communicate with interrupted tracker", e1);
-					}
-				}
-			}
+			this.url = url;
+			this.tierIndex = tierIndex;
 		}
 	}
-	
+
+	public synchronized int getTierCount() {
+		return tiers.size();
+	}
+
 	public Long getInterval() {
 		return interval;
 	}
@@ -305,14 +384,6 @@ public class TrackerCommunicator
 		this.incomplete = incomplete;
 	}
 
-	public Object getPeers() {
-		return peers;
-	}
-
-	public void setPeers(Object peers) {
-		this.peers = peers;
-	}
-		
 	public Torrent getTorrent() {
 		return torrent;
 	}
@@ -320,15 +391,7 @@ public class TrackerCommunicator
 	public void setTorrent(Torrent torrent) {
 		this.torrent = torrent;
 	}
-	
-	public Thread getUpdateTask() {
-		return updateTask;
-	}
 
-	public void setUpdateTask(Thread updateTask) {
-		this.updateTask = updateTask;
-	}
-	
 	public boolean isRunning() {
 		return running;
 	}
@@ -336,12 +399,4 @@ public class TrackerCommunicator
 	public void setRunning(boolean running) {
 		this.running = running;
 	}
-
-	public boolean isBehindProxy() {
-		return behindProxy;
-	}
-
-	public void setBehindProxy(boolean behindProxy) {
-		this.behindProxy = behindProxy;
-	}
 }
@@ -0,0 +1,19 @@
+/**
+ * Gets told how an announce went
+ */
+package tracker;
+
+import java.io.IOException;
+
+public interface AnnounceCallback
+{
+	/*
+	 * Called on one of the announce engine's threads, so it mustn't block for long
+	 */
+	public void onAnnounceSucceeded(AnnounceResponse response);
+
+	/*
+	 * The tracker couldn't be reached, timed out, or refused the announce
+	 */
+	public void onAnnounceFailed(IOException e);
+}
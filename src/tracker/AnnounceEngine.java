@@ -0,0 +1,171 @@
+/*
+ * A singleton that carries the tracker announces of every torrent
+ * UDP trackers (BEP 15) are announced to over one shared channel. HTTP trackers, whose connections block,
+ * get a small pool of threads shared by all torrents, as does resolving the host names of UDP trackers.
+ * Announces never block the caller - the outcome goes to the announce's callback - so a torrent can announce to
+ * all of its trackers at once and nothing needs a thread of its own waiting for the next announce.
+ */
+package tracker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+import torrent.TrackerException;
+
+public class AnnounceEngine
+{
+	private static AnnounceEngine instance = null;
+	private final static int THREADS = 4;	//HTTP announces and host name lookups in flight at a time, the rest queue up
+	private final ExecutorService executorService;
+	private final HttpTrackerClient httpClient = new HttpTrackerClient();
+	private UdpTrackerClient udpClient;	//Started with the first UDP announce
+	private volatile boolean running = true;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	private AnnounceEngine()
+	{
+		this.executorService = Executors.newFixedThreadPool(THREADS,
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "Tracker announce");
+						thread.setDaemon(true);	//Don't keep the client alive after the main thread exits
+						return thread;
+					}
+				});
+	}
+
+	public static synchronized AnnounceEngine getInstance()
+	{
+		if (instance == null)
+			instance = new AnnounceEngine();
+		return instance;
+	}
+
+	/*
+	 * Stop the engine, if it was ever started
+	 */
+	public static synchronized void stopInstance()
+	{
+		if (instance != null)
+			instance.stop();
+	}
+
+	/*
+	 * Announce to the tracker at url, telling callback how it went
+	 */
+	public void announce(final String url, final AnnounceRequest request, final AnnounceCallback callback)
+	{
+		String scheme = url.substring(0, Math.max(url.indexOf(':'), 0)).toLowerCase();
+		try
+		{
+			if (scheme.equals("http") || scheme.equals("https"))
+			{
+				executorService.execute(new Runnable()
+				{
+					public void run()
+					{
+						announceHttp(url, request, callback);
+					}
+				});
+			}
+			else if (scheme.equals("udp"))
+			{
+				executorService.execute(new Runnable()	//Resolving the host name may block
+				{
+					public void run()
+					{
+						announceUdp(url, request, callback);
+					}
+				});
+			}
+			else
+				callback.onAnnounceFailed(new TrackerException("Unsupported tracker protocol: " + url));
+		} catch (RejectedExecutionException e)
+		{
+			callback.onAnnounceFailed(new ClosedChannelException());
+		}
+	}
+
+	private void announceHttp(String url, AnnounceRequest request, AnnounceCallback callback)
+	{
+		AnnounceResponse response;
+		try
+		{
+			response = httpClient.announce(url, request);
+		} catch (IOException e)
+		{
+			callback.onAnnounceFailed(e);
+			return;
+		} catch (RuntimeException e)	//Not the bencoded dictionary, or the wrong types in it
+		{
+			logger.log(Level.FINE, "Malformed response from tracker " + url, e);
+			callback.onAnnounceFailed(new TrackerException("Malformed response from " + url));
+			return;
+		}
+		callback.onAnnounceSucceeded(response);
+	}
+
+	private void announceUdp(String url, AnnounceRequest request, AnnounceCallback callback)
+	{
+		InetSocketAddress address;
+		try
+		{
+			URI uri = new URI(url);
+			if (uri.getHost() == null || uri.getPort() < 0)
+				throw new URISyntaxException(url, "No host or port");
+			address = new InetSocketAddress(InetAddress.getByName(uri.getHost()), uri.getPort());
+			getUdpClient().announce(address, request, callback);
+		} catch (URISyntaxException e)
+		{
+			callback.onAnnounceFailed(new TrackerException("Invalid tracker URL " + url));
+		} catch (IOException e)
+		{
+			callback.onAnnounceFailed(e);
+		}
+	}
+
+	private synchronized UdpTrackerClient getUdpClient() throws IOException
+	{
+		if (!running)
+			throw new ClosedChannelException();
+		if (udpClient == null)
+		{
+			UdpTrackerClient client = new UdpTrackerClient();
+			client.start();
+			udpClient = client;
+		}
+		return udpClient;
+	}
+
+	/*
+	 * Stop taking announces, failing the UDP ones still waiting for answers
+	 * HTTP announces under way run to the end of their timeouts
+	 */
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		executorService.shutdown();
+		if (udpClient != null)
+			udpClient.stop();
+		logger.log(Level.INFO, "Announce engine stopped");
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+}
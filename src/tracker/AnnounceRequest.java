@@ -0,0 +1,115 @@
+/*
+ * What we tell a tracker in an announce - a snapshot of the torrent's state when the announce was made,
+ * so HTTP and UDP trackers get the same numbers however long the announce waits to be sent
+ */
+package tracker;
+
+import java.nio.ByteBuffer;
+
+public class AnnounceRequest
+{
+	public final static String STARTED = "started";
+	public final static String COMPLETED = "completed";
+	public final static String STOPPED = "stopped";
+	private final ByteBuffer infoHash;
+	private final ByteBuffer peerId;
+	private final int port;
+	private final long uploaded;
+	private final long downloaded;
+	private final long left;
+	private final String event;	//null for a regular announce
+	private Long numWant;	//null for the tracker's default
+	private String key;
+	private String IP;
+	private String trackerId;
+	private Boolean compact;
+
+	public AnnounceRequest(ByteBuffer infoHash, ByteBuffer peerId, int port, long uploaded, long downloaded, long left, String event)
+	{
+		this.infoHash = infoHash;
+		this.peerId = peerId;
+		this.port = port;
+		this.uploaded = uploaded;
+		this.downloaded = downloaded;
+		this.left = left;
+		this.event = event;
+	}
+
+	/*
+	 * Copy of this request with the tracker ID a particular tracker gave us
+	 */
+	public AnnounceRequest withTrackerId(String trackerId)
+	{
+		AnnounceRequest request = new AnnounceRequest(infoHash, peerId, port, uploaded, downloaded, left, event);
+		request.numWant = numWant;
+		request.key = key;
+		request.IP = IP;
+		request.compact = compact;
+		request.trackerId = trackerId;
+		return request;
+	}
+
+	public ByteBuffer getInfoHash() {
+		return infoHash;
+	}
+
+	public ByteBuffer getPeerId() {
+		return peerId;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getUploaded() {
+		return uploaded;
+	}
+
+	public long getDownloaded() {
+		return downloaded;
+	}
+
+	public long getLeft() {
+		return left;
+	}
+
+	public String getEvent() {
+		return event;
+	}
+
+	public Long getNumWant() {
+		return numWant;
+	}
+
+	public void setNumWant(Long numWant) {
+		this.numWant = numWant;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	public String getIP() {
+		return IP;
+	}
+
+	public void setIP(String iP) {
+		IP = iP;
+	}
+
+	public String getTrackerId() {
+		return trackerId;
+	}
+
+	public Boolean isCompact() {
+		return compact;
+	}
+
+	public void setCompact(Boolean compact) {
+		this.compact = compact;
+	}
+}
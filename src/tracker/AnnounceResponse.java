@@ -0,0 +1,81 @@
+/*
+ * What a tracker answered to an announce
+ * Peers are either compact 6 byte IPv4 endpoints in one ByteBuffer, or the list of peer dictionaries of a non-compact HTTP response.
+ */
+package tracker;
+
+public class AnnounceResponse
+{
+	private final long interval;	//Seconds
+	private Long minInterval;	//Seconds, null if the tracker didn't say
+	private String trackerId;
+	private Long complete;
+	private Long incomplete;
+	private final Object peers;
+	private String warningMessage;
+
+	public AnnounceResponse(long interval, Object peers)
+	{
+		this.interval = interval;
+		this.peers = peers;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public Long getMinInterval() {
+		return minInterval;
+	}
+
+	public void setMinInterval(Long minInterval) {
+		this.minInterval = minInterval;
+	}
+
+	public String getTrackerId() {
+		return trackerId;
+	}
+
+	public void setTrackerId(String trackerId) {
+		this.trackerId = trackerId;
+	}
+
+	public Long getComplete() {
+		return complete;
+	}
+
+	public void setComplete(Long complete) {
+		this.complete = complete;
+	}
+
+	public Long getIncomplete() {
+		return incomplete;
+	}
+
+	public void setIncomplete(Long incomplete) {
+		this.incomplete = incomplete;
+	}
+
+	public Object getPeers() {
+		return peers;
+	}
+
+	public String getWarningMessage() {
+		return warningMessage;
+	}
+
+	public void setWarningMessage(String warningMessage) {
+		this.warningMessage = warningMessage;
+	}
+
+	public String toString()
+	{
+		return (new StringBuilder())
+				.append("{Interval: ").append(interval)
+				.append(minInterval != null ? ", Min Interval: " + minInterval : "")
+				.append(trackerId != null ? ", Tracker Id: " + trackerId : "")
+				.append(complete != null ? ", Complete: " + complete : "")
+				.append(incomplete != null ? ", Incomplete: " + incomplete : "")
+				.append("}").toString();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Announces to HTTP trackers
+ * HttpURLConnection blocks, so the announce engine runs these on its small pool of threads, shared by every torrent.
+ * Connecting and reading both time out, so a dead tracker only holds a thread up for a bounded time.
+ */
+package tracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+import tools.BencodeReader;
+import tools.Util;
+import torrent.TrackerException;
+
+public class HttpTrackerClient
+{
+	private final static int CONNECT_TIMEOUT = 15*1000;	//Milliseconds
+	private final static int READ_TIMEOUT = 30*1000;	//Milliseconds
+	Logger logger = LoggingClient.getInstance().logger;
+
+	/*
+	 * Announce to the tracker at url and parse its response
+	 */
+	public AnnounceResponse announce(String url, AnnounceRequest request) throws IOException
+	{
+		URL requestUrl = new URL(buildRequest(url, request));
+		logger.log(Level.INFO, "Sending GET request to tracker at " + requestUrl);
+		HttpURLConnection conn = (HttpURLConnection) requestUrl.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setRequestProperty("Accept", "text/plain");
+		HashMap<ByteBuffer, Object> response;
+		try (InputStream in = conn.getInputStream())
+		{
+			response = new BencodeReader(in).read();
+		} finally
+		{
+			conn.disconnect();
+		}
+
+		String failureReason = Util.byteBufferToString(response.get(Util.stringToByteBuffer("failure reason")));
+		if (failureReason != null)
+			throw new TrackerException("Request to tracker failed: " + failureReason);
+
+		Long interval = (Long) response.get(Util.stringToByteBuffer("interval"));
+		if (interval == null)
+			throw new TrackerException("No interval specified");
+		Object peers = response.get(Util.stringToByteBuffer("peers"));
+		if (peers == null)
+			throw new TrackerException("No peers specified");
+
+		AnnounceResponse announceResponse = new AnnounceResponse(interval, peers);
+		announceResponse.setWarningMessage(Util.byteBufferToString(response.get(Util.stringToByteBuffer("warning message"))));
+		announceResponse.setMinInterval((Long) response.get(Util.stringToByteBuffer("min interval")));
+		announceResponse.setTrackerId(Util.byteBufferToString(response.get(Util.stringToByteBuffer("tracker id"))));
+		announceResponse.setComplete((Long) response.get(Util.stringToByteBuffer("complete")));
+		announceResponse.setIncomplete((Long) response.get(Util.stringToByteBuffer("incomplete")));
+		return announceResponse;
+	}
+
+	/*
+	 * Build a GET request to tracker URL
+	 */
+	public String buildRequest(String url, AnnounceRequest request)
+	{
+		StringBuilder getReq = new StringBuilder();
+
+		getReq.append(url);
+		getReq.append(url.indexOf('?') < 0 ? "?info_hash=" : "&info_hash=");
+		getReq.append(Util.URLEncode(request.getInfoHash().array()));
+		getReq.append("&peer_id=");
+		getReq.append(Util.URLEncode(request.getPeerId().array()));
+		getReq.append("&port=");
+		getReq.append(request.getPort());
+		getReq.append("&uploaded=");
+		getReq.append(request.getUploaded());
+		getReq.append("&downloaded=");
+		getReq.append(request.getDownloaded());
+		getReq.append("&left=");
+		getReq.append(request.getLeft());
+		if (request.isCompact() != null)
+		{
+			getReq.append("&compact=");
+			getReq.append(Util.boolToInt(request.isCompact()));
+		}
+		if (request.getEvent() != null)
+		{
+			getReq.append("&event=");
+			getReq.append(request.getEvent());
+		}
+		if (request.getIP() != null)
+		{
+			getReq.append("&ip=");
+			getReq.append(request.getIP());
+		}
+		if (request.getNumWant() != null)
+		{
+			getReq.append("&numwant=");
+			getReq.append(request.getNumWant());
+		}
+		if (request.getKey() != null)
+		{
+			getReq.append("&key=");
+			getReq.append(request.getKey());
+		}
+		if (request.getTrackerId() != null)
+		{
+			getReq.append("&trackerid=");
+			getReq.append(Util.URLEncode(request.getTrackerId()));
+		}
+
+		return getReq.toString();
+	}
+}
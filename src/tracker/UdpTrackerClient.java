@@ -0,0 +1,392 @@
+/*
+ * Announces to UDP trackers (BEP 15)
+ * An announce needs a connection ID, which takes a connect round trip to get and then stays good for a minute.
+ * The IDs are cached per tracker, so all the torrents announcing to a tracker within that minute share one connect,
+ * and the announces that arrive while a connect is under way wait for it instead of sending their own.
+ * One DatagramChannel serves every tracker: a receiver thread matches responses to requests by transaction ID,
+ * and the shared timer wheel resends the requests that got no answer.
+ * BEP 15 waits 15 * 2^n seconds between resends, for up to 8 of them. We start at 5 seconds and give up after 3 attempts,
+ * so a dead tracker is failed over to the next one in its tier within about half a minute instead of hours.
+ */
+package tracker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.LoggingClient;
+import tools.TimerWheel;
+import torrent.TrackerException;
+
+public class UdpTrackerClient
+{
+	private final static long PROTOCOL_ID = 0x41727101980L;	//Magic constant of connect requests
+	private final static int ACTION_CONNECT = 0;
+	private final static int ACTION_ANNOUNCE = 1;
+	private final static int ACTION_ERROR = 3;
+	private final static int EVENT_NONE = 0;
+	private final static int EVENT_COMPLETED = 1;
+	private final static int EVENT_STARTED = 2;
+	private final static int EVENT_STOPPED = 3;
+	private final static int CONNECT_LENGTH = 16;
+	private final static int ANNOUNCE_LENGTH = 98;
+	private final static int ANNOUNCE_RESPONSE_MIN_LENGTH = 20;
+	private final static int COMPACT_PEER_LENGTH = 6;
+	private final static int MAX_PACKET_SIZE = 8192;	//Room for the peers of any sane numwant, anything bigger is cut short and dropped
+	private final static long CONNECTION_ID_LIFETIME = 60*1000L;	//Milliseconds a connection ID may be used, as BEP 15 allows
+	private final static long RETRANSMIT_TIMEOUT = 5000;	//Milliseconds before the first resend, doubled for each one after
+	private final static int MAX_ATTEMPTS = 3;
+	private final static int MAX_PENDING_REQUESTS = 4096;
+	private final static long TICK_INTERVAL = 1;	//Seconds
+	private final static Charset CHARSET = Charset.forName("UTF-8");
+	private final ConcurrentMap<InetSocketAddress, ConnectionId> connectionIds = new ConcurrentHashMap<InetSocketAddress, ConnectionId>();
+	private final Map<InetSocketAddress, List<PendingAnnounce>> awaitingConnection = new HashMap<InetSocketAddress, List<PendingAnnounce>>();	//Guarded by itself
+	private final ConcurrentMap<Integer, Transaction> transactions = new ConcurrentHashMap<Integer, Transaction>();
+	private final AtomicInteger nextTransactionId = new AtomicInteger(new SecureRandom().nextInt());
+	private volatile DatagramChannel channel;
+	private volatile boolean running = false;
+	private TimerWheel.Timeout timer;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	/*
+	 * Bind the channel to any port, start the receiver thread and the resend timer
+	 */
+	public void start() throws IOException
+	{
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.bind(new InetSocketAddress(0));
+		running = true;
+		Thread receiver = new Thread(new Receiver(), "UDP tracker");
+		receiver.setDaemon(true);	//Don't keep the client alive after the main thread exits
+		receiver.start();
+		timer = TimerWheel.getInstance().schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				resendRequests(System.currentTimeMillis());
+			}
+		}, TICK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * Stop, failing every announce still waiting for an answer
+	 */
+	public void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		timer.cancel();
+		try
+		{
+			channel.close();	//Wakes the receiver thread up, which then exits
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't close UDP tracker channel", e);
+		}
+		for (Transaction transaction : new ArrayList<Transaction>(transactions.values()))
+			fail(transaction, new ClosedChannelException());
+	}
+
+	/*
+	 * Announce to the tracker at address, connecting first unless we have a connection ID for it already
+	 */
+	public void announce(InetSocketAddress address, AnnounceRequest request, AnnounceCallback callback)
+	{
+		if (!running)
+		{
+			callback.onAnnounceFailed(new ClosedChannelException());
+			return;
+		}
+		ConnectionId connectionId = connectionIds.get(address);
+		if (connectionId != null && System.currentTimeMillis() - connectionId.receivedTime < CONNECTION_ID_LIFETIME)
+		{
+			sendAnnounce(address, connectionId.id, request, callback);
+			return;
+		}
+		synchronized (awaitingConnection)
+		{
+			List<PendingAnnounce> pending = awaitingConnection.get(address);
+			if (pending != null)
+			{
+				pending.add(new PendingAnnounce(request, callback));
+				return;
+			}
+			pending = new ArrayList<PendingAnnounce>();
+			pending.add(new PendingAnnounce(request, callback));
+			awaitingConnection.put(address, pending);
+			ByteBuffer packet = ByteBuffer.allocate(CONNECT_LENGTH);
+			packet.putLong(PROTOCOL_ID).putInt(ACTION_CONNECT);
+			send(new Transaction(address, ACTION_CONNECT, packet, null, null));	//Fails the pending announce right away if it can't go out
+		}
+	}
+
+	private void sendAnnounce(InetSocketAddress address, long connectionId, AnnounceRequest request, AnnounceCallback callback)
+	{
+		ByteBuffer packet = ByteBuffer.allocate(ANNOUNCE_LENGTH);
+		packet.putLong(connectionId).putInt(ACTION_ANNOUNCE);
+		packet.position(packet.position() + 4);	//Transaction ID, filled in when sending
+		packet.put(request.getInfoHash().array());
+		packet.put(request.getPeerId().array());
+		packet.putLong(request.getDownloaded());
+		packet.putLong(request.getLeft());
+		packet.putLong(request.getUploaded());
+		packet.putInt(getEventCode(request.getEvent()));
+		packet.putInt(0);	//Our IP, the tracker takes the one the packet came from
+		packet.putInt(request.getKey() == null ? 0 : request.getKey().hashCode());
+		packet.putInt(request.getNumWant() == null ? -1 : request.getNumWant().intValue());
+		packet.putShort((short) request.getPort());
+		send(new Transaction(address, ACTION_ANNOUNCE, packet, request, callback));
+	}
+
+	/*
+	 * Give the transaction an ID and send it, or fail it if there are too many waiting for answers already
+	 */
+	private void send(Transaction transaction)
+	{
+		if (transactions.size() >= MAX_PENDING_REQUESTS)
+		{
+			fail(transaction, new TrackerException("Too many UDP tracker requests in flight"));
+			return;
+		}
+		int transactionId;
+		do
+		{
+			transactionId = nextTransactionId.getAndIncrement();
+		} while (transactions.putIfAbsent(transactionId, transaction) != null);
+		transaction.transactionId = transactionId;
+		transaction.packet.putInt(12, transactionId);	//After the connection ID or protocol ID and the action
+		transmit(transaction, System.currentTimeMillis());
+	}
+
+	private void transmit(Transaction transaction, long now)
+	{
+		transaction.attempts++;
+		transaction.deadline = now + (RETRANSMIT_TIMEOUT << (transaction.attempts - 1));
+		try
+		{
+			channel.send((ByteBuffer) transaction.packet.duplicate().rewind(), transaction.address);
+		} catch (IOException e)
+		{
+			logger.log(Level.FINE, "Couldn't send UDP tracker request to " + transaction.address, e);
+		}
+	}
+
+	/*
+	 * Resend the requests whose answers are overdue, failing the ones out of attempts
+	 * An announce whose connection ID expired meanwhile starts over from connecting
+	 */
+	private void resendRequests(long now)
+	{
+		for (Transaction transaction : transactions.values())
+		{
+			if (now < transaction.deadline)
+				continue;
+			if (transaction.attempts >= MAX_ATTEMPTS)
+			{
+				if (transactions.remove(transaction.transactionId, transaction))
+					fail(transaction, new TrackerException("UDP tracker " + transaction.address + " timed out"));
+				continue;
+			}
+			if (transaction.action == ACTION_ANNOUNCE && !isConnectionIdValid(transaction.address, now))
+			{
+				if (transactions.remove(transaction.transactionId, transaction))
+					announce(transaction.address, transaction.request, transaction.callback);
+				continue;
+			}
+			transmit(transaction, now);
+		}
+	}
+
+	private boolean isConnectionIdValid(InetSocketAddress address, long now)
+	{
+		ConnectionId connectionId = connectionIds.get(address);
+		return connectionId != null && now - connectionId.receivedTime < CONNECTION_ID_LIFETIME;
+	}
+
+	/*
+	 * Handler for 'response received' event
+	 */
+	private void onResponseReceived(ByteBuffer response, InetSocketAddress source) throws BufferUnderflowException
+	{
+		int action = response.getInt();
+		int transactionId = response.getInt();
+		Transaction transaction = transactions.get(transactionId);
+		if (transaction == null || !transaction.address.equals(source))	//Late, or not from who we asked
+			return;
+		if (action == ACTION_ERROR)
+		{
+			transactions.remove(transactionId, transaction);
+			connectionIds.remove(source);	//A stale connection ID is the usual cause, get a fresh one next time
+			fail(transaction, new TrackerException("UDP tracker " + source + " failed: " + CHARSET.decode(response)));
+		}
+		else if (action == ACTION_CONNECT && transaction.action == ACTION_CONNECT)
+		{
+			long connectionId = response.getLong();
+			transactions.remove(transactionId, transaction);
+			connectionIds.put(source, new ConnectionId(connectionId, System.currentTimeMillis()));
+			for (PendingAnnounce pending : takePending(source))
+				sendAnnounce(source, connectionId, pending.request, pending.callback);
+		}
+		else if (action == ACTION_ANNOUNCE && transaction.action == ACTION_ANNOUNCE && response.limit() >= ANNOUNCE_RESPONSE_MIN_LENGTH)
+		{
+			long interval = response.getInt() & 0xffffffffL;
+			long leechers = response.getInt() & 0xffffffffL;
+			long seeders = response.getInt() & 0xffffffffL;
+			ByteBuffer peers = ByteBuffer.allocate(response.remaining() - response.remaining() % COMPACT_PEER_LENGTH);
+			response.limit(response.position() + peers.remaining());
+			peers.put(response).flip();
+			transactions.remove(transactionId, transaction);
+			AnnounceResponse announceResponse = new AnnounceResponse(interval, peers);
+			announceResponse.setComplete(seeders);
+			announceResponse.setIncomplete(leechers);
+			transaction.callback.onAnnounceSucceeded(announceResponse);
+		}
+	}
+
+	/*
+	 * Fail a request - a failed connect fails every announce waiting for it
+	 */
+	private void fail(Transaction transaction, IOException e)
+	{
+		if (transaction.action == ACTION_ANNOUNCE)
+			transaction.callback.onAnnounceFailed(e);
+		else
+		{
+			for (PendingAnnounce pending : takePending(transaction.address))
+				pending.callback.onAnnounceFailed(e);
+		}
+	}
+
+	private List<PendingAnnounce> takePending(InetSocketAddress address)
+	{
+		synchronized (awaitingConnection)
+		{
+			List<PendingAnnounce> pending = awaitingConnection.remove(address);
+			return pending == null ? new ArrayList<PendingAnnounce>() : pending;
+		}
+	}
+
+	private static int getEventCode(String event)
+	{
+		if (AnnounceRequest.STARTED.equals(event))
+			return EVENT_STARTED;
+		if (AnnounceRequest.COMPLETED.equals(event))
+			return EVENT_COMPLETED;
+		if (AnnounceRequest.STOPPED.equals(event))
+			return EVENT_STOPPED;
+		return EVENT_NONE;
+	}
+
+	public int getCachedConnectionCount() {
+		return connectionIds.size();
+	}
+
+	/*
+	 * Receiver thread
+	 * Handles every response that arrives till the channel is closed
+	 */
+	private class Receiver implements Runnable
+	{
+		public void run()
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE + 1);	//One spare byte to tell oversized packets apart
+			while (running)
+			{
+				InetSocketAddress source;
+				try
+				{
+					buffer.clear();
+					source = (InetSocketAddress) channel.receive(buffer);
+				} catch (ClosedChannelException e)
+				{
+					break;
+				} catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Couldn't receive UDP tracker response", e);
+					continue;
+				}
+				buffer.flip();
+				if (source == null)
+					continue;
+				if (buffer.remaining() > MAX_PACKET_SIZE)
+				{
+					logger.log(Level.FINER, "Dropping oversized UDP tracker response from " + source);
+					continue;
+				}
+				try
+				{
+					onResponseReceived(buffer, source);
+				} catch (RuntimeException e)
+				{
+					logger.log(Level.FINER, "Invalid UDP tracker response from " + source, e);
+				}
+			}
+			logger.log(Level.FINE, "UDP tracker receiver thread exiting");
+		}
+	}
+
+	/*
+	 * A request waiting for its answer
+	 */
+	private static class Transaction
+	{
+		private final InetSocketAddress address;
+		private final int action;
+		private final ByteBuffer packet;
+		private final AnnounceRequest request;	//null for connects
+		private final AnnounceCallback callback;
+		private int transactionId;
+		private int attempts = 0;
+		private volatile long deadline = Long.MAX_VALUE;	//Not due before it's first sent
+
+		private Transaction(InetSocketAddress address, int action, ByteBuffer packet, AnnounceRequest request, AnnounceCallback callback)
+		{
+			this.address = address;
+			this.action = action;
+			this.packet = packet;
+			this.request = request;
+			this.callback = callback;
+		}
+	}
+
+	private static class PendingAnnounce
+	{
+		private final AnnounceRequest request;
+		private final AnnounceCallback callback;
+
+		private PendingAnnounce(AnnounceRequest request, AnnounceCallback callback)
+		{
+			this.request = request;
+			this.callback = callback;
+		}
+	}
+
+	private static class ConnectionId
+	{
+		private final long id;
+		private final long receivedTime;
+
+		private ConnectionId(long id, long receivedTime)
+		{
+			this.id = id;
+			this.receivedTime = receivedTime;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * LEDBAT congestion control (RFC 6817), as uTP uses it
+ * The one-way delay of our packets, as the other end measures it, is compared to the lowest delay seen in the last
+ * couple of minutes - the base delay. Whatever is above it is queuing delay, which we caused or somebody else did.
+ * Below the 100ms target the window grows, at most 3000 bytes per round trip; above it the window shrinks just as fast,
+ * so the link is left to TCP and interactive traffic as soon as they start queuing behind us.
+ * A fresh connection starts in slow start, doubling its window each round trip, until queuing delay nears the target.
+ * A loss halves the window, at most once per round trip, and a timeout drops it to one packet.
+ * Not thread safe, the owning UtpSocket guards it.
+ */
+package utp;
+
+import java.util.Arrays;
+
+public class Ledbat
+{
+	public final static long TARGET_DELAY = 100000;	//Microseconds of queuing delay we aim for
+	private final static long MAX_WINDOW_INCREASE = 3000;	//Bytes per round trip
+	private final static long BASE_DELAY_INTERVAL = 60*1000L;	//Milliseconds of history each base delay slot covers
+	private final static int BASE_DELAY_HISTORY = 2;	//Slots, so the base delay is the lowest of the last two minutes
+	private final static int CURRENT_DELAY_SAMPLES = 4;	//The lowest of the last few samples filters out the noise
+	private final long minWindow;
+	private final long initialWindow;
+	private long maxWindow;
+	private long slowStartThreshold = Long.MAX_VALUE;
+	private boolean slowStart = true;
+	private final long[] baseDelays = new long[BASE_DELAY_HISTORY];
+	private int baseDelayIndex = 0;
+	private long baseDelaySlotStart = 0;
+	private final long[] currentDelays = new long[CURRENT_DELAY_SAMPLES];
+	private int currentDelayIndex = 0;
+	private long lastDecreaseTime = 0;
+
+	public Ledbat(int packetSize)
+	{
+		this.minWindow = packetSize;
+		this.initialWindow = 3 * packetSize;
+		this.maxWindow = initialWindow;
+		Arrays.fill(baseDelays, Long.MAX_VALUE);
+		Arrays.fill(currentDelays, Long.MAX_VALUE);
+	}
+
+	/*
+	 * Handler for 'bytes acknowledged' event
+	 * delay is the one-way delay sample in microseconds, 0 if the other end didn't send one,
+	 * flightSize the bytes that were in flight before the ACK
+	 */
+	public void onAck(long bytesAcked, long delay, long flightSize, long now)
+	{
+		if (delay > 0)
+			addDelaySample(delay, now);
+		if (flightSize < maxWindow / 2)	//Not using the window, so it says nothing about the link
+			return;
+		long queuingDelay = getQueuingDelay();
+		if (slowStart)
+		{
+			if (queuingDelay < TARGET_DELAY * 9 / 10 && maxWindow < slowStartThreshold)
+			{
+				maxWindow += bytesAcked;
+				return;
+			}
+			slowStart = false;
+		}
+		double offTarget = Math.max(-1.0, (TARGET_DELAY - queuingDelay) / (double) TARGET_DELAY);
+		double windowFactor = Math.min(bytesAcked, maxWindow) / (double) Math.max(maxWindow, bytesAcked);
+		maxWindow = Math.max(minWindow, maxWindow + (long) (MAX_WINDOW_INCREASE * offTarget * windowFactor));
+	}
+
+	/*
+	 * Handler for 'packet lost' event
+	 */
+	public void onLoss(long now, long rtt)
+	{
+		if (now - lastDecreaseTime < rtt)
+			return;
+		lastDecreaseTime = now;
+		maxWindow = Math.max(minWindow, maxWindow / 2);
+		slowStartThreshold = maxWindow;
+		slowStart = false;
+	}
+
+	/*
+	 * Handler for 'retransmission timed out' event
+	 * Start over from one packet, slow starting back up to half the window we had
+	 */
+	public void onTimeout(long now)
+	{
+		lastDecreaseTime = now;
+		slowStartThreshold = Math.max(initialWindow, maxWindow / 2);
+		maxWindow = minWindow;
+		slowStart = true;
+	}
+
+	private void addDelaySample(long delay, long now)
+	{
+		if (now - baseDelaySlotStart > BASE_DELAY_INTERVAL)
+		{
+			baseDelaySlotStart = now;
+			baseDelayIndex = (baseDelayIndex + 1) % BASE_DELAY_HISTORY;
+			baseDelays[baseDelayIndex] = delay;
+		}
+		else
+			baseDelays[baseDelayIndex] = Math.min(baseDelays[baseDelayIndex], delay);
+		currentDelays[currentDelayIndex] = delay;
+		currentDelayIndex = (currentDelayIndex + 1) % CURRENT_DELAY_SAMPLES;
+	}
+
+	/*
+	 * Microseconds our packets spend queuing, by the recent samples, 0 before there are any
+	 */
+	public long getQueuingDelay()
+	{
+		long baseDelay = Long.MAX_VALUE;
+		for (long sample : baseDelays)
+			baseDelay = Math.min(baseDelay, sample);
+		long currentDelay = Long.MAX_VALUE;
+		for (long sample : currentDelays)
+			currentDelay = Math.min(currentDelay, sample);
+		if (baseDelay == Long.MAX_VALUE || currentDelay == Long.MAX_VALUE)
+			return 0;
+		return Math.max(0, currentDelay - baseDelay);
+	}
+
+	public long getMaxWindow() {
+		return maxWindow;
+	}
+
+	public boolean isSlowStart() {
+		return slowStart;
+	}
+}
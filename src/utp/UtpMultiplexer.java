@@ -0,0 +1,329 @@
+/*
+ * Carries every uTP connection of the client over one UDP DatagramChannel
+ * A receiver thread hands each datagram to the connection it's for, by the sender's address and the connection ID,
+ * and the shared timer wheel ticks every connection so it can resend what timed out.
+ * Packets for connections we don't know get a RESET back, so the other end gives up at once instead of timing out.
+ * Incoming connections are only accepted once setAccepting() says so, into a bounded queue for accept(),
+ * and the number of connections is capped, so a flood of SYNs can't run us out of memory.
+ * Multiplexers can be created and started on their own, e.g. two on loopback in one process, and the client shares the one from getInstance().
+ */
+package utp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import client.Environment;
+import client.LoggingClient;
+import tools.TimerWheel;
+import tools.Util;
+
+public class UtpMultiplexer
+{
+	private static UtpMultiplexer instance = null;
+	private final static int MAX_DATAGRAM_SIZE = 2048;	//Bigger than any packet we send, anything that doesn't fit is cut short and dropped
+	private final static int SOCKET_BUFFER_SIZE = 4*Util.SIZE_MB;	//Room for bursts from every connection while the receiver thread catches up
+	private final static int MAX_CONNECTIONS = 1024;
+	private final static int ACCEPT_BACKLOG = 64;
+	private final static long TICK_INTERVAL = 100;	//Milliseconds
+	private final int port;
+	private final ConcurrentMap<ConnectionKey, UtpSocket> sockets = new ConcurrentHashMap<ConnectionKey, UtpSocket>();
+	private final BlockingQueue<UtpSocket> acceptQueue = new ArrayBlockingQueue<UtpSocket>(ACCEPT_BACKLOG);
+	private final Random random = new Random();
+	private volatile boolean accepting = false;
+	private volatile DatagramChannel channel;
+	private volatile boolean running = false;
+	private TimerWheel.Timeout timer;
+	Logger logger = LoggingClient.getInstance().logger;
+
+	/*
+	 * Create a multiplexer on port, 0 for any
+	 */
+	public UtpMultiplexer(int port)
+	{
+		this.port = port;
+	}
+
+	/*
+	 * Return the client's multiplexer, started on the configured port
+	 */
+	public static synchronized UtpMultiplexer getInstance() throws IOException
+	{
+		if (instance == null)
+		{
+			UtpMultiplexer multiplexer = new UtpMultiplexer(Environment.getInstance().getUtpPort());
+			multiplexer.start();
+			instance = multiplexer;
+		}
+		return instance;
+	}
+
+	/*
+	 * Stop the client's multiplexer, if it was ever started
+	 */
+	public static synchronized void stopInstance()
+	{
+		if (instance != null)
+			instance.stop();
+	}
+
+	/*
+	 * Bind the channel, start the receiver thread and the tick
+	 */
+	public void start() throws IOException
+	{
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(port));
+		running = true;
+		Thread receiver = new Thread(new Receiver(), "uTP");
+		receiver.setDaemon(true);	//Don't keep the client alive after the main thread exits
+		receiver.start();
+		timer = TimerWheel.getInstance().schedulePeriodic(new Runnable()
+		{
+			public void run()
+			{
+				tick();
+			}
+		}, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+		logger.log(Level.INFO, "uTP started on port " + getPort());
+	}
+
+	/*
+	 * Stop, failing every connection still open
+	 */
+	public void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		timer.cancel();
+		for (UtpSocket socket : new ArrayList<UtpSocket>(sockets.values()))
+			socket.fail(new ClosedChannelException());
+		try
+		{
+			channel.close();	//Wakes the receiver thread up, which then exits
+		} catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Couldn't close uTP channel", e);
+		}
+		logger.log(Level.INFO, "uTP stopped");
+	}
+
+	/*
+	 * Open a socket to connect() to a peer
+	 */
+	public UtpSocket open()
+	{
+		return new UtpSocket(this);
+	}
+
+	/*
+	 * Take the next incoming connection, waiting up to timeout milliseconds for one
+	 * Returns null if none came in time
+	 */
+	public UtpSocket accept(long timeout) throws InterruptedException
+	{
+		return acceptQueue.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Pick a connection ID the socket receives on, one nobody uses with its peer yet
+	 */
+	int register(UtpSocket socket) throws IOException
+	{
+		if (!running)
+			throw new ClosedChannelException();
+		if (sockets.size() >= MAX_CONNECTIONS)
+			throw new IOException("Too many uTP connections");
+		while (true)
+		{
+			int receiveId = random.nextInt(0x10000);
+			if (sockets.putIfAbsent(new ConnectionKey(socket.getRemoteAddress(), receiveId), socket) == null)
+				return receiveId;
+		}
+	}
+
+	void unregister(UtpSocket socket)
+	{
+		sockets.remove(new ConnectionKey(socket.getRemoteAddress(), socket.getReceiveId()), socket);
+	}
+
+	void send(UtpPacket packet, InetSocketAddress address)
+	{
+		try
+		{
+			channel.send(packet.encode(), address);
+		} catch (IOException e)
+		{
+			logger.log(Level.FINE, "Couldn't send uTP packet to " + address, e);
+		}
+	}
+
+	private void tick()
+	{
+		long now = System.currentTimeMillis();
+		for (UtpSocket socket : sockets.values())
+			socket.onTick(now);
+	}
+
+	/*
+	 * Handler for 'datagram received' event
+	 */
+	private void onDatagramReceived(ByteBuffer datagram, InetSocketAddress source)
+	{
+		UtpPacket packet = UtpPacket.decode(datagram);
+		if (packet == null)
+			return;
+		if (packet.getType() == UtpPacket.ST_SYN)
+		{
+			onSynReceived(packet, source);
+			return;
+		}
+		UtpSocket socket = sockets.get(new ConnectionKey(source, packet.getConnectionId()));
+		if (socket == null && packet.getType() == UtpPacket.ST_RESET)	//A RESET may carry the ID we send on rather than the one we receive on
+		{
+			socket = sockets.get(new ConnectionKey(source, (packet.getConnectionId() - 1) & 0xffff));
+			if (socket == null)
+				socket = sockets.get(new ConnectionKey(source, (packet.getConnectionId() + 1) & 0xffff));
+			if (socket != null && socket.getSendId() != packet.getConnectionId())
+				socket = null;
+		}
+		if (socket != null)
+			socket.onPacketReceived(packet, System.currentTimeMillis());
+		else if (packet.getType() != UtpPacket.ST_RESET)
+			sendReset(packet, source);
+	}
+
+	/*
+	 * Accept the connection if there is room for it, or answer a copy of the SYN of one accepted already
+	 */
+	private void onSynReceived(UtpPacket syn, InetSocketAddress source)
+	{
+		ConnectionKey key = new ConnectionKey(source, (syn.getConnectionId() + 1) & 0xffff);
+		UtpSocket socket = sockets.get(key);
+		if (socket == null)
+		{
+			if (!accepting || sockets.size() >= MAX_CONNECTIONS || acceptQueue.remainingCapacity() == 0)
+			{
+				sendReset(syn, source);
+				return;
+			}
+			socket = new UtpSocket(this, source, syn);
+			if (sockets.putIfAbsent(key, socket) != null)
+				return;
+			acceptQueue.offer(socket);
+			logger.log(Level.FINE, "Accepted uTP connection from " + source);
+		}
+		socket.onSynReceived();
+	}
+
+	private void sendReset(UtpPacket packet, InetSocketAddress source)
+	{
+		send(new UtpPacket(UtpPacket.ST_RESET, packet.getConnectionId(), random.nextInt(), packet.getSeqNr()), source);
+	}
+
+	public int getPort()
+	{
+		try
+		{
+			return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		} catch (IOException e)
+		{
+			return port;
+		}
+	}
+
+	public int getConnectionCount() {
+		return sockets.size();
+	}
+
+	public boolean isAccepting() {
+		return accepting;
+	}
+
+	public void setAccepting(boolean accepting) {
+		this.accepting = accepting;
+	}
+
+	/*
+	 * Receiver thread
+	 * Hands every datagram that arrives to its connection till the channel is closed
+	 */
+	private class Receiver implements Runnable
+	{
+		public void run()
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+			while (running)
+			{
+				InetSocketAddress source;
+				try
+				{
+					buffer.clear();
+					source = (InetSocketAddress) channel.receive(buffer);
+				} catch (ClosedChannelException e)
+				{
+					break;
+				} catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Couldn't receive uTP packet", e);
+					continue;
+				}
+				buffer.flip();
+				if (source == null)
+					continue;
+				try
+				{
+					onDatagramReceived(buffer, source);
+				} catch (RuntimeException e)
+				{
+					logger.log(Level.WARNING, "Failed to handle uTP packet from " + source, e);
+				}
+			}
+			logger.log(Level.FINE, "uTP receiver thread exiting");
+		}
+	}
+
+	/*
+	 * A connection as packets name it - the other end's address and the connection ID we receive on
+	 */
+	private static class ConnectionKey
+	{
+		private final InetSocketAddress address;
+		private final int id;
+
+		private ConnectionKey(InetSocketAddress address, int id)
+		{
+			this.address = address;
+			this.id = id;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof ConnectionKey))
+				return false;
+			ConnectionKey key = (ConnectionKey) other;
+			return id == key.id && address.equals(key.address);
+		}
+
+		public int hashCode()
+		{
+			return address.hashCode() * 31 + id;
+		}
+	}
+}
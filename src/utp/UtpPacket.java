@@ -0,0 +1,162 @@
+/*
+ * A uTP packet (BEP 29) - the 20 byte header, the selective ACK extension if there is one, and the payload
+ * Unknown extensions are skipped on decoding. Sequence and ACK numbers are 16 bit, kept in the low bits of an int.
+ */
+package utp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+public class UtpPacket
+{
+	public final static byte ST_DATA = 0;
+	public final static byte ST_FIN = 1;
+	public final static byte ST_STATE = 2;
+	public final static byte ST_RESET = 3;
+	public final static byte ST_SYN = 4;
+	public final static int HEADER_SIZE = 20;
+	private final static int VERSION = 1;
+	private final static byte EXTENSION_NONE = 0;
+	private final static byte EXTENSION_SELECTIVE_ACK = 1;
+	private final byte type;
+	private final int connectionId;
+	private int timestamp;	//Microseconds, low 32 bits of the sender's clock
+	private int timestampDifference;	//Microseconds, the sender's clock minus the timestamp of the last packet it got
+	private int windowSize;	//Bytes the sender can still receive
+	private final int seqNr;
+	private final int ackNr;
+	private byte[] selectiveAck;	//null if there's no selective ACK
+	private ByteBuffer payload = ByteBuffer.allocate(0);
+
+	public UtpPacket(byte type, int connectionId, int seqNr, int ackNr)
+	{
+		this.type = type;
+		this.connectionId = connectionId & 0xffff;
+		this.seqNr = seqNr & 0xffff;
+		this.ackNr = ackNr & 0xffff;
+	}
+
+	/*
+	 * Return the packet as a datagram ready to send
+	 */
+	public ByteBuffer encode()
+	{
+		int extensionLength = selectiveAck == null ? 0 : 2 + selectiveAck.length;
+		ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE + extensionLength + payload.remaining());
+		datagram.put((byte) ((type << 4) | VERSION));
+		datagram.put(selectiveAck == null ? EXTENSION_NONE : EXTENSION_SELECTIVE_ACK);
+		datagram.putShort((short) connectionId);
+		datagram.putInt(timestamp);
+		datagram.putInt(timestampDifference);
+		datagram.putInt(windowSize);
+		datagram.putShort((short) seqNr);
+		datagram.putShort((short) ackNr);
+		if (selectiveAck != null)
+		{
+			datagram.put(EXTENSION_NONE);
+			datagram.put((byte) selectiveAck.length);
+			datagram.put(selectiveAck);
+		}
+		datagram.put(payload.duplicate());
+		datagram.flip();
+		return datagram;
+	}
+
+	/*
+	 * Parse a received datagram, copying the payload out of it
+	 * Returns null if it isn't a valid uTP packet
+	 */
+	public static UtpPacket decode(ByteBuffer datagram)
+	{
+		try
+		{
+			int typeAndVersion = datagram.get() & 0xff;
+			byte type = (byte) (typeAndVersion >>> 4);
+			if ((typeAndVersion & 0x0f) != VERSION || type > ST_SYN)
+				return null;
+			int extension = datagram.get() & 0xff;
+			int connectionId = datagram.getShort() & 0xffff;
+			int timestamp = datagram.getInt();
+			int timestampDifference = datagram.getInt();
+			int windowSize = datagram.getInt();
+			int seqNr = datagram.getShort() & 0xffff;
+			int ackNr = datagram.getShort() & 0xffff;
+			UtpPacket packet = new UtpPacket(type, connectionId, seqNr, ackNr);
+			packet.timestamp = timestamp;
+			packet.timestampDifference = timestampDifference;
+			packet.windowSize = windowSize;
+			while (extension != EXTENSION_NONE)
+			{
+				int nextExtension = datagram.get() & 0xff;
+				byte[] data = new byte[datagram.get() & 0xff];
+				datagram.get(data);
+				if (extension == EXTENSION_SELECTIVE_ACK && data.length > 0)
+					packet.selectiveAck = data;
+				extension = nextExtension;
+			}
+			byte[] payload = new byte[datagram.remaining()];
+			datagram.get(payload);
+			packet.payload = ByteBuffer.wrap(payload);
+			return packet;
+		} catch (BufferUnderflowException e)
+		{
+			return null;
+		}
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getConnectionId() {
+		return connectionId;
+	}
+
+	public int getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(int timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public int getTimestampDifference() {
+		return timestampDifference;
+	}
+
+	public void setTimestampDifference(int timestampDifference) {
+		this.timestampDifference = timestampDifference;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public int getSeqNr() {
+		return seqNr;
+	}
+
+	public int getAckNr() {
+		return ackNr;
+	}
+
+	public byte[] getSelectiveAck() {
+		return selectiveAck;
+	}
+
+	public void setSelectiveAck(byte[] selectiveAck) {
+		this.selectiveAck = selectiveAck;
+	}
+
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	public void setPayload(ByteBuffer payload) {
+		this.payload = payload;
+	}
+}
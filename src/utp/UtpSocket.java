@@ -0,0 +1,691 @@
+/*
+ * A uTP connection (BEP 29), a reliable byte stream over the datagrams of a UtpMultiplexer
+ * Writes are cut into packets of up to 1380 bytes, each numbered and kept until it's acknowledged,
+ * and sent as fast as the LEDBAT window and the other end's receive window let them.
+ * A small write goes out on its own only if nothing is in flight, otherwise it waits to be coalesced, as Nagle does for TCP.
+ * Lost packets are sent again on three duplicate ACKs or three selective ACKs past them, and on timeout -
+ * the timeout comes from the smoothed round trip time and doubles each time it expires.
+ * Out of order packets wait in a reorder buffer, and while they do every ACK carries a selective ACK of the ones received.
+ * Memory is bounded: writes block once the send buffer is full, and the receive window we advertise shrinks as data waits to be read.
+ * The multiplexer's receiver thread and timer, the reader and the writer all go through the socket's monitor.
+ */
+package utp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import peer.Transport;
+import tools.Util;
+
+public class UtpSocket implements Transport
+{
+	public final static int MAX_PACKET_SIZE = 1400;	//Stays below the MTU of nearly every path, tunnels included
+	public final static int MAX_PAYLOAD = MAX_PACKET_SIZE - UtpPacket.HEADER_SIZE;
+	private final static int SEND_BUFFER_SIZE = 512*Util.SIZE_KB;	//Bytes written but not sent yet
+	private final static int RECEIVE_BUFFER_SIZE = 1*Util.SIZE_MB;	//Bytes received but not read yet, in order or not
+	private final static int PACKET_SLOTS = 1024;	//Most packets in flight each way, a power of two
+	private final static int MAX_SELECTIVE_ACK = 32;	//Bytes of selective ACK bitmask, covering 256 packets
+	private final static int DUPLICATE_ACK_THRESHOLD = 3;
+	private final static long INITIAL_TIMEOUT = 1000;	//Milliseconds
+	private final static long MIN_TIMEOUT = 500;	//Milliseconds
+	private final static long MAX_TIMEOUT = 30*1000L;	//Milliseconds
+	private final static int MAX_TIMEOUTS = 8;	//Timeouts in a row after which the connection is given up
+	private final static long CONNECT_TIMEOUT = 3000;	//Milliseconds to wait for the SYN to be answered, resending it on every timeout
+	private final static Random random = new Random();
+	private final UtpMultiplexer multiplexer;
+	private final Ledbat ledbat = new Ledbat(MAX_PACKET_SIZE);
+	private InetSocketAddress remoteAddress;
+	private int receiveId;
+	private int sendId;
+	private State state = State.IDLE;
+	private IOException error;	//Why the connection failed, thrown to whoever uses it next
+	private boolean closing = false;
+	private boolean finSent = false;
+	private boolean woken = false;
+	private long connectTime;
+	//Sending side
+	private int seqNr;	//Of the next packet we send
+	private int oldestUnacked;	//Seq of the oldest packet not acknowledged in order, seqNr if there is none
+	private final OutgoingPacket[] outgoing = new OutgoingPacket[PACKET_SLOTS];	//By seq
+	private final ArrayDeque<ByteBuffer> sendBuffer = new ArrayDeque<ByteBuffer>();	//Packet-sized chunks, the last one may be filling up
+	private int sendBufferSize = 0;
+	private long bytesInFlight = 0;	//Payload sent and not acknowledged, selectively or not
+	private long peerWindow = RECEIVE_BUFFER_SIZE;
+	private int lastAckReceived = -1;
+	private int duplicateAcks = 0;
+	private boolean hasRtt = false;
+	private long rtt = 0;	//Milliseconds, smoothed
+	private long rttVariance = 0;
+	private long timeout = INITIAL_TIMEOUT;
+	private long retransmitDeadline = 0;	//0 while nothing is in flight
+	private int timeouts = 0;
+	//Receiving side
+	private int ackNr;	//Seq of the last packet received in order
+	private final ByteBuffer[] reorderBuffer = new ByteBuffer[PACKET_SLOTS];	//By seq
+	private int reorderCount = 0;
+	private int reorderSize = 0;
+	private int finSeq = -1;	//Seq of the other end's FIN, once we got it
+	private boolean endOfStream = false;
+	private final ArrayDeque<ByteBuffer> receiveBuffer = new ArrayDeque<ByteBuffer>();
+	private int receiveBufferSize = 0;
+	private int replyDelay = 0;	//Microseconds the last packet took to get here, by our clock minus its timestamp
+	private int lastAdvertisedWindow = RECEIVE_BUFFER_SIZE;
+
+	private enum State
+	{
+		IDLE,
+		SYN_SENT,
+		CONNECTED,
+		CLOSED
+	}
+
+	/*
+	 * An unconnected socket, to connect() to a peer
+	 */
+	public UtpSocket(UtpMultiplexer multiplexer)
+	{
+		this.multiplexer = multiplexer;
+	}
+
+	/*
+	 * A socket accepting the connection a SYN asks for, which is connected right away
+	 */
+	UtpSocket(UtpMultiplexer multiplexer, InetSocketAddress remoteAddress, UtpPacket syn)
+	{
+		this.multiplexer = multiplexer;
+		this.remoteAddress = remoteAddress;
+		this.receiveId = (syn.getConnectionId() + 1) & 0xffff;
+		this.sendId = syn.getConnectionId();
+		this.seqNr = random.nextInt() & 0xffff;
+		this.oldestUnacked = seqNr;
+		this.ackNr = syn.getSeqNr();
+		this.state = State.CONNECTED;
+	}
+
+	/*
+	 * Send the SYN and wait until it's answered, resending it on timeout
+	 */
+	public void connect(InetSocketAddress address) throws IOException
+	{
+		synchronized (this)
+		{
+			if (state != State.IDLE)
+				throw new IOException("uTP socket to " + remoteAddress + " already used");
+			remoteAddress = address;
+			receiveId = multiplexer.register(this);
+			sendId = (receiveId + 1) & 0xffff;
+			seqNr = 1;
+			oldestUnacked = seqNr;
+			state = State.SYN_SENT;
+			connectTime = System.currentTimeMillis();
+			sendNew(UtpPacket.ST_SYN, ByteBuffer.allocate(0), connectTime);
+			try
+			{
+				while (state == State.SYN_SENT)
+					wait(CONNECT_TIMEOUT);
+			} catch (InterruptedException e)
+			{
+				fail(new InterruptedIOException("Interrupted while connecting to " + remoteAddress));
+			}
+			if (error != null)
+				throw error;
+		}
+	}
+
+	/*
+	 * Send the STATE that accepts the connection, called by the multiplexer for every copy of the SYN
+	 */
+	synchronized void onSynReceived()
+	{
+		if (state == State.CONNECTED)
+			sendState();
+	}
+
+	/*
+	 * Handler for 'packet received' event, called on the multiplexer's receiver thread
+	 */
+	synchronized void onPacketReceived(UtpPacket packet, long now)
+	{
+		if (state == State.CLOSED || state == State.IDLE)
+			return;
+		if (packet.getType() == UtpPacket.ST_RESET)
+		{
+			fail(new IOException("uTP connection reset by " + remoteAddress));
+			return;
+		}
+		replyDelay = getMicroseconds() - packet.getTimestamp();
+		peerWindow = packet.getWindowSize() & 0xffffffffL;
+		if (state == State.SYN_SENT)
+		{
+			if (packet.getType() != UtpPacket.ST_STATE)
+				return;
+			state = State.CONNECTED;
+			ackNr = (packet.getSeqNr() - 1) & 0xffff;
+		}
+		onAck(packet, now);
+		if (packet.getType() == UtpPacket.ST_DATA || packet.getType() == UtpPacket.ST_FIN)
+			onData(packet);
+		flush(now);
+		closeIfDone();
+		notifyAll();
+	}
+
+	/*
+	 * Take the packets the ACK covers - in order up to its ack_nr, and selectively past it - off the ones in flight,
+	 * feed what it says about round trip time and delay to the estimators, and resend the oldest packet if it looks lost
+	 */
+	private void onAck(UtpPacket packet, long now)
+	{
+		int ack = packet.getAckNr();
+		int outstanding = seqDiff(seqNr, oldestUnacked);
+		int acked = seqDiff(ack, oldestUnacked) + 1;	//Packets newly acknowledged in order
+		if (acked > outstanding)	//Acknowledges packets we never sent
+			return;
+		long flightSize = bytesInFlight;
+		long bytesAcked = 0;
+		long rttSample = -1;
+		for (int i = 0; i < acked; i++)
+		{
+			OutgoingPacket sent = outgoing[oldestUnacked & (PACKET_SLOTS - 1)];
+			outgoing[oldestUnacked & (PACKET_SLOTS - 1)] = null;
+			oldestUnacked = (oldestUnacked + 1) & 0xffff;
+			if (sent == null || sent.acked)
+				continue;
+			bytesAcked += sent.length;
+			if (sent.transmissions == 1)	//Karn's rule - a resent packet's ACK could be for either copy
+				rttSample = now - sent.sendTime;
+		}
+		int selectivelyAcked = 0;
+		byte[] selectiveAck = packet.getSelectiveAck();
+		if (selectiveAck != null)
+		{
+			for (int bit = 0; bit < selectiveAck.length * 8; bit++)
+			{
+				if ((selectiveAck[bit >>> 3] & (1 << (bit & 7))) == 0)
+					continue;
+				int seq = (ack + 2 + bit) & 0xffff;
+				if (seqDiff(seq, oldestUnacked) < 0 || seqDiff(seq, seqNr) >= 0)
+					continue;
+				selectivelyAcked++;
+				OutgoingPacket sent = outgoing[seq & (PACKET_SLOTS - 1)];
+				if (sent == null || sent.acked)
+					continue;
+				sent.acked = true;
+				bytesAcked += sent.length;
+				if (sent.transmissions == 1)
+					rttSample = now - sent.sendTime;
+			}
+		}
+		bytesInFlight -= bytesAcked;
+		if (rttSample >= 0)
+			updateRtt(rttSample);
+		boolean inFlight = seqDiff(seqNr, oldestUnacked) > 0;
+		if (acked > 0)
+		{
+			timeouts = 0;
+			duplicateAcks = 0;
+			retransmitDeadline = inFlight ? now + timeout : 0;
+		}
+		else if (packet.getType() == UtpPacket.ST_STATE && inFlight && ack == lastAckReceived)
+			duplicateAcks++;
+		lastAckReceived = ack;
+		if (bytesAcked > 0)
+			ledbat.onAck(bytesAcked, packet.getTimestampDifference() & 0xffffffffL, flightSize, now);
+		if (inFlight && (duplicateAcks >= DUPLICATE_ACK_THRESHOLD || selectivelyAcked >= DUPLICATE_ACK_THRESHOLD))
+		{
+			OutgoingPacket oldest = outgoing[oldestUnacked & (PACKET_SLOTS - 1)];
+			if (oldest != null && now - oldest.sendTime > rtt)	//Once per round trip, the ACKs of the first resend take that long
+			{
+				ledbat.onLoss(now, rtt);
+				transmit(oldest, now);
+				duplicateAcks = 0;
+			}
+		}
+	}
+
+	/*
+	 * Take the payload of a DATA or FIN packet, in order or into the reorder buffer, and acknowledge it
+	 */
+	private void onData(UtpPacket packet)
+	{
+		int seq = packet.getSeqNr();
+		int offset = seqDiff(seq, ackNr + 1);
+		ByteBuffer payload = packet.getPayload();
+		if (offset >= 0 && offset < PACKET_SLOTS && !endOfStream
+				&& receiveBufferSize + reorderSize + payload.remaining() <= RECEIVE_BUFFER_SIZE)
+		{
+			if (packet.getType() == UtpPacket.ST_FIN)
+				finSeq = seq;
+			if (offset > 0)
+			{
+				if (reorderBuffer[seq & (PACKET_SLOTS - 1)] == null)
+				{
+					reorderBuffer[seq & (PACKET_SLOTS - 1)] = payload;
+					reorderCount++;
+					reorderSize += payload.remaining();
+				}
+			}
+			else
+			{
+				deliver(seq, payload);
+				while (reorderCount > 0)
+				{
+					int next = (ackNr + 1) & 0xffff;
+					ByteBuffer buffered = reorderBuffer[next & (PACKET_SLOTS - 1)];
+					if (buffered == null)
+						break;
+					reorderBuffer[next & (PACKET_SLOTS - 1)] = null;
+					reorderCount--;
+					reorderSize -= buffered.remaining();
+					deliver(next, buffered);
+				}
+			}
+		}
+		sendState();	//Duplicates too, our earlier ACK may have been lost
+	}
+
+	private void deliver(int seq, ByteBuffer payload)
+	{
+		ackNr = seq;
+		if (payload.hasRemaining())
+		{
+			receiveBuffer.addLast(payload);
+			receiveBufferSize += payload.remaining();
+		}
+		if (seq == finSeq)
+			endOfStream = true;
+	}
+
+	/*
+	 * Called by the multiplexer's timer every tick
+	 * Resends the oldest packet in flight if it timed out, gives up after too many timeouts,
+	 * and sends what the window let through meanwhile
+	 */
+	synchronized void onTick(long now)
+	{
+		if (state == State.SYN_SENT && now - connectTime > CONNECT_TIMEOUT)
+			fail(new SocketTimeoutException("uTP connect to " + remoteAddress + " timed out"));
+		if (state == State.CLOSED || state == State.IDLE)
+			return;
+		if (retransmitDeadline != 0 && now >= retransmitDeadline)
+		{
+			if (++timeouts > MAX_TIMEOUTS)
+			{
+				fail(new SocketTimeoutException("uTP connection to " + remoteAddress + " timed out"));
+				return;
+			}
+			ledbat.onTimeout(now);
+			timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+			retransmitDeadline = now + timeout;
+			duplicateAcks = 0;
+			OutgoingPacket oldest = outgoing[oldestUnacked & (PACKET_SLOTS - 1)];
+			if (oldest != null)
+				transmit(oldest, now);
+		}
+		flush(now);
+		closeIfDone();
+		notifyAll();
+	}
+
+	/*
+	 * Send what the windows let us, packet-sized chunks first, a partial chunk only if nothing is in flight,
+	 * and the FIN once everything else went out after close()
+	 */
+	private void flush(long now)
+	{
+		if (state != State.CONNECTED)
+			return;
+		while (!sendBuffer.isEmpty())
+		{
+			ByteBuffer chunk = sendBuffer.peekFirst();
+			if (chunk.hasRemaining() && sendBuffer.size() == 1 && seqDiff(seqNr, oldestUnacked) > 0 && !closing)
+				break;
+			if (!canSend(chunk.position()))
+				return;
+			sendBuffer.pollFirst();
+			sendBufferSize -= chunk.position();
+			chunk.flip();
+			sendNew(UtpPacket.ST_DATA, chunk, now);
+		}
+		if (closing && !finSent && canSend(0))
+		{
+			finSent = true;
+			sendNew(UtpPacket.ST_FIN, ByteBuffer.allocate(0), now);
+		}
+	}
+
+	private boolean canSend(int length)
+	{
+		if (seqDiff(seqNr, oldestUnacked) >= PACKET_SLOTS - 1)
+			return false;
+		return bytesInFlight == 0 || bytesInFlight + length <= Math.min(ledbat.getMaxWindow(), peerWindow);
+	}
+
+	private void sendNew(byte type, ByteBuffer payload, long now)
+	{
+		OutgoingPacket packet = new OutgoingPacket(type, seqNr, payload);
+		outgoing[seqNr & (PACKET_SLOTS - 1)] = packet;
+		seqNr = (seqNr + 1) & 0xffff;
+		bytesInFlight += packet.length;
+		if (retransmitDeadline == 0)
+			retransmitDeadline = now + timeout;
+		transmit(packet, now);
+	}
+
+	private void transmit(OutgoingPacket sent, long now)
+	{
+		UtpPacket packet = newPacket(sent.type, sent.seq);
+		packet.setPayload(sent.payload.duplicate());
+		sent.sendTime = now;
+		sent.transmissions++;
+		multiplexer.send(packet, remoteAddress);
+	}
+
+	/*
+	 * Acknowledge what we received, selectively too if there are packets waiting in the reorder buffer
+	 */
+	private void sendState()
+	{
+		UtpPacket packet = newPacket(UtpPacket.ST_STATE, seqNr);
+		if (reorderCount > 0)
+		{
+			byte[] selectiveAck = new byte[MAX_SELECTIVE_ACK];
+			int highest = -1;
+			for (int bit = 0; bit < MAX_SELECTIVE_ACK * 8; bit++)
+			{
+				if (reorderBuffer[(ackNr + 2 + bit) & (PACKET_SLOTS - 1)] != null)
+				{
+					selectiveAck[bit >>> 3] |= 1 << (bit & 7);
+					highest = bit;
+				}
+			}
+			if (highest >= 0)
+			{
+				int length = (highest / 32 + 1) * 4;	//A multiple of 4 bytes, as BEP 29 asks
+				byte[] trimmed = new byte[length];
+				System.arraycopy(selectiveAck, 0, trimmed, 0, length);
+				packet.setSelectiveAck(trimmed);
+			}
+		}
+		multiplexer.send(packet, remoteAddress);
+	}
+
+	private UtpPacket newPacket(byte type, int seq)
+	{
+		UtpPacket packet = new UtpPacket(type, type == UtpPacket.ST_SYN ? receiveId : sendId, seq, ackNr);
+		packet.setTimestamp(getMicroseconds());
+		packet.setTimestampDifference(replyDelay);
+		lastAdvertisedWindow = Math.max(0, RECEIVE_BUFFER_SIZE - receiveBufferSize - reorderSize);
+		packet.setWindowSize(lastAdvertisedWindow);
+		return packet;
+	}
+
+	private void updateRtt(long sample)
+	{
+		if (!hasRtt)
+		{
+			hasRtt = true;
+			rtt = sample;
+			rttVariance = sample / 2;
+		}
+		else
+		{
+			rttVariance += (Math.abs(rtt - sample) - rttVariance) / 4;
+			rtt += (sample - rtt) / 8;
+		}
+		timeout = Math.max(rtt + 4 * rttVariance, MIN_TIMEOUT);
+	}
+
+	/*
+	 * Once both ends have sent their FIN, or we have and it's acknowledged, the connection is over
+	 */
+	private void closeIfDone()
+	{
+		if (finSent && seqDiff(seqNr, oldestUnacked) == 0)
+		{
+			state = State.CLOSED;
+			multiplexer.unregister(this);
+		}
+	}
+
+	/*
+	 * Give the connection up, telling whoever uses it next why
+	 */
+	synchronized void fail(IOException e)
+	{
+		if (state == State.CLOSED)
+			return;
+		error = e;
+		state = State.CLOSED;
+		sendBuffer.clear();
+		multiplexer.unregister(this);
+		notifyAll();
+	}
+
+	public int read(ByteBuffer buffer) throws IOException
+	{
+		int read = 0;
+		boolean windowReopened;
+		synchronized (this)
+		{
+			if (receiveBuffer.isEmpty())
+			{
+				if (endOfStream)
+					return -1;
+				if (error != null)
+					throw error;
+				if (state == State.CLOSED || closing)
+					throw new ClosedChannelException();
+				return 0;
+			}
+			while (buffer.hasRemaining() && !receiveBuffer.isEmpty())
+			{
+				ByteBuffer payload = receiveBuffer.peekFirst();
+				int length = Math.min(payload.remaining(), buffer.remaining());
+				ByteBuffer slice = payload.duplicate();
+				slice.limit(slice.position() + length);
+				buffer.put(slice);
+				payload.position(payload.position() + length);
+				if (!payload.hasRemaining())
+					receiveBuffer.pollFirst();
+				read += length;
+			}
+			receiveBufferSize -= read;
+			windowReopened = lastAdvertisedWindow < RECEIVE_BUFFER_SIZE / 4
+					&& RECEIVE_BUFFER_SIZE - receiveBufferSize - reorderSize >= RECEIVE_BUFFER_SIZE / 2;
+			if (windowReopened && state == State.CONNECTED)
+				sendState();	//The other end may be waiting on our window
+		}
+		return read;
+	}
+
+	/*
+	 * Copy the buffer into the send buffer, waiting for room while it's full
+	 */
+	public int write(ByteBuffer buffer) throws IOException
+	{
+		int written = 0;
+		synchronized (this)
+		{
+			while (buffer.hasRemaining())
+			{
+				if (error != null)
+					throw error;
+				if (state != State.CONNECTED || closing)
+					throw new ClosedChannelException();
+				if (sendBufferSize >= SEND_BUFFER_SIZE)
+				{
+					try
+					{
+						wait(INITIAL_TIMEOUT);
+					} catch (InterruptedException e)
+					{
+						throw new InterruptedIOException("Interrupted while writing to " + remoteAddress);
+					}
+					continue;
+				}
+				ByteBuffer chunk = sendBuffer.peekLast();
+				if (chunk == null || !chunk.hasRemaining())
+				{
+					chunk = ByteBuffer.allocate(MAX_PAYLOAD);
+					sendBuffer.addLast(chunk);
+				}
+				int length = Math.min(chunk.remaining(), Math.min(buffer.remaining(), SEND_BUFFER_SIZE - sendBufferSize));
+				ByteBuffer slice = buffer.duplicate();
+				slice.limit(slice.position() + length);
+				chunk.put(slice);
+				buffer.position(buffer.position() + length);
+				sendBufferSize += length;
+				written += length;
+				if (!chunk.hasRemaining())
+					flush(System.currentTimeMillis());
+			}
+			flush(System.currentTimeMillis());
+		}
+		return written;
+	}
+
+	public long write(ByteBuffer[] buffers) throws IOException
+	{
+		long written = 0;
+		for (ByteBuffer buffer : buffers)
+			written += write(buffer);
+		return written;
+	}
+
+	public synchronized boolean awaitReadable(long timeout) throws IOException
+	{
+		long deadline = timeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+		try
+		{
+			while (receiveBuffer.isEmpty() && !endOfStream && state != State.CLOSED && !closing && !woken)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				wait(Math.min(remaining, MAX_TIMEOUT));
+			}
+		} catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while reading from " + remoteAddress);
+		}
+		woken = false;
+		return !receiveBuffer.isEmpty() || endOfStream || state == State.CLOSED || closing;
+	}
+
+	/*
+	 * Writes wait for room in the send buffer themselves, so there's never anything to wait for here
+	 */
+	public void awaitWritable()
+	{
+	}
+
+	public synchronized void wakeup()
+	{
+		woken = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return state != State.CLOSED && !closing;
+	}
+
+	/*
+	 * Send the FIN once everything written so far went out, without waiting for it to be acknowledged
+	 * The multiplexer keeps the connection till then, or till it times out
+	 */
+	public synchronized void close()
+	{
+		if (closing)
+			return;
+		closing = true;
+		if (state == State.CONNECTED)
+		{
+			flush(System.currentTimeMillis());
+			closeIfDone();
+		}
+		else if (state != State.CLOSED)
+		{
+			state = State.CLOSED;
+			if (remoteAddress != null)
+				multiplexer.unregister(this);
+		}
+		notifyAll();
+	}
+
+	/*
+	 * Difference of two 16 bit sequence numbers, a - b, allowing for wrap around
+	 */
+	private static int seqDiff(int a, int b)
+	{
+		return (short) (a - b);
+	}
+
+	private static int getMicroseconds()
+	{
+		return (int) (System.nanoTime() / 1000);
+	}
+
+	public WritableByteChannel getTransferTarget() {
+		return this;
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	public String getProtocol() {
+		return "uTP";
+	}
+
+	public int getReceiveId() {
+		return receiveId;
+	}
+
+	public int getSendId() {
+		return sendId;
+	}
+
+	public synchronized long getRtt() {
+		return rtt;
+	}
+
+	public synchronized long getMaxWindow() {
+		return ledbat.getMaxWindow();
+	}
+
+	public String toString()
+	{
+		return "uTP " + remoteAddress + " #" + receiveId;
+	}
+
+	/*
+	 * A packet we sent, kept until it's acknowledged in case it has to be sent again
+	 */
+	private static class OutgoingPacket
+	{
+		private final byte type;
+		private final int seq;
+		private final ByteBuffer payload;
+		private final int length;
+		private long sendTime;
+		private int transmissions = 0;
+		private boolean acked = false;	//Selectively, it stays until the packets before it are acknowledged too
+
+		private OutgoingPacket(byte type, int seq, ByteBuffer payload)
+		{
+			this.type = type;
+			this.seq = seq;
+			this.payload = payload;
+			this.length = payload.remaining();
+		}
+	}
+}